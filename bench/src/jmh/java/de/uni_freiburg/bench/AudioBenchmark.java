@@ -0,0 +1,70 @@
+package de.uni_freiburg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+
+import de.uni_freiburg.bgrecorder.SampleRing;
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+/**
+ * Cost of recording the microphone, per frame. At 16 kHz a frame arrives every 62.5 us, so
+ * the path from a block of 16-bit PCM into a Matroska track has to stay well below that to keep
+ * the rate next to the motion sensors.
+ *
+ * bulkOffer appends each 100 ms block read from AudioRecord to the ring at once, as the
+ * AudioSource does, and perFrame offers the same samples one frame at a time like a sensor
+ * event. Both drain the block through a Matroska track.
+ */
+@State(Scope.Thread)
+public class AudioBenchmark {
+    private static final int RATE = 16000;
+    private static final int FRAMES = RATE / 10;
+
+    private ByteBuffer mBlock;
+    private float[][] mValues;
+    private SampleRing mRing;
+    private GatheringByteChannel mTrack;
+
+    @Setup
+    public void setup() throws IOException {
+        float scale = 1.f / 32768;
+        mBlock = ByteBuffer.allocateDirect(2 * FRAMES).order(ByteOrder.nativeOrder());
+        mValues = new float[FRAMES][1];
+        for (int i = 0; i < FRAMES; i++) {
+            short s = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / RATE));
+            mBlock.putShort(s);
+            mValues[i][0] = s * scale;
+        }
+
+        mRing = new SampleRing(1, 4 * FRAMES, false, scale);
+
+        String format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "s16le" : "s16be";
+        MatroskaWriter w = new MatroskaWriter(new NullChannel(), "bench");
+        mTrack = w.getTrackChannel(w.addAudioTrack(format, RATE, 1));
+        w.start();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int bulkOffer() throws IOException {
+        mBlock.clear();
+        mRing.offer(mBlock, 0);
+        return mRing.drainTo(mTrack, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int perFrame() throws IOException {
+        for (int i = 0; i < FRAMES; i++)
+            mRing.offer(mValues[i]);
+        return mRing.drainTo(mTrack, FRAMES);
+    }
+}
@@ -0,0 +1,83 @@
+package de.uni_freiburg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+
+import de.uni_freiburg.bgrecorder.SampleRing;
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+/**
+ * Cost of packing sample frames into bytes, per frame. A second's worth of frames is packed
+ * and handed on in one batch, as the RingDrainer does.
+ *
+ * ringToChannel packs into the ring storage and gather-writes it, ringToMatroska additionally
+ * frames the batch as a Matroska block, and heapBuffer allocates a buffer per frame as the
+ * callback did before the rings.
+ */
+@State(Scope.Thread)
+public class PackBenchmark {
+    private static final int FRAMES = 50;
+
+    @Param({"1", "3", "5"})
+    public int channels;
+
+    private float[] mValues;
+    private SampleRing mRing;
+    private NullChannel mSink;
+    private GatheringByteChannel mTrack;
+
+    @Setup
+    public void setup() throws IOException {
+        mValues = new float[channels];
+        for (int i = 0; i < channels; i++)
+            mValues[i] = i + .5f;
+
+        mRing = new SampleRing(channels, 4 * FRAMES);
+        mSink = new NullChannel();
+
+        String format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "f32le" : "f32be";
+        MatroskaWriter w = new MatroskaWriter(new NullChannel(), "bench");
+        mTrack = w.getTrackChannel(w.addAudioTrack(format, FRAMES, channels));
+        w.start();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int ringToChannel() throws IOException {
+        for (int i = 0; i < FRAMES; i++)
+            mRing.offer(mValues);
+        return mRing.drainTo(mSink, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int ringToMatroska() throws IOException {
+        for (int i = 0; i < FRAMES; i++)
+            mRing.offer(mValues);
+        return mRing.drainTo(mTrack, FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long heapBuffer() {
+        long n = 0;
+
+        for (int i = 0; i < FRAMES; i++) {
+            ByteBuffer b = ByteBuffer.allocate(4 * channels).order(ByteOrder.nativeOrder());
+            for (float v : mValues)
+                b.putFloat(v);
+            n += mSink.write(ByteBuffer.wrap(b.array()));
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,106 @@
+package de.uni_freiburg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import de.uni_freiburg.bgrecorder.SampleRing;
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+/**
+ * Throughput of the writer path into a named pipe, per frame. A stub consumer thread stands in
+ * for ffmpeg and reads the pipe as fast as it can. The frames of one invocation are written in
+ * batches of the given size, either as raw samples like a per-stream FIFO, or framed into
+ * Matroska blocks like the multiplexed stdin of ffmpeg.
+ */
+@State(Scope.Thread)
+public class PipeBenchmark {
+    private static final int FRAMES = 500;
+    private static final int CHANNELS = 3;
+
+    @Param({"1", "50", "500"})
+    public int batch;
+
+    @Param({"false", "true"})
+    public boolean muxed;
+
+    private File mFifo;
+    private Thread mConsumer;
+    private FileChannel mPipe;
+    private MatroskaWriter mWriter;
+    private GatheringByteChannel mOut;
+    private SampleRing mRing;
+    private float[] mValues = new float[CHANNELS];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mFifo = File.createTempFile("bench", ".fifo");
+        mFifo.delete();
+
+        if (new ProcessBuilder("mkfifo", mFifo.getPath()).start().waitFor() != 0)
+            throw new IOException("unable to create " + mFifo);
+
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64 * 1024];
+                try (InputStream in = new FileInputStream(mFifo)) {
+                    while (in.read(buf) >= 0)
+                        ;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "stub consumer");
+        mConsumer.start();
+
+        mPipe = new FileOutputStream(mFifo).getChannel();
+
+        if (muxed) {
+            String format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "f32le" : "f32be";
+            mWriter = new MatroskaWriter(mPipe, "bench");
+            mOut = mWriter.getTrackChannel(mWriter.addAudioTrack(format, 50, CHANNELS));
+            mWriter.start();
+        } else
+            mOut = mPipe;
+
+        mRing = new SampleRing(CHANNELS, FRAMES);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        if (mWriter != null)
+            mWriter.close();
+        mPipe.close();
+        mConsumer.join();
+        mFifo.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long write() throws IOException {
+        long n = 0;
+
+        for (int i = 0; i < FRAMES; i += batch) {
+            for (int j = 0; j < batch; j++)
+                mRing.offer(mValues);
+            n += mRing.drainTo(mOut, batch);
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,117 @@
+package de.uni_freiburg.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import de.uni_freiburg.bgrecorder.Resampler;
+import de.uni_freiburg.bgrecorder.SampleRing;
+
+/**
+ * Cost of the resampling and duplication loop of the sensor callback, per sensor event. The
+ * synthetic events arrive at the recording rate with a uniform jitter, so that some of them are
+ * dropped and some are repeated, just like events delivered from a hardware FIFO.
+ *
+ * legacyStreamCopy is the loop as it was before the ring buffers, packing every event into a
+ * heap buffer and writing it to an OutputStream once per repetition.
+ */
+@State(Scope.Thread)
+public class ResampleBenchmark {
+    private static final int EVENTS = 4096;
+    private static final double RATE = 50.;
+
+    @Param({"3", "5"})
+    public int channels;
+
+    @Param({"0.3"})
+    public double jitter;
+
+    private long[] mTimestamps = new long[EVENTS];
+    private long mSpan, mBase;
+    private float[] mValues;
+    private Resampler mResampler;
+    private SampleRing mRing;
+    private NullChannel mSink;
+
+    private ByteBuffer mBuf;
+    private OutputStream mOut;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(0);
+        long period = (long) (1e9 / RATE), t = 0;
+
+        for (int i = 0; i < EVENTS; i++) {
+            t += period + (long) ((r.nextDouble() * 2 - 1) * jitter * period);
+            mTimestamps[i] = t;
+        }
+        mSpan = t + period;
+        mBase = 0;
+
+        mValues = new float[channels];
+        for (int i = 0; i < channels; i++)
+            mValues[i] = r.nextFloat();
+
+        mResampler = new Resampler(RATE);
+        mRing = new SampleRing(channels, 2 * EVENTS);
+        mSink = new NullChannel();
+
+        mBuf = ByteBuffer.allocate(4 * channels).order(ByteOrder.nativeOrder());
+        mOut = new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long resampleIntoRing() throws IOException {
+        long samples = 0;
+
+        for (int i = 0; i < EVENTS; i++) {
+            int n = mResampler.update(mBase + mTimestamps[i]);
+            for (int j = 0; j < n; j++)
+                if (mRing.offer(mValues))
+                    samples++;
+        }
+        mBase += mSpan;
+
+        while (mRing.drainTo(mSink, EVENTS) > 0)
+            ;
+        return samples;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long legacyStreamCopy() throws IOException {
+        long samples = 0;
+
+        for (int i = 0; i < EVENTS; i++) {
+            int n = mResampler.update(mBase + mTimestamps[i]);
+
+            mBuf.clear();
+            for (float v : mValues)
+                mBuf.putFloat(v);
+
+            for (int j = 0; j < n; j++) {
+                mOut.write(mBuf.array());
+                samples++;
+            }
+        }
+        mBase += mSpan;
+
+        return samples;
+    }
+}
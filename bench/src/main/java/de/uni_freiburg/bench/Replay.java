@@ -0,0 +1,132 @@
+package de.uni_freiburg.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+import de.uni_freiburg.bgrecorder.CopyListener;
+import de.uni_freiburg.bgrecorder.ReplaySource;
+import de.uni_freiburg.bgrecorder.RingDrainer;
+import de.uni_freiburg.bgrecorder.SampleRing;
+import de.uni_freiburg.bgrecorder.StartSync;
+import de.uni_freiburg.bgrecorder.StreamMetrics;
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+/**
+ * Replays CSV captures through the recording pipeline off-device: ReplaySource, CopyListener,
+ * SampleRing and RingDrainer, muxed into one Matroska stream that is either piped into ffmpeg's
+ * stdin, like the multiplexed FFMpegProcess does, or stored directly. Prints the achieved
+ * speed-up over real time and the ring overflows, a replay is sustainable if none occurred.
+ *
+ *   ./gradlew :bench:replay --args='-speed 20 out.mkv acc.csv gyro.csv'
+ *
+ * options: -speed N   replay at N times real time, 0 for as fast as possible (default 1)
+ *          -rate HZ   recording rate (default 50)
+ *          -ffmpeg B  the ffmpeg binary to transcode with, or "none" (default ffmpeg)
+ */
+public class Replay {
+    public static void main(String[] args) throws Exception {
+        double speed = 1, rate = 50;
+        String ffmpeg = "ffmpeg", output = null;
+        ArrayList<File> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-speed"))
+                speed = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-rate"))
+                rate = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-ffmpeg"))
+                ffmpeg = args[++i];
+            else if (output == null)
+                output = args[i];
+            else
+                inputs.add(new File(args[i]));
+        }
+
+        if (output == null || inputs.isEmpty()) {
+            System.err.println("usage: Replay [-speed N] [-rate HZ] [-ffmpeg BIN|none] OUTPUT.mkv INPUT.csv...");
+            System.exit(1);
+        }
+
+        /*
+         * the output, ffmpeg reads the muxed stream from its stdin
+         */
+        Process p = null;
+        WritableByteChannel out;
+        if (ffmpeg.equals("none"))
+            out = new FileOutputStream(output).getChannel();
+        else {
+            p = new ProcessBuilder(ffmpeg, "-y", "-loglevel", "error",
+                    "-f", "matroska", "-i", "pipe:0", "-c:a", "wavpack", output)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = Channels.newChannel(p.getOutputStream());
+        }
+
+        String format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "f32le" : "f32be";
+        final MatroskaWriter writer = new MatroskaWriter(out, "automotion replay");
+        /* the flush deadline of the recorder is one second of recording time */
+        RingDrainer drainer = new RingDrainer((int) rate, speed > 0 ? (long) (1000 / speed) : 1);
+        StartSync sync = new StartSync(inputs.size(), null);
+        ArrayList<ReplaySource> sources = new ArrayList<>();
+        ArrayList<CopyListener> listeners = new ArrayList<>();
+        ArrayList<StreamMetrics> metrics = new ArrayList<>();
+
+        for (File f : inputs) {
+            final ReplaySource s = new ReplaySource(f.getName(), f, speed);
+            SampleRing ring = new SampleRing(s.getNumChannels(), (int) (60 * rate));
+            final int track = writer.addAudioTrack(format, rate, s.getNumChannels());
+            writer.setTrackTag(track, "name", s.getName());
+
+            drainer.add(s.getName(), ring, new RingDrainer.Opener() {
+                @Override
+                public WritableByteChannel open() throws IOException {
+                    return writer.getTrackChannel(track);
+                }
+            });
+
+            sources.add(s);
+            metrics.add(new StreamMetrics(s.getName(), ring, new StreamMetrics.Clock() {
+                @Override
+                public long nanos() {
+                    return s.now();
+                }
+            }));
+            listeners.add(new CopyListener(s, ring, rate, sync)
+                    .setMetrics(metrics.get(metrics.size() - 1)));
+        }
+
+        long wallStart = System.nanoTime();
+        drainer.start();
+        for (int i = 0; i < sources.size(); i++)
+            sources.get(i).start(listeners.get(i), (int) (1e6 / rate));
+
+        drainer.join();
+        writer.awaitClose();
+        int result = p == null ? 0 : p.waitFor();
+        double wall = (System.nanoTime() - wallStart) / 1e9;
+
+        long samples = 0, events = 0, overflows = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            CopyListener l = listeners.get(i);
+            events += sources.get(i).getNumEvents();
+            samples += l.getSampleCount();
+            overflows += l.getRing().getOverflows();
+
+            System.out.println(metrics.get(i));
+        }
+
+        double recorded = samples / rate / sources.size();
+        System.out.println(String.format(
+                "%.1f s recorded in %.2f s: %.1fx real time, %.0f events/s, %.0f samples/s, %d overflows%s",
+                recorded, wall, recorded / wall, events / wall, samples / wall, overflows,
+                result == 0 ? "" : ", ffmpeg exited with " + result));
+
+        System.exit(result == 0 && overflows == 0 ? 0 : 1);
+    }
+}
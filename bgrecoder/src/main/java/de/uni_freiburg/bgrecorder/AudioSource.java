@@ -0,0 +1,208 @@
+package de.uni_freiburg.bgrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Records the microphone as a stream of the recording, as mono 16-bit PCM at a fixed rate.
+ * At 8-16 kHz this is two orders of magnitude more data than the motion sensors, so audio
+ * bypasses the per-event path of SampleSource and CopyListener: a thread of its own reads
+ * blocks of samples straight into a direct buffer, which is appended to the ring of the stream
+ * as a whole, see SampleRing.offer(ByteBuffer, long). There is no work per sample on the Java
+ * side, and the RingDrainer writes the ring in large batches like any other stream.
+ *
+ * The stream starts synchronously with the sensors through their StartSync. AudioRecord reports
+ * when a frame was captured on the same clock as the sensor events (TIMEBASE_BOOTTIME), which
+ * gives the time of the first frame of each block; everything before the common start time is
+ * skipped. Blocks that arrive while the other streams have not reported yet are dropped, and
+ * if that leaves a gap after the start it is filled with silence. From then on the stream is
+ * continuous at its nominal rate.
+ *
+ * Needs the RECORD_AUDIO permission.
+ */
+public class AudioSource implements Runnable {
+    private static final String NAME = "microphone";
+    private static final int FRAME_SIZE = 2;
+
+    private final int mRate;
+    private final ByteBuffer mBuffer;
+    private final StreamMetrics.Clock mClock;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private AudioRecord mRecord;
+    private SampleRing mRing;
+    private StartSync mSync;
+    private Thread mThread;
+    private volatile boolean mStopped = false;
+
+    /* frames read so far, and the time of frame 0 on the sensor clock once known */
+    private long mFrames = 0, mStartNS = -1;
+    private boolean mArrived = false, mRecording = false;
+
+    /**
+     * @param rate          sampling rate in Hz
+     * @param bufferSeconds length of each block that is read and appended at once
+     * @param clock         the sensor clock, only used if AudioRecord has no timestamp yet
+     */
+    public AudioSource(int rate, double bufferSeconds, StreamMetrics.Clock clock) {
+        mRate = rate;
+        mClock = clock;
+        int frames = Math.max(1, (int) Math.round(rate * bufferSeconds));
+        mBuffer = ByteBuffer.allocateDirect(frames * FRAME_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public int getNumChannels() {
+        return 1;
+    }
+
+    public int getRate() {
+        return mRate;
+    }
+
+    /** @return the scale of the int16 samples, which are in units of the full scale */
+    public static float getScale() {
+        return 1.f / 32768;
+    }
+
+    /** @return a ring for this stream that holds the given duration */
+    public SampleRing newRing(double seconds) {
+        return new SampleRing(1, (int) Math.ceil(seconds * mRate), false, getScale());
+    }
+
+    /** start recording into the given ring. If the microphone is unavailable, the ring is
+     * closed, and the stream does not hold back the start of the other ones.
+     *
+     * @param sync the start synchronization shared by all streams of the recording
+     */
+    public void start(SampleRing ring, StartSync sync) throws IOException {
+        mRing = ring;
+        mSync = sync;
+
+        int min = AudioRecord.getMinBufferSize(mRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        mRecord = new AudioRecord(MediaRecorder.AudioSource.UNPROCESSED, mRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(min, 4 * mBuffer.capacity()));
+
+        if (mRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            mRecord.release();
+            mRecord = null;
+            sync.arrive(Long.MIN_VALUE);
+            ring.close();
+            throw new IOException("unable to record audio at " + mRate + " Hz");
+        }
+
+        mRecord.startRecording();
+        mThread = new Thread(this, "AudioSource");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /** stop recording, the ring is closed after the last block. */
+    public void stop() {
+        mStopped = true;
+        if (mThread == null)
+            return;
+
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mStopped) {
+                mBuffer.clear();
+                int n = mRecord.read(mBuffer, mBuffer.capacity(), AudioRecord.READ_BLOCKING);
+                if (n < 0) {
+                    Log.e("bgrec", "reading audio failed with " + n);
+                    break;
+                }
+
+                mBuffer.limit(n - n % FRAME_SIZE);
+                append(mBuffer);
+            }
+        } finally {
+            mRecord.stop();
+            mRecord.release();
+            mRing.close();
+
+            /* in case the recording was stopped before the first block */
+            if (!mArrived)
+                mSync.arrive(Long.MIN_VALUE);
+
+            Log.d("bgrec", String.format("%d audio frames read, %d overflows",
+                    mFrames, mRing.getOverflows()));
+        }
+    }
+
+    /** append the given number of silent frames, once at the start */
+    private void pad(long frames) {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(mBuffer.capacity());
+        while (frames > 0) {
+            int n = (int) Math.min(frames, zeros.capacity() / FRAME_SIZE);
+            zeros.clear().limit(n * FRAME_SIZE);
+            mRing.offer(zeros, -1);
+            frames -= n;
+        }
+    }
+
+    private void append(ByteBuffer block) {
+        int frames = block.remaining() / FRAME_SIZE;
+        long first = mFrames;
+        mFrames += frames;
+
+        /* the time of frame 0, from the capture time of a recent frame */
+        if (mStartNS < 0) {
+            if (mRecord.getTimestamp(mTimestamp, AudioTimestamp.TIMEBASE_BOOTTIME) ==
+                    AudioRecord.SUCCESS)
+                mStartNS = mTimestamp.nanoTime -
+                        Math.round(mTimestamp.framePosition * 1e9 / mRate);
+            else
+                mStartNS = mClock.nanos() - Math.round(mFrames * 1e9 / mRate);
+        }
+
+        long timestampNS = mStartNS + Math.round(first * 1e9 / mRate);
+        if (!mArrived) {
+            mArrived = true;
+            mSync.arrive(timestampNS);
+        }
+
+        if (!mSync.isStarted())
+            return;
+
+        /* skip the frames before the common start */
+        if (!mRecording) {
+            long skip = (long) Math.ceil((mSync.getStartNS() - timestampNS) * mRate / 1e9);
+            if (skip >= frames)
+                return;
+
+            if (skip > 0) {
+                block.position(block.position() + (int) skip * FRAME_SIZE);
+                timestampNS += Math.round(skip * 1e9 / mRate);
+            } else if (skip < 0) {
+                pad(-skip);
+                Log.w("bgrec", String.format("%s: %d frames of silence before the first " +
+                        "block", NAME, -skip));
+            }
+
+            mRecording = true;
+            Log.d("bgrec", String.format("%s started at %d", NAME, timestampNS));
+        }
+
+        mRing.offer(block, timestampNS);
+    }
+}
@@ -0,0 +1,102 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Logs clock sync markers of a recording into a text sidecar next to it, so that recordings of
+ * several devices can be put onto one common timeline afterwards. Sample times of a recording
+ * are relative to its start on the sensor clock, i.e. elapsedRealtimeNanos(), which is
+ * monotonic but unrelated between devices. Each marker pairs a reading of that clock with the
+ * wall clock time in UTC, which is NTP-synchronized across devices. Markers are written
+ * periodically, so the offset between both clocks can be interpolated to follow the drift of
+ * the sensor clock and any wall clock adjustments during the recording.
+ *
+ * The sidecar also records when a sensor was stepped to another sampling rate, see
+ * MotionGate. Its stream keeps the nominal rate, with each event repeated until the next one,
+ * so these entries tell which parts of the stream are held values.
+ *
+ * The sidecar has one entry per line, with tab-separated fields:
+ *
+ *   start    elapsed_ns               sensor clock time of the first frame
+ *   segment  index  start_seconds     start of a segment relative to the first frame
+ *   clock    elapsed_ns  utc_ms       a sync marker
+ *   rate     stream  elapsed_ns  hz   the sensor of a stream now samples at this rate
+ *
+ * Lines starting with # are comments. Every line is flushed right away, so the markers survive
+ * when the recording is cut off.
+ */
+public class ClockLog {
+    private final StreamMetrics.Clock mClock;
+    private final Writer mOut;
+    private boolean mClosed = false;
+
+    /**
+     * @param file  the sidecar, which is overwritten
+     * @param clock the sensor clock
+     */
+    public ClockLog(File file, StreamMetrics.Clock clock) throws IOException {
+        mClock = clock;
+        mOut = new FileWriter(file);
+        write("# clock sync markers, see ClockLog\n");
+    }
+
+    /** @return the sidecar of a recording, i.e. its name with a .clock instead of .mkv suffix */
+    public static File sidecarFor(String base) {
+        return new File(base + ".clock");
+    }
+
+    /** record the sensor clock time of the first frame of the recording. */
+    public void start(long elapsedNS) {
+        write(String.format(Locale.US, "start\t%d\n", elapsedNS));
+    }
+
+    /** record the start of a segment, relative to the first frame of the recording. */
+    public void segment(int index, double startSeconds) {
+        write(String.format(Locale.US, "segment\t%d\t%.9f\n", index, startSeconds));
+    }
+
+    /** record that the sensor of a stream was switched to another rate.
+     *
+     * @param stream index of the stream in the recording
+     */
+    public void rate(int stream, long elapsedNS, double rate) {
+        write(String.format(Locale.US, "rate\t%d\t%d\t%.6f\n", stream, elapsedNS, rate));
+    }
+
+    /**
+     * record a sync marker. The sensor clock is read before and after the wall clock, and its
+     * mean is taken, which halves the error if the thread is preempted in between.
+     */
+    public void sync() {
+        long before = mClock.nanos(),
+             utc = System.currentTimeMillis(),
+             after = mClock.nanos();
+        write(String.format(Locale.US, "clock\t%d\t%d\n", before + (after - before) / 2, utc));
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** markers are written from the sensor, segment and timer threads, a last one may come in
+     * after closing */
+    private synchronized void write(String line) {
+        if (mClosed)
+            return;
+        try {
+            mOut.write(line);
+            mOut.flush();
+        } catch (IOException e) {
+            System.err.println("unable to write clock marker: " + e);
+        }
+    }
+}
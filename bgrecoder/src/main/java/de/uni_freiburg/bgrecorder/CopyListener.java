@@ -0,0 +1,199 @@
+package de.uni_freiburg.bgrecorder;
+
+/** Copies the events of a SampleSource into a SampleRing at a fixed rate. All streams of a
+ * recording are started synchronously: each listener reports its first event to a shared
+ * StartSync, and only events after the latest of these first timestamps are recorded.
+ *
+ * The listener never blocks the thread of its source, which may be shared with other sources.
+ * Events that arrive before all streams have reported are staged in preallocated storage, and
+ * recorded or dropped once the start time is known. If the other streams take longer than the
+ * staging storage lasts, the oldest staged events are dropped.
+ *
+ * Without resampling (see setResampling()), every event after the start is copied exactly
+ * once, and its original timestamp is kept in a timestamped ring.
+ *
+ * A FeatureExtractor (see setFeatures()) receives every recorded frame, including those that
+ * are dropped by a full ring, so its windows stay on the timeline of the recording.
+ */
+public class CopyListener implements SampleSource.Listener {
+    /* how long the staging storage lasts at the sampling rate */
+    private static final double STAGE_SECONDS = 10;
+
+    private final SampleSource mSource;
+    private final SampleRing mRing;
+    private final Resampler mResampler;
+    private final StartSync mSync;
+    private StreamMetrics mMetrics = null;
+    private FeatureExtractor mFeatures = null;
+    private long mSampleCount = 0;
+    private boolean mArrived = false;
+    private boolean mResampling = true;
+    private boolean mRecording = false;
+
+    /* events before the start, as a ring that overwrites the oldest one */
+    private final long[] mStagedTimes;
+    private final float[][] mStagedValues;
+    private int mStagedFirst = 0, mStaged = 0;
+
+    /**
+     * @param source the source this listener is attached to
+     * @param ring   the ring buffer to copy samples into
+     * @param rate   the sampling rate of the recording
+     * @param sync   the start synchronization shared by all streams of the recording
+     */
+    public CopyListener(SampleSource source, SampleRing ring, double rate, StartSync sync) {
+        mSource = source;
+        mRing = ring;
+        mResampler = new Resampler(rate);
+        mSync = sync;
+
+        int staged = (int) Math.ceil(STAGE_SECONDS * rate) + 1;
+        mStagedTimes = new long[staged];
+        mStagedValues = new float[staged][source.getNumChannels()];
+    }
+
+    /** count events and samples in the given metrics. */
+    public CopyListener setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+        return this;
+    }
+
+    /** copy every event once instead of resampling them to the rate of the recording. */
+    public CopyListener setResampling(boolean resampling) {
+        mResampling = resampling;
+        return this;
+    }
+
+    /** compute windowed features of the recorded frames, the extractor is closed with the
+     * ring. */
+    public CopyListener setFeatures(FeatureExtractor features) {
+        mFeatures = features;
+        return this;
+    }
+
+    public String getName() {
+        return mSource.getName();
+    }
+
+    public SampleRing getRing() {
+        return mRing;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    @Override
+    public void onSample(long timestampNS, float[] values) {
+        try {
+            /*
+             * register the first timestamp of this stream, and stage the events until all
+             * others did the same. The sync is also released when the recording is stopped
+             * before that.
+             */
+            if (!mArrived) {
+                mArrived = true;
+                mSync.arrive(timestampNS);
+            }
+
+            if (!mSync.isStarted()) {
+                stage(timestampNS, values);
+                return;
+            }
+
+            while (mStaged > 0) {
+                int i = mStagedFirst;
+                mStagedFirst = (mStagedFirst + 1) % mStagedTimes.length;
+                mStaged--;
+                record(mStagedTimes[i], mStagedValues[i]);
+            }
+
+            record(timestampNS, values);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mSource.stop();
+            close();
+            System.err.println(String.format("%d samples written %s", mSampleCount, getName()));
+        }
+    }
+
+    private void stage(long timestampNS, float[] values) {
+        if (mStaged == mStagedTimes.length) {
+            mStagedFirst = (mStagedFirst + 1) % mStagedTimes.length;
+            mStaged--;
+        }
+
+        int i = (mStagedFirst + mStaged) % mStagedTimes.length;
+        float[] staged = mStagedValues[i];
+        int n = Math.min(values.length, staged.length);
+
+        System.arraycopy(values, 0, staged, 0, n);
+        for (int j = n; j < staged.length; j++)
+            staged[j] = 0.f;
+
+        mStagedTimes[i] = timestampNS;
+        mStaged++;
+    }
+
+    private void record(long timestampNS, float[] values) {
+        /*
+         * if a flush was completed, the sensor process is done, and the ring has been
+         * closed. The RingDrainer then closes the output channel to let ffmpeg know,
+         * that the recording is finished.
+         */
+        if (mRing.isClosed()) {
+            mSource.stop();
+            return;
+        }
+
+        /**
+         *  multiple stream synchronization, only start pushing events after the global
+         *  start time.
+         */
+        if (timestampNS < mSync.getStartNS())
+            return;
+
+        if (!mRecording) {
+            mRecording = true;
+            System.err.println(String.format("%s started at %d", getName(), timestampNS));
+        }
+
+        /**
+         * check whether or not interpolation is required, events that are too fast are
+         * removed, slow ones repeated.
+         */
+        int n = mResampling ? mResampler.update(timestampNS) : 1;
+        if (mMetrics != null)
+            mMetrics.onEvent(n);
+
+        if (mResampling && mResampler.isLagging())
+            System.err.println(String.format(
+                    "sample delay too large %.4f %s", mResampler.getLagUS() / 1e6, getName()));
+
+        /**
+         * a full ring drops the sample and counts it as an overflow, the source thread
+         * is never blocked.
+         */
+        for (int i = 0; i < n; i++) {
+            if (mRing.offer(values, timestampNS)) {
+                mSampleCount++;
+                if (mMetrics != null)
+                    mMetrics.onSample();
+            }
+
+            if (mFeatures != null)
+                mFeatures.update(values);
+        }
+    }
+
+    @Override
+    public void onFlushCompleted() {
+        close();
+    }
+
+    private void close() {
+        mRing.close();
+        if (mFeatures != null)
+            mFeatures.close();
+    }
+}
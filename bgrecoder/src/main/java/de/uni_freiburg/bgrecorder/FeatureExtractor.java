@@ -0,0 +1,218 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/** Computes windowed features of a stream incrementally while it is recorded, and writes them
+ * as a low-rate stream of their own into a SampleRing, so that most analyses can read them
+ * instead of decoding the full stream. It is fed by the CopyListener of the stream with every
+ * frame it records, i.e. at the rate of the recording and on its timeline.
+ *
+ * Each feature frame covers a window of a fixed number of frames, and a new window starts
+ * every hop, so windows overlap when they are longer than the hop. Frame k of the feature
+ * stream covers the window that starts at frame k * hop of the stream, and is written once
+ * that window is complete. A feature frame holds, in this order:
+ *
+ *   mean_c    mean of each channel c
+ *   var_c     variance of each channel c
+ *   sma       signal magnitude area, the mean of the sum of the absolute values of all channels
+ *   band_l_h  mean power of the magnitude of all channels between l and h Hz
+ *
+ * Band powers are taken from a bank of second-order band-pass filters that runs over the
+ * magnitude, which also removes its constant part, e.g. gravity. Bands above the Nyquist
+ * frequency of the stream are left out.
+ *
+ * All state is allocated in the constructor: each overlapping window has its own running sums,
+ * which are updated with every frame and reset when the window starts again. update() never
+ * allocates and takes O(overlap * (channels + bands)) per frame.
+ */
+public class FeatureExtractor {
+    /* bands are limited to this fraction of the sampling rate, below the Nyquist frequency */
+    private static final double MAX_BAND = .45;
+
+    private final int mChannels, mBands, mHopFrames, mWindowFrames, mOverlap;
+    private final double mRate;
+    private final String[] mNames;
+    private final SampleRing mRing;
+    private final float[] mFrame;
+
+    /* band-pass coefficients b0, a1, a2 (b1 = 0, b2 = -b0) and state x1, x2, y1, y2 per band */
+    private final double[] mCoeffs, mState;
+
+    /* running sums of each window, indexed by window * channels + channel resp. band */
+    private final double[] mSum, mSumSq, mSma, mPower;
+    private final int[] mCount;
+    private long mFrames = 0;
+
+    /**
+     * @param channels      number of channels of the stream
+     * @param rate          rate of the stream in Hz
+     * @param windowSeconds length of each window, rounded to a multiple of the hop
+     * @param hopSeconds    time between the starts of two windows
+     * @param bandEdges     increasing edges of the frequency bands in Hz, n edges make n-1 bands
+     * @param capacity      number of feature frames the ring can hold
+     */
+    public FeatureExtractor(int channels, double rate, double windowSeconds, double hopSeconds,
+                            double[] bandEdges, int capacity) {
+        if (channels <= 0 || rate <= 0 || windowSeconds <= 0 || hopSeconds <= 0)
+            throw new IllegalArgumentException("channels, rate, window and hop must be positive");
+
+        mChannels = channels;
+        mRate = rate;
+        mHopFrames = Math.max(1, (int) Math.round(hopSeconds * rate));
+        mOverlap = Math.max(1, (int) Math.round(windowSeconds / hopSeconds));
+        mWindowFrames = mOverlap * mHopFrames;
+
+        ArrayList<String> names = new ArrayList<>();
+        for (int c = 0; c < channels; c++)
+            names.add("mean_" + c);
+        for (int c = 0; c < channels; c++)
+            names.add("var_" + c);
+        names.add("sma");
+
+        /* RBJ band-pass with 0 dB peak gain at the geometric center of each band */
+        double nyquist = MAX_BAND * rate;
+        ArrayList<double[]> coeffs = new ArrayList<>();
+        for (int i = 0; bandEdges != null && i + 1 < bandEdges.length; i++) {
+            double lo = bandEdges[i], hi = Math.min(bandEdges[i + 1], nyquist);
+            if (lo <= 0 || lo >= hi)
+                continue;
+
+            double f0 = Math.sqrt(lo * hi),
+                   w0 = 2 * Math.PI * f0 / rate,
+                   alpha = Math.sin(w0) / (2 * f0 / (hi - lo)),
+                   a0 = 1 + alpha;
+            coeffs.add(new double[] { alpha / a0, -2 * Math.cos(w0) / a0, (1 - alpha) / a0 });
+            names.add(String.format(Locale.US, "band_%s_%s", format(lo), format(hi)));
+        }
+
+        mBands = coeffs.size();
+        mCoeffs = new double[3 * mBands];
+        for (int b = 0; b < mBands; b++)
+            System.arraycopy(coeffs.get(b), 0, mCoeffs, 3 * b, 3);
+        mState = new double[4 * mBands];
+
+        mNames = names.toArray(new String[names.size()]);
+        mFrame = new float[mNames.length];
+        mRing = new SampleRing(mNames.length, capacity);
+
+        mSum = new double[mOverlap * channels];
+        mSumSq = new double[mOverlap * channels];
+        mSma = new double[mOverlap];
+        mPower = new double[mOverlap * Math.max(1, mBands)];
+        mCount = new int[mOverlap];
+        for (int w = 0; w < mOverlap; w++)
+            mCount[w] = -1;
+    }
+
+    private static String format(double hz) {
+        return hz == Math.rint(hz) ?
+                Long.toString((long) hz) : String.format(Locale.US, "%.2f", hz);
+    }
+
+    /** @return the ring the feature frames are written into */
+    public SampleRing getRing() {
+        return mRing;
+    }
+
+    /** @return the number of features per frame */
+    public int getNumChannels() {
+        return mNames.length;
+    }
+
+    /** @return the rate of the feature stream, one frame per hop */
+    public double getRate() {
+        return mRate / mHopFrames;
+    }
+
+    /** @return the length of each window in seconds */
+    public double getWindowSeconds() {
+        return mWindowFrames / mRate;
+    }
+
+    /** @return the names of the features in the order of the channels */
+    public String[] getNames() {
+        return mNames.clone();
+    }
+
+    /** @return the names of the features separated by commas, as stored in the stream tags */
+    public String getLayout() {
+        StringBuilder s = new StringBuilder();
+        for (String name : mNames)
+            s.append(s.length() > 0 ? "," : "").append(name);
+        return s.toString();
+    }
+
+    /** add the next frame of the stream, called from the thread of its CopyListener only. */
+    public void update(float[] values) {
+        /* a new window starts every hop, in the slot of the one that started a window ago */
+        if (mFrames % mHopFrames == 0) {
+            int w = (int) ((mFrames / mHopFrames) % mOverlap);
+            for (int c = 0; c < mChannels; c++)
+                mSum[w * mChannels + c] = mSumSq[w * mChannels + c] = 0;
+            for (int b = 0; b < mBands; b++)
+                mPower[w * mBands + b] = 0;
+            mSma[w] = 0;
+            mCount[w] = 0;
+        }
+        mFrames++;
+
+        int n = Math.min(values.length, mChannels);
+        double abs = 0, magnitude = 0;
+        for (int c = 0; c < n; c++) {
+            abs += Math.abs(values[c]);
+            magnitude += values[c] * values[c];
+        }
+        magnitude = Math.sqrt(magnitude);
+
+        for (int b = 0; b < mBands; b++) {
+            int k = 3 * b, s = 4 * b;
+            double y = mCoeffs[k] * (magnitude - mState[s + 1])
+                     - mCoeffs[k + 1] * mState[s + 2] - mCoeffs[k + 2] * mState[s + 3];
+            mState[s + 1] = mState[s];
+            mState[s] = magnitude;
+            mState[s + 3] = mState[s + 2];
+            mState[s + 2] = y;
+        }
+
+        for (int w = 0; w < mOverlap; w++) {
+            if (mCount[w] < 0)
+                continue;
+
+            for (int c = 0; c < n; c++) {
+                mSum[w * mChannels + c] += values[c];
+                mSumSq[w * mChannels + c] += (double) values[c] * values[c];
+            }
+            for (int b = 0; b < mBands; b++) {
+                double y = mState[4 * b + 2];
+                mPower[w * mBands + b] += y * y;
+            }
+            mSma[w] += abs;
+
+            if (++mCount[w] == mWindowFrames) {
+                emit(w);
+                mCount[w] = -1;
+            }
+        }
+    }
+
+    private void emit(int w) {
+        int i = 0;
+        for (int c = 0; c < mChannels; c++)
+            mFrame[i++] = (float) (mSum[w * mChannels + c] / mWindowFrames);
+        for (int c = 0; c < mChannels; c++) {
+            double mean = mSum[w * mChannels + c] / mWindowFrames;
+            mFrame[i++] = (float) Math.max(0, mSumSq[w * mChannels + c] / mWindowFrames - mean * mean);
+        }
+        mFrame[i++] = (float) (mSma[w] / mWindowFrames);
+        for (int b = 0; b < mBands; b++)
+            mFrame[i++] = (float) (mPower[w * mBands + b] / mWindowFrames);
+
+        mRing.offer(mFrame);
+    }
+
+    /** the stream is finished, windows that are not complete yet are dropped. */
+    public void close() {
+        mRing.close();
+    }
+}
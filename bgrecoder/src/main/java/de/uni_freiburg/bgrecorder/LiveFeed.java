@@ -0,0 +1,346 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Shares the frames of a recording with live subscribers while it is written, e.g. in-app
+ * listeners or the clients of a LiveFeedServer. The feed is the Tap of the RingDrainer, and
+ * sees the packed frames of each stream exactly as they are written to the recording.
+ *
+ * Frames are copied once out of the ring, whose storage is reused right away, into a Batch
+ * from a fixed pool of direct buffers. All subscribers share that batch through read-only
+ * views, and it returns to the pool once the last one has released it. Each subscriber has a
+ * bounded queue of batches, which it takes from on a thread of its own.
+ *
+ * The feed never blocks or slows down the drainer: a subscriber whose queue is full misses the
+ * batch, and if all buffers are still held by slow subscribers the batch is missed by all of
+ * them. Missed frames are counted, and the first frame index of each batch shows the gap.
+ * Without subscribers nothing is copied.
+ *
+ * Restricted streams, e.g. the microphone, only reach the subscribers that asked for them,
+ * see subscribe(boolean).
+ */
+public class LiveFeed implements RingDrainer.Tap {
+
+    /** a stream of the recording, see addStream(). */
+    public static final class Stream {
+        public final String name;
+        public final int channels;
+        public final int frameSize;
+        public final float scale;
+        public final boolean timestamped;
+        public final double rate;
+        /** only delivered to subscribers of restricted streams */
+        public final boolean restricted;
+
+        Stream(String name, SampleRing ring, double rate, boolean restricted) {
+            this.name = name;
+            this.channels = ring.getNumChannels();
+            this.frameSize = ring.getFrameSize();
+            this.scale = ring.getScale();
+            this.timestamped = ring.isTimestamped();
+            this.rate = rate;
+            this.restricted = restricted;
+        }
+    }
+
+    /** whole frames of one stream in a pooled buffer, shared by all subscribers. */
+    public static final class Batch {
+        private final LiveFeed mFeed;
+        private final ByteBuffer mBuffer;
+        private final AtomicInteger mRefs = new AtomicInteger();
+        private int mStream, mFrames;
+        private long mFirstFrame;
+
+        Batch(LiveFeed feed, int capacity) {
+            mFeed = feed;
+            mBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+
+        public int getStream() {
+            return mStream;
+        }
+
+        public int getNumFrames() {
+            return mFrames;
+        }
+
+        /** @return index of the first frame in its stream, frame i is at i / rate seconds */
+        public long getFirstFrame() {
+            return mFirstFrame;
+        }
+
+        /** @return a read-only view on the frames, in the packed layout of the stream */
+        public ByteBuffer view() {
+            return mBuffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+
+        /** keep the batch beyond the call it was received in, see release(). */
+        public Batch retain() {
+            mRefs.incrementAndGet();
+            return this;
+        }
+
+        /** hand the batch back, its views must not be used afterwards. */
+        public void release() {
+            int refs = mRefs.decrementAndGet();
+            if (refs == 0)
+                mFeed.mPool.offer(this);
+            else if (refs < 0)
+                throw new IllegalStateException("batch released too often");
+        }
+    }
+
+    /** the bounded queue of one subscriber. */
+    public static final class Subscription {
+        private final LiveFeed mFeed;
+        private final ArrayBlockingQueue<Batch> mQueue;
+        private final boolean mRestricted;
+        private final AtomicLong mDropped = new AtomicLong();
+        /* closed by the feed once it ends, or cancelled by the subscriber */
+        private volatile boolean mClosed = false, mCancelled = false;
+
+        Subscription(LiveFeed feed, int capacity, boolean restricted) {
+            mFeed = feed;
+            mQueue = new ArrayBlockingQueue<>(capacity);
+            mRestricted = restricted;
+        }
+
+        /** @return all streams of the feed, batches of restricted ones only arrive if
+         * subscribed to, see receives() */
+        public List<Stream> getStreams() {
+            return mFeed.getStreams();
+        }
+
+        /**
+         * wait for the next batch, which must be released after use.
+         *
+         * @return the batch, or null on timeout or once the subscription has been closed
+         */
+        public Batch take(long timeoutMS) throws InterruptedException {
+            if (mClosed && mQueue.isEmpty())
+                return null;
+            return mQueue.poll(timeoutMS, TimeUnit.MILLISECONDS);
+        }
+
+        /** @return true if batches of the given stream arrive at this subscriber */
+        public boolean receives(Stream s) {
+            return mRestricted || !s.restricted;
+        }
+
+        /** @return the number of frames this subscriber has missed */
+        public long getDroppedFrames() {
+            return mDropped.get();
+        }
+
+        /** @return true once no further batches will arrive */
+        public boolean isClosed() {
+            return mClosed && mQueue.isEmpty();
+        }
+
+        /** stop receiving batches, and release the queued ones. */
+        public void close() {
+            mFeed.unsubscribe(this);
+            mCancelled = mClosed = true;
+            clear();
+        }
+
+        private void clear() {
+            Batch b;
+            while ((b = mQueue.poll()) != null)
+                b.release();
+        }
+
+        void offer(Batch b) {
+            if (!mQueue.offer(b.retain())) {
+                b.release();
+                mDropped.addAndGet(b.mFrames);
+            }
+
+            /* cancelled while the drainer still had it in its list */
+            if (mCancelled)
+                clear();
+        }
+    }
+
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    private final ArrayBlockingQueue<Batch> mPool;
+    private final int mBufferBytes, mQueueCapacity;
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private volatile boolean mClosed = false;
+    private final AtomicLong mMissed = new AtomicLong();
+
+    /* per stream, only touched by the drainer: frames seen so far, and a partial frame */
+    private long[] mFrames = new long[0];
+    private byte[][] mPartial = new byte[0][];
+    private int[] mPartialBytes = new int[0];
+
+    /**
+     * @param buffers       number of pooled buffers shared by all streams and subscribers
+     * @param bufferBytes   size of each buffer, larger writes are split into several batches
+     * @param queueCapacity number of batches each subscriber can have queued
+     */
+    public LiveFeed(int buffers, int bufferBytes, int queueCapacity) {
+        mPool = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++)
+            mPool.offer(new Batch(this, bufferBytes));
+        mBufferBytes = bufferBytes;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /** add a stream, in the same order as the rings are added to the RingDrainer, and before
+     * it is started. */
+    public LiveFeed addStream(String name, SampleRing ring, double rate) {
+        return addStream(name, ring, rate, false);
+    }
+
+    /** add a stream, see addStream(String, SampleRing, double).
+     *
+     * @param restricted only deliver it to subscribers that asked for restricted streams
+     */
+    public synchronized LiveFeed addStream(String name, SampleRing ring, double rate,
+                                           boolean restricted) {
+        Stream s = new Stream(name, ring, rate, restricted);
+        if (s.frameSize > mBufferBytes)
+            throw new IllegalArgumentException("frames of " + name + " exceed the buffers");
+
+        mStreams.add(s);
+        mFrames = Arrays.copyOf(mFrames, mStreams.size());
+        mPartial = Arrays.copyOf(mPartial, mStreams.size());
+        mPartial[mStreams.size() - 1] = new byte[s.frameSize];
+        mPartialBytes = Arrays.copyOf(mPartialBytes, mStreams.size());
+        return this;
+    }
+
+    public synchronized List<Stream> getStreams() {
+        return new ArrayList<>(mStreams);
+    }
+
+    /** @return a new subscription, which receives all frames drained from now on */
+    public Subscription subscribe() {
+        return subscribe(true);
+    }
+
+    /**
+     * @param restricted whether to receive the restricted streams as well
+     * @return a new subscription, which receives the frames drained from now on
+     */
+    public synchronized Subscription subscribe(boolean restricted) {
+        Subscription s = new Subscription(this, mQueueCapacity, restricted);
+        if (mClosed) {
+            s.mClosed = true;
+            return s;
+        }
+
+        Subscription[] subs = Arrays.copyOf(mSubscriptions, mSubscriptions.length + 1);
+        subs[subs.length - 1] = s;
+        mSubscriptions = subs;
+        return s;
+    }
+
+    synchronized void unsubscribe(Subscription s) {
+        ArrayList<Subscription> subs = new ArrayList<>(Arrays.asList(mSubscriptions));
+        subs.remove(s);
+        mSubscriptions = subs.toArray(new Subscription[subs.size()]);
+    }
+
+    /** @return the number of subscribers */
+    public int getNumSubscribers() {
+        return mSubscriptions.length;
+    }
+
+    /** @return the number of frames that were missed by all subscribers for lack of buffers */
+    public long getMissedFrames() {
+        return mMissed.get();
+    }
+
+    /** end the feed, subscribers receive their queued batches and are then closed. */
+    public void close() {
+        Subscription[] subs;
+        synchronized (this) {
+            mClosed = true;
+            subs = mSubscriptions;
+            mSubscriptions = new Subscription[0];
+        }
+
+        for (Subscription s : subs)
+            s.mClosed = true;
+    }
+
+    @Override
+    public void onDrained(int stream, ByteBuffer bytes) {
+        Subscription[] subs = mSubscriptions;
+        Stream st = mStreams.get(stream);
+        int frameSize = st.frameSize;
+
+        boolean wanted = false;
+        for (Subscription s : subs)
+            wanted |= s.receives(st);
+
+        /* nobody listens, only keep track of the frame index */
+        if (!wanted) {
+            advance(stream, bytes, frameSize);
+            return;
+        }
+
+        while (mPartialBytes[stream] + bytes.remaining() >= frameSize) {
+            Batch b = mPool.poll();
+            if (b == null) {
+                mMissed.addAndGet(advance(stream, bytes, frameSize));
+                return;
+            }
+
+            /* whole frames, starting with one that was only partially written before */
+            ByteBuffer buf = b.mBuffer;
+            int partial = mPartialBytes[stream],
+                room = buf.capacity() / frameSize * frameSize,
+                end = Math.min(partial + bytes.remaining(), room) / frameSize * frameSize,
+                limit = bytes.limit();
+
+            buf.clear();
+            buf.put(mPartial[stream], 0, partial);
+            bytes.limit(bytes.position() + end - partial);
+            buf.put(bytes);
+            bytes.limit(limit);
+            buf.flip();
+            mPartialBytes[stream] = 0;
+
+            b.mStream = stream;
+            b.mFrames = end / frameSize;
+            b.mFirstFrame = mFrames[stream];
+            b.mRefs.set(1);
+            mFrames[stream] += b.mFrames;
+
+            for (Subscription s : subs)
+                if (s.receives(st))
+                    s.offer(b);
+            b.release();
+        }
+
+        advance(stream, bytes, frameSize);
+    }
+
+    /** skip the bytes, but keep the beginning of a partially written frame.
+     * @return the number of frames that were skipped */
+    private int advance(int stream, ByteBuffer bytes, int frameSize) {
+        int partial = mPartialBytes[stream],
+            frames = (partial + bytes.remaining()) / frameSize,
+            rest = (partial + bytes.remaining()) % frameSize;
+
+        if (frames > 0) {
+            bytes.position(bytes.limit() - rest);
+            partial = 0;
+        }
+        bytes.get(mPartial[stream], partial, rest - partial);
+        mPartialBytes[stream] = rest;
+        mFrames[stream] += frames;
+        return frames;
+    }
+}
@@ -0,0 +1,236 @@
+package de.uni_freiburg.bgrecorder;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Serves a LiveFeed to local clients over a Unix socket in the abstract namespace. Only
+ * processes of the given uid, i.e. of the app itself, are served, every other peer is
+ * disconnected right away, so the sensor streams are not exposed to other apps. Restricted
+ * streams of the feed, like the microphone, are never served at all. Each client is a
+ * subscriber of the feed with a thread of its own, so a slow client only misses frames, see
+ * LiveFeed.
+ *
+ * The framing is compact and binary, all header fields are little-endian. A client first
+ * receives a hello:
+ *
+ *   u32  magic "BGRL"
+ *   u8   version, 1
+ *   u8   byte order of the frames, 0 little-endian, 1 big-endian
+ *   u16  number of streams, then for each stream:
+ *     u16 + utf-8  name
+ *     u16  channels
+ *     u16  frame size in bytes
+ *     u8   flags, 1 int64 timestamp in front of each frame, 2 int16 values instead of floats
+ *     f32  scale of int16 values, value = sample * scale
+ *     f64  rate in Hz
+ *
+ * followed by one message per batch, until the recording ends and the connection is closed:
+ *
+ *   u16  stream, its index in the hello
+ *   u32  number of frames
+ *   u64  index of the first frame in its stream
+ *   u64  number of frames this client has missed so far
+ *   the packed frames
+ */
+public class LiveFeedServer implements Runnable {
+    private static final int MAGIC = 'B' | 'G' << 8 | 'R' << 16 | 'L' << 24;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 2 + 4 + 8 + 8;
+    private static final long POLL_MS = 500;
+
+    private final LiveFeed mFeed;
+    private final String mName;
+    private final LocalServerSocket mServer;
+    private final int mMaxClients, mUid;
+    private final ArrayList<LocalSocket> mClients = new ArrayList<>();
+    private volatile boolean mClosed = false;
+    private Thread mThread = null;
+
+    /**
+     * @param name       name of the socket in the abstract namespace
+     * @param maxClients further clients are disconnected right away
+     * @param uid        the only uid whose processes are served, e.g. Process.myUid()
+     */
+    public LiveFeedServer(LiveFeed feed, String name, int maxClients, int uid)
+            throws IOException {
+        mFeed = feed;
+        mName = name;
+        mMaxClients = maxClients;
+        mUid = uid;
+        mServer = new LocalServerSocket(name);
+    }
+
+    /** @return the name of the socket in the abstract namespace */
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized void start() {
+        mThread = new Thread(this, "LiveFeedServer");
+        mThread.start();
+    }
+
+    /** stop accepting clients and disconnect the current ones. */
+    public void close() {
+        mClosed = true;
+
+        /* closing alone does not return from a pending accept() */
+        try {
+            Os.shutdown(mServer.getFileDescriptor(), OsConstants.SHUT_RDWR);
+        } catch (ErrnoException e) {
+            e.printStackTrace();
+        }
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (mClients) {
+            for (LocalSocket c : mClients) try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!mClosed) {
+            final LocalSocket client;
+            try {
+                client = mServer.accept();
+            } catch (IOException e) {
+                /* closed */
+                break;
+            }
+
+            synchronized (mClients) {
+                String reason = null;
+                try {
+                    int uid = client.getPeerCredentials().getUid();
+                    if (uid != mUid)
+                        reason = "uid " + uid + " is not allowed";
+                } catch (IOException e) {
+                    reason = "unknown peer";
+                }
+                if (reason == null && mClients.size() >= mMaxClients)
+                    reason = "too many clients";
+
+                if (reason != null) {
+                    System.err.println("live feed: rejecting client, " + reason);
+                    try { client.close(); }
+                    catch (IOException e) {}
+                    continue;
+                }
+                mClients.add(client);
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            }, "LiveFeed client").start();
+        }
+    }
+
+    private void serve(LocalSocket client) {
+        LiveFeed.Subscription sub = mFeed.subscribe(false);
+
+        try {
+            serve(sub, Channels.newChannel(client.getOutputStream()));
+        } catch (IOException e) {
+            /* the client went away */
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            sub.close();
+            synchronized (mClients) {
+                mClients.remove(client);
+            }
+            try { client.close(); }
+            catch (IOException e) {}
+        }
+    }
+
+    /** write the hello and then each batch of the subscription to a client, until the feed
+     * ends or the client goes away. */
+    static void serve(LiveFeed.Subscription sub, WritableByteChannel ch)
+            throws IOException, InterruptedException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        List<LiveFeed.Stream> streams = new ArrayList<>();
+        int[] index = new int[sub.getStreams().size()];
+        for (int i = 0; i < index.length; i++) {
+            LiveFeed.Stream s = sub.getStreams().get(i);
+            index[i] = sub.receives(s) ? streams.size() : -1;
+            if (index[i] >= 0)
+                streams.add(s);
+        }
+        writeFully(ch, hello(streams));
+
+        while (!sub.isClosed() && ch.isOpen()) {
+            LiveFeed.Batch b = sub.take(POLL_MS);
+            if (b == null)
+                continue;
+
+            try {
+                header.clear();
+                header.putShort((short) index[b.getStream()])
+                      .putInt(b.getNumFrames())
+                      .putLong(b.getFirstFrame())
+                      .putLong(sub.getDroppedFrames());
+                header.flip();
+
+                writeFully(ch, header);
+                writeFully(ch, b.view());
+            } finally {
+                b.release();
+            }
+        }
+    }
+
+    private static ByteBuffer hello(List<LiveFeed.Stream> streams) {
+        Charset utf8 = Charset.forName("UTF-8");
+        int size = 4 + 1 + 1 + 2;
+        for (LiveFeed.Stream s : streams)
+            size += 2 + s.name.getBytes(utf8).length + 2 + 2 + 1 + 4 + 8;
+
+        ByteBuffer hello = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        hello.putInt(MAGIC)
+             .put((byte) VERSION)
+             .put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1))
+             .putShort((short) streams.size());
+
+        for (LiveFeed.Stream s : streams) {
+            byte[] name = s.name.getBytes(utf8);
+            hello.putShort((short) name.length).put(name)
+                 .putShort((short) s.channels)
+                 .putShort((short) s.frameSize)
+                 .put((byte) ((s.timestamped ? 1 : 0) | (s.scale > 0 ? 2 : 0)))
+                 .putFloat(s.scale)
+                 .putDouble(s.rate);
+        }
+
+        hello.flip();
+        return hello;
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            ch.write(b);
+    }
+}
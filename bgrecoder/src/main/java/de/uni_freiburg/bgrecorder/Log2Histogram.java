@@ -0,0 +1,64 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of non-negative values with one bucket per power of two. Recording a value is a
+ * handful of instructions without locks or allocation, but there must only be a single thread
+ * recording values. Any thread may read the histogram, e.g. for a snapshot of the percentiles.
+ */
+public class Log2Histogram {
+    /* bucket i holds values in [2^(i-1), 2^i), bucket 0 holds zero */
+    private final AtomicLongArray mBuckets = new AtomicLongArray(65);
+    private volatile long mCount = 0, mSum = 0, mMax = 0;
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        int b = 64 - Long.numberOfLeadingZeros(value);
+        mBuckets.lazySet(b, mBuckets.get(b) + 1);
+        mSum += value;
+        if (value > mMax)
+            mMax = value;
+        mCount++;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        long n = mCount;
+        return n == 0 ? 0 : (double) mSum / n;
+    }
+
+    /** @return an upper bound of the given quantile, i.e. the upper end of its bucket
+     * @param q quantile in [0, 1]
+     */
+    public long getQuantile(double q) {
+        long n = 0, total = 0;
+        for (int i = 0; i < mBuckets.length(); i++)
+            total += mBuckets.get(i);
+
+        for (int i = 0; i < mBuckets.length(); i++) {
+            n += mBuckets.get(i);
+            if (n > 0 && n >= q * total)
+                return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0f p50<%d p99<%d max=%d",
+                getCount(), getMean(), getQuantile(.5), getQuantile(.99), getMax());
+    }
+}
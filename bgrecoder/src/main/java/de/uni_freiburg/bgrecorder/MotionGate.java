@@ -0,0 +1,99 @@
+package de.uni_freiburg.bgrecorder;
+
+/** Detects whether the device is moving from the accelerometer stream of a recording, so that
+ * other sensors can be stepped down while it is idle. The gate is put between the source and
+ * its CopyListener, and passes all events on unchanged.
+ *
+ * Motion is the standard deviation of the magnitude of the acceleration, as an exponentially
+ * weighted moving variance with a time constant of a few samples, which is cheap and ignores the
+ * orientation of the device. The device becomes idle once this has stayed below a threshold for
+ * a while, and moving again with the first event above it, so the latency of restoring the full
+ * rate is only bounded by the delivery of the accelerometer events.
+ */
+public class MotionGate implements SampleSource.Listener {
+
+    /** notified about changes of the motion state, on the thread of the source. */
+    public interface Listener {
+        /**
+         * @param moving      the new state
+         * @param timestampNS time of the event that changed the state
+         */
+        void onMotionChanged(boolean moving, long timestampNS);
+    }
+
+    private final SampleSource.Listener mNext;
+    private final Listener mListener;
+    private final double mThreshold, mWindowNS;
+    private final long mIdleNS;
+
+    private long mLastTimestamp = -1, mLastMotion = -1;
+    private double mMean = 0, mVariance = 0;
+    private boolean mMoving = true;
+
+    /**
+     * @param next          the listener that receives all events
+     * @param threshold     standard deviation of the magnitude above which the device moves
+     * @param windowSeconds time constant of the moving variance
+     * @param idleSeconds   time below the threshold after which the device is idle
+     * @param listener      notified about changes of the motion state
+     */
+    public MotionGate(SampleSource.Listener next, double threshold, double windowSeconds,
+                      double idleSeconds, Listener listener) {
+        mNext = next;
+        mListener = listener;
+        mThreshold = threshold;
+        mWindowNS = windowSeconds * 1e9;
+        mIdleNS = (long) (idleSeconds * 1e9);
+    }
+
+    /** @return false while the device is idle, every recording starts out moving */
+    public boolean isMoving() {
+        return mMoving;
+    }
+
+    /** @return the current standard deviation of the magnitude */
+    public double getDeviation() {
+        return Math.sqrt(mVariance);
+    }
+
+    @Override
+    public void onSample(long timestampNS, float[] values) {
+        mNext.onSample(timestampNS, values);
+        update(timestampNS, values);
+    }
+
+    @Override
+    public void onFlushCompleted() {
+        mNext.onFlushCompleted();
+    }
+
+    private void update(long timestampNS, float[] values) {
+        double magnitude = 0;
+        for (int i = 0; i < Math.min(3, values.length); i++)
+            magnitude += values[i] * values[i];
+        magnitude = Math.sqrt(magnitude);
+
+        if (mLastTimestamp < 0) {
+            mMean = magnitude;
+            mLastTimestamp = mLastMotion = timestampNS;
+            return;
+        }
+
+        double alpha = 1 - Math.exp(-Math.max(0, timestampNS - mLastTimestamp) / mWindowNS),
+               delta = magnitude - mMean;
+        mMean += alpha * delta;
+        mVariance = (1 - alpha) * (mVariance + alpha * delta * delta);
+        mLastTimestamp = timestampNS;
+
+        if (getDeviation() > mThreshold) {
+            mLastMotion = timestampNS;
+            if (!mMoving) {
+                mMoving = true;
+                mListener.onMotionChanged(true, timestampNS);
+            }
+        } else if (mMoving && timestampNS - mLastMotion >= mIdleNS) {
+            mMoving = false;
+            mListener.onMotionChanged(false, timestampNS);
+        }
+    }
+}
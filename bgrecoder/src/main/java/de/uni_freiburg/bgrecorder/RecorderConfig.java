@@ -0,0 +1,80 @@
+package de.uni_freiburg.bgrecorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+
+/** The sensors to record and their sampling rates, stored in the shared preferences of the
+ * recorder. Each sensor type has a default rate, and the environmental sensors are optional
+ * and disabled unless enabled here. The configuration is read when a recording starts.
+ */
+public class RecorderConfig {
+    private static final String PREFS = "RecorderConfig";
+
+    /* in recording order, with the preference key, default rate in Hz and whether enabled */
+    private static final int[] TYPES = {
+            Sensor.TYPE_ROTATION_VECTOR,
+            Sensor.TYPE_ACCELEROMETER,
+            Sensor.TYPE_GYROSCOPE,
+            Sensor.TYPE_MAGNETIC_FIELD,
+            Sensor.TYPE_RELATIVE_HUMIDITY,
+            Sensor.TYPE_PRESSURE,
+            Sensor.TYPE_LIGHT,
+            Sensor.TYPE_AMBIENT_TEMPERATURE,
+    };
+    private static final String[] KEYS = {
+            "rotation_vector",
+            "accelerometer",
+            "gyroscope",
+            "magnetic_field",
+            "relative_humidity",
+            "pressure",
+            "light",
+            "ambient_temperature",
+    };
+    private static final double[] RATES = { 50., 200., 200., 50., 1., 1., .2, 1. };
+    private static final boolean[] ENABLED = { true, true, true, true, false, false, false, false };
+
+    private final SharedPreferences mPrefs;
+
+    public RecorderConfig(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /** @return all configurable sensor types, in recording order */
+    public static int[] getTypes() {
+        return TYPES.clone();
+    }
+
+    public boolean isEnabled(int type) {
+        int i = indexOf(type);
+        return mPrefs.getBoolean("enabled_" + KEYS[i], ENABLED[i]);
+    }
+
+    /** @return the sampling rate of the given sensor type in Hz */
+    public double getRate(int type) {
+        int i = indexOf(type);
+        return mPrefs.getFloat("rate_" + KEYS[i], (float) RATES[i]);
+    }
+
+    public RecorderConfig setEnabled(int type, boolean enabled) {
+        mPrefs.edit().putBoolean("enabled_" + KEYS[indexOf(type)], enabled).apply();
+        return this;
+    }
+
+    public RecorderConfig setRate(int type, double rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive");
+
+        mPrefs.edit().putFloat("rate_" + KEYS[indexOf(type)], (float) rate).apply();
+        return this;
+    }
+
+    private static int indexOf(int type) {
+        for (int i = 0; i < TYPES.length; i++)
+            if (TYPES[i] == type)
+                return i;
+
+        throw new IllegalArgumentException("no configuration for sensor type " + type);
+    }
+}
@@ -0,0 +1,86 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.uni_freiburg.ffmpeg.FFMpegProgress;
+import de.uni_freiburg.ffmpeg.RecorderBackend;
+
+/** The metrics of a recording session: the StreamMetrics of all streams and the number of bytes
+ * the backend has written to its output. Can be queried while recording, and is stored as tags
+ * of the recording when it ends.
+ */
+public class RecorderMetrics {
+    private final ArrayList<StreamMetrics> mStreams = new ArrayList<>();
+    private final long mStartNS = System.nanoTime();
+    private volatile RecorderBackend mBackend;
+    private volatile FFMpegProgress mProgress;
+
+    public RecorderMetrics add(StreamMetrics m) {
+        mStreams.add(m);
+        return this;
+    }
+
+    public void setBackend(RecorderBackend backend) {
+        mBackend = backend;
+    }
+
+    public void setProgress(FFMpegProgress progress) {
+        mProgress = progress;
+    }
+
+    /** @return the last progress report of ffmpeg, if monitored, or null */
+    public FFMpegProgress getProgress() {
+        return mProgress;
+    }
+
+    public List<StreamMetrics> getStreams() {
+        return Collections.unmodifiableList(mStreams);
+    }
+
+    /** @return the number of bytes the backend has written to its output so far */
+    public long getBytesOut() {
+        RecorderBackend b = mBackend;
+        return b == null ? 0 : b.getBytesOut();
+    }
+
+    /** @return the number of bytes handed to the backend so far */
+    public long getBytesIn() {
+        long n = 0;
+        for (StreamMetrics m : mStreams)
+            n += m.getBytesWritten();
+        return n;
+    }
+
+    public Map<String, String> toTags() {
+        LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+        tags.put("metrics.duration_s", String.format("%.1f", (System.nanoTime() - mStartNS) / 1e9));
+        tags.put("metrics.bytes_in", Long.toString(getBytesIn()));
+        tags.put("metrics.bytes_out", Long.toString(getBytesOut()));
+
+        FFMpegProgress p = mProgress;
+        if (p != null) {
+            tags.put("metrics.ffmpeg_speed", Double.toString(p.speed));
+            tags.put("metrics.ffmpeg_bitrate_kbps", Double.toString(p.bitrateKbps));
+            tags.put("metrics.ffmpeg_dropped_frames", Long.toString(p.dropFrames));
+        }
+
+        for (StreamMetrics m : mStreams)
+            m.toTags(tags);
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%d bytes in, %d bytes out",
+                getBytesIn(), getBytesOut()));
+        if (mProgress != null)
+            sb.append(", ffmpeg ").append(mProgress);
+        for (StreamMetrics m : mStreams)
+            sb.append('\n').append(m);
+        return sb.toString();
+    }
+}
@@ -1,5 +1,6 @@
 package de.uni_freiburg.bgrecorder;
 
+import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -7,34 +8,42 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
 import java.io.File;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.concurrent.CountDownLatch;
 
+import de.uni_freiburg.ffmpeg.CodecCalibration;
+import de.uni_freiburg.ffmpeg.EventRecorder;
 import de.uni_freiburg.ffmpeg.FFMpegProcess;
+import de.uni_freiburg.ffmpeg.FFMpegProgress;
+import de.uni_freiburg.ffmpeg.IoSupervisor;
+import de.uni_freiburg.ffmpeg.MatroskaIndex;
+import de.uni_freiburg.ffmpeg.MatroskaRecorder;
+import de.uni_freiburg.ffmpeg.RecorderBackend;
+import de.uni_freiburg.ffmpeg.SegmentedBackend;
+import de.uni_freiburg.ffmpeg.Workers;
 
 /** On start, and if not already running, this Service spawns an ffmpeg instance to
  * record all inertial motion sensor in the background.
@@ -43,19 +52,165 @@ import de.uni_freiburg.ffmpeg.FFMpegProcess;
  */
 
 public class RecorderService extends Service {
-    private static final double RATE = 50.;
+    /* sensors and their rates are set in the RecorderConfig */
+    private static final int RING_SECONDS = 60;
+
+    /* write the pipes through unbuffered channels in batches instead of buffered streams */
+    private static final boolean PIPE_CHANNELS = true;
+    private static final double BATCH_SECONDS = 1.;
+    private static final long FLUSH_DEADLINE_MS = 1000;
+
+    /* backpressure when ffmpeg falls behind: once MAX_QUEUED_BYTES are waiting for it in memory,
+     * further frames are spilled into a journal of up to MAX_SPILL_BYTES per stream in the cache
+     * dir, which is replayed once ffmpeg caught up. Without SPILL_TO_DISK the frames wait in the
+     * ring and are dropped once it is full. 0 leaves the queue unbounded, which fails a stream
+     * once its pipe is stalled. */
+    private static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final boolean SPILL_TO_DISK = true;
+    private static final long MAX_SPILL_BYTES = 256 * 1024 * 1024;
+
+    /* interleave all streams into one Matroska stream on ffmpeg's stdin instead of one FIFO each */
+    private static final boolean MULTIPLEX = true;
+
+    /* transcode with an ffmpeg process, or store uncompressed tracks without a child process */
+    private static final boolean FFMPEG_BACKEND = true;
+
+    /* store every sensor event with its original timestamp in an event log instead of resampled
+     * tracks, this replaces the other backends and disables segmenting */
+    private static final boolean RAW_EVENTS = false;
+
+    /* defer encoding to charging time: record uncompressed journals through a memory mapping,
+     * extended in steps of JOURNAL_STEP_BYTES, and transcode them once power is connected, see
+     * Transcoder. Replaces FFMPEG_BACKEND while recording, not available for RAW_EVENTS. */
+    private static final boolean DEFERRED_ENCODING = false;
+    private static final long JOURNAL_STEP_BYTES = 16 * 1024 * 1024;
+
+    /* store the sensor values as int16 in units of their resolution instead of floats, with the
+     * scale in the "scale" tag of each stream. Not available for RAW_EVENTS. */
+    private static final boolean QUANTIZE = false;
+
+    /* keep an ffmpeg process waiting for the next recording, needs FFMPEG_BACKEND and MULTIPLEX */
+    private static final boolean WARM_STANDBY = true;
+    private static final long PIPE_TIMEOUT_MS = 10 * 1000;
+
+    /* parse ffmpeg's -progress reports instead of copying its stderr into the log */
+    private static final boolean FFMPEG_PROGRESS = true;
+    private static final int FFMPEG_LOG_LINES = 100;
+    private static final double MIN_FFMPEG_SPEED = .9;
+    private static final FFMpegProcess.ProgressListener PROGRESS = new FFMpegProcess.ProgressListener() {
+        @Override
+        public void onProgress(FFMpegProcess p, FFMpegProgress progress) {
+            RecorderMetrics metrics = sMetrics;
+            if (metrics != null)
+                metrics.setProgress(progress);
+
+            /*
+             * the input is paced by the sensors, an encoder that keeps up runs at 1x. After
+             * the first seconds anything slower means that it is falling behind.
+             */
+            if (progress.outTimeUS > 10 * 1000 * 1000 && progress.speed >= 0 &&
+                progress.speed < MIN_FFMPEG_SPEED)
+                Log.w("bgrec", "ffmpeg falls behind: " + progress);
+        }
+    };
+    private static volatile FFMpegProcess sStandby = null;
+
+    /* measure the candidate codecs once per device and pick the one that compresses best within
+     * CPU_BUDGET (fraction of one core), or the cheapest one within STORAGE_BUDGET (output size
+     * relative to the raw input) if that is set. Until calibrated the DEFAULT_CODEC is used. */
+    private static final boolean CALIBRATE_CODEC = true;
+    private static final double CPU_BUDGET = .01;
+    private static final double STORAGE_BUDGET = 0;
+    private static final String[] DEFAULT_CODEC = { "wavpack" };
+
+    /* split recordings into segments of this duration or amount of sample data, 0 disables the
+     * limit. Needs a backend whose inputs never block on open, i.e. MULTIPLEX or no ffmpeg. */
+    private static final double SEGMENT_SECONDS = 60 * 60;
+    private static final long SEGMENT_BYTES = 0;
+
+    /* index each finished recording or segment with an entry every INDEX_SECONDS per stream, in
+     * a sidecar file next to it, see MatroskaIndex. 0 disables the index. */
+    private static final double INDEX_SECONDS = 10;
+
+    /* write a marker of the sensor clock against UTC every CLOCK_SYNC_SECONDS into a sidecar,
+     * so recordings of several devices can be merged, see ClockLog. 0 disables the markers. */
+    private static final double CLOCK_SYNC_SECONDS = 60;
+
+    /* adaptive sampling: once the accelerometer has shown no motion for IDLE_SECONDS, i.e. the
+     * deviation of its magnitude stayed below MOTION_THRESHOLD m/s^2, the GATED_SENSORS are
+     * stepped down to IDLE_RATE. They return to full rate with the first accelerometer event
+     * above it, which is delivered within MOTION_LATENCY_MS. Streams keep their rate with held
+     * values, each change is logged in the clock sidecar, see ClockLog. */
+    private static final boolean ADAPTIVE_SAMPLING = false;
+    private static final int[] GATED_SENSORS = {
+            Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_ROTATION_VECTOR };
+    private static final double IDLE_RATE = 1;
+    private static final double IDLE_SECONDS = 60;
+    private static final double MOTION_THRESHOLD = .1;
+    private static final double MOTION_WINDOW_SECONDS = .5;
+    private static final int MOTION_LATENCY_MS = 1000;
+
+    /* compute windowed features of each stream while recording, i.e. mean, variance, signal
+     * magnitude area and the power in FEATURE_BANDS (edges in Hz), over windows of
+     * FEATURE_WINDOW_SECONDS every FEATURE_HOP_SECONDS. They are stored as an extra track per
+     * stream named "<sensor> features", see FeatureExtractor. Not available for RAW_EVENTS. */
+    private static final boolean FEATURES = false;
+    private static final double FEATURE_WINDOW_SECONDS = 2;
+    private static final double FEATURE_HOP_SECONDS = 1;
+    private static final double[] FEATURE_BANDS = { .5, 3, 8, 20 };
+
+    /* share the frames of each recording live while they are written, with in-app subscribers
+     * (see getLiveFeed()) and, with LIVE_FEED_SERVER, the clients of a Unix socket named
+     * "<package>.live", which only serves processes of this app, see LiveFeedServer.
+     * LIVE_BUFFERS buffers of LIVE_BUFFER_BYTES are shared by all subscribers, each of which
+     * queues up to LIVE_QUEUE_BATCHES before it misses frames. */
+    private static final boolean LIVE_FEED = false;
+    private static final boolean LIVE_FEED_SERVER = true;
+    private static final int LIVE_MAX_CLIENTS = 4;
+    private static final int LIVE_BUFFERS = 64;
+    private static final int LIVE_BUFFER_BYTES = 16 * 1024;
+    private static final int LIVE_QUEUE_BATCHES = 32;
+
+    /* record the microphone as an extra track named "microphone", mono 16-bit PCM at
+     * AUDIO_RATE, read in blocks of AUDIO_BUFFER_SECONDS, see AudioSource. Needs the
+     * RECORD_AUDIO permission, without it the recording goes on without audio. The live feed
+     * only shares it with in-app subscribers, never with clients of its server. Not available
+     * for RAW_EVENTS. */
+    private static final boolean AUDIO = false;
+    private static final int AUDIO_RATE = 16000;
+    private static final double AUDIO_BUFFER_SECONDS = .1;
     private static final String CHANID = "RecorderServiceNotification";
     private String VERSION = "1.21";
-    private FFMpegProcess mFFmpeg;
+    private RecorderBackend mBackend;
+    private String mOutput;
+    private volatile ClockLog mClockLog;
     private int NOTIFICATION_ID = 0x007;
 
     public static final String ACTION_STOP = "ACTION_STOP";
     public static final String ACTION_STRT = "ACTION_STRT";
     private LinkedList<CopyListener> mSensorListeners = new LinkedList<>();
+    private LinkedList<SampleSource> mSources = new LinkedList<>();
+    private RingDrainer mDrainer = null;
+    private Transcoder mTranscoder = null;
+    private LiveFeedServer mLiveServer = null;
+    private AudioSource mAudio = null;
+
+    /* metrics of the current or last recording session */
+    private static volatile RecorderMetrics sMetrics = null;
+    /* live frames of the current recording */
+    private static volatile LiveFeed sLiveFeed = null;
+    private static final StreamMetrics.Clock SENSOR_CLOCK = new StreamMetrics.Clock() {
+        @Override
+        public long nanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
 
+    /* start-up instrumentation, in System.nanoTime() */
+    private long mStartupNS, mBackendNS, mSyncNS;
+    private boolean mFromStandby;
     /* for start synchronization */
-    private Long mStartTimeNS = -1l;
-    private CountDownLatch mSyncLatch = null;
+    private volatile StartSync mSync = null;
     private PowerManager.WakeLock mwl = null;
 
     /* special WakeLock tag for Huawei Devices, see
@@ -71,6 +226,24 @@ public class RecorderService extends Service {
         return null;
     }
 
+    /** @return the metrics of the ongoing recording, or of the last one, or null */
+    public static RecorderMetrics getMetrics() {
+        return sMetrics;
+    }
+
+    /** @return the live frames of the ongoing recording, or null, see LIVE_FEED */
+    public static LiveFeed getLiveFeed() {
+        return sLiveFeed;
+    }
+
+    /** @return the runtime permissions to ask for before starting the service */
+    public static String[] getPermissions() {
+        return AUDIO && !RAW_EVENTS ?
+                new String[] { Manifest.permission.WRITE_EXTERNAL_STORAGE,
+                               Manifest.permission.RECORD_AUDIO } :
+                new String[] { Manifest.permission.WRITE_EXTERNAL_STORAGE };
+    }
+
     public static String getCurrentDateAsIso() {
         // see https://stackoverflow.com/questions/3914404/how-to-get-current-moment-in-iso-8601-format
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
@@ -114,7 +287,7 @@ public class RecorderService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
 
-        Log.d("bgrec", "onStart: " + intent.toString() + " ffmpeg " + mFFmpeg);
+        Log.d("bgrec", "onStart: " + intent.toString() + " backend " + mBackend);
 
         if (mwl == null) {
             PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -123,10 +296,10 @@ public class RecorderService extends Service {
 
         /*
          * start the recording process if there is no ffmpeg instance yet, and no stop intent
-         * was sent. When starting a recording, the mSyncLatch variable is initialized!
+         * was sent. When starting a recording, the mSync variable is initialized!
          */
         boolean doStopRecording = intent != null && ACTION_STOP.equals(intent.getAction()),
-                doStartRecording = mFFmpeg == null && !isConnected(this);
+                doStartRecording = mBackend == null && !isConnected(this);
 
         /**
          * start the service in foreground mode, so Android won't kill it when running in
@@ -135,33 +308,24 @@ public class RecorderService extends Service {
          */
         startForeground(NOTIFICATION_ID, updateNotification(!doStopRecording && doStartRecording));
 
-        if (doStopRecording)
+        if (doStopRecording) {
             stopRecording();
+            startTranscoding();
+        }
 
         else if (doStartRecording)
             try {
+                stopTranscoding();
                 startRecording();
-
-                /*
-                 * monitor the starting status and update the notification once the recording
-                 * is started.
-                 */
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            mSyncLatch.await();
-                            updateNotification(false);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }).start();
-
             } catch (Exception e) {
                 e.printStackTrace();
             }
 
+        else if (mBackend == null) {
+            prepareStandby();
+            startTranscoding();
+        }
+
         /**
          * make sure the notification reflects the state after changes were done.
          */
@@ -171,7 +335,8 @@ public class RecorderService extends Service {
     }
 
     private Notification updateNotification(boolean ispreparing) {
-        Log.e("bgrec", "update notification " + mFFmpeg + " " + (mSyncLatch == null ? "null" : new Long(mSyncLatch.getCount()).toString()) + " " + ispreparing);
+        StartSync sync = mSync;
+        Log.e("bgrec", "update notification " + mBackend + " " + (sync == null ? "null" : Boolean.toString(sync.isStarted())) + " " + ispreparing);
 
         /**
          * directly update the notification text, when started/stopped by the system.
@@ -197,8 +362,8 @@ public class RecorderService extends Service {
         nb.setContentText(getString(
                 ispreparing ?
                         R.string.notification_recording_preping :
-                mFFmpeg != null ?
-                mSyncLatch != null && mSyncLatch.getCount() == 0 ?
+                mBackend != null ?
+                sync != null && sync.isStarted() ?
                         R.string.notification_recording_ongoing :
                         R.string.notification_recording_preping :
                         R.string.notification_recording_paused));
@@ -219,14 +384,421 @@ public class RecorderService extends Service {
         stopRecording();
     }
 
+    /** the ffmpeg configuration, shared by recordings and their standby processes. */
+    private FFMpegProcess.Builder newFFMpegBuilder(String output) throws Exception {
+        FFMpegProcess.Builder b = new FFMpegProcess.Builder(getApplicationContext());
+        if (FFMPEG_PROGRESS)
+            b.setProgressListener(PROGRESS, FFMPEG_LOG_LINES);
+
+        String[] codec = getCodec();
+        b.setMultiplexed(MULTIPLEX)
+         .setPipeTimeout(PIPE_TIMEOUT_MS)
+         .setOutput(output, "matroska")
+         .setCodec("a", codec[0]);
+
+        for (int i = 1; i + 1 < codec.length; i += 2)
+            b.addOutputArgument(codec[i], codec[i + 1]);
+
+        return b.addOutputArgument("-shortest");
+    }
+
+    private static boolean isDeferred() {
+        return DEFERRED_ENCODING && !RAW_EVENTS;
+    }
+
+    private static boolean isQuantized() {
+        return QUANTIZE && !RAW_EVENTS;
+    }
+
+    private static String getSampleFormat() {
+        return getSampleFormat(isQuantized());
+    }
+
+    private static String getSampleFormat(boolean quantized) {
+        return (quantized ? "s16" : "f32") +
+               (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "le" : "be");
+    }
+
+    /** @return the codec and its options, as chosen from the cached calibration results */
+    private String[] getCodec() {
+        if (!CALIBRATE_CODEC)
+            return DEFAULT_CODEC;
+
+        List<CodecCalibration.Result> results =
+                new CodecCalibration(getApplicationContext()).getCached(getSampleFormat());
+        if (results != null && isQuantized() && hasFloatTracks())
+            results = CodecCalibration.withFloatSupport(results);
+        if (results == null || results.isEmpty())
+            return DEFAULT_CODEC;
+
+        CodecCalibration.Result r = CodecCalibration.choose(
+                results, getInputByteRate(), CPU_BUDGET, STORAGE_BUDGET);
+        Log.d("bgrec", "codec " + r);
+        return r.codec;
+    }
+
+    /** @return whether a quantized recording keeps some tracks as floats, i.e. the features
+     * and sensors without a known range or resolution */
+    private boolean hasFloatTracks() {
+        if (FEATURES)
+            return true;
+
+        SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
+        RecorderConfig config = new RecorderConfig(this);
+        for (int type : RecorderConfig.getTypes()) {
+            if (!config.isEnabled(type))
+                continue;
+
+            Sensor s = sm.getDefaultSensor(type, true);
+            if (s == null)
+                s = sm.getDefaultSensor(type);
+            if (s != null && SensorSource.getQuantizationScale(s) <= 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    /** @return the raw sample data rate of the configured sensors in bytes per second */
+    private double getInputByteRate() {
+        SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
+        RecorderConfig config = new RecorderConfig(this);
+        double rate = 0;
+
+        for (int type : RecorderConfig.getTypes()) {
+            if (!config.isEnabled(type))
+                continue;
+
+            Sensor s = sm.getDefaultSensor(type);
+            try {
+                if (s != null)
+                    rate += config.getRate(type) * (isQuantized() ? 2 : 4) *
+                            SensorSource.getNumChannels(s);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        return rate;
+    }
+
+    /** transcode the journals of deferred recordings while the device is charging. */
+    private void startTranscoding() {
+        if (!isDeferred() || !isConnected(this) || (mTranscoder != null && mTranscoder.isAlive()))
+            return;
+
+        File dir = new File(getDefaultOutputPath(getApplicationContext())).getParentFile();
+        mTranscoder = new Transcoder(getApplicationContext(), dir, getCodec(),
+                new Transcoder.Listener() {
+                    @Override
+                    public void onTranscoded(File recording) {
+                        writeIndex(recording.getPath());
+                    }
+                });
+        mTranscoder.start();
+    }
+
+    /** stop transcoding before recording again, the current journal is kept for later. */
+    private void stopTranscoding() {
+        if (mTranscoder != null)
+            mTranscoder.cancel();
+        mTranscoder = null;
+    }
+
+    /** start an ffmpeg process in the background that waits for the next recording. */
+    private void prepareStandby() {
+        final boolean calibrate = CALIBRATE_CODEC && (FFMPEG_BACKEND || isDeferred()) &&
+                !RAW_EVENTS &&
+                new CodecCalibration(getApplicationContext()).getCached(getSampleFormat()) == null;
+        final boolean standby =
+                WARM_STANDBY && FFMPEG_BACKEND && MULTIPLEX && !RAW_EVENTS && !isDeferred() &&
+                sStandby == null;
+
+        if (!calibrate && !standby)
+            return;
+
+        final Context context = getApplicationContext();
+        Workers.submit("standby", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    /* before the standby, which must already be started with the chosen codec */
+                    if (calibrate)
+                        for (CodecCalibration.Result r :
+                                new CodecCalibration(context).calibrate(getSampleFormat()))
+                            Log.d("bgrec", "calibrated " + r);
+
+                    if (!standby)
+                        return;
+
+                    sStandby = newFFMpegBuilder(getDefaultOutputPath(context)).buildStandby();
+                    Log.d("bgrec", "standby ffmpeg ready");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void logStartup() {
+        Log.e("bgrec", String.format(
+                "startup: backend %.1f ms%s, sensors synced %.1f ms, first byte %.1f ms",
+                (mBackendNS - mStartupNS) / 1e6, mFromStandby ? " (standby)" : "",
+                (mSyncNS - mStartupNS) / 1e6, (System.nanoTime() - mStartupNS) / 1e6));
+    }
+
+    /** write the time index of a finished Matroska recording into its sidecar. */
+    private static void writeIndex(String output) {
+        if (INDEX_SECONDS <= 0 || RAW_EVENTS)
+            return;
+
+        File file = new File(output);
+        try {
+            MatroskaIndex index = MatroskaIndex.scan(file, (long) (INDEX_SECONDS * 1e9));
+            if (index.isTruncated())
+                Log.w("bgrec", output + " is cut off after " + index.getValidEnd() + " bytes");
+            index.write(MatroskaIndex.sidecarFor(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** open the clock sidecar of a recording, and keep adding markers until it is stopped. */
+    private ClockLog startClockLog(String base) {
+        if (CLOCK_SYNC_SECONDS <= 0 && !ADAPTIVE_SAMPLING)
+            return null;
+
+        final ClockLog clock;
+        final IoSupervisor loop;
+        try {
+            clock = new ClockLog(ClockLog.sidecarFor(base), SENSOR_CLOCK);
+            loop = IoSupervisor.get();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        clock.sync();
+        mClockLog = clock;
+
+        /* the loop only keeps the time, the markers are written on the Workers */
+        final Runnable sync = new Runnable() {
+            @Override
+            public void run() {
+                if (mClockLog == clock)
+                    clock.sync();
+            }
+        };
+        if (CLOCK_SYNC_SECONDS > 0)
+            loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mClockLog != clock)
+                        return;
+                    Workers.submit("clock sync", sync);
+                    loop.schedule(this, (long) (CLOCK_SYNC_SECONDS * 1000));
+                }
+            }, (long) (CLOCK_SYNC_SECONDS * 1000));
+        return clock;
+    }
+
+    /** add a last marker, so the end of the recording does not need to be extrapolated. */
+    private void stopClockLog() {
+        ClockLog clock = mClockLog;
+        mClockLog = null;
+        if (clock != null) {
+            clock.sync();
+            clock.close();
+        }
+    }
+
+    /** serve the live feed to local clients, a recording without the server is still fine. */
+    private void startLiveFeed(LiveFeed feed) {
+        sLiveFeed = feed;
+        if (!LIVE_FEED_SERVER)
+            return;
+
+        String name = getPackageName() + ".live";
+        try {
+            mLiveServer = new LiveFeedServer(feed, name, LIVE_MAX_CLIENTS,
+                    android.os.Process.myUid());
+            mLiveServer.start();
+        } catch (IOException e) {
+            Log.e("bgrec", "unable to serve the live feed on " + name, e);
+        }
+    }
+
+    private void stopLiveFeed() {
+        LiveFeed feed = sLiveFeed;
+        sLiveFeed = null;
+        if (feed != null) {
+            feed.close();
+            if (feed.getMissedFrames() > 0)
+                Log.w("bgrec", String.format("live feed missed %d frames for lack of buffers",
+                        feed.getMissedFrames()));
+        }
+
+        if (mLiveServer != null)
+            mLiveServer.close();
+        mLiveServer = null;
+    }
+
+    /** @return a listener that steps the gated sensors down while the device is idle */
+    private static MotionGate.Listener newMotionListener(List<Sensor> sensors,
+                                                         final List<SampleSource> sources,
+                                                         final List<Double> rates,
+                                                         final ClockLog clock) {
+        final List<Integer> gated = new LinkedList<>();
+        boolean detector = false;
+
+        for (int i = 0; i < sensors.size(); i++) {
+            int type = sensors.get(i).getType();
+            detector |= type == Sensor.TYPE_ACCELEROMETER;
+            for (int g : GATED_SENSORS)
+                if (type == g && rates.get(i) > IDLE_RATE)
+                    gated.add(i);
+        }
+
+        if (!detector || gated.isEmpty()) {
+            Log.w("bgrecorder", "adaptive sampling needs the accelerometer and a gated sensor");
+            return null;
+        }
+
+        return new MotionGate.Listener() {
+            @Override
+            public void onMotionChanged(boolean moving, long timestampNS) {
+                Log.d("bgrecorder", moving ? "motion, restoring full rates" : "idle, stepping down");
+
+                for (int i : gated) {
+                    double rate = moving ? rates.get(i) : IDLE_RATE;
+                    /* not anymore once the recording is being stopped */
+                    if (!((SensorSource) sources.get(i)).setPeriod((int) (1e6 / rate)))
+                        continue;
+                    if (clock != null)
+                        clock.rate(i, timestampNS, rate);
+                }
+            }
+        };
+    }
+
+    /** @return the microphone source, or null without the permission to record audio */
+    private AudioSource newAudioSource() {
+        if (checkSelfPermission(Manifest.permission.RECORD_AUDIO) !=
+                PackageManager.PERMISSION_GRANTED) {
+            Log.e("bgrec", "no permission to record audio, recording without it");
+            return null;
+        }
+
+        Log.d("bgrecorder", String.format("microphone at %d Hz", AUDIO_RATE));
+        return new AudioSource(AUDIO_RATE, AUDIO_BUFFER_SECONDS, SENSOR_CLOCK);
+    }
+
+    private static String segmentFileName(String base, int segment) {
+        return String.format("%s_%04d.mkv", base, segment);
+    }
+
+    /**
+     * build the backend of a recording, or of one of its segments.
+     *
+     * @param segment sequence number stored in the "segment" tag, -1 for unsegmented recordings
+     * @param standby a standby ffmpeg process to take over, or null
+     * @param tags    key/value pairs of the session tags
+     * @param features the feature extractor of each source or null, their tracks follow the
+     *                 tracks of all sources
+     * @param audio   the microphone or null, its track comes last
+     */
+    private RecorderBackend buildBackend(String output, int segment, FFMpegProcess standby,
+                                         String[] tags, List<SampleSource> sources,
+                                         List<Double> rates, float[] scales,
+                                         List<FeatureExtractor> features, AudioSource audio)
+            throws Exception {
+        RecorderBackend.Builder b;
+        if (isDeferred()) {
+            b = new MatroskaRecorder.Builder(new File(Transcoder.journalFor(output)))
+                    .setPreallocation(JOURNAL_STEP_BYTES);
+            if (standby != null)
+                standby.destroy();
+        } else if (RAW_EVENTS) {
+            b = new EventRecorder.Builder(new File(output));
+            if (standby != null)
+                standby.destroy();
+        } else if (FFMPEG_BACKEND) {
+            b = newFFMpegBuilder(output).useStandby(standby);
+            mFromStandby |= standby != null;
+        } else {
+            b = new MatroskaRecorder.Builder(new File(output));
+            if (standby != null)
+                standby.destroy();
+        }
+
+        for (int i = 0; i < tags.length; i += 2)
+            b.setTag(tags[i], tags[i + 1]);
+
+        if (segment >= 0)
+            b.setTag("segment", Integer.toString(segment));
+
+        for (int i = 0; i < sources.size(); i++) {
+            b
+            .addAudio(getSampleFormat(scales[i] > 0), rates.get(i),
+                      sources.get(i).getNumChannels())
+            .setStreamTag("name", sources.get(i).getName());
+
+            /* the original values are sample * scale, sensors without a known range or
+             * resolution are kept as floats */
+            if (scales[i] > 0)
+                b.setStreamTag("scale", Float.toString(scales[i]));
+        }
+
+        for (int i = 0; i < sources.size(); i++) {
+            FeatureExtractor f = features.get(i);
+            if (f == null)
+                continue;
+
+            b
+            .addAudio(getSampleFormat(false), f.getRate(), f.getNumChannels())
+            .setStreamTag("name", sources.get(i).getName() + " features")
+            .setStreamTag("features", f.getLayout())
+            .setStreamTag("window", Double.toString(f.getWindowSeconds()));
+        }
+
+        if (audio != null)
+            b
+            .addAudio(getSampleFormat(true), audio.getRate(), audio.getNumChannels())
+            .setStreamTag("name", audio.getName())
+            .setStreamTag("scale", Float.toString(AudioSource.getScale()));
+
+        return b.build();
+    }
+
+    /**
+     * the rate a sensor is recorded at, which is the configured rate limited to what the sensor
+     * can deliver. ffmpeg only supports integer sampling rates, so rates are rounded to whole Hz,
+     * and slower sensors are recorded at 1 Hz by repeating their samples. Event logs keep the
+     * requested rate, it only sets the sensor's sampling period.
+     */
+    private double getStreamRate(Sensor s, double rate) {
+        if (s.getMinDelay() > 0)
+            rate = Math.min(rate, 1e6 / s.getMinDelay());
+
+        if (FFMPEG_BACKEND && !RAW_EVENTS)
+            rate = Math.max(1, Math.round(rate));
+
+        Log.d("bgrecorder", String.format("%s at %.2f Hz", s.getName(), rate));
+        return rate;
+    }
+
     public void startRecording() throws Exception {
+        mStartupNS = System.nanoTime();
+        mSyncNS = mStartupNS;
         mwl.acquire();
 
         String platform = Build.BOARD + " " + Build.DEVICE + " " + Build.VERSION.SDK_INT,
                 output = getDefaultOutputPath(getApplicationContext()),
                 android_id = Settings.Secure.getString(
-                        getContentResolver(), Settings.Secure.ANDROID_ID),
-                format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "f32le" : "f32be";
+                        getContentResolver(), Settings.Secure.ANDROID_ID);
+
+        if (RAW_EVENTS)
+            output = output.substring(0, output.length() - ".mkv".length()) + ".events";
 
         /**
          *  Try to record this list of sensors. We go through this list and get them as wakeup
@@ -234,19 +806,13 @@ public class RecorderService extends Service {
          *  be required). Then get all sensors as non-wakeups and select only those that are there.
          */
         final SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-        int[] types = {
-                Sensor.TYPE_ROTATION_VECTOR,
-                Sensor.TYPE_ACCELEROMETER,
-                Sensor.TYPE_GYROSCOPE,
-                Sensor.TYPE_MAGNETIC_FIELD,
-/*                Sensor.TYPE_RELATIVE_HUMIDITY,
-                Sensor.TYPE_PRESSURE,
-                Sensor.TYPE_LIGHT,
-                Sensor.TYPE_AMBIENT_TEMPERATURE */
-        };
+        RecorderConfig config = new RecorderConfig(this);
         LinkedList<Sensor> sensors = new LinkedList<>();
 
-        for (int type : types) {
+        for (int type : RecorderConfig.getTypes()) {
+            if (!config.isEnabled(type))
+                continue;
+
             Sensor s = sm.getDefaultSensor(type, true);
 
             if (s == null)
@@ -267,218 +833,351 @@ public class RecorderService extends Service {
             Log.d("bgrecorder", String.format("recording %s %s",
                     s.isWakeUpSensor() ? "wakeup" : "", s.getName()));
 
-        CopyListener[] listeners = new CopyListener[sensors.size()];
+        final List<SampleSource> sources = new LinkedList<>();
+        final List<Double> rates = new LinkedList<>();
+        final float[] scales = new float[sensors.size()];
+        for (Sensor s : sensors) {
+            if (isQuantized())
+                scales[sources.size()] = SensorSource.getQuantizationScale(s);
+            sources.add(new SensorSource(sm, s));
+            rates.add(getStreamRate(s, config.getRate(s.getType())));
+        }
 
         /**
-         * build and start the ffmpeg process, which transcodes into a matroska file.
+         * build and start the recorder backend, either an ffmpeg process which transcodes into
+         * a matroska file, or the ffmpeg-free muxer which stores uncompressed tracks. When
+         * segmenting, each segment gets its own backend and a numbered file.
          */
-        FFMpegProcess.Builder b = new FFMpegProcess.Builder(getApplicationContext())
-                .setOutput(output, "matroska")
-                .setCodec("a", "wavpack")
-                .addOutputArgument("-shortest")
-                .setTag("recorder", "automotion " + VERSION)
-                .setTag("android_id", android_id)
-                .setTag("platform", platform)
-                .setTag("fingerprint", Build.FINGERPRINT)
-                .setTag("beginning", getCurrentDateAsIso());
+        final FFMpegProcess standby = sStandby;
+        sStandby = null;
+        mFromStandby = false;
+
+        final String[] tags = {
+                "recorder", "automotion " + VERSION,
+                "android_id", android_id,
+                "platform", platform,
+                "fingerprint", Build.FINGERPRINT,
+                "beginning", getCurrentDateAsIso() };
+        final String base = output.substring(0, output.lastIndexOf('.'));
+        final ClockLog clock = startClockLog(base);
+
+        /* streams too slow for a window of a few frames get no features */
+        final List<FeatureExtractor> features = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            double rate = rates.get(i);
+            features.add(FEATURES && !RAW_EVENTS && rate * FEATURE_HOP_SECONDS >= 2 ?
+                    new FeatureExtractor(sources.get(i).getNumChannels(), rate,
+                            FEATURE_WINDOW_SECONDS, FEATURE_HOP_SECONDS, FEATURE_BANDS,
+                            (int) Math.ceil(RING_SECONDS / FEATURE_HOP_SECONDS) + 1) :
+                    null);
+        }
 
-        for (Sensor s : sensors)
-            b
-            .addAudio(format, RATE, getNumChannels(s))
-            .setStreamTag("name", s.getName());
+        final AudioSource audio = AUDIO && !RAW_EVENTS ? newAudioSource() : null;
+
+        boolean segmented = (SEGMENT_SECONDS > 0 || SEGMENT_BYTES > 0) &&
+                (MULTIPLEX || !FFMPEG_BACKEND || isDeferred()) && !RAW_EVENTS;
+
+        mOutput = output;
+        if (!segmented)
+            mBackend = buildBackend(output, -1, standby, tags, sources, rates, scales,
+                    features, audio);
+        else {
+            ArrayList<Double> trackRates = new ArrayList<>();
+            ArrayList<Integer> trackSizes = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                trackRates.add(rates.get(i));
+                trackSizes.add((scales[i] > 0 ? 2 : 4) * sources.get(i).getNumChannels());
+            }
+            for (FeatureExtractor f : features)
+                if (f != null) {
+                    trackRates.add(f.getRate());
+                    trackSizes.add(4 * f.getNumChannels());
+                }
+            if (audio != null) {
+                trackRates.add((double) audio.getRate());
+                trackSizes.add(2 * audio.getNumChannels());
+            }
 
+            double[] segmentRates = new double[trackRates.size()];
+            int[] frameSizes = new int[trackRates.size()];
+            for (int i = 0; i < segmentRates.length; i++) {
+                segmentRates[i] = trackRates.get(i);
+                frameSizes[i] = trackSizes.get(i);
+            }
 
-        mFFmpeg = b.build();
+            SegmentedBackend backend = new SegmentedBackend(new SegmentedBackend.Factory() {
+                @Override
+                public RecorderBackend create(int segment) throws Exception {
+                    return buildBackend(segmentFileName(base, segment), segment,
+                            segment == 0 ? standby : null, tags, sources, rates, scales,
+                            features, audio);
+                }
 
-        /**
-         * for each sensor there is thread that copies data to the ffmpeg process. For startup
-         * synchronization the threads are blocked until the starttime has been set at which
-         * point the threadlock will be released.
-         */
-        int us = (int) (1e6 / RATE);
+                @Override
+                public void discard(int segment, RecorderBackend backend) {
+                    if (backend instanceof FFMpegProcess)
+                        ((FFMpegProcess) backend).destroy();
+                    else try {
+                        backend.terminate();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
 
-        mStartTimeNS = -1L;
-        mSyncLatch = new CountDownLatch(sensors.size());
+                    String name = segmentFileName(base, segment);
+                    new File(isDeferred() ? Transcoder.journalFor(name) : name).delete();
+                }
+            }, segmentRates, frameSizes, SEGMENT_SECONDS, SEGMENT_BYTES);
 
-        for (int i = 0; i < sensors.size(); i++)
-            sm.registerListener(new SensorEventListener() {
+            mBackend = backend.setSegmentListener(new SegmentedBackend.SegmentListener() {
                 @Override
-                public void onSensorChanged(SensorEvent event) {
-                    mStartTimeNS = Long.max(event.timestamp, mStartTimeNS);
-                    mSyncLatch.countDown();
-                    sm.unregisterListener(this);
+                public void onSegmentStarted(int segment, double startSeconds) {
+                    if (clock != null)
+                        clock.segment(segment, startSeconds);
                 }
 
                 @Override
-                public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            }, sensors.get(i), us);
-
-        for (int i = 0; i < sensors.size(); i++) {
-            Sensor s = sensors.get(i);
-            HandlerThread t = new HandlerThread(s.getName()); t.start();
-            Handler h = new Handler(t.getLooper());
-            CopyListener l = new CopyListener(i, RATE, s.getName());
-            int delay = s.isWakeUpSensor() ? s.getFifoMaxEventCount() / 2 * us : 1;
-            sm.registerListener(l, s, us, delay, h);
-            mSensorListeners.add(l);
+                public void onSegmentFinished(int segment, RecorderBackend b) {
+                    /* journals are indexed once they are transcoded */
+                    if (!isDeferred())
+                        writeIndex(segmentFileName(base, segment));
+                }
+            });
         }
-    }
 
+        mBackendNS = System.nanoTime();
 
-    public void stopRecording() {
-        if (mFFmpeg != null) {
-            try {
-                /** if stuck in preparing state */
-                for (int i=0; i < mSyncLatch.getCount(); i++)
-                    mSyncLatch.countDown();
+        /**
+         * all sources deliver their events on one shared thread, and a CopyListener copies them
+         * into the ring of its stream. For startup synchronization the listeners hold back
+         * their events until every source has delivered a first event, which sets the start
+         * time. The notification is then updated on the thread of the last source.
+         */
+        mSync = new StartSync(sources.size() + (audio != null ? 1 : 0), new Runnable() {
+            @Override
+            public void run() {
+                mSyncNS = System.nanoTime();
+                if (clock != null)
+                    clock.start(mSync.getStartNS());
+                updateNotification(false);
+            }
+        });
 
-                SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
+        /**
+         * sensor events are handed over to the backend through a lock-free ring per stream,
+         * which decouples the sensor callbacks from any stall in the backend. The rings of an
+         * ffmpeg process are drained on the IoSupervisor that serves its non-blocking pipes,
+         * those of every other backend on a thread of their own, as their writes may block.
+         */
+        mDrainer = PIPE_CHANNELS ?
+                new RingDrainer(1, FLUSH_DEADLINE_MS) :
+                new RingDrainer();
+        mSensorListeners.clear();
+
+        if (MAX_QUEUED_BYTES > 0) {
+            final RecorderBackend backend = mBackend;
+            mDrainer.setBackpressure(new RingDrainer.Backlog() {
+                @Override
+                public long getQueuedBytes() {
+                    return backend.getQueuedBytes();
+                }
+            }, MAX_QUEUED_BYTES, SPILL_TO_DISK ? getCacheDir() : null, MAX_SPILL_BYTES);
+        }
 
-                for (CopyListener l : mSensorListeners)
-                    sm.flush(l);
+        /* subscribers see the frames as they leave the rings */
+        final LiveFeed feed = LIVE_FEED ?
+                new LiveFeed(LIVE_BUFFERS, LIVE_BUFFER_BYTES, LIVE_QUEUE_BATCHES) : null;
+        if (feed != null)
+            mDrainer.setTap(feed);
+
+        RecorderMetrics metrics = new RecorderMetrics();
+        metrics.setBackend(mBackend);
+
+        MotionGate.Listener gate = ADAPTIVE_SAMPLING ?
+                newMotionListener(sensors, sources, rates, clock) : null;
+
+        int featureTrack = sources.size();
+        for (int i = 0; i < sources.size(); i++) {
+            SampleSource s = sources.get(i);
+            double rate = rates.get(i);
+            final int index = i;
+            /* sensors may deliver faster than requested, which is not evened out without
+             * resampling */
+            SampleRing ring = new SampleRing(s.getNumChannels(),
+                    (int) Math.ceil(RING_SECONDS * rate * (RAW_EVENTS ? 2 : 1)), RAW_EVENTS,
+                    scales[i]);
+            final RecorderBackend backend = mBackend;
+
+            int batch = PIPE_CHANNELS ? (int) (BATCH_SECONDS * rate) : 1;
+
+            mDrainer.add(s.getName(), ring, batch, new RingDrainer.Opener() {
+                @Override
+                public WritableByteChannel open() throws IOException {
+                    return PIPE_CHANNELS ?
+                            backend.getChannel(index) :
+                            Channels.newChannel(backend.getOutputStream(index));
+                }
+            });
+            if (feed != null)
+                feed.addStream(s.getName(), ring, rate);
+
+            StreamMetrics m = new StreamMetrics(s.getName(), ring, SENSOR_CLOCK);
+            metrics.add(m);
+
+            CopyListener l = new CopyListener(s, ring, rate, mSync)
+                    .setResampling(!RAW_EVENTS)
+                    .setMetrics(m);
+
+            FeatureExtractor f = features.get(i);
+            if (f != null) {
+                final int track = featureTrack++;
+                l.setFeatures(f);
+                mDrainer.add(s.getName() + " features", f.getRing(), 1, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return PIPE_CHANNELS ?
+                                backend.getChannel(track) :
+                                Channels.newChannel(backend.getOutputStream(track));
+                    }
+                });
+                if (feed != null)
+                    feed.addStream(s.getName() + " features", f.getRing(), f.getRate());
+            }
 
-                mFFmpeg.waitFor();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            /* the accelerometer drives adaptive sampling, and is evaluated in time */
+            SampleSource.Listener listener = l;
+            if (gate != null && sensors.get(i).getType() == Sensor.TYPE_ACCELEROMETER) {
+                ((SensorSource) s).setMaxReportLatency(MOTION_LATENCY_MS * 1000);
+                listener = new MotionGate(l, MOTION_THRESHOLD, MOTION_WINDOW_SECONDS,
+                        IDLE_SECONDS, gate);
             }
 
-            mwl.release();
+            s.start(listener, (int) (1e6 / rate));
+            mSources.add(s);
+            mSensorListeners.add(l);
         }
 
-        mFFmpeg = null;
-    }
+        /* the microphone comes last, it appends whole blocks to its ring */
+        if (audio != null) {
+            final int track = featureTrack;
+            final RecorderBackend backend = mBackend;
+            SampleRing ring = audio.newRing(RING_SECONDS);
+            int batch = PIPE_CHANNELS ? (int) (BATCH_SECONDS * audio.getRate()) : 1;
 
-    private int getNumChannels(Sensor s) throws Exception {
-        /*
-         * https://developer.android.com/reference/android/hardware/SensorEvent#sensor
-         */
-        switch (s.getType()) {
-            case Sensor.TYPE_ACCELEROMETER:
-            case Sensor.TYPE_GYROSCOPE:
-            case Sensor.TYPE_MAGNETIC_FIELD:
-                return 3;
-
-            case Sensor.TYPE_ROTATION_VECTOR:
-                return 5;
-
-            case Sensor.TYPE_RELATIVE_HUMIDITY:
-            case Sensor.TYPE_PRESSURE:
-            case Sensor.TYPE_LIGHT:
-            case Sensor.TYPE_AMBIENT_TEMPERATURE:
-                return 1;
-
-            default:
-                throw new Exception("unknown number of channels for " + s.getName());
+            mDrainer.add(audio.getName(), ring, batch, new RingDrainer.Opener() {
+                @Override
+                public WritableByteChannel open() throws IOException {
+                    return PIPE_CHANNELS ?
+                            backend.getChannel(track) :
+                            Channels.newChannel(backend.getOutputStream(track));
+                }
+            });
+            if (feed != null)
+                feed.addStream(audio.getName(), ring, audio.getRate(), true);
+
+            try {
+                audio.start(ring, mSync);
+                mAudio = audio;
+            } catch (IOException e) {
+                Log.e("bgrec", "recording without audio", e);
+            }
         }
-    }
 
-    private class CopyListener implements SensorEventListener, SensorEventListener2 {
-        private final int index;
-        private final long mDelayUS;
-        private long mSampleCount;
-        private long mOffsetUS;
-        private final String mName;
+        mDrainer.setFirstWriteCallback(new Runnable() {
+            @Override
+            public void run() {
+                logStartup();
+            }
+        });
+        sMetrics = metrics;
+        if (feed != null)
+            startLiveFeed(feed);
+
+        if (PIPE_CHANNELS && mBackend instanceof FFMpegProcess) {
+            final IoSupervisor loop = IoSupervisor.get();
+            mDrainer.start(new RingDrainer.Scheduler() {
+                @Override
+                public void schedule(Runnable r, long delayMS) {
+                    loop.schedule(r, delayMS);
+                }
+            });
+        } else
+            mDrainer.start();
+    }
 
-        private OutputStream mOut;
-        private ByteBuffer mBuf;
-        private long mLastTimestamp = -1;
-        private boolean mFlushCompleted = false;
 
-        /**
-         * @param i
-         * @param rate
-         * @param name
-         */
-        public CopyListener(int i, double rate, String name) {
-            index = i;
-            mOut = null;
-            mName = name;
-            mDelayUS = (long) (1e6 / rate);
-            mSampleCount = 0;
-            mOffsetUS = 0;
-        }
-
-        @Override
-        public void onSensorChanged(SensorEvent sensorEvent) {
+    public void stopRecording() {
+        if (mBackend != null) {
             try {
-                /*
-                 * wait until the mStartTimeNS is cleared. This will be done by the SyncLockListener
-                 */
-                mSyncLatch.await();
+                /** if stuck in preparing state */
+                mSync.release();
 
-                /*
-                 * if a flush was completed, the sensor process is done, and the recording
-                 * will be stopped. Hence the output channel is closed to let ffmpeg know,
-                 * that the recording is finished. This will then lead to an IOException,
-                 * which cleanly exits the whole process.
-                 */
-                if (mFlushCompleted)
-                    mOut.close();
+                for (SampleSource s : mSources)
+                    s.flush();
 
-                /**
-                 *  multiple stream synchronization, wait until a global timestamp was set,
-                 *  and only start pushing events after this timestamp.
-                 */
-                if (sensorEvent.timestamp < mStartTimeNS)
-                    return;
+                if (mAudio != null)
+                    mAudio.stop();
 
-                if (mLastTimestamp != -1)
-                    mOffsetUS += (sensorEvent.timestamp - mLastTimestamp) / 1000;
-                mLastTimestamp = sensorEvent.timestamp;
+                int result = mBackend.waitFor();
+                stopClockLog();
+                stopLiveFeed();
 
+                for (SampleSource s : mSources)
+                    s.stop();
 
-                /*
-                 * create an output buffer, once created only delete the last sample. Insert
-                 * values afterwards.
-                 */
-                if (mBuf == null) {
-                    mBuf = ByteBuffer.allocate(4 * sensorEvent.values.length);
-                    mBuf.order(ByteOrder.nativeOrder());
-                    Log.e("bgrec", String.format("%s started at %d", mName, sensorEvent.timestamp));
-                } else
-                    mBuf.clear();
-
-                /**
-                 * see https://stackoverflow.com/questions/30279065/how-to-get-the-euler-angles-from-the-rotation-vector-sensor-type-rotation-vecto
-                 * https://developer.android.com/reference/android/hardware/SensorEvent#sensor
-                 */
+                if (mBackend instanceof FFMpegProcess)
+                    Log.d("bgrecorder", "ffmpeg session: " +
+                            ((FFMpegProcess) mBackend).getUsage());
 
-                for (float v : sensorEvent.values)
-                    mBuf.putFloat(v);
+                /* without the full stderr in the log, show what ffmpeg said last on failures */
+                if (result != 0 && mBackend instanceof FFMpegProcess)
+                    for (String line : ((FFMpegProcess) mBackend).getRecentLog())
+                        Log.e("bgrec", "ffmpeg: " + line);
 
-                /**
-                 * check whether or not interpolation is required
+                /*
+                 * store the metrics of this session in the recording itself
                  */
-                if (Math.abs(mOffsetUS) - mDelayUS > mDelayUS)
-                    Log.e("bgrec", String.format(
-                            "sample delay too large %.4f %s", mOffsetUS / 1e6, mName));
+                RecorderMetrics metrics = sMetrics;
+                if (metrics != null) {
+                    Log.e("bgrec", metrics.toString());
+
+                    try {
+                        mBackend.appendTags(metrics.toTags());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
 
-                if (mOut == null)
-                    mOut = mFFmpeg.getOutputStream(index);
+                /* scanning the whole file takes a while, so it is not done on the main thread.
+                 * Segments are indexed as soon as they are finished. */
+                if (!(mBackend instanceof SegmentedBackend) && !isDeferred()) {
+                    final String output = mOutput;
+                    Workers.submit("index", new Runnable() {
+                        @Override
+                        public void run() {
+                            writeIndex(output);
+                        }
+                    });
+                }
 
-                if (mOffsetUS < mDelayUS)      // too fast -> remove
-                    return;
+                if (mBackend instanceof SegmentedBackend)
+                    Log.e("bgrec", String.format("recorded %d segments",
+                            ((SegmentedBackend) mBackend).getNumSegments()));
 
-                while (mOffsetUS > mDelayUS) { // add new samples, might be too slow
-                    mOut.write(mBuf.array());
-                    mOffsetUS -= mDelayUS;
-                    mSampleCount++;
-                }
-            } catch (Exception e) {
+                if (mDrainer != null && mDrainer.getSpilledBytes() > 0)
+                    Log.e("bgrec", String.format("spilled %d bytes while ffmpeg was behind",
+                            mDrainer.getSpilledBytes()));
+            } catch (InterruptedException e) {
                 e.printStackTrace();
-                SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-                sm.unregisterListener(this);
-                Log.e("bgrec", String.format("%d samples written %s", mSampleCount, mName));
             }
-        }
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int i) {
+            mwl.release();
         }
 
-        @Override
-        public void onFlushCompleted(Sensor sensor) {
-            mFlushCompleted = true;
-        }
+        mBackend = null;
+        mDrainer = null;
+        mAudio = null;
+        mSources.clear();
+
+        prepareStandby();
     }
 }
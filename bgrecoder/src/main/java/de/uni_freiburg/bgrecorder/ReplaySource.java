@@ -0,0 +1,149 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/** A SampleSource that replays a CSV file of timestamped events, e.g. an earlier capture
+ * exported with one line per sensor event:
+ *
+ *   timestamp_ns,value0,value1,...
+ *
+ * A first line that does not start with a number is skipped as a header. Events are delivered
+ * with their original timestamps, paced at a multiple of real time. A speed of zero or less
+ * replays the file as fast as the listener consumes it, which gives the maximum throughput of
+ * the recording pipeline. The end of the file, or a flush() request which ends the replay
+ * early, is signalled as a completed flush.
+ */
+public class ReplaySource implements SampleSource {
+    private final String mName;
+    private final File mFile;
+    private final double mSpeed;
+    private final int mChannels;
+    private Thread mThread;
+    private volatile boolean mFlush = false, mStopped = false;
+    private volatile long mEvents = 0;
+    private volatile long mFirstTimestamp = -1, mLastTimestamp = -1, mWallStart;
+
+    /**
+     * @param name  name of the stream
+     * @param file  the CSV file to replay
+     * @param speed replay speed as a multiple of real time, 0 for as fast as possible
+     */
+    public ReplaySource(String name, File file, double speed) throws IOException {
+        mName = name;
+        mFile = file;
+        mSpeed = speed;
+
+        try (BufferedReader r = new BufferedReader(new FileReader(file))) {
+            String line = r.readLine();
+            if (line != null && !isNumeric(line))
+                line = r.readLine();
+            if (line == null)
+                throw new IOException(file + " contains no events");
+
+            mChannels = line.split(",").length - 1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int getNumChannels() {
+        return mChannels;
+    }
+
+    /** @return the current time of the replay on the clock of the event timestamps. When
+     * replaying as fast as possible, this is the timestamp of the last event. */
+    public long now() {
+        if (mSpeed <= 0 || mFirstTimestamp < 0)
+            return mLastTimestamp;
+        return mFirstTimestamp + (long) ((System.nanoTime() - mWallStart) * mSpeed);
+    }
+
+    /** @return the number of events delivered so far */
+    public long getNumEvents() {
+        return mEvents;
+    }
+
+    @Override
+    public synchronized void start(final Listener l, int periodUS) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(l);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                if (!mStopped)
+                    l.onFlushCompleted();
+            }
+        }, "replay " + mName);
+        mThread.start();
+    }
+
+    private void replay(Listener l) throws IOException {
+        float[] values = new float[mChannels];
+        long first = -1, wallStart = System.nanoTime();
+
+        try (BufferedReader r = new BufferedReader(new FileReader(mFile))) {
+            String line;
+
+            while ((line = r.readLine()) != null && !mFlush && !mStopped) {
+                if (!isNumeric(line))
+                    continue;
+
+                String[] fields = line.split(",");
+                long timestamp = Long.parseLong(fields[0].trim());
+                for (int i = 0; i < mChannels; i++)
+                    values[i] = i + 1 < fields.length ? Float.parseFloat(fields[i + 1]) : 0.f;
+
+                if (first < 0) {
+                    first = timestamp;
+                    mWallStart = wallStart;
+                    mFirstTimestamp = first;
+                }
+
+                if (mSpeed > 0) {
+                    long due = wallStart + (long) ((timestamp - first) / mSpeed);
+                    for (long now = System.nanoTime(); now < due; now = System.nanoTime())
+                        LockSupport.parkNanos(due - now);
+                }
+
+                mLastTimestamp = timestamp;
+                l.onSample(timestamp, values);
+                mEvents++;
+            }
+        }
+    }
+
+    private static boolean isNumeric(String line) {
+        return !line.isEmpty() &&
+               (Character.isDigit(line.charAt(0)) || line.charAt(0) == '-');
+    }
+
+    @Override
+    public void flush() {
+        mFlush = true;
+    }
+
+    @Override
+    public void stop() {
+        mStopped = true;
+    }
+
+    /** wait for the replay thread to finish. */
+    public void join() throws InterruptedException {
+        Thread t;
+        synchronized (this) { t = mThread; }
+        if (t != null)
+            t.join();
+    }
+}
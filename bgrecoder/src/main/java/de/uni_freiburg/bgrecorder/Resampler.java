@@ -0,0 +1,58 @@
+package de.uni_freiburg.bgrecorder;
+
+/** Maps sensor events with jittery timestamps onto a fixed sample rate. Events arriving too
+ * early are dropped, and events arriving late are repeated to fill the gap, so that the number
+ * of samples always matches the elapsed time. All arithmetic is done in microseconds.
+ */
+public class Resampler {
+    private final long mDelayUS;
+    private long mOffsetUS = 0;
+    private long mLastTimestamp = -1;
+    private long mLagUS = 0;
+
+    /**
+     * @param rate the output sample rate in Hz
+     */
+    public Resampler(double rate) {
+        mDelayUS = (long) (1e6 / rate);
+    }
+
+    /**
+     * @param timestampNS the event timestamp in nanoseconds
+     * @return the number of samples to emit for this event, 0 to drop it
+     */
+    public int update(long timestampNS) {
+        if (mLastTimestamp != -1)
+            mOffsetUS += (timestampNS - mLastTimestamp) / 1000;
+        mLastTimestamp = timestampNS;
+
+        mLagUS = mOffsetUS;
+
+        int n = 0;
+        while (mOffsetUS > mDelayUS) {
+            mOffsetUS -= mDelayUS;
+            n++;
+        }
+        return n;
+    }
+
+    /** @return true if no event has been seen yet */
+    public boolean isFirst() {
+        return mLastTimestamp == -1;
+    }
+
+    /** @return true if the last event arrived more than one sample period late */
+    public boolean isLagging() {
+        return Math.abs(mLagUS) - mDelayUS > mDelayUS;
+    }
+
+    /** @return the time not covered by samples when the last event arrived in microseconds */
+    public long getLagUS() {
+        return mLagUS;
+    }
+
+    /** @return the time not yet covered by emitted samples in microseconds */
+    public long getOffsetUS() {
+        return mOffsetUS;
+    }
+}
@@ -0,0 +1,522 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Drains all SampleRings of a recording session into their ffmpeg pipes on one dedicated
+ * thread, so that a stalled pipe never blocks the delivery of sensor events. Opening a named
+ * pipe blocks until ffmpeg opens the other end, which happens one input after the other. Each
+ * pipe is therefore opened on a short-lived helper thread, and the drainer only starts writing
+ * to a stream once its pipe is open. Until then samples are buffered in the ring.
+ *
+ * Writes are batched: a stream is only written once at least batchFrames frames are pending,
+ * or the oldest pending frame has waited for longer than the flush deadline. A burst of events
+ * delivered from a hardware FIFO therefore ends up in a single write. The batch size can be
+ * set per stream, for streams of different sampling rates.
+ *
+ * A stream is finished once its ring is closed and empty, at which point the pipe is closed
+ * to signal the end of the input to ffmpeg. The drainer thread exits after all streams are
+ * finished.
+ *
+ * Instead of on its own thread, the drainer can also run periodically on a shared event loop
+ * through a Scheduler. The pipes are then opened and written on that loop, so the channels
+ * must never block, e.g. the PipeOutboxes of an FFMpegProcess.
+ *
+ * Non-blocking channels queue whatever the encoder does not take right away in memory. A
+ * backpressure policy bounds that queue, see setBackpressure(): once a Backlog reports that
+ * too much is queued, further frames are held back and are spilled into a SpillJournal on disk
+ * per stream, or wait in the ring if spilling is disabled, where they are dropped once the ring
+ * is full. The journal is replayed as soon as the encoder has caught up, before any newer
+ * frames, and a stream is only finished once its journal is empty. If the ring reports to a
+ * StreamMetrics, the timestamps of the spilled frames are kept in a second journal, so their
+ * latency can be reported once they are replayed.
+ *
+ * A Tap (see setTap()) sees every frame as it leaves its ring, whether it is written or
+ * spilled, e.g. to share the live frames with other consumers, see LiveFeed.
+ */
+public class RingDrainer implements Runnable {
+    private static final int MAX_WRITE_FRAMES = 4096;
+
+    /** opens the pipe of a stream, may block unless the drainer runs on a Scheduler. */
+    public interface Opener {
+        WritableByteChannel open() throws IOException;
+    }
+
+    /** runs tasks on a shared event loop, see start(Scheduler). */
+    public interface Scheduler {
+        void schedule(Runnable r, long delayMS);
+    }
+
+    /** reports how far the encoder is behind, see setBackpressure(). */
+    public interface Backlog {
+        /** @return the number of bytes written but not yet taken by the encoder */
+        long getQueuedBytes();
+    }
+
+    /** receives the frames of all streams as they are drained, see setTap(). */
+    public interface Tap {
+        /**
+         * called on the drainer thread with the bytes that have just been written, which are
+         * whole frames unless the channel only took a part of them. The buffer is ring storage
+         * that is reused right after the call, so it must be copied and never blocked on.
+         *
+         * @param stream index of the stream, in the order the streams were added
+         * @param bytes  the written bytes between its position and limit
+         */
+        void onDrained(int stream, ByteBuffer bytes);
+    }
+
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    private final int mBatchFrames;
+    private final long mDeadlineNS;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private Runnable mFirstWrite = null;
+
+    /* backpressure policy, without a backlog the queue is unbounded */
+    private Backlog mBacklog = null;
+    private long mMaxQueuedBytes = Long.MAX_VALUE;
+    private File mSpillDir = null;
+    private long mMaxSpillBytes = 0;
+    private Tap mTap = null;
+
+    public RingDrainer() {
+        this(1, 10);
+    }
+
+    /**
+     * @param batchFrames minimum number of frames per write
+     * @param deadlineMS  maximum time in ms a frame waits for its batch to fill up, this is also
+     *                    the polling interval of the drainer
+     */
+    public RingDrainer(int batchFrames, long deadlineMS) {
+        mBatchFrames = Math.max(1, batchFrames);
+        mDeadlineNS = Math.max(1, deadlineMS) * 1000 * 1000;
+    }
+
+    /** add a ring to drain, must be called before start().
+     *
+     * @param name   name of the stream, used for the thread name and log messages
+     * @param ring   the ring to drain
+     * @param opener opens the channel the ring is drained into
+     */
+    public RingDrainer add(String name, SampleRing ring, Opener opener) {
+        return add(name, ring, mBatchFrames, opener);
+    }
+
+    /** add a ring to drain with its own batch size, must be called before start().
+     *
+     * @param batchFrames minimum number of frames per write of this stream
+     */
+    public RingDrainer add(String name, SampleRing ring, int batchFrames, Opener opener) {
+        mStreams.add(new Stream(name, mStreams.size(), ring, Math.max(1, batchFrames), opener));
+        return this;
+    }
+
+    /** set a callback that is run on the drainer thread after the first data has been
+     * written, e.g. to measure the startup latency of a recording. */
+    public RingDrainer setFirstWriteCallback(Runnable r) {
+        mFirstWrite = r;
+        return this;
+    }
+
+    /**
+     * bound the data that is queued for the encoder, must be called before start(). Once the
+     * backlog exceeds maxQueuedBytes, frames are held back until it has drained to half of that.
+     *
+     * @param backlog        reports the bytes queued for the encoder, e.g. by the backend
+     * @param maxQueuedBytes maximum number of bytes to queue in memory
+     * @param spillDir       directory for the spill journals, null to hold frames in the rings
+     * @param maxSpillBytes  capacity of the journal of each stream
+     */
+    public RingDrainer setBackpressure(Backlog backlog, long maxQueuedBytes, File spillDir,
+                                       long maxSpillBytes) {
+        mBacklog = backlog;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mSpillDir = spillDir;
+        mMaxSpillBytes = maxSpillBytes;
+        return this;
+    }
+
+    /** pass all drained frames to the given tap, must be called before start(). */
+    public RingDrainer setTap(Tap tap) {
+        mTap = tap;
+        return this;
+    }
+
+    /** @return the number of bytes spilled to disk by all streams so far */
+    public long getSpilledBytes() {
+        long n = 0;
+        for (Stream s : mStreams)
+            n += s.spilled;
+        return n;
+    }
+
+    public void start() {
+        for (Stream s : mStreams)
+            s.open();
+
+        new Thread(this, "RingDrainer").start();
+    }
+
+    /** drain on the given scheduler instead of a thread of its own, once per flush deadline.
+     * The openers are called on the scheduler and must not block. */
+    public void start(final Scheduler scheduler) {
+        final long periodMS = TimeUnit.NANOSECONDS.toMillis(mDeadlineNS);
+
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (Stream s : mStreams)
+                    if (s.out == null && !s.failed)
+                        s.openNow();
+
+                if (drain())
+                    mFinished.countDown();
+                else
+                    scheduler.schedule(this, Math.max(1, periodMS));
+            }
+        }, 0);
+    }
+
+    /** wait until all streams have been drained and closed. */
+    public void join() throws InterruptedException {
+        mFinished.await();
+    }
+
+    @Override
+    public void run() {
+        while (!drain())
+            LockSupport.parkNanos(mDeadlineNS);
+
+        mFinished.countDown();
+    }
+
+    /** write all streams whose batch is due, and close the finished ones.
+     * @return true once all streams are finished */
+    private boolean drain() {
+        long now = System.nanoTime();
+        int finished = 0;
+
+        for (Stream s : mStreams) {
+            if (s.done) {
+                finished++;
+                continue;
+            }
+
+            WritableByteChannel out = s.out;
+            if (out == null) {
+                if (s.failed) {
+                    s.done = true;
+                    finished++;
+                }
+                continue;
+            }
+
+            try {
+                /* check for closing before draining, see SampleRing.close() */
+                boolean closed = s.ring.isClosed();
+                int pending = s.ring.available();
+
+                if (pending == 0 && !s.isSpilling()) {
+                    s.pendingSince = -1;
+                } else {
+                    if (s.pendingSince < 0)
+                        s.pendingSince = now;
+
+                    if (closed || s.isSpilling() || pending >= s.batchFrames ||
+                            now - s.pendingSince >= mDeadlineNS) {
+                        write(s, out);
+                        if (s.ring.available() == 0)
+                            s.pendingSince = -1;
+
+                        if (mFirstWrite != null) {
+                            mFirstWrite.run();
+                            mFirstWrite = null;
+                        }
+                    }
+                }
+
+                /* held back or spilled frames are written once the encoder caught up */
+                if (closed && s.ring.available() == 0 && !s.isSpilling()) {
+                    s.finish();
+                    finished++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("draining " + s.name + " failed, closing the stream");
+                s.ring.close();
+                s.finish();
+                finished++;
+            }
+        }
+
+        return finished == mStreams.size();
+    }
+
+    /** write the pending frames of a stream as far as the backpressure policy allows, and
+     * spill or hold back the rest. */
+    private void write(Stream s, WritableByteChannel out) throws IOException {
+        long room = mBacklog == null ?
+                Long.MAX_VALUE : mMaxQueuedBytes - mBacklog.getQueuedBytes();
+        int frameSize = s.ring.getFrameSize(), n;
+
+        /* replay before anything newer, once half of the queue has drained */
+        if (s.isSpilling()) {
+            if (room >= mMaxQueuedBytes / 2)
+                room -= replay(s, out, room);
+
+            if (s.isSpilling()) {
+                spill(s);
+                return;
+            }
+
+            System.err.println(String.format("%s caught up, replayed %s, %d bytes spilled so far",
+                    s.name, s.journal, s.spilled));
+        }
+
+        while (room >= frameSize &&
+                (n = s.ring.drainTo(tapped(s, out),
+                        (int) Math.min(MAX_WRITE_FRAMES, room / frameSize))) > 0)
+            room -= n;
+
+        /* frames that the channel did not take while there was room wait in the ring, e.g.
+         * for the next segment of a SegmentedBackend */
+        if (s.ring.available() > 0 && room < frameSize)
+            spill(s);
+    }
+
+    /** replay up to room bytes of the journal of a stream, and report them to its metrics.
+     * @return number of bytes replayed */
+    private long replay(Stream s, WritableByteChannel out, long room) throws IOException {
+        StreamMetrics m = s.ring.getMetrics();
+        if (m == null || s.stamps == null)
+            return s.journal.drainTo(out, room);
+
+        int frameSize = s.ring.getFrameSize();
+        long replayed = 0, n;
+
+        do {
+            long start = System.nanoTime();
+            n = s.journal.drainTo(out, Math.min(room - replayed,
+                    (long) MAX_WRITE_FRAMES * frameSize));
+            long stall = System.nanoTime() - start;
+
+            if (n > 0) {
+                s.stampBuffer.clear().limit((int) (n / frameSize * 8));
+                s.stamps.read(s.stampBuffer);
+                s.stampBuffer.flip();
+                m.onReplay((int) (n / frameSize), n, stall, s.stampBuffer);
+                replayed += n;
+            }
+        } while (n > 0);
+
+        return replayed;
+    }
+
+    /** @return the channel to drain a ring into, through the tap if there is one */
+    private WritableByteChannel tapped(Stream s, WritableByteChannel ch) {
+        if (mTap == null)
+            return ch;
+
+        if (s.tap == null)
+            s.tap = new TapChannel(mTap, s.index);
+        s.tap.target = ch;
+        return s.tap;
+    }
+
+    /** move the pending frames of a stream into its journal, as far as it has room. */
+    private void spill(Stream s) {
+        if (mSpillDir == null || s.spillFailed)
+            return;
+
+        int frameSize = s.ring.getFrameSize(), n;
+        try {
+            if (s.journal == null) {
+                File f = new File(mSpillDir, String.format("spill_%d_%s",
+                        s.index, s.name.replaceAll("[^A-Za-z0-9]", "_")));
+                s.journal = new SpillJournal(f, frameSize, mMaxSpillBytes);
+
+                if (s.ring.getMetrics() != null) {
+                    s.stamps = new SpillJournal(new File(f.getPath() + ".ts"), 8,
+                            s.journal.getCapacity() / frameSize * 8);
+                    s.stampBuffer = ByteBuffer.allocate(MAX_WRITE_FRAMES * 8)
+                            .order(ByteOrder.nativeOrder());
+                }
+            }
+
+            if (s.journal.isEmpty())
+                System.err.println(String.format("%s is stalled, spilling into %s",
+                        s.name, s.journal));
+
+            long frames = s.journal.remaining() / frameSize;
+            if (s.stamps != null)
+                frames = Math.min(frames, s.stamps.remaining() / 8);
+
+            while (frames > 0) {
+                int max = (int) Math.min(MAX_WRITE_FRAMES, frames);
+
+                /* the timestamps of exactly the frames that are spilled */
+                if (s.stamps != null) {
+                    s.stampBuffer.clear();
+                    max = s.ring.peekTimestamps(s.stampBuffer, max);
+                }
+                if (max == 0 || (n = s.ring.drainTo(tapped(s, s.journal), max, true)) == 0)
+                    break;
+
+                if (s.stamps != null) {
+                    s.stampBuffer.flip();
+                    s.stamps.write(s.stampBuffer);
+                }
+                frames -= n / frameSize;
+                s.spilled += n;
+            }
+        } catch (IOException e) {
+            /* hold the frames back in the ring instead */
+            e.printStackTrace();
+            s.spillFailed = true;
+        }
+    }
+
+    private static class Stream {
+        final String name;
+        final int index;
+        final SampleRing ring;
+        final int batchFrames;
+        final Opener opener;
+        volatile WritableByteChannel out;
+        volatile boolean failed = false;
+        boolean done = false;
+        long pendingSince = -1;
+        SpillJournal journal = null, stamps = null;
+        ByteBuffer stampBuffer = null;
+        boolean spillFailed = false;
+        volatile long spilled = 0;
+        TapChannel tap = null;
+
+        Stream(String name, int index, SampleRing ring, int batchFrames, Opener opener) {
+            this.name = name;
+            this.index = index;
+            this.ring = ring;
+            this.batchFrames = batchFrames;
+            this.opener = opener;
+        }
+
+        void open() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    openNow();
+                }
+            }, "open " + name).start();
+        }
+
+        void openNow() {
+            try {
+                out = opener.open();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ring.close();
+                failed = true;
+            }
+        }
+
+        /** @return true while frames are waiting in the journal */
+        boolean isSpilling() {
+            return journal != null && !journal.isEmpty();
+        }
+
+        void finish() {
+            done = true;
+            if (journal != null)
+                journal.close();
+            if (stamps != null)
+                stamps.close();
+            try { out.close(); }
+            catch (IOException e) {}
+        }
+    }
+
+    /** passes whatever is written to its target on to a tap. Reused for every write, so
+     * tapping allocates nothing. */
+    private static class TapChannel implements GatheringByteChannel {
+        private final Tap mTap;
+        private final int mStream;
+        WritableByteChannel target;
+
+        TapChannel(Tap tap, int stream) {
+            mTap = tap;
+            mStream = stream;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int position = src.position(),
+                n = target.write(src);
+            tap(src, position);
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (!(target instanceof GatheringByteChannel)) {
+                long n = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    n += write(srcs[i]);
+                    if (srcs[i].hasRemaining())
+                        break;
+                }
+                return n;
+            }
+
+            /* the ring passes at most two views */
+            if (length > 2)
+                throw new IllegalArgumentException("at most two buffers can be tapped");
+
+            int first = srcs[offset].position(),
+                second = length > 1 ? srcs[offset + 1].position() : 0;
+            long n = ((GatheringByteChannel) target).write(srcs, offset, length);
+
+            tap(srcs[offset], first);
+            if (length > 1)
+                tap(srcs[offset + 1], second);
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        /** pass the bytes from the given position up to the current one to the tap */
+        private void tap(ByteBuffer b, int from) {
+            int position = b.position(), limit = b.limit();
+            if (position == from)
+                return;
+
+            b.limit(position).position(from);
+            try {
+                mTap.onDrained(mStream, b);
+            } finally {
+                b.limit(limit).position(position);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package de.uni_freiburg.bgrecorder;
+
+/** Passes the events of a sensor on to its listener, see SensorSource. The same event may be
+ * reported by more than one sensor listener, so events that are not newer than the last one
+ * are dropped as duplicates.
+ *
+ * On-change sensors additionally repeat their last value once per sampling period with the
+ * current time, see repeat(). These repeats do not take part in dropping duplicates: a wakeup
+ * sensor delivers its batched events late, so a real event may be older than a repeat that
+ * was already delivered, and must still be passed on.
+ *
+ * Not thread-safe, all calls are made on the thread of the sensor events.
+ */
+class SampleHold {
+    private final SampleSource.Listener mListener;
+
+    /* the last real event, and the last delivery including repeats */
+    private long mLastTimestamp = -1, mLastDelivered = -1;
+    private float[] mLastValues;
+
+    SampleHold(SampleSource.Listener l) {
+        mListener = l;
+    }
+
+    /** pass on a real event, unless it is a duplicate.
+     * @return false if the event was dropped */
+    boolean onEvent(long timestamp, float[] values) {
+        if (timestamp <= mLastTimestamp)
+            return false;
+
+        if (mLastValues == null || mLastValues.length != values.length)
+            mLastValues = new float[values.length];
+        System.arraycopy(values, 0, mLastValues, 0, values.length);
+
+        mLastTimestamp = timestamp;
+        mLastDelivered = Math.max(mLastDelivered, timestamp);
+        mListener.onSample(timestamp, values);
+        return true;
+    }
+
+    /** repeat the last value if nothing was delivered for a period.
+     * @return true if the value was repeated */
+    boolean repeat(long now, long periodNS) {
+        if (mLastValues == null || now - mLastDelivered < periodNS)
+            return false;
+
+        mLastDelivered = now;
+        mListener.onSample(now, mLastValues);
+        return true;
+    }
+}
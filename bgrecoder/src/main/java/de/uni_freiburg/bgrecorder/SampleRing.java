@@ -0,0 +1,355 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A single-producer/single-consumer ring buffer of fixed-size sample frames. The sensor
+ * callback is the only producer and the RingDrainer is the only consumer, so neither side
+ * needs a lock: each one owns its own position counter and only publishes it with an ordered
+ * store. All storage is allocated once in the constructor, offer() never blocks or allocates,
+ * if the ring is full the frame is dropped and counted as an overflow.
+ *
+ * Frames are stored as packed native-order floats in direct memory, i.e. exactly in the layout
+ * that is written to the ffmpeg pipe. The consumer writes them straight from the ring storage
+ * with a single gather write, without copying them first.
+ *
+ * The timestamp of each frame is kept next to it, so that the latency of each frame up to its
+ * write can be reported to a StreamMetrics. A timestamped ring additionally stores it in front
+ * of the values of each frame as a native-order int64, for outputs that keep the original
+ * timestamp of every event, see EventLogWriter.
+ *
+ * A quantized ring stores each value as a native-order int16 in units of a fixed scale
+ * instead, i.e. value = sample * scale. Values beyond the int16 range are clipped.
+ *
+ * High-rate streams like audio can append whole buffers of frames that are already in the
+ * stored layout, see offer(ByteBuffer, long), which costs two bulk copies instead of any work
+ * per frame.
+ */
+public class SampleRing {
+    private final int mChannels;
+    private final int mFrameSize;
+    private final int mValuesOffset;
+    private final float mScale;
+    private final int mCapacity;
+    private final ByteBuffer mSlots;
+    private final long[] mTimestamps;
+    private StreamMetrics mMetrics = null;
+    /* views on mSlots that are only touched by the consumer */
+    private final ByteBuffer mReadView, mWrapView;
+    private final ByteBuffer[] mViews;
+    /* a view on mSlots that is only touched by the producer */
+    private final ByteBuffer mWriteView;
+
+    /* written by the producer, read by the consumer */
+    private final AtomicLong mHead = new AtomicLong();
+    /* written by the consumer, read by the producer */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile long mHighWaterMark = 0;
+    private volatile long mOverflows = 0;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param channels number of float values per frame
+     * @param capacity number of frames the ring can hold
+     */
+    public SampleRing(int channels, int capacity) {
+        this(channels, capacity, false);
+    }
+
+    /**
+     * @param channels    number of float values per frame
+     * @param capacity    number of frames the ring can hold
+     * @param timestamped store the timestamp in front of the values of each frame
+     */
+    public SampleRing(int channels, int capacity, boolean timestamped) {
+        this(channels, capacity, timestamped, 0);
+    }
+
+    /**
+     * @param channels    number of values per frame
+     * @param capacity    number of frames the ring can hold
+     * @param timestamped store the timestamp in front of the values of each frame
+     * @param scale       store the values as int16 in units of this scale, 0 for floats
+     */
+    public SampleRing(int channels, int capacity, boolean timestamped, float scale) {
+        if (channels <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("channels and capacity must be positive");
+        if (scale < 0 || Float.isNaN(scale) || Float.isInfinite(scale))
+            throw new IllegalArgumentException("scale must be positive or 0");
+
+        mChannels = channels;
+        mScale = scale;
+        mValuesOffset = timestamped ? 8 : 0;
+        mFrameSize = mValuesOffset + (scale > 0 ? 2 : 4) * channels;
+        mCapacity = capacity;
+        mSlots = ByteBuffer.allocateDirect(mFrameSize * capacity).order(ByteOrder.nativeOrder());
+        mTimestamps = new long[capacity];
+        mReadView = mSlots.duplicate();
+        mWrapView = mSlots.duplicate();
+        mViews = new ByteBuffer[] { mReadView, mWrapView };
+        mWriteView = mSlots.duplicate();
+    }
+
+    /** append one frame, called from the producer thread only. Missing values are filled
+     * with zeros, additional values are ignored.
+     *
+     * @param values the sample values of this frame
+     * @return false if the ring was full or closed and the frame has been dropped
+     */
+    public boolean offer(float[] values) {
+        return offer(values, -1);
+    }
+
+    /** append one frame with its timestamp, see offer(float[]).
+     *
+     * @param values      the sample values of this frame
+     * @param timestampNS the time the frame was sampled, -1 if unknown
+     */
+    public boolean offer(float[] values, long timestampNS) {
+        if (mClosed)
+            return false;
+
+        long head = mHead.get(),
+             fill = head - mTail.get();
+
+        if (fill >= mCapacity) {
+            mOverflows++;
+            return false;
+        }
+
+        int off = (int) (head % mCapacity) * mFrameSize,
+            n = Math.min(values.length, mChannels);
+
+        if (mValuesOffset > 0)
+            mSlots.putLong(off, timestampNS);
+        off += mValuesOffset;
+
+        if (mScale > 0) {
+            for (int i = 0; i < n; i++)
+                mSlots.putShort(off + 2 * i, quantize(values[i]));
+            for (int i = n; i < mChannels; i++)
+                mSlots.putShort(off + 2 * i, (short) 0);
+        } else {
+            for (int i = 0; i < n; i++)
+                mSlots.putFloat(off + 4 * i, values[i]);
+            for (int i = n; i < mChannels; i++)
+                mSlots.putFloat(off + 4 * i, 0.f);
+        }
+        mTimestamps[(int) (head % mCapacity)] = timestampNS;
+
+        mHead.lazySet(head + 1);
+
+        if (fill + 1 > mHighWaterMark)
+            mHighWaterMark = fill + 1;
+
+        return true;
+    }
+
+    /** append whole frames that are already packed in the layout of the ring, e.g. 16-bit PCM
+     * read into a buffer, called from the producer thread only. The frames are copied in at
+     * most two bulk copies. Those that do not fit into the ring are dropped and counted as
+     * overflows, and an incomplete frame at the end is ignored.
+     *
+     * @param frames      the packed frames between position and limit, in native byte order.
+     *                    The position is advanced to the limit.
+     * @param timestampNS the time the first frame was sampled, -1 if unknown. The others have
+     *                    no timestamp of their own.
+     * @return the number of frames appended
+     */
+    public int offer(ByteBuffer frames, long timestampNS) {
+        if (mValuesOffset > 0)
+            throw new IllegalStateException("timestamped rings only take single frames");
+
+        int n = frames.remaining() / mFrameSize, limit = frames.limit();
+        if (mClosed) {
+            frames.position(limit);
+            return 0;
+        }
+
+        long head = mHead.get(),
+             fill = head - mTail.get();
+        int fit = (int) Math.min(n, mCapacity - fill);
+        if (fit < n)
+            mOverflows += n - fit;
+
+        if (fit > 0) {
+            int first = (int) (head % mCapacity),
+                upper = Math.min(fit, mCapacity - first);
+
+            frames.limit(frames.position() + upper * mFrameSize);
+            mWriteView.clear().position(first * mFrameSize);
+            mWriteView.put(frames);
+            Arrays.fill(mTimestamps, first, first + upper, -1);
+
+            if (fit > upper) {
+                frames.limit(frames.position() + (fit - upper) * mFrameSize);
+                mWriteView.clear();
+                mWriteView.put(frames);
+                Arrays.fill(mTimestamps, 0, fit - upper, -1);
+            }
+
+            mTimestamps[first] = timestampNS;
+            mHead.lazySet(head + fit);
+
+            if (fill + fit > mHighWaterMark)
+                mHighWaterMark = fill + fit;
+        }
+
+        frames.limit(limit).position(limit);
+        return fit;
+    }
+
+    private short quantize(float value) {
+        int q = Math.round(value / mScale);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, q));
+    }
+
+    /** write up to maxFrames frames into the channel, called from the consumer thread only.
+     * If the channel supports it, this is a single gather write, otherwise one write for each
+     * contiguous part of the ring. The call returns once all frames have been written, or once
+     * the channel takes no more bytes after a whole frame, e.g. a SegmentedBackend whose next
+     * segment is not ready yet. The frames that were not taken stay in the ring.
+     *
+     * @param ch        the channel to write to
+     * @param maxFrames maximum number of frames to write
+     * @return number of bytes written
+     */
+    public int drainTo(WritableByteChannel ch, int maxFrames) throws IOException {
+        return drainTo(ch, maxFrames, false);
+    }
+
+    /** write up to maxFrames frames, see drainTo(WritableByteChannel, int).
+     *
+     * @param spill true if the channel is a SpillJournal, whose frames are reported as
+     *              spilled instead of written, see StreamMetrics
+     */
+    int drainTo(WritableByteChannel ch, int maxFrames, boolean spill) throws IOException {
+        long tail = mTail.get();
+        int frames = (int) Math.min(mHead.get() - tail, maxFrames);
+
+        if (frames == 0)
+            return 0;
+
+        /*
+         * at most two views, one up to the end of the storage and one for the part that
+         * wrapped around to the beginning.
+         */
+        int first = (int) (tail % mCapacity),
+            upper = Math.min(frames, mCapacity - first);
+
+        mReadView.limit((first + upper) * mFrameSize).position(first * mFrameSize);
+        mWrapView.limit((frames - upper) * mFrameSize).position(0);
+
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        long written = 0, n;
+
+        if (ch instanceof GatheringByteChannel) {
+            GatheringByteChannel gch = (GatheringByteChannel) ch;
+            while (mReadView.hasRemaining() || mWrapView.hasRemaining()) {
+                n = gch.write(mViews);
+                written += n;
+                if (n == 0 && written % mFrameSize == 0)
+                    break;
+            }
+        } else {
+            for (ByteBuffer view : mViews) {
+                while (view.hasRemaining()) {
+                    n = ch.write(view);
+                    written += n;
+                    if (n == 0 && written % mFrameSize == 0)
+                        break;
+                }
+                if (view.hasRemaining())
+                    break;
+            }
+        }
+        frames = (int) (written / mFrameSize);
+
+        if (mMetrics != null && frames > 0) {
+            if (spill)
+                mMetrics.onSpill(frames);
+            else
+                mMetrics.onWrite(frames, frames * mFrameSize, System.nanoTime() - start,
+                        mTimestamps, first);
+        }
+
+        mTail.lazySet(tail + frames);
+        return frames * mFrameSize;
+    }
+
+    /** copy the timestamps of up to maxFrames of the oldest frames into dst as native-order
+     * int64, -1 where unknown, called from the consumer thread only. The frames stay in the
+     * ring, e.g. to keep their timestamps while they are spilled.
+     *
+     * @return number of frames whose timestamps were copied
+     */
+    int peekTimestamps(ByteBuffer dst, int maxFrames) {
+        long tail = mTail.get();
+        int frames = (int) Math.min(Math.min(mHead.get() - tail, maxFrames), dst.remaining() / 8);
+
+        for (int i = 0; i < frames; i++)
+            dst.putLong(mTimestamps[(int) ((tail + i) % mCapacity)]);
+        return frames;
+    }
+
+    /** report writes to the given metrics, must be called before the ring is used. */
+    void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /** @return the metrics that writes are reported to, or null */
+    StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** mark the end of this stream, no further frames will be accepted. */
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** @return number of frames waiting to be drained */
+    public int available() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    public int getNumChannels() {
+        return mChannels;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public boolean isTimestamped() {
+        return mValuesOffset > 0;
+    }
+
+    /** @return the scale of the int16 values, 0 if the values are stored as floats */
+    public float getScale() {
+        return mScale;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** @return the maximum number of frames that have been waiting in this ring at once */
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /** @return number of frames that were dropped because the ring was full */
+    public long getOverflows() {
+        return mOverflows;
+    }
+}
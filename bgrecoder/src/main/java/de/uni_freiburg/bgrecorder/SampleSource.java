@@ -0,0 +1,39 @@
+package de.uni_freiburg.bgrecorder;
+
+/** A source of timestamped sample frames for one stream of a recording, e.g. an Android
+ * sensor or the replay of an earlier capture. Events are delivered on a thread of the source,
+ * one at a time and in timestamp order. That thread may be shared by several sources, so
+ * listeners must never block it.
+ */
+public interface SampleSource {
+
+    /** receives the events of a source. */
+    interface Listener {
+        /**
+         * @param timestampNS event time in nanoseconds, on the clock shared by all sources of
+         *                    a recording
+         * @param values      the sample values, only valid during the call
+         */
+        void onSample(long timestampNS, float[] values);
+
+        /** all events up to a flush() request have been delivered. */
+        void onFlushCompleted();
+    }
+
+    String getName();
+
+    int getNumChannels();
+
+    /** start delivering events.
+     *
+     * @param l        the listener to deliver to
+     * @param periodUS the requested sampling period in microseconds
+     */
+    void start(Listener l, int periodUS);
+
+    /** deliver all pending events and then call onFlushCompleted() on the listener. */
+    void flush();
+
+    /** stop delivering events, no further callbacks are made. */
+    void stop();
+}
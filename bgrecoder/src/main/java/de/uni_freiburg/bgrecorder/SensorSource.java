@@ -0,0 +1,221 @@
+package de.uni_freiburg.bgrecorder;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/** A SampleSource for an Android sensor. The events of all sensors are delivered on a single
+ * shared HandlerThread, so listeners must never block. Wakeup sensors batch events in their
+ * hardware FIFO for up to half its size, so the first event is additionally requested without
+ * batching. The recording can thus be synchronized without waiting for the first batch.
+ *
+ * On-change sensors, like the light sensor, only report when their value changes. For them
+ * the last value is repeated once per sampling period, so that their stream keeps pace with
+ * all others.
+ *
+ * The sampling period can be changed while running, e.g. to step a sensor down while the
+ * device is idle, see setPeriod(). The stream keeps its rate, the CopyListener then repeats
+ * each event until the next one.
+ */
+public class SensorSource implements SampleSource {
+    private final SensorManager mManager;
+    private final Sensor mSensor;
+    private final int mChannels;
+    private static HandlerThread sThread = null;
+    private volatile boolean mStarted = false;
+    private boolean mFlushing = false;
+    private SensorEventListener mFirst, mBatched;
+    private Handler mHandler;
+    private Runnable mRepeat;
+    private Listener mListener;
+    private int mMaxLatencyUS = -1;
+    /* shared by all listeners of the sensor, only used on the handler thread */
+    private SampleHold mHold;
+
+    public SensorSource(SensorManager sm, Sensor s) throws Exception {
+        mManager = sm;
+        mSensor = s;
+        mChannels = getNumChannels(s);
+    }
+
+    public Sensor getSensor() {
+        return mSensor;
+    }
+
+    @Override
+    public String getName() {
+        return mSensor.getName();
+    }
+
+    @Override
+    public int getNumChannels() {
+        return mChannels;
+    }
+
+    /** @return the looper of the thread that delivers the events of all sensors */
+    private static synchronized Looper getLooper() {
+        if (sThread == null) {
+            sThread = new HandlerThread("SensorSource");
+            sThread.start();
+        }
+        return sThread.getLooper();
+    }
+
+    @Override
+    public synchronized void start(final Listener l, int periodUS) {
+        mStarted = true;
+        mFlushing = false;
+        final Handler h = new Handler(getLooper());
+        final long periodNS = periodUS * 1000L;
+        final SampleHold hold = new SampleHold(l);
+        mHold = hold;
+
+        mFirst = new SensorEventListener() {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                mManager.unregisterListener(this);
+                hold.onEvent(event.timestamp, event.values);
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+        };
+
+        mListener = l;
+        mBatched = newBatchedListener(l, hold);
+        mManager.registerListener(mFirst, mSensor, periodUS, h);
+        mManager.registerListener(mBatched, mSensor, periodUS, getReportLatency(periodUS), h);
+
+        if (mSensor.getReportingMode() == Sensor.REPORTING_MODE_ON_CHANGE) {
+            mRepeat = new Runnable() {
+                @Override
+                public void run() {
+                    if (!mStarted)
+                        return;
+
+                    hold.repeat(SystemClock.elapsedRealtimeNanos(), periodNS);
+                    h.postDelayed(this, Math.max(1, periodNS / 1000000));
+                }
+            };
+            h.postDelayed(mRepeat, Math.max(1, periodNS / 1000000));
+        }
+        mHandler = h;
+    }
+
+    private SensorEventListener newBatchedListener(final Listener l, final SampleHold hold) {
+        return new SensorEventListener2() {
+            @Override
+            public void onSensorChanged(SensorEvent event) {
+                hold.onEvent(event.timestamp, event.values);
+            }
+
+            @Override
+            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+            @Override
+            public void onFlushCompleted(Sensor sensor) {
+                l.onFlushCompleted();
+            }
+        };
+    }
+
+    /** @return how long events may be batched in the hardware FIFO, in microseconds */
+    private int getReportLatency(int periodUS) {
+        int latency = mSensor.isWakeUpSensor() ?
+                mSensor.getFifoMaxEventCount() / 2 * periodUS : 1;
+        return mMaxLatencyUS >= 0 ? Math.min(latency, mMaxLatencyUS) : latency;
+    }
+
+    /** limit how long events are batched, e.g. for a sensor that needs to be evaluated in
+     * time. Must be called before start().
+     *
+     * @param us maximum report latency in microseconds, -1 for no limit
+     */
+    public SensorSource setMaxReportLatency(int us) {
+        mMaxLatencyUS = us;
+        return this;
+    }
+
+    /**
+     * change the sampling period of a started sensor. The listener for the new period is
+     * registered before the old one is removed, so no event is lost in between, and duplicate
+     * events of both are dropped. Ignored once a flush has been requested, whose completion
+     * is only reported to the listener it was requested on.
+     *
+     * @return false if the period has not been changed
+     */
+    public synchronized boolean setPeriod(int periodUS) {
+        if (!mStarted || mFlushing)
+            return false;
+
+        SensorEventListener old = mBatched;
+        mBatched = newBatchedListener(mListener, mHold);
+        mManager.registerListener(mBatched, mSensor, periodUS, getReportLatency(periodUS),
+                mHandler);
+        mManager.unregisterListener(old);
+        return true;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (mBatched == null)
+            return;
+
+        mFlushing = true;
+        mManager.flush(mBatched);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mStarted)
+            return;
+
+        mManager.unregisterListener(mFirst);
+        mManager.unregisterListener(mBatched);
+        if (mRepeat != null)
+            mHandler.removeCallbacks(mRepeat);
+        mStarted = false;
+    }
+
+    /** @return the scale for storing the values of the sensor as int16 without clipping, i.e.
+     * its resolution, or a coarser one if its range does not fit into 16 bits otherwise */
+    public static float getQuantizationScale(Sensor s) {
+        double range = s.getMaximumRange();
+
+        /* the fifth value is the heading accuracy in radians, beyond the range of a quaternion */
+        if (s.getType() == Sensor.TYPE_ROTATION_VECTOR)
+            range = Math.max(range, Math.PI);
+
+        return (float) Math.max(s.getResolution(), range / Short.MAX_VALUE);
+    }
+
+    public static int getNumChannels(Sensor s) throws Exception {
+        /*
+         * https://developer.android.com/reference/android/hardware/SensorEvent#sensor
+         */
+        switch (s.getType()) {
+            case Sensor.TYPE_ACCELEROMETER:
+            case Sensor.TYPE_GYROSCOPE:
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                return 3;
+
+            case Sensor.TYPE_ROTATION_VECTOR:
+                return 5;
+
+            case Sensor.TYPE_RELATIVE_HUMIDITY:
+            case Sensor.TYPE_PRESSURE:
+            case Sensor.TYPE_LIGHT:
+            case Sensor.TYPE_AMBIENT_TEMPERATURE:
+                return 1;
+
+            default:
+                throw new Exception("unknown number of channels for " + s.getName());
+        }
+    }
+}
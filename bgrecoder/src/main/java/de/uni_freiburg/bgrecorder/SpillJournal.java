@@ -0,0 +1,216 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An overflow journal for the sample frames of one stream, a FIFO of bytes in a memory mapped
+ * file. The RingDrainer moves frames into the journal while the encoder falls behind, and
+ * replays them into the pipe once it has caught up. The journal is a ring over a file of a
+ * fixed capacity, so frames can be replayed while new ones are spilled, without the file ever
+ * growing beyond its capacity.
+ *
+ * The file is mapped in chunks of whole frames, each one on its first use, so a journal that
+ * is never used does not take any storage. Writing only copies into the mapping, and leaves it
+ * to the kernel to write the pages back, i.e. the writer never waits for the storage that the
+ * encoder might be stalled on. Frames are always written and replayed whole.
+ *
+ * Used from the drainer thread only. Closing the journal deletes its file.
+ */
+public class SpillJournal implements WritableByteChannel {
+    private static final int CHUNK_BYTES = 1024 * 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final int mFrameSize, mChunkSize;
+    private final long mCapacity;
+    private final MappedByteBuffer[] mChunks;
+    /* slices of the chunks that are replayed with a single gather write */
+    private final ByteBuffer[] mViews;
+
+    /* bytes written and replayed since the start, their difference is the pending data */
+    private long mHead = 0, mTail = 0;
+    private long mHighWaterMark = 0;
+
+    /**
+     * @param file      the journal, which is overwritten
+     * @param frameSize size of a sample frame in bytes
+     * @param maxBytes  capacity of the journal, rounded down to whole chunks of frames
+     */
+    public SpillJournal(File file, int frameSize, long maxBytes) throws IOException {
+        mFile = file;
+        mFrameSize = frameSize;
+        mChunkSize = Math.max(1, CHUNK_BYTES / frameSize) * frameSize;
+
+        int chunks = (int) Math.max(1, maxBytes / mChunkSize);
+        mCapacity = (long) chunks * mChunkSize;
+        mChunks = new MappedByteBuffer[chunks];
+        mViews = new ByteBuffer[chunks + 1];
+
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+    }
+
+    /** @return number of bytes waiting to be replayed */
+    public long size() {
+        return mHead - mTail;
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /** @return number of bytes that can be spilled, in whole frames */
+    public long remaining() {
+        return mCapacity - size();
+    }
+
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /** @return the maximum number of bytes that have been waiting in this journal at once */
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    private ByteBuffer chunk(int i) throws IOException {
+        if (mChunks[i] == null)
+            mChunks[i] = mRaf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, (long) i * mChunkSize, mChunkSize);
+        return mChunks[i];
+    }
+
+    /** append whole frames, the src must not hold more than remaining() bytes. */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        if (n % mFrameSize != 0)
+            throw new IOException("only whole frames can be spilled, not " + n + " bytes");
+        if (n > remaining())
+            throw new IOException("spill journal " + mFile + " is full");
+
+        while (src.hasRemaining()) {
+            long pos = mHead % mCapacity;
+            int off = (int) (pos % mChunkSize),
+                len = Math.min(src.remaining(), mChunkSize - off);
+
+            ByteBuffer dst = chunk((int) (pos / mChunkSize)).duplicate();
+            dst.position(off);
+
+            int limit = src.limit();
+            src.limit(src.position() + len);
+            dst.put(src);
+            src.limit(limit);
+            mHead += len;
+        }
+
+        mHighWaterMark = Math.max(mHighWaterMark, size());
+        return n;
+    }
+
+    /** replay up to maxBytes of the oldest frames into the channel, rounded down to whole
+     * frames. All chunks are written with a single gather write, if the channel supports it.
+     * Like SampleRing.drainTo(), this stops early once the channel takes no more bytes after a
+     * whole frame, and the rest stays in the journal.
+     *
+     * @return number of bytes replayed
+     */
+    public long drainTo(WritableByteChannel ch, long maxBytes) throws IOException {
+        long n = Math.min(size(), maxBytes / mFrameSize * mFrameSize);
+        if (n == 0)
+            return 0;
+
+        int views = 0;
+        for (long pos = mTail, left = n; left > 0; views++) {
+            long p = pos % mCapacity;
+            int off = (int) (p % mChunkSize),
+                len = (int) Math.min(left, mChunkSize - off);
+
+            ByteBuffer view = chunk((int) (p / mChunkSize)).duplicate();
+            view.limit(off + len).position(off);
+            mViews[views] = view;
+            pos += len;
+            left -= len;
+        }
+
+        long written = 0, w;
+        try {
+            if (ch instanceof GatheringByteChannel) {
+                GatheringByteChannel gch = (GatheringByteChannel) ch;
+                while (mViews[views - 1].hasRemaining()) {
+                    w = gch.write(mViews, 0, views);
+                    written += w;
+                    if (w == 0 && written % mFrameSize == 0)
+                        break;
+                }
+            } else {
+                for (int i = 0; i < views; i++) {
+                    while (mViews[i].hasRemaining()) {
+                        w = ch.write(mViews[i]);
+                        written += w;
+                        if (w == 0 && written % mFrameSize == 0)
+                            break;
+                    }
+                    if (mViews[i].hasRemaining())
+                        break;
+                }
+            }
+        } finally {
+            for (int i = 0; i < views; i++)
+                mViews[i] = null;
+        }
+
+        mTail += written;
+        return written;
+    }
+
+    /** replay the oldest frames into dst, as many whole frames as it has room for.
+     *
+     * @return number of bytes replayed
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int n = (int) Math.min(size(), dst.remaining() / mFrameSize * mFrameSize);
+
+        for (int left = n; left > 0; ) {
+            long p = mTail % mCapacity;
+            int off = (int) (p % mChunkSize),
+                len = Math.min(left, mChunkSize - off);
+
+            ByteBuffer src = chunk((int) (p / mChunkSize)).duplicate();
+            src.limit(off + len).position(off);
+            dst.put(src);
+            mTail += len;
+            left -= len;
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return mFile.getPath();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mRaf.getChannel().isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!mFile.delete())
+            System.err.println("unable to delete spill journal " + mFile);
+    }
+}
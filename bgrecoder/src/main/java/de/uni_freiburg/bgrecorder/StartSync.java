@@ -0,0 +1,60 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Synchronizes the start of all streams of a recording without blocking any of them. Each
+ * stream reports its first timestamp, and the recording starts at the latest of these once
+ * all streams have reported. A callback is run exactly once at that point, on the thread of the
+ * stream that reported last.
+ */
+public class StartSync {
+    private final AtomicInteger mPending;
+    private final AtomicLong mStartNS = new AtomicLong(-1);
+    private final Runnable mOnStart;
+
+    /**
+     * @param streams number of streams to wait for
+     * @param onStart run once all streams have reported, may be null
+     */
+    public StartSync(int streams, Runnable onStart) {
+        mPending = new AtomicInteger(streams);
+        mOnStart = onStart;
+    }
+
+    /** report the first timestamp of a stream, must be called once per stream. */
+    public void arrive(long timestampNS) {
+        long start;
+        do start = mStartNS.get();
+        while (timestampNS > start && !mStartNS.compareAndSet(start, timestampNS));
+
+        if (mPending.decrementAndGet() == 0)
+            started();
+    }
+
+    /** start without waiting for the remaining streams, e.g. when the recording is stopped
+     * before all of them have reported. */
+    public void release() {
+        int pending;
+        while ((pending = mPending.get()) > 0)
+            if (mPending.compareAndSet(pending, 0)) {
+                started();
+                return;
+            }
+    }
+
+    private void started() {
+        if (mOnStart != null)
+            mOnStart.run();
+    }
+
+    /** @return true once all streams have reported, or the sync was released */
+    public boolean isStarted() {
+        return mPending.get() <= 0;
+    }
+
+    /** @return the latest first timestamp reported so far, -1 if none */
+    public long getStartNS() {
+        return mStartNS.get();
+    }
+}
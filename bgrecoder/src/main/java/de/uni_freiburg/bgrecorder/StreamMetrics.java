@@ -0,0 +1,150 @@
+package de.uni_freiburg.bgrecorder;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/** Counters and histograms of one stream of the recording pipeline. Each value has a single
+ * writer, either the thread of the SampleSource (events and samples) or the RingDrainer
+ * (writes), so updates are plain stores to volatile fields, without locks or allocation. Any
+ * thread may read them at any time.
+ *
+ * The latency from the sensor timestamp of a sample to its write into the backend is measured
+ * with the clock of the sensor timestamps, which is set with a Clock. Frames that are spilled
+ * to disk while the encoder is stalled only count as written once they are replayed into the
+ * backend, with the latency and stall of the replay.
+ */
+public class StreamMetrics {
+    /** the clock that sensor timestamps are taken from. */
+    public interface Clock {
+        long nanos();
+    }
+
+    public static final Clock NANO_TIME = new Clock() {
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private final String mName;
+    private final SampleRing mRing;
+    private final Clock mClock;
+
+    /* written by the source thread */
+    volatile long mEvents = 0, mSamples = 0, mDuplicated = 0, mDropped = 0;
+
+    /* written by the drainer thread */
+    volatile long mFramesWritten = 0, mBytesWritten = 0, mFramesSpilled = 0, mFramesReplayed = 0;
+    final Log2Histogram mStallNS = new Log2Histogram(), mLatencyNS = new Log2Histogram();
+
+    /**
+     * @param name  name of the stream
+     * @param ring  the ring of the stream, which reports its writes and overflows here
+     * @param clock the clock of the sample timestamps
+     */
+    public StreamMetrics(String name, SampleRing ring, Clock clock) {
+        mName = name;
+        mRing = ring;
+        mClock = clock;
+        ring.setMetrics(this);
+    }
+
+    /** an event was received and resampled into n samples, 0 if it was dropped. */
+    public void onEvent(int n) {
+        mEvents++;
+        if (n == 0)
+            mDropped++;
+        else if (n > 1)
+            mDuplicated += n - 1;
+    }
+
+    /** a sample was stored in the ring. */
+    public void onSample() {
+        mSamples++;
+    }
+
+    /** called by the ring after a write, with the timestamps of the frames in the ring. */
+    void onWrite(int frames, int bytes, long stallNS, long[] timestamps, int first) {
+        long now = mClock.nanos();
+
+        for (int i = 0; i < frames; i++) {
+            long t = timestamps[(first + i) % timestamps.length];
+            if (t >= 0)
+                mLatencyNS.record(now - t);
+        }
+
+        mStallNS.record(stallNS);
+        mFramesWritten += frames;
+        mBytesWritten += bytes;
+    }
+
+    /** called by the ring after frames were moved into a SpillJournal instead of written. */
+    void onSpill(int frames) {
+        mFramesSpilled += frames;
+    }
+
+    /** called by the RingDrainer after spilled frames were replayed into the backend.
+     *
+     * @param timestamps the native-order int64 timestamps of the replayed frames, between
+     *                   position and limit, -1 where unknown
+     */
+    void onReplay(int frames, long bytes, long stallNS, ByteBuffer timestamps) {
+        long now = mClock.nanos();
+
+        while (timestamps.remaining() >= 8) {
+            long t = timestamps.getLong();
+            if (t >= 0)
+                mLatencyNS.record(now - t);
+        }
+
+        mStallNS.record(stallNS);
+        mFramesReplayed += frames;
+        mFramesWritten += frames;
+        mBytesWritten += bytes;
+    }
+
+    public String getName() { return mName; }
+    public long getEvents() { return mEvents; }
+    public long getSamples() { return mSamples; }
+    public long getDuplicated() { return mDuplicated; }
+    public long getDropped() { return mDropped; }
+    public long getOverflows() { return mRing.getOverflows(); }
+    public long getHighWaterMark() { return mRing.getHighWaterMark(); }
+    public long getFramesWritten() { return mFramesWritten; }
+    public long getBytesWritten() { return mBytesWritten; }
+    public long getFramesSpilled() { return mFramesSpilled; }
+    public long getFramesReplayed() { return mFramesReplayed; }
+
+    /** @return the time spent in each write to the backend, including replays */
+    public Log2Histogram getStallNS() { return mStallNS; }
+
+    /** @return the time from the sensor timestamp of each sample to its write */
+    public Log2Histogram getLatencyNS() { return mLatencyNS; }
+
+    /** put all values into the map, with keys prefixed by the stream name. */
+    public void toTags(Map<String, String> tags) {
+        String p = mName + ".";
+        tags.put(p + "events", Long.toString(getEvents()));
+        tags.put(p + "samples", Long.toString(getSamples()));
+        tags.put(p + "duplicated", Long.toString(getDuplicated()));
+        tags.put(p + "dropped", Long.toString(getDropped()));
+        tags.put(p + "overflows", Long.toString(getOverflows()));
+        tags.put(p + "ring_high_water_mark", Long.toString(getHighWaterMark()));
+        tags.put(p + "frames_written", Long.toString(getFramesWritten()));
+        tags.put(p + "bytes_written", Long.toString(getBytesWritten()));
+        tags.put(p + "frames_spilled", Long.toString(getFramesSpilled()));
+        tags.put(p + "frames_replayed", Long.toString(getFramesReplayed()));
+        tags.put(p + "write_stall_ns", mStallNS.toString());
+        tags.put(p + "latency_ns", mLatencyNS.toString());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d events, %d samples (%d duplicated, %d dropped, %d overflows), " +
+                        "%d written (%d spilled, %d replayed), ring high-water mark %d, " +
+                        "stall [%s], latency [%s]",
+                mName, getEvents(), getSamples(), getDuplicated(), getDropped(), getOverflows(),
+                getFramesWritten(), getFramesSpilled(), getFramesReplayed(), getHighWaterMark(),
+                mStallNS, mLatencyNS);
+    }
+}
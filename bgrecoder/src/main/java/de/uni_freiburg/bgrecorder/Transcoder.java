@@ -0,0 +1,177 @@
+package de.uni_freiburg.bgrecorder;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.uni_freiburg.ffmpeg.FFMpegProcess;
+import de.uni_freiburg.ffmpeg.MatroskaIndex;
+
+/**
+ * Transcodes raw journals into their final recordings in the background. With deferred
+ * encoding, recordings are written as uncompressed Matroska journals while on battery, which
+ * costs no encoding CPU, and are only compressed once the device is charging. Journals are
+ * named like their recording, with .raw.mkv instead of .mkv, and are transcoded oldest first
+ * with one ffmpeg process each. All tags of the journal are kept.
+ *
+ * A journal is only deleted once its recording has been written completely. Cancelling, e.g.
+ * when the charger is unplugged, deletes the incomplete recording and keeps the journal for the
+ * next time. Journals that were cut off are repaired before transcoding.
+ */
+public class Transcoder implements Runnable {
+    private static final String JOURNAL_SUFFIX = ".raw.mkv";
+    private static final String WAKE_LOCK_TAG = "bgrecorder:transcoder";
+
+    /** notified about each finished recording, on the transcoder thread. */
+    public interface Listener {
+        void onTranscoded(File recording);
+    }
+
+    private final Context mContext;
+    private final File mDir;
+    private final String[] mCodec;
+    private final Listener mListener;
+    private volatile boolean mCancelled = false;
+    private FFMpegProcess mProcess = null;
+    private Thread mThread = null;
+
+    /**
+     * @param dir   directory of the journals
+     * @param codec the audio codec and its options, see CodecCalibration.Result
+     */
+    public Transcoder(Context context, File dir, String[] codec, Listener listener) {
+        mContext = context;
+        mDir = dir;
+        mCodec = codec;
+        mListener = listener;
+    }
+
+    /** @return the journal of a recording */
+    public static String journalFor(String recording) {
+        return recording.substring(0, recording.length() - ".mkv".length()) + JOURNAL_SUFFIX;
+    }
+
+    /** @return the recording of a journal */
+    public static File recordingFor(File journal) {
+        String name = journal.getName();
+        return new File(journal.getParentFile(),
+                name.substring(0, name.length() - JOURNAL_SUFFIX.length()) + ".mkv");
+    }
+
+    public synchronized void start() {
+        mThread = new Thread(this, "Transcoder");
+        mThread.start();
+    }
+
+    /** @return true while journals are being transcoded */
+    public synchronized boolean isAlive() {
+        return mThread != null && mThread.isAlive();
+    }
+
+    /** stop transcoding and wait for the current process to be terminated. */
+    public void cancel() {
+        FFMpegProcess p;
+        Thread t;
+        synchronized (this) {
+            mCancelled = true;
+            p = mProcess;
+            t = mThread;
+        }
+
+        if (p != null)
+            p.destroy();
+
+        if (t != null) try {
+            t.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+        wl.acquire();
+
+        try {
+            File[] journals = mDir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isFile() && f.getName().endsWith(JOURNAL_SUFFIX);
+                }
+            });
+
+            if (journals == null)
+                return;
+
+            /* names start with the date of the recording */
+            Arrays.sort(journals);
+            for (File journal : journals) {
+                if (mCancelled)
+                    break;
+
+                try {
+                    transcode(journal);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            wl.release();
+        }
+    }
+
+    private void transcode(File journal) throws Exception {
+        File output = recordingFor(journal);
+        long start = System.nanoTime();
+
+        if (MatroskaIndex.repair(journal))
+            Log.w("bgrec", "repaired cut off journal " + journal);
+
+        FFMpegProcess.Builder b = new FFMpegProcess.Builder(mContext)
+                .setProgressListener(null, 50)
+                .addInputArgument("-i", journal.getAbsolutePath())
+                .setCodec("a", mCodec[0]);
+
+        for (int i = 1; i + 1 < mCodec.length; i += 2)
+            b.addOutputArgument(mCodec[i], mCodec[i + 1]);
+
+        FFMpegProcess p;
+        int code;
+        synchronized (this) {
+            if (mCancelled)
+                return;
+            p = mProcess = b.setOutput(output.getAbsolutePath(), "matroska").build();
+        }
+
+        try {
+            code = p.waitFor();
+        } finally {
+            synchronized (this) {
+                mProcess = null;
+            }
+        }
+
+        if (code != 0 || mCancelled) {
+            output.delete();
+            if (!mCancelled)
+                throw new IOException("transcoding " + journal + " failed with " + code);
+            return;
+        }
+
+        Log.d("bgrec", String.format("transcoded %s in %.1f s, %d -> %d bytes", journal,
+                (System.nanoTime() - start) / 1e9, journal.length(), output.length()));
+
+        if (!journal.delete())
+            Log.w("bgrec", "unable to delete " + journal);
+
+        if (mListener != null)
+            mListener.onTranscoded(output);
+    }
+}
@@ -0,0 +1,80 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CopyListenerTest {
+    @Test
+    public void stagesEventsUntilAllStreamsHaveStarted() {
+        final int[] started = {0};
+        StartSync sync = new StartSync(2, new Runnable() {
+            @Override
+            public void run() {
+                started[0]++;
+            }
+        });
+
+        SampleRing fast = new SampleRing(1, 64), slow = new SampleRing(1, 64);
+        CopyListener a = new CopyListener(new Source("a"), fast, 10, sync),
+                     b = new CopyListener(new Source("b"), slow, 10, sync);
+
+        /* the first stream delivers a second of events before the other one starts */
+        for (int i = 0; i < 10; i++)
+            a.onSample(ms(100 * i + i), new float[] {i});
+
+        assertFalse(sync.isStarted());
+        assertEquals(0, fast.available());
+
+        b.onSample(ms(250), new float[] {0});
+        assertTrue(sync.isStarted());
+        assertEquals(1, started[0]);
+        assertEquals(ms(250), sync.getStartNS());
+
+        /* all staged events after the start time are recorded with the next event */
+        a.onSample(ms(1010), new float[] {10});
+
+        Resampler expected = new Resampler(10);
+        int samples = 0;
+        for (int i = 3; i <= 10; i++)
+            samples += expected.update(ms(100 * i + i));
+
+        assertTrue(samples > 0);
+        assertEquals(samples, fast.available());
+        assertEquals(samples, a.getSampleCount());
+
+        sync.release();
+        assertEquals(1, started[0]);
+    }
+
+    private static long ms(long ms) {
+        return ms * 1000 * 1000;
+    }
+
+    private static class Source implements SampleSource {
+        final String name;
+
+        Source(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getNumChannels() {
+            return 1;
+        }
+
+        @Override
+        public void start(Listener l, int periodUS) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void stop() {}
+    }
+}
@@ -0,0 +1,85 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FeatureExtractorTest {
+    private static final double RATE = 50;
+
+    private static float[][] drain(FeatureExtractor f) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        f.getRing().drainTo(Channels.newChannel(out), f.getRing().getCapacity());
+
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        float[][] frames = new float[bb.remaining() / 4 / f.getNumChannels()][f.getNumChannels()];
+        for (float[] frame : frames)
+            for (int i = 0; i < frame.length; i++)
+                frame[i] = bb.getFloat();
+        return frames;
+    }
+
+    @Test
+    public void computesOverlappingWindows() throws Exception {
+        FeatureExtractor f = new FeatureExtractor(2, RATE, 2, 1, null, 16);
+        assertEquals(Arrays.asList("mean_0", "mean_1", "var_0", "var_1", "sma"),
+                Arrays.asList(f.getNames()));
+        assertEquals(1, f.getRate(), 0);
+
+        /* a ramp in the first channel, a constant in the second one */
+        for (int i = 0; i < 5 * RATE; i++)
+            f.update(new float[] { i, -1 });
+
+        float[][] frames = drain(f);
+        assertEquals(4, frames.length);
+
+        /* frame k covers frames k*50 .. k*50+99 */
+        for (int k = 0; k < frames.length; k++) {
+            double mean = k * RATE + 49.5;
+            assertEquals(mean, frames[k][0], 1e-3);
+            assertEquals(-1, frames[k][1], 0);
+            assertEquals((100 * 100 - 1) / 12., frames[k][2], 1e-2);
+            assertEquals(0, frames[k][3], 0);
+            assertEquals(mean + 1, frames[k][4], 1e-3);
+        }
+    }
+
+    @Test
+    public void separatesFrequencyBands() throws Exception {
+        FeatureExtractor f = new FeatureExtractor(3, RATE, 4, 2, new double[] { .5, 3, 8, 40 }, 16);
+        assertEquals("mean_0,mean_1,mean_2,var_0,var_1,var_2,sma,band_0.50_3,band_3_8,band_8_22.50",
+                f.getLayout());
+
+        /* gravity with a 5 Hz oscillation of amplitude 2, i.e. a power of 2, close to the
+         * center of the middle band */
+        for (int i = 0; i < 20 * RATE; i++)
+            f.update(new float[] { 0, 0, (float) (9.81 + 2 * Math.sin(2 * Math.PI * 5 * i / RATE)) });
+
+        float[][] frames = drain(f);
+        assertEquals(9, frames.length);
+
+        float[] last = frames[frames.length - 1];
+        assertEquals(9.81, last[2], 1e-2);
+        assertEquals(2, last[5], 1e-2);
+        assertEquals(2, last[8], .05);
+        assertTrue(last[7] < .5);
+        assertTrue(last[9] < .3);
+    }
+
+    @Test
+    public void dropsIncompleteWindowsOnClose() throws Exception {
+        FeatureExtractor f = new FeatureExtractor(1, RATE, 1, 1, null, 4);
+        for (int i = 0; i < 1.5 * RATE; i++)
+            f.update(new float[] { 1 });
+        f.close();
+
+        assertEquals(1, drain(f).length);
+        assertTrue(f.getRing().isClosed());
+    }
+}
@@ -0,0 +1,209 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class LiveFeedTest {
+    private static ByteBuffer frames(int from, int to) {
+        ByteBuffer b = ByteBuffer.allocate((to - from) * 8).order(ByteOrder.nativeOrder());
+        for (int i = from; i < to; i++)
+            b.putFloat(i).putFloat(-i);
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void sharesDrainedFramesWithAllSubscribers() throws Exception {
+        LiveFeed feed = new LiveFeed(4, 64, 8);
+        SampleRing ring = new SampleRing(2, 64);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ArrayList<Runnable> tasks = new ArrayList<>();
+
+        RingDrainer d = new RingDrainer(1, 1)
+                .setTap(feed)
+                .add("acc", ring, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return Channels.newChannel(out);
+                    }
+                });
+        feed.addStream("acc", ring, 50);
+
+        LiveFeed.Subscription a = feed.subscribe(), b = feed.subscribe();
+        d.start(new RingDrainer.Scheduler() {
+            @Override
+            public void schedule(Runnable r, long delayMS) {
+                tasks.add(r);
+            }
+        });
+
+        for (int i = 0; i < 10; i++)
+            ring.offer(new float[] { i, -i });
+        tasks.remove(0).run();
+        assertEquals(10 * 8, out.size());
+
+        /* 64 byte buffers hold 8 frames each */
+        for (LiveFeed.Subscription s : new LiveFeed.Subscription[] { a, b }) {
+            LiveFeed.Batch first = s.take(0), second = s.take(0);
+            assertEquals(8, first.getNumFrames());
+            assertEquals(0, first.getFirstFrame());
+            assertEquals(2, second.getNumFrames());
+            assertEquals(8, second.getFirstFrame());
+            assertNull(s.take(0));
+
+            ByteBuffer v = second.view();
+            assertTrue(v.isReadOnly());
+            assertEquals(8, v.getFloat(), 0);
+            assertEquals(-8, v.getFloat(), 0);
+
+            first.release();
+            second.release();
+            assertEquals(0, s.getDroppedFrames());
+        }
+
+        /* all buffers are back in the pool */
+        a.close();
+        for (int i = 0; i < 4; i++)
+            feed.onDrained(0, frames(0, 8));
+        for (int i = 0; i < 4; i++)
+            b.take(0).release();
+        assertEquals(0, feed.getMissedFrames());
+    }
+
+    @Test
+    public void reassemblesPartiallyWrittenFrames() throws Exception {
+        LiveFeed feed = new LiveFeed(4, 64, 8);
+        feed.addStream("acc", new SampleRing(2, 4), 50);
+        LiveFeed.Subscription s = feed.subscribe();
+
+        ByteBuffer b = frames(0, 3);
+        b.limit(6);
+        feed.onDrained(0, b);
+        assertNull(s.take(0));
+
+        b.limit(24);
+        feed.onDrained(0, b);
+        LiveFeed.Batch batch = s.take(0);
+        assertEquals(3, batch.getNumFrames());
+
+        ByteBuffer v = batch.view();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, v.getFloat(), 0);
+            assertEquals(-i, v.getFloat(), 0);
+        }
+        batch.release();
+    }
+
+    @Test
+    public void slowSubscribersMissFrames() throws Exception {
+        LiveFeed feed = new LiveFeed(2, 64, 1);
+        feed.addStream("acc", new SampleRing(2, 4), 50);
+        LiveFeed.Subscription slow = feed.subscribe();
+
+        /* the queue holds one batch, the next one is missed by this subscriber */
+        feed.onDrained(0, frames(0, 4));
+        feed.onDrained(0, frames(4, 8));
+        assertEquals(4, slow.getDroppedFrames());
+
+        /* the subscriber holds on to a batch, and one more is queued: no buffers left */
+        LiveFeed.Batch held = slow.take(0);
+        feed.onDrained(0, frames(8, 12));
+        feed.onDrained(0, frames(12, 16));
+        assertEquals(4, feed.getMissedFrames());
+
+        held.release();
+        slow.take(0).release();
+        feed.onDrained(0, frames(16, 20));
+        assertEquals(16, slow.take(0).getFirstFrame());
+    }
+
+    @Test
+    public void keepsRestrictedStreamsFromOtherSubscribers() throws Exception {
+        LiveFeed feed = new LiveFeed(4, 64, 8);
+        feed.addStream("acc", new SampleRing(2, 4), 50);
+        feed.addStream("microphone", new SampleRing(1, 4, false, 1.f / 32768), 16000, true);
+        LiveFeed.Subscription all = feed.subscribe(), open = feed.subscribe(false);
+
+        feed.onDrained(1, ByteBuffer.allocate(8));
+        assertNull(open.take(0));
+        assertEquals(0, open.getDroppedFrames());
+
+        LiveFeed.Batch b = all.take(0);
+        assertEquals(1, b.getStream());
+        assertEquals(4, b.getNumFrames());
+        b.release();
+
+        /* the server does not even announce them */
+        final Pipe pipe = Pipe.open();
+        feed.close();
+        LiveFeedServer.serve(open, pipe.sink());
+        ByteBuffer hello = read(pipe.source(), 4 + 1 + 1 + 2 + 2 + 3);
+        assertEquals(1, hello.getShort(6));
+        assertEquals('a', hello.get(10));
+    }
+
+    @Test
+    public void framesBatchesForClients() throws Exception {
+        LiveFeed feed = new LiveFeed(4, 64, 8);
+        feed.addStream("acc", new SampleRing(2, 4), 50);
+        final LiveFeed.Subscription sub = feed.subscribe();
+        final Pipe pipe = Pipe.open();
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LiveFeedServer.serve(sub, pipe.sink());
+                    pipe.sink().close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+
+        ByteBuffer hello = read(pipe.source(), 4 + 1 + 1 + 2 + 2 + 3 + 2 + 2 + 1 + 4 + 8);
+        assertEquals('B', hello.get(0));
+        assertEquals('L', hello.get(3));
+        assertEquals(1, hello.get(4));
+        assertEquals(1, hello.getShort(6));
+        assertEquals(3, hello.getShort(8));
+        assertEquals(2, hello.getShort(13));
+        assertEquals(8, hello.getShort(15));
+        assertEquals(50, hello.getDouble(22), 0);
+
+        feed.onDrained(0, frames(0, 2));
+        ByteBuffer batch = read(pipe.source(), 22 + 16);
+        assertEquals(0, batch.getShort(0));
+        assertEquals(2, batch.getInt(2));
+        assertEquals(0, batch.getLong(6));
+        assertEquals(0, batch.getLong(14));
+        batch.order(ByteOrder.nativeOrder());
+        assertEquals(1, batch.getFloat(30), 0);
+
+        /* the connection ends with the recording */
+        feed.close();
+        server.join(5000);
+        assertEquals(-1, pipe.source().read(ByteBuffer.allocate(1)));
+    }
+
+    private static ByteBuffer read(ReadableByteChannel ch, int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining())
+            if (ch.read(b) < 0)
+                throw new IOException("closed");
+        b.flip();
+        return b;
+    }
+}
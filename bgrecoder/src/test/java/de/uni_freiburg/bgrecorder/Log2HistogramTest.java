@@ -0,0 +1,61 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Log2HistogramTest {
+    @Test
+    public void isEmptyWithoutValues() {
+        Log2Histogram h = new Log2Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMean(), 0);
+        assertEquals(0, h.getQuantile(.5));
+        assertEquals(0, h.getQuantile(1));
+    }
+
+    @Test
+    public void quantilesAreTheUpperEndOfTheirBucket() {
+        /* each value alone, to check which bucket it ends up in */
+        long[][] bounds = {
+                { 0, 0 }, { 1, 1 }, { 2, 3 }, { 3, 3 }, { 4, 7 }, { 7, 7 }, { 8, 15 },
+                { 1023, 1023 }, { 1024, 2047 }, { 1L << 62, (1L << 63) - 1 },
+                { Long.MAX_VALUE, (1L << 63) - 1 },
+        };
+
+        for (long[] b : bounds) {
+            Log2Histogram h = new Log2Histogram();
+            h.record(b[0]);
+            assertEquals("value " + b[0], b[1], h.getQuantile(.5));
+            assertEquals("value " + b[0], b[1], h.getQuantile(1));
+            assertEquals(b[0], h.getMax());
+        }
+    }
+
+    @Test
+    public void countsNegativeValuesAsZero() {
+        Log2Histogram h = new Log2Histogram();
+        h.record(-5);
+        assertEquals(1, h.getCount());
+        assertEquals(0, h.getSum());
+        assertEquals(0, h.getQuantile(1));
+    }
+
+    @Test
+    public void tracksCountSumMaxAndQuantiles() {
+        Log2Histogram h = new Log2Histogram();
+        for (int i = 0; i < 99; i++)
+            h.record(10);
+        h.record(5000);
+
+        assertEquals(100, h.getCount());
+        assertEquals(99 * 10 + 5000, h.getSum());
+        assertEquals(5000, h.getMax());
+        assertEquals(59.9, h.getMean(), 1e-9);
+
+        assertEquals(15, h.getQuantile(.5));
+        assertEquals(15, h.getQuantile(.99));
+        assertEquals(8191, h.getQuantile(1));
+        assertEquals("n=100 mean=60 p50<15 p99<15 max=5000", h.toString());
+    }
+}
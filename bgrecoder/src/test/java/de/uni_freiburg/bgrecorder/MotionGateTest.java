@@ -0,0 +1,57 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MotionGateTest {
+    private static final double RATE = 50;
+
+    @Test
+    public void stepsDownWhenIdleAndRestoresOnMotion() {
+        final ArrayList<Long> changes = new ArrayList<>();
+        final long[] forwarded = { 0 };
+
+        MotionGate gate = new MotionGate(new SampleSource.Listener() {
+            @Override
+            public void onSample(long timestampNS, float[] values) {
+                forwarded[0]++;
+            }
+
+            @Override
+            public void onFlushCompleted() {}
+        }, .1, .5, 10, new MotionGate.Listener() {
+            @Override
+            public void onMotionChanged(boolean moving, long timestampNS) {
+                /* alternates, starting with idle */
+                assertEquals(changes.size() % 2 == 1, moving);
+                changes.add(timestampNS);
+            }
+        });
+
+        Random random = new Random(1);
+        int samples = (int) (60 * RATE);
+        for (int i = 0; i < samples; i++) {
+            double t = i / RATE;
+            /* lying still for 30 s with sensor noise and a different orientation, then walking */
+            float[] v = t < 30 ?
+                    new float[] { 6.94f, 0, 6.94f } :
+                    new float[] { 0, 0, (float) (9.81 + 3 * Math.sin(2 * Math.PI * 1.8 * t)) };
+            for (int c = 0; c < 3; c++)
+                v[c] += .02 * random.nextGaussian();
+
+            gate.onSample((long) (t * 1e9), v);
+        }
+
+        assertEquals(samples, forwarded[0]);
+        assertEquals(2, changes.size());
+        assertTrue(gate.isMoving());
+
+        /* idle once still for the idle time, moving again within a fraction of a second */
+        assertEquals(10, changes.get(0) / 1e9, 1);
+        assertEquals(30, changes.get(1) / 1e9, .2);
+    }
+}
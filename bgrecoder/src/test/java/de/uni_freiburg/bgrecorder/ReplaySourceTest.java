@@ -0,0 +1,95 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ReplaySourceTest {
+    private static final long MS = 1000 * 1000;
+
+    private static class Events implements SampleSource.Listener {
+        final ArrayList<Long> timestamps = new ArrayList<>();
+        final ArrayList<float[]> values = new ArrayList<>();
+        int flushes = 0;
+
+        @Override
+        public void onSample(long timestampNS, float[] v) {
+            timestamps.add(timestampNS);
+            values.add(v.clone());
+        }
+
+        @Override
+        public void onFlushCompleted() {
+            flushes++;
+        }
+    }
+
+    /** a capture of n events of two channels, 10 ms apart */
+    private static File capture(int n) throws IOException {
+        File f = File.createTempFile("replay", ".csv");
+        f.deleteOnExit();
+
+        try (FileWriter w = new FileWriter(f)) {
+            w.write("timestamp_ns,x,y\n");
+            for (int i = 0; i < n; i++)
+                w.write((1000 * MS + i * 10 * MS) + "," + i + "," + (-i) + "\n");
+        }
+        return f;
+    }
+
+    @Test
+    public void replaysAllEventsAndSignalsTheEnd() throws Exception {
+        ReplaySource s = new ReplaySource("acc", capture(100), 0);
+        assertEquals("acc", s.getName());
+        assertEquals(2, s.getNumChannels());
+
+        Events e = new Events();
+        s.start(e, 10000);
+        s.join();
+
+        assertEquals(100, s.getNumEvents());
+        assertEquals(100, e.timestamps.size());
+        assertEquals(1, e.flushes);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1000 * MS + i * 10 * MS, (long) e.timestamps.get(i));
+            assertArrayEquals(new float[] { i, -i }, e.values.get(i), 0);
+        }
+        assertEquals(1000 * MS + 99 * 10 * MS, s.now());
+    }
+
+    @Test
+    public void pacesEventsAtTheGivenSpeed() throws Exception {
+        /* 200 ms of events at twice the real time */
+        ReplaySource s = new ReplaySource("acc", capture(21), 2);
+
+        long start = System.nanoTime();
+        s.start(new Events(), 10000);
+        s.join();
+
+        assertEquals(21, s.getNumEvents());
+        assertTrue(System.nanoTime() - start >= 100 * MS);
+    }
+
+    @Test
+    public void stopsWithoutFurtherCallbacks() throws Exception {
+        ReplaySource s = new ReplaySource("acc", capture(1000), 1);
+
+        Events e = new Events();
+        s.start(e, 10000);
+        s.stop();
+        s.join();
+
+        assertTrue(s.getNumEvents() < 1000);
+        assertEquals(0, e.flushes);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyCaptures() throws Exception {
+        new ReplaySource("acc", capture(0), 0);
+    }
+}
@@ -0,0 +1,230 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RingDrainerTest {
+    /** runs the drainer by hand instead of periodically */
+    private static class ManualScheduler implements RingDrainer.Scheduler {
+        final ArrayList<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable r, long delayMS) {
+            tasks.add(r);
+        }
+
+        void runOnce() {
+            ArrayList<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable r : due)
+                r.run();
+        }
+    }
+
+    @Test
+    public void spillsWhileStalledAndReplaysInOrder() throws Exception {
+        final long[] queued = { 1000 };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        File dir = Files.createTempDirectory("spill").toFile();
+
+        SampleRing ring = new SampleRing(1, 64);
+        RingDrainer d = new RingDrainer(1, 1)
+                .add("acc", ring, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return Channels.newChannel(out);
+                    }
+                })
+                .setBackpressure(new RingDrainer.Backlog() {
+                    @Override
+                    public long getQueuedBytes() {
+                        return queued[0];
+                    }
+                }, 100, dir, 1024 * 1024);
+
+        ManualScheduler s = new ManualScheduler();
+        d.start(s);
+
+        /* the encoder is stalled, so everything ends up in the journal and not in the ring */
+        for (int i = 0; i < 50; i++)
+            assertTrue(ring.offer(new float[] { i }));
+        s.runOnce();
+        assertEquals(0, out.size());
+        assertEquals(0, ring.available());
+        assertEquals(50 * 4, d.getSpilledBytes());
+
+        /* newer frames go behind the spilled ones, even while there is some room again */
+        queued[0] = 90;
+        for (int i = 50; i < 60; i++)
+            assertTrue(ring.offer(new float[] { i }));
+        ring.close();
+        s.runOnce();
+        assertEquals(0, out.size());
+
+        /* once caught up, the journal is replayed in steps of the free queue */
+        queued[0] = 0;
+        for (int i = 0; i < 10 && !s.tasks.isEmpty(); i++)
+            s.runOnce();
+        d.join();
+
+        ByteBuffer b = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        assertEquals(60 * 4, b.remaining());
+        for (int i = 0; i < 60; i++)
+            assertEquals(i, b.getFloat(), 0);
+
+        String[] left = dir.list();
+        assertNotNull(left);
+        assertEquals(0, left.length);
+        dir.delete();
+    }
+
+    @Test
+    public void writesWholeFramesOfTheFreeQueue() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        SampleRing ring = new SampleRing(3, 64);
+        RingDrainer d = new RingDrainer(1, 1)
+                .add("gyro", ring, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return Channels.newChannel(out);
+                    }
+                })
+                .setBackpressure(new RingDrainer.Backlog() {
+                    @Override
+                    public long getQueuedBytes() {
+                        return out.size();
+                    }
+                }, 100, null, 0);
+
+        ManualScheduler s = new ManualScheduler();
+        d.start(s);
+
+        /* without a spill dir, what does not fit waits in the ring */
+        for (int i = 0; i < 20; i++)
+            assertTrue(ring.offer(new float[] { i, i, i }));
+        s.runOnce();
+        assertEquals(8 * 12, out.size());
+        assertEquals(12, ring.available());
+        assertEquals(0, d.getSpilledBytes());
+    }
+
+    @Test
+    public void callsTheFirstWriteCallbackOnce() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicInteger calls = new AtomicInteger();
+
+        SampleRing ring = new SampleRing(1, 64);
+        RingDrainer d = new RingDrainer(1, 1)
+                .add("light", ring, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return Channels.newChannel(out);
+                    }
+                })
+                .setFirstWriteCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        calls.incrementAndGet();
+                    }
+                });
+
+        ManualScheduler s = new ManualScheduler();
+        d.start(s);
+
+        /* nothing is written yet */
+        s.runOnce();
+        assertEquals(0, calls.get());
+
+        assertTrue(ring.offer(new float[] { 1 }));
+        s.runOnce();
+        assertEquals(4, out.size());
+        assertEquals(1, calls.get());
+
+        assertTrue(ring.offer(new float[] { 2 }));
+        ring.close();
+        for (int i = 0; i < 10 && !s.tasks.isEmpty(); i++)
+            s.runOnce();
+        d.join();
+        assertEquals(8, out.size());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void countsSpilledFramesAsWrittenOnlyOnceReplayed() throws Exception {
+        final long[] queued = { 1000 }, now = { 0 };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        File dir = Files.createTempDirectory("spill").toFile();
+
+        SampleRing ring = new SampleRing(1, 64);
+        StreamMetrics m = new StreamMetrics("acc", ring, new StreamMetrics.Clock() {
+            @Override
+            public long nanos() {
+                return now[0];
+            }
+        });
+        RingDrainer d = new RingDrainer(1, 1)
+                .add("acc", ring, new RingDrainer.Opener() {
+                    @Override
+                    public WritableByteChannel open() throws IOException {
+                        return Channels.newChannel(out);
+                    }
+                })
+                .setBackpressure(new RingDrainer.Backlog() {
+                    @Override
+                    public long getQueuedBytes() {
+                        return queued[0];
+                    }
+                }, 100, dir, 1024 * 1024);
+
+        ManualScheduler s = new ManualScheduler();
+        d.start(s);
+
+        /* sampled at 0..29, spilled at 100 */
+        for (int i = 0; i < 30; i++)
+            assertTrue(ring.offer(new float[] { i }, i));
+        now[0] = 100;
+        s.runOnce();
+        assertEquals(30, m.getFramesSpilled());
+        assertEquals(0, m.getFramesWritten());
+        assertEquals(0, m.getLatencyNS().getCount());
+
+        /* ten frames sampled at 990..999 go behind them, all are replayed at 1000 */
+        for (int i = 0; i < 10; i++)
+            assertTrue(ring.offer(new float[] { 30 + i }, 990 + i));
+        ring.close();
+        queued[0] = 0;
+        now[0] = 1000;
+        for (int i = 0; i < 10 && !s.tasks.isEmpty(); i++)
+            s.runOnce();
+        d.join();
+
+        assertEquals(40 * 4, out.size());
+        assertEquals(40, m.getFramesSpilled());
+        assertEquals(40, m.getFramesReplayed());
+        assertEquals(40, m.getFramesWritten());
+        assertEquals(40 * 4, m.getBytesWritten());
+
+        Log2Histogram latency = m.getLatencyNS();
+        assertEquals(40, latency.getCount());
+        assertEquals(1000, latency.getMax());
+        assertEquals(30 * 1000 - 29 * 30 / 2 + 10 * 10 - 9 * 10 / 2, latency.getSum());
+
+        String[] left = dir.list();
+        assertNotNull(left);
+        assertEquals(0, left.length);
+        dir.delete();
+    }
+}
@@ -0,0 +1,75 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class SampleHoldTest {
+    private static final long PERIOD = 1000;
+
+    private static class Events implements SampleSource.Listener {
+        final ArrayList<Long> timestamps = new ArrayList<>();
+        final ArrayList<Float> values = new ArrayList<>();
+
+        @Override
+        public void onSample(long timestampNS, float[] v) {
+            timestamps.add(timestampNS);
+            values.add(v[0]);
+        }
+
+        @Override
+        public void onFlushCompleted() {}
+    }
+
+    @Test
+    public void dropsDuplicatesOfBothListeners() {
+        Events e = new Events();
+        SampleHold hold = new SampleHold(e);
+
+        assertTrue(hold.onEvent(100, new float[] { 1 }));
+        assertFalse(hold.onEvent(100, new float[] { 1 }));
+        assertFalse(hold.onEvent(50, new float[] { 0 }));
+        assertTrue(hold.onEvent(200, new float[] { 2 }));
+        assertEquals(2, e.timestamps.size());
+    }
+
+    @Test
+    public void repeatsOncePerPeriodWithoutEvents() {
+        Events e = new Events();
+        SampleHold hold = new SampleHold(e);
+
+        /* nothing to repeat yet */
+        assertFalse(hold.repeat(PERIOD, PERIOD));
+
+        hold.onEvent(100, new float[] { 7 });
+        assertFalse(hold.repeat(100 + PERIOD / 2, PERIOD));
+        assertTrue(hold.repeat(100 + PERIOD, PERIOD));
+        assertFalse(hold.repeat(100 + PERIOD + PERIOD / 2, PERIOD));
+        assertTrue(hold.repeat(100 + 2 * PERIOD, PERIOD));
+
+        assertEquals(3, e.values.size());
+        assertEquals(7, e.values.get(2), 0);
+    }
+
+    @Test
+    public void keepsLateBatchedEventsAfterRepeats() {
+        Events e = new Events();
+        SampleHold hold = new SampleHold(e);
+
+        hold.onEvent(0, new float[] { 1 });
+        assertTrue(hold.repeat(PERIOD, PERIOD));
+        assertTrue(hold.repeat(2 * PERIOD, PERIOD));
+
+        /* a change from the hardware FIFO arrives after the repeats, but happened before */
+        assertTrue(hold.onEvent(PERIOD + 10, new float[] { 2 }));
+        assertFalse(hold.onEvent(PERIOD + 10, new float[] { 2 }));
+        assertEquals(4, e.timestamps.size());
+        assertEquals(2, e.values.get(3), 0);
+
+        /* and the new value is what is repeated next */
+        assertTrue(hold.repeat(3 * PERIOD, PERIOD));
+        assertEquals(2, e.values.get(4), 0);
+    }
+}
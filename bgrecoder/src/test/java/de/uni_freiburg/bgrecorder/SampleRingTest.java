@@ -0,0 +1,172 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class SampleRingTest {
+    @Test
+    public void drainsFramesInOrderAcrossWrapAround() throws Exception {
+        SampleRing ring = new SampleRing(2, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(ring.offer(new float[] {i, -i}));
+        assertEquals(3 * 8, ring.drainTo(Channels.newChannel(out), 16));
+        out.reset();
+
+        /* the next three frames wrap around the end of the storage */
+        for (int i = 3; i < 6; i++)
+            assertTrue(ring.offer(new float[] {i, -i}));
+        assertEquals(3 * 8, ring.drainTo(Channels.newChannel(out), 16));
+
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        for (int i = 3; i < 6; i++) {
+            assertEquals(i, bb.getFloat(), 0.f);
+            assertEquals(-i, bb.getFloat(), 0.f);
+        }
+    }
+
+    @Test
+    public void limitsFramesPerDrain() throws Exception {
+        SampleRing ring = new SampleRing(1, 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 5; i++)
+            ring.offer(new float[] {i});
+
+        assertEquals(2 * 4, ring.drainTo(Channels.newChannel(out), 2));
+        assertEquals(3, ring.available());
+    }
+
+    @Test
+    public void countsOverflowsAndHighWaterMark() throws Exception {
+        SampleRing ring = new SampleRing(1, 2);
+
+        assertTrue(ring.offer(new float[] {1}));
+        assertTrue(ring.offer(new float[] {2}));
+        assertFalse(ring.offer(new float[] {3}));
+
+        assertEquals(1, ring.getOverflows());
+        assertEquals(2, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void padsShortFramesAndRejectsAfterClose() throws Exception {
+        SampleRing ring = new SampleRing(3, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(ring.offer(new float[] {7}));
+        ring.close();
+        assertFalse(ring.offer(new float[] {8}));
+        assertEquals(0, ring.getOverflows());
+
+        assertEquals(12, ring.drainTo(Channels.newChannel(out), 16));
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        assertEquals(7.f, bb.getFloat(), 0.f);
+        assertEquals(0.f, bb.getFloat(), 0.f);
+        assertEquals(0.f, bb.getFloat(), 0.f);
+    }
+
+    @Test
+    public void quantizesToScaledShortsAndClips() throws Exception {
+        float scale = 9.81f / 2048;
+        SampleRing ring = new SampleRing(3, 2, false, scale);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(6, ring.getFrameSize());
+        assertTrue(ring.offer(new float[] {9.81f, -37 * scale, 1e6f}));
+
+        assertEquals(6, ring.drainTo(Channels.newChannel(out), 16));
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        assertEquals(2048, bb.getShort());
+        assertEquals(-37, bb.getShort());
+        assertEquals(Short.MAX_VALUE, bb.getShort());
+    }
+
+    @Test
+    public void appendsPackedFramesInBulk() throws Exception {
+        SampleRing ring = new SampleRing(1, 4, false, 1.f / 32768);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer pcm = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+
+        /* three whole frames and half of a fourth one */
+        pcm.putShort((short) 1).putShort((short) 2).putShort((short) 3).put((byte) 4).flip();
+        assertEquals(3, ring.offer(pcm, 100));
+        assertFalse(pcm.hasRemaining());
+        assertEquals(3 * 2, ring.drainTo(Channels.newChannel(out), 16));
+
+        /* wraps around the end of the storage, and the last two frames do not fit */
+        pcm.clear();
+        for (int i = 4; i < 10; i++)
+            pcm.putShort((short) i);
+        pcm.flip();
+        assertEquals(4, ring.offer(pcm, 200));
+        assertEquals(2, ring.getOverflows());
+        assertEquals(4, ring.getHighWaterMark());
+
+        out.reset();
+        assertEquals(4 * 2, ring.drainTo(Channels.newChannel(out), 16));
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        for (int i = 4; i < 8; i++)
+            assertEquals(i, bb.getShort());
+
+        ring.close();
+        pcm.clear();
+        assertEquals(0, ring.offer(pcm, 300));
+        assertFalse(pcm.hasRemaining());
+        assertEquals(2, ring.getOverflows());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsBulkFramesForTimestampedRings() {
+        new SampleRing(1, 4, true).offer(ByteBuffer.allocate(12), -1);
+    }
+
+    @Test
+    public void keepsTheFramesTheChannelDoesNotTake() throws Exception {
+        SampleRing ring = new SampleRing(1, 8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] room = { 8 };
+
+        /* takes two bytes at a time, up to its room */
+        WritableByteChannel ch = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = Math.min(Math.min(2, room[0]), src.remaining());
+                for (int i = 0; i < n; i++)
+                    out.write(src.get());
+                room[0] -= n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(ring.offer(new float[] { i }));
+
+        /* the frames that were not taken stay in the ring */
+        assertEquals(2 * 4, ring.drainTo(ch, 8));
+        assertEquals(3, ring.available());
+
+        room[0] = 100;
+        assertEquals(3 * 4, ring.drainTo(ch, 8));
+        ByteBuffer bb = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 5; i++)
+            assertEquals(i, bb.getFloat(), 0.f);
+    }
+}
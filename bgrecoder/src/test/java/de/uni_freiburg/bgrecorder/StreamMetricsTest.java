@@ -0,0 +1,103 @@
+package de.uni_freiburg.bgrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StreamMetricsTest {
+    /** a clock that only moves when told to */
+    private static class ManualClock implements StreamMetrics.Clock {
+        long now = 0;
+
+        @Override
+        public long nanos() {
+            return now;
+        }
+    }
+
+    @Test
+    public void countsEventsAndSamples() {
+        SampleRing ring = new SampleRing(1, 4);
+        StreamMetrics m = new StreamMetrics("acc", ring, new ManualClock());
+
+        m.onEvent(1);
+        m.onEvent(3);
+        m.onEvent(0);
+        for (int i = 0; i < 4; i++)
+            m.onSample();
+
+        assertEquals(3, m.getEvents());
+        assertEquals(2, m.getDuplicated());
+        assertEquals(1, m.getDropped());
+        assertEquals(4, m.getSamples());
+    }
+
+    @Test
+    public void reportsOverflowsAndTheHighWaterMarkOfTheRing() {
+        SampleRing ring = new SampleRing(1, 4);
+        StreamMetrics m = new StreamMetrics("acc", ring, new ManualClock());
+
+        for (int i = 0; i < 6; i++)
+            ring.offer(new float[] { i });
+
+        assertEquals(2, m.getOverflows());
+        assertEquals(4, m.getHighWaterMark());
+    }
+
+    @Test
+    public void measuresLatencyFromTheRingTimestamps() throws Exception {
+        ManualClock clock = new ManualClock();
+        SampleRing ring = new SampleRing(2, 8);
+        StreamMetrics m = new StreamMetrics("gyro", ring, clock);
+        WritableByteChannel out = Channels.newChannel(new ByteArrayOutputStream());
+
+        /* sampled at 100, 200 and 300, one without a timestamp, written at 1100 */
+        ring.offer(new float[] { 1, 1 }, 100);
+        ring.offer(new float[] { 2, 2 }, 200);
+        ring.offer(new float[] { 3, 3 }, 300);
+        ring.offer(new float[] { 4, 4 });
+        clock.now = 1100;
+        ring.drainTo(out, 8);
+
+        assertEquals(4, m.getFramesWritten());
+        assertEquals(4 * 8, m.getBytesWritten());
+        assertEquals(1, m.getStallNS().getCount());
+
+        Log2Histogram latency = m.getLatencyNS();
+        assertEquals(3, latency.getCount());
+        assertEquals(1000 + 900 + 800, latency.getSum());
+        assertEquals(1000, latency.getMax());
+
+        /* the timestamps of a wrapped around ring belong to the right frames */
+        for (int i = 0; i < 6; i++)
+            ring.offer(new float[] { i, i }, 2000 + i);
+        clock.now = 3000;
+        ring.drainTo(out, 8);
+
+        assertEquals(10, m.getFramesWritten());
+        assertEquals(9, latency.getCount());
+        assertEquals(2700 + 6 * 1000 - 15, latency.getSum());
+    }
+
+    @Test
+    public void writesAllValuesAsTags() {
+        SampleRing ring = new SampleRing(1, 4);
+        StreamMetrics m = new StreamMetrics("light", ring, new ManualClock());
+        m.onEvent(2);
+
+        Map<String, String> tags = new HashMap<>();
+        m.toTags(tags);
+
+        assertEquals("1", tags.get("light.events"));
+        assertEquals("1", tags.get("light.duplicated"));
+        assertEquals("0", tags.get("light.frames_written"));
+        assertNotNull(tags.get("light.latency_ns"));
+        assertNotNull(tags.get("light.write_stall_ns"));
+    }
+}
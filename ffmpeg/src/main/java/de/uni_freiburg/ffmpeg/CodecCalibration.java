@@ -0,0 +1,296 @@
+package de.uni_freiburg.ffmpeg;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the cost of the candidate codecs for sensor streams on this device, by encoding a
+ * synthetic sensor recording with each of them through an FFMpegProcess. For every codec the
+ * CPU time of ffmpeg (from its -benchmark report) and the compression ratio are recorded, and
+ * choose() picks the codec that fits a CPU or storage budget.
+ *
+ * The results are cached in the shared preferences together with the build fingerprint of the
+ * device, so the calibration is only repeated after a system update.
+ */
+public class CodecCalibration {
+    private static final String PREFS = "CodecCalibration";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    /* the synthetic recording, a three-axis accelerometer */
+    private static final double RATE = 200.;
+    private static final int CHANNELS = 3;
+    private static final double SECONDS = 600.;
+    private static final long SEED = 0x5e5502L;
+
+    /* codec and its options, flac has no float support and is only a candidate for s16 */
+    private static final String[][] FLOAT_CANDIDATES = {
+            { "pcm_f32le" },
+            { "wavpack", "-compression_level", "0" },
+            { "wavpack" },
+            { "wavpack", "-compression_level", "3" },
+    };
+    private static final String[][] S16_CANDIDATES = {
+            { "pcm_s16le" },
+            { "flac", "-compression_level", "0" },
+            { "flac" },
+            { "wavpack" },
+    };
+
+    private static final Pattern BENCH =
+            Pattern.compile("bench: utime=([0-9.]+)s stime=([0-9.]+)s");
+
+    /** the measured cost of one codec. */
+    public static class Result {
+        /** the codec, followed by its output options */
+        public final String[] codec;
+        /** CPU seconds spent per MB of raw input */
+        public final double cpuPerMB;
+        /** size of the output relative to the raw input */
+        public final double ratio;
+
+        public Result(String[] codec, double cpuPerMB, double ratio) {
+            this.codec = codec;
+            this.cpuPerMB = cpuPerMB;
+            this.ratio = ratio;
+        }
+
+        /** @return the codec name, without options */
+        public String getCodec() {
+            return codec[0];
+        }
+
+        /** @return the output options of the codec */
+        public String[] getOptions() {
+            return Arrays.copyOfRange(codec, 1, codec.length);
+        }
+
+        /** @return the fraction of one core needed to encode the given input byte rate */
+        public double getCpuLoad(double bytesPerSecond) {
+            return cpuPerMB * bytesPerSecond / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            for (String s : codec)
+                b.append(s).append(' ');
+            return b.append(String.format(Locale.US, "%.4fs/MB %.3f", cpuPerMB, ratio)).toString();
+        }
+
+        static Result parse(String s) {
+            String[] parts = s.trim().split(" ");
+            if (parts.length < 3 || !parts[parts.length - 2].endsWith("s/MB"))
+                throw new IllegalArgumentException("not a calibration result: " + s);
+
+            String cpu = parts[parts.length - 2];
+            return new Result(
+                    Arrays.copyOfRange(parts, 0, parts.length - 2),
+                    Double.parseDouble(cpu.substring(0, cpu.length() - 4)),
+                    Double.parseDouble(parts[parts.length - 1]));
+        }
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public CodecCalibration(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+
+        if (!fingerprint().equals(mPrefs.getString(KEY_FINGERPRINT, null)))
+            mPrefs.edit().clear().putString(KEY_FINGERPRINT, fingerprint()).apply();
+    }
+
+    /** @return the cached results for the given input format, or null if not calibrated yet */
+    public List<Result> getCached(String format) {
+        String s = mPrefs.getString("results_" + format, null);
+        if (s == null)
+            return null;
+
+        ArrayList<Result> results = new ArrayList<>();
+        try {
+            for (String line : s.split("\n"))
+                results.add(Result.parse(line));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return results;
+    }
+
+    /** @return the cached results for the format, after calibrating it if necessary. This
+     * takes several seconds and must not be called on the main thread. */
+    public List<Result> calibrate(String format) throws Exception {
+        List<Result> results = getCached(format);
+        if (results != null)
+            return results;
+
+        results = new ArrayList<>();
+        File input = File.createTempFile("calibration", "." + format, mContext.getCacheDir());
+        try {
+            writeInput(input, format);
+
+            for (String[] candidate : candidates(format))
+                try {
+                    results.add(measure(input, format, candidate));
+                } catch (Exception e) {
+                    System.err.println("calibration failed for " + candidate[0] + ": " + e);
+                }
+        } finally {
+            input.delete();
+        }
+
+        if (results.isEmpty())
+            throw new Exception("no codec could be calibrated for " + format);
+
+        StringBuilder b = new StringBuilder();
+        for (Result r : results)
+            b.append(r).append('\n');
+        mPrefs.edit().putString("results_" + format, b.toString()).apply();
+
+        return results;
+    }
+
+    /**
+     * pick the codec for a recording. With a storage budget the cheapest codec that compresses
+     * well enough is chosen, otherwise the one that compresses best within the CPU budget. If
+     * no codec fits, the cheapest one is chosen.
+     *
+     * @param results        calibration results to choose from
+     * @param bytesPerSecond raw input rate of the recording
+     * @param cpuBudget      fraction of one core that may be spent on encoding, 0 for no limit
+     * @param storageBudget  maximum compression ratio, 0 for no limit
+     * @return the chosen result
+     */
+    public static Result choose(List<Result> results, double bytesPerSecond,
+                                double cpuBudget, double storageBudget) {
+        Result best = null, cheapest = null;
+
+        for (Result r : results) {
+            if (cheapest == null || r.cpuPerMB < cheapest.cpuPerMB)
+                cheapest = r;
+
+            if (cpuBudget > 0 && r.getCpuLoad(bytesPerSecond) > cpuBudget)
+                continue;
+            if (storageBudget > 0 && r.ratio > storageBudget)
+                continue;
+
+            if (best == null ||
+                (storageBudget > 0 ? r.cpuPerMB < best.cpuPerMB : r.ratio < best.ratio))
+                best = r;
+        }
+
+        return best != null ? best : cheapest;
+    }
+
+    /**
+     * @return the results of the codecs that also store float samples as they are. A single
+     * codec is applied to all tracks, so recordings that mix s16 and float tracks must not use
+     * e.g. flac, which converts floats to integers and thereby clips them to +-1.
+     */
+    public static List<Result> withFloatSupport(List<Result> results) {
+        ArrayList<Result> supported = new ArrayList<>();
+        for (Result r : results)
+            for (String[] candidate : FLOAT_CANDIDATES)
+                if (candidate[0].equals(r.getCodec())) {
+                    supported.add(r);
+                    break;
+                }
+        return supported;
+    }
+
+    static String[][] candidates(String format) {
+        return format.startsWith("s16") ? S16_CANDIDATES : FLOAT_CANDIDATES;
+    }
+
+    private Result measure(File input, String format, String[] codec) throws Exception {
+        File output = File.createTempFile("calibration", ".mkv", mContext.getCacheDir());
+
+        try {
+            FFMpegProcess.Builder b = new FFMpegProcess.Builder(mContext)
+                    .setProgressListener(null, 50)
+                    .addInputArgument("-f", format)
+                    .addInputArgument("-ar", Double.toString(RATE))
+                    .addInputArgument("-ac", Integer.toString(CHANNELS))
+                    .addInputArgument("-i", input.getAbsolutePath())
+                    .setCodec("a", codec[0]);
+
+            for (int i = 1; i + 1 < codec.length; i += 2)
+                b.addOutputArgument(codec[i], codec[i + 1]);
+
+            long start = System.nanoTime();
+            FFMpegProcess p = b
+                    .addOutputArgument("-benchmark")
+                    .setOutput(output.getAbsolutePath(), "matroska")
+                    .build();
+
+            int code = p.waitFor();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (code != 0)
+                throw new IOException("ffmpeg exited with " + code + ": " + p.getRecentLog());
+
+            /* prefer the CPU time reported by ffmpeg, the wall time includes its start-up */
+            for (String line : p.getRecentLog()) {
+                Matcher m = BENCH.matcher(line);
+                if (m.find())
+                    seconds = Double.parseDouble(m.group(1)) + Double.parseDouble(m.group(2));
+            }
+
+            return new Result(codec, seconds / (input.length() / 1e6),
+                    (double) output.length() / input.length());
+        } finally {
+            output.delete();
+        }
+    }
+
+    /** write a synthetic accelerometer recording: gravity, slow movement, a periodic gait-like
+     * component and sensor noise, quantized like a typical 16-bit sensor. */
+    private static void writeInput(File file, String format) throws IOException {
+        boolean s16 = format.startsWith("s16");
+        int samples = (int) (RATE * SECONDS);
+        ByteBuffer b = ByteBuffer.allocate(samples * CHANNELS * (s16 ? 2 : 4))
+                .order(format.endsWith("be") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(SEED);
+        double lsb = 16 * 9.81 / 32768;
+
+        for (int i = 0; i < samples; i++) {
+            double t = i / RATE;
+            for (int c = 0; c < CHANNELS; c++) {
+                double v = (c == 2 ? 9.81 : 0)
+                        + .5 * Math.sin(2 * Math.PI * .05 * t + c)
+                        + 2. * Math.sin(2 * Math.PI * 1.8 * t + 2 * c)
+                        + .05 * random.nextGaussian();
+                v = Math.round(v / lsb) * lsb;
+
+                if (s16)
+                    b.putShort((short) Math.round(v / lsb));
+                else
+                    b.putFloat((float) v);
+            }
+        }
+
+        b.flip();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            while (b.hasRemaining())
+                out.getChannel().write(b);
+        }
+    }
+
+    private static String fingerprint() {
+        return Build.FINGERPRINT == null ? "" : Build.FINGERPRINT;
+    }
+}
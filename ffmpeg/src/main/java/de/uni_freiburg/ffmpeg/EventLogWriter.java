@@ -0,0 +1,319 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes streams of timestamped sensor events into a compact binary event log, without
+ * resampling them. Every event keeps its original timestamp, which is delta-encoded against
+ * the previous event of the same block, so that a regular stream costs one or two bytes per
+ * timestamp.
+ *
+ * Each stream is fed through its own GatheringByteChannel, which accepts whole frames in the
+ * layout of a timestamped SampleRing: the timestamp in ns as a native-order int64, followed by
+ * the values as native-order floats. Every write becomes one or more blocks, and once all
+ * stream channels are closed the output is closed.
+ *
+ * The log is a stream that is never seeked back to, all numbers are little-endian:
+ * <pre>
+ *   header   MAGIC, tags, u8 number of streams, and for each stream:
+ *            u8 channels, f64 nominal rate in Hz, tags
+ *   block    u32 size of the rest of the block, u8 stream (or TAGS_BLOCK), u32 number of
+ *            events, i64 timestamp of the first event in ns, and for each event:
+ *            the zigzag varint delta to the previous timestamp (0 for the first one), followed
+ *            by one f32 per channel
+ *   tags     u16 count, and each tag as two strings
+ *   string   u16 length, followed by that many bytes of UTF-8
+ * </pre>
+ * A TAGS_BLOCK holds tags for the whole log instead of events, e.g. ones that are appended
+ * after the recording. A log that was cut off can be read up to its last complete block.
+ */
+public class EventLogWriter {
+    public static final byte[] MAGIC = { 'A', 'M', 'E', 'V', 'L', 'O', 'G', '1' };
+    public static final int TAGS_BLOCK = 0xFF;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK_EVENTS = 4096;
+    private static final int BLOCK_HEADER = 4 + 1 + 4 + 8;
+
+    private final WritableByteChannel mOut;
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    private final LinkedHashMap<String, String> mTags = new LinkedHashMap<>();
+    private ByteBuffer mBlock = ByteBuffer.allocate(0);
+
+    private boolean mStarted = false;
+    private boolean mClosed = false;
+    private int mOpenStreams = 0;
+
+    /**
+     * @param out the channel to write the log to, closed when all streams are closed
+     */
+    public EventLogWriter(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    /** add a stream, must be called before start().
+     *
+     * @param channels number of values per event
+     * @param rate     nominal event rate in Hz, for information only
+     * @return the index of the new stream
+     */
+    public int addStream(int channels, double rate) throws IOException {
+        if (mStarted)
+            throw new IOException("streams must be added before starting");
+        if (channels <= 0 || channels > 255)
+            throw new IOException("unsupported number of channels " + channels);
+
+        Stream s = new Stream(mStreams.size(), channels, rate);
+        mStreams.add(s);
+        mOpenStreams++;
+        return s.index;
+    }
+
+    /** set a tag for the whole log, must be called before start(). */
+    public EventLogWriter setTag(String key, String value) {
+        mTags.put(key, value);
+        return this;
+    }
+
+    /** set a tag for a stream, must be called before start(). */
+    public EventLogWriter setStreamTag(int stream, String key, String value) {
+        mStreams.get(stream).tags.put(key, value);
+        return this;
+    }
+
+    /** @return the channel that accepts timestamped frames for the given stream */
+    public GatheringByteChannel getStreamChannel(int stream) {
+        return mStreams.get(stream);
+    }
+
+    /** write the header with the stream layout and tags. */
+    public synchronized void start() throws IOException {
+        if (mStarted)
+            return;
+
+        int size = MAGIC.length + 1 + tagsSize(mTags);
+        for (Stream s : mStreams)
+            size += 1 + 8 + tagsSize(s.tags);
+
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(MAGIC);
+        putTags(b, mTags);
+        b.put((byte) mStreams.size());
+        for (Stream s : mStreams) {
+            b.put((byte) s.channels);
+            b.putDouble(s.rate);
+            putTags(b, s.tags);
+        }
+
+        b.flip();
+        writeFully(mOut, b);
+        mStarted = true;
+    }
+
+    /** close the output, this is done automatically once all streams are closed. */
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+
+        try {
+            start();
+        } finally {
+            mClosed = true;
+            notifyAll();
+            mOut.close();
+        }
+    }
+
+    /** block until the output has been closed. */
+    public synchronized void awaitClose() throws InterruptedException {
+        while (!mClosed)
+            wait();
+    }
+
+    /** append a TAGS_BLOCK to a finished log, e.g. to store statistics that are only known at
+     * the end of a recording. */
+    public static void appendTags(File file, Map<String, String> tags) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + tagsSize(tags)).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(b.capacity() - 4);
+        b.put((byte) TAGS_BLOCK);
+        putTags(b, tags);
+        b.flip();
+
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = f.getChannel();
+            ch.position(ch.size());
+            writeFully(ch, b);
+        }
+    }
+
+    private synchronized void streamClosed() throws IOException {
+        if (--mOpenStreams == 0)
+            close();
+    }
+
+    /** encode the frames of the given buffers into blocks and write them. */
+    private synchronized void writeEvents(Stream s, ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        if (mClosed)
+            throw new ClosedChannelException();
+        start();
+
+        int maxBlock = BLOCK_HEADER + BLOCK_EVENTS * (10 + 4 * s.channels);
+        if (mBlock.capacity() < maxBlock)
+            mBlock = ByteBuffer.allocate(maxBlock).order(ByteOrder.LITTLE_ENDIAN);
+
+        int events = 0;
+        long last = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer src = srcs[i];
+            ByteOrder order = src.order();
+            src.order(ByteOrder.nativeOrder());
+
+            try {
+                while (src.hasRemaining()) {
+                    long timestamp = src.getLong();
+
+                    if (events == 0) {
+                        mBlock.clear();
+                        mBlock.position(BLOCK_HEADER);
+                        last = timestamp;
+                        mBlock.putLong(BLOCK_HEADER - 8, timestamp);
+                    }
+
+                    putVarint(mBlock, zigzag(timestamp - last));
+                    for (int c = 0; c < s.channels; c++)
+                        mBlock.putFloat(src.getFloat());
+
+                    last = timestamp;
+                    if (++events == BLOCK_EVENTS) {
+                        writeBlock(s, events);
+                        events = 0;
+                    }
+                }
+            } finally {
+                src.order(order);
+            }
+        }
+
+        if (events > 0)
+            writeBlock(s, events);
+    }
+
+    private void writeBlock(Stream s, int events) throws IOException {
+        mBlock.putInt(0, mBlock.position() - 4);
+        mBlock.put(4, (byte) s.index);
+        mBlock.putInt(5, events);
+        mBlock.flip();
+        writeFully(mOut, mBlock);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static void putVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    private static int tagsSize(Map<String, String> tags) {
+        int size = 2;
+        for (Map.Entry<String, String> e : tags.entrySet())
+            size += 4 + e.getKey().getBytes(UTF8).length + e.getValue().getBytes(UTF8).length;
+        return size;
+    }
+
+    private static void putTags(ByteBuffer b, Map<String, String> tags) {
+        b.putShort((short) tags.size());
+        for (Map.Entry<String, String> e : tags.entrySet()) {
+            putString(b, e.getKey());
+            putString(b, e.getValue());
+        }
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] data = s.getBytes(UTF8);
+        b.putShort((short) data.length);
+        b.put(data);
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            ch.write(b);
+    }
+
+    private class Stream implements GatheringByteChannel {
+        final int index;
+        final int channels;
+        final double rate;
+        final int frameSize;
+        final LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+        final ByteBuffer[] single = new ByteBuffer[1];
+        boolean open = true;
+
+        Stream(int index, int channels, double rate) {
+            this.index = index;
+            this.channels = channels;
+            this.rate = rate;
+            this.frameSize = 8 + 4 * channels;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (srcs[i].remaining() % frameSize != 0)
+                    throw new IOException("writes must contain whole timestamped frames");
+                bytes += srcs[i].remaining();
+            }
+
+            if (bytes > 0)
+                writeEvents(this, srcs, offset, length);
+            return bytes;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            single[0] = src;
+            return (int) write(single, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open)
+                return;
+
+            open = false;
+            streamClosed();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A recorder backend that stores every sensor event with its original timestamp in an event
+ * log (see EventLogWriter), instead of sample streams at a fixed rate. Nothing is resampled on
+ * the device, so offline analysis can resample once at full precision.
+ *
+ * The streams must be fed with timestamped frames, i.e. from a timestamped SampleRing, and
+ * their values must be native-order floats.
+ */
+public class EventRecorder implements RecorderBackend {
+    protected final EventLogWriter mWriter;
+    protected final File mOutput;
+    protected final ConcurrentHashMap<Integer,OutputStream> mStreams = new ConcurrentHashMap<>();
+
+    protected EventRecorder(EventLogWriter writer, File output) {
+        mWriter = writer;
+        mOutput = output;
+    }
+
+    @Override
+    public GatheringByteChannel getChannel(int j) {
+        return mWriter.getStreamChannel(j);
+    }
+
+    @Override
+    public OutputStream getOutputStream(int j) {
+        OutputStream s = mStreams.get(j);
+        if (s == null) {
+            /* unbuffered, so that each write stays a block of whole frames */
+            OutputStream opened = mStreams.putIfAbsent(j,
+                    s = Channels.newOutputStream(mWriter.getStreamChannel(j)));
+            if (opened != null)
+                s = opened;
+        }
+        return s;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        mWriter.awaitClose();
+        return 0;
+    }
+
+    @Override
+    public int terminate() throws InterruptedException {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+        return waitFor();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return mOutput.length();
+    }
+
+    /** the output file is written synchronously, nothing is ever queued. */
+    @Override
+    public long getQueuedBytes() {
+        return 0;
+    }
+
+    @Override
+    public void appendTags(Map<String, String> tags) throws IOException {
+        EventLogWriter.appendTags(mOutput, tags);
+    }
+
+    public static class Builder implements RecorderBackend.Builder {
+        private final File mOutput;
+        private final LinkedHashMap<String, String> mTags = new LinkedHashMap<>();
+        private final LinkedList<Double> mRates = new LinkedList<>();
+        private final LinkedList<Integer> mChannels = new LinkedList<>();
+        private final LinkedList<Map<String, String>> mStreamTags = new LinkedList<>();
+
+        /**
+         * @param output the event log to write, will be overwritten
+         */
+        public Builder(File output) {
+            mOutput = output;
+        }
+
+        @Override
+        public Builder setTag(String key, String value) {
+            mTags.put(key, value);
+            return this;
+        }
+
+        /** add an event stream, the rate is only stored as the nominal rate of the stream. */
+        @Override
+        public Builder addAudio(String format, double rate, int channels) throws Exception {
+            String f32 = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "f32le" : "f32be";
+            if (!f32.equals(format))
+                throw new Exception("event logs only store " + f32 + " values, not " + format);
+
+            mRates.add(rate);
+            mChannels.add(channels);
+            mStreamTags.add(new LinkedHashMap<String, String>());
+            return this;
+        }
+
+        @Override
+        public Builder setStreamTag(String key, String value) throws Exception {
+            if (mStreamTags.isEmpty())
+                throw new Exception("no stream to apply tags to, please add one first");
+
+            mStreamTags.getLast().put(key, value);
+            return this;
+        }
+
+        @Override
+        public EventRecorder build() throws IOException {
+            FileOutputStream fos = new FileOutputStream(mOutput);
+            EventLogWriter w = new EventLogWriter(fos.getChannel());
+
+            for (Map.Entry<String, String> e : mTags.entrySet())
+                w.setTag(e.getKey(), e.getValue());
+
+            for (int i = 0; i < mRates.size(); i++) {
+                int s = w.addStream(mChannels.get(i), mRates.get(i));
+                for (Map.Entry<String, String> e : mStreamTags.get(i).entrySet())
+                    w.setStreamTag(s, e.getKey(), e.getValue());
+            }
+
+            w.start();
+            return new EventRecorder(w, mOutput);
+        }
+    }
+}
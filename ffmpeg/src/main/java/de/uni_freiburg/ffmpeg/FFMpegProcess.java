@@ -1,94 +1,325 @@
 package de.uni_freiburg.ffmpeg;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
  * This is a wrapper for FFMpeg that allows to run ffmpeg executable and returns Process
  * object to interact with the running process. Data with ffmpeg can be exchanged via named
  * pipes which are created with addPipedInput(). The connected OutputStream which writes to
- * ffmpeg can be obtained with getOutputStream().
+ * ffmpeg can be obtained with getOutputStream(), or alternatively an unbuffered channel with
+ * getChannel(), which allows to write whole batches of data with a single gather write.
+ *
+ * Alternatively, all audio inputs can be multiplexed into a single Matroska stream that is fed
+ * to ffmpeg through its stdin (see Builder.setMultiplexed()). This needs only one pipe and one
+ * reader in ffmpeg regardless of the number of streams. getChannel() and getOutputStream() then
+ * return a channel for each track.
+ *
+ * All pipes of the process, its inputs as well as its stdout and stderr, are served by the
+ * shared IoSupervisor: inputs are written through non-blocking PipeOutboxes, which never block
+ * the writer, and the exit of the process is detected once it closes its stderr. No thread is
+ * started for a process.
+ *
+ * Since the multiplexed stream carries all tags and the track layout, the command line of such a
+ * process does not depend on the recording. A process can therefore be started ahead of time
+ * with Builder.buildStandby(), where it waits for its input, and later be taken over by a
+ * recording with Builder.useStandby(). This hides the process startup from the recording.
+ *
+ * By default the stderr output of ffmpeg is copied to System.err. With
+ * Builder.setProgressListener() ffmpeg instead reports its progress on stdout, which is parsed
+ * into FFMpegProgress reports, and only the last lines of stderr are kept in a LogRing.
+ *
+ * Several processes can run at the same time, e.g. two recordings or a recording and a
+ * transcode. A process is safe for concurrent use: the inputs can be opened and written from
+ * several threads, each input from one thread at a time. Running processes are listed by
+ * getSessions(), and getUsage() accounts the resources each one holds. Blocking work of the
+ * sessions runs on the bounded shared Workers.
  *
  * Created by phil on 8/26/16.
  */
-public class FFMpegProcess {
+public class FFMpegProcess implements RecorderBackend {
     protected Process p;
     protected LinkedList<File> mFiles = new LinkedList<>();
-    protected HashMap<Integer,OutputStream> mStreams = new HashMap<>();
-    protected FFMpegProcess.ExitCallback exit;
-    protected static final ExecutorService THREAD_POOL_EXECUTOR = Executors.newCachedThreadPool();
-    protected final AsyncTask<InputStream, Void, Void> verboseMonitor =
-        new AsyncTask<InputStream, Void, Void>() {
-        @Override
-        protected Void doInBackground(InputStream... ps) {
-            InputStream is = ps[0];
-
-            try {
-                byte buf[] = new byte[4096];
+    protected final ConcurrentHashMap<Integer,OutputStream> mStreams = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<Integer,PipeOutbox> mChannels = new ConcurrentHashMap<>();
+    /* every named pipe that was opened, whether through a stream or a channel */
+    protected final ConcurrentHashMap<Integer,PipeOutbox> mPipes = new ConcurrentHashMap<>();
+    /* the multiplexed input, null for named pipes */
+    protected volatile PipeOutbox mStdin = null;
+    protected MatroskaWriter mMuxer = null;
+    protected volatile FFMpegProcess.ExitCallback exit;
+    protected volatile boolean mTerminated = false;
+    protected final long mStartedMS = System.currentTimeMillis();
+    protected long mPipeTimeoutMs = 0;
+    protected String mSignature = null;
+    protected File mStandbyOutput = null;
+    protected File mOutput = null;
+    protected boolean mMatroskaOutput = false;
+    protected volatile ProgressListener mProgressListener = null;
+    protected volatile FFMpegProgress mProgress = null;
+    protected LogRing mLog = null;
+    protected final IoSupervisor mLoop;
+    protected final CountDownLatch mStderrClosed = new CountDownLatch(1);
+    private static final long RENAME_TIMEOUT_MS = 60 * 1000;
+    private static final long EXIT_POLL_MS = 10;
+    private static final long STDERR_TIMEOUT_MS = 5000;
+
+    /* all processes that have not exited yet */
+    private static final Set<FFMpegProcess> sSessions =
+            Collections.newSetFromMap(new ConcurrentHashMap<FFMpegProcess, Boolean>());
+
+    /** the resources held by a process, see getUsage(). */
+    public static class Usage {
+        /** number of open inputs, i.e. named pipes or the multiplexed stdin */
+        public final int pipes;
+        /** bytes written into the inputs so far, and the part ffmpeg has not read yet */
+        public final long bytesIn, queuedBytes;
+        /** size of the output */
+        public final long bytesOut;
+        /** time since the process was started */
+        public final long uptimeMS;
+
+        Usage(int pipes, long bytesIn, long queuedBytes, long bytesOut, long uptimeMS) {
+            this.pipes = pipes;
+            this.bytesIn = bytesIn;
+            this.queuedBytes = queuedBytes;
+            this.bytesOut = bytesOut;
+            this.uptimeMS = uptimeMS;
+        }
 
-                while(!isCancelled()) {
-                    int n = is.read(buf);
-                    if (n < 0) break;
-                    System.err.write(buf, 0, n);
-                }
-            } catch (IOException e) {}
-            return null;
-    }};
-    protected final AsyncTask<Process, Void, Void> exitMonitor = new AsyncTask<Process, Void, Void>() {
         @Override
-        protected Void doInBackground(Process... ps) {
-            Process p = ps[0];
-            try {
-                p.waitFor();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (exit != null)
-                exit.processDone();
-            return null;
-    }};
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d pipes, %d bytes in, %d queued, %d bytes out, up %.1f s",
+                    pipes, bytesIn, queuedBytes, bytesOut, uptimeMS / 1e3);
+        }
+    }
 
 
     protected FFMpegProcess(ProcessBuilder b, LinkedList<File> files) throws IOException {
+        this(b, files, 0);
+    }
+
+    /**
+     * @param logLines if larger than zero, ffmpeg was started with -progress pipe:1, which is
+     *                 parsed, and this many lines of stderr are kept in a LogRing
+     */
+    protected FFMpegProcess(ProcessBuilder b, LinkedList<File> files, int logLines) throws IOException {
+        mLoop = IoSupervisor.get();
         p = b.start();
         mFiles = files;
+        sSessions.add(this);
         System.err.println("executing " + b.command().toString());
-        verboseMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p.getErrorStream());
-        exitMonitor.executeOnExecutor(THREAD_POOL_EXECUTOR, p);
+
+        if (logLines > 0) {
+            mLog = new LogRing(logLines);
+            supervise(p.getInputStream(), new LineReader.Sink() {
+                final FFMpegProgress.Parser parser = new FFMpegProgress.Parser();
+
+                @Override
+                public void onLine(String line) {
+                    FFMpegProgress progress = parser.parse(line);
+                    if (progress == null)
+                        return;
+
+                    mProgress = progress;
+                    ProgressListener l = mProgressListener;
+                    if (l != null)
+                        l.onProgress(FFMpegProcess.this, progress);
+                }
+
+                @Override
+                public void onEnd() {}
+            });
+        }
+
+        supervise(p.getErrorStream(), new LineReader.Sink() {
+            @Override
+            public void onLine(String line) {
+                if (mLog != null)
+                    mLog.add(line);
+                else
+                    System.err.println(line);
+            }
+
+            @Override
+            public void onEnd() {
+                mStderrClosed.countDown();
+                awaitExit();
+            }
+        });
     }
 
+    /** read the given output of the process line by line on the supervisor. The runtime
+     * drains and closes the streams of a Process once it exits, which would take the last
+     * lines and leave an invalid descriptor that poll() ignores. So the supervisor reads a
+     * duplicate of the descriptor, and the stream itself is closed right away. */
+    private void supervise(InputStream is, LineReader.Sink sink) throws IOException {
+        FileDescriptor fd = IoSupervisor.getFD(is);
+        final FileDescriptor dup;
+        try {
+            if (fd == null || !fd.valid())
+                throw new IOException("unable to get the descriptor of " + is);
+            dup = Os.dup(fd);
+        } catch (ErrnoException | IOException e) {
+            p.destroy();
+            throw new IOException("unable to supervise " + is, e);
+        } finally {
+            is.close();
+        }
+
+        mLoop.register(new LineReader(dup, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    Os.close(dup);
+                } catch (ErrnoException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, sink));
+    }
+
+    /** ffmpeg closes its stderr only when exiting, so after that wait for its exit without
+     * blocking the supervisor, and run the exit callback. */
+    private void awaitExit() {
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isRunning()) {
+                    mLoop.schedule(this, EXIT_POLL_MS);
+                    return;
+                }
+
+                sSessions.remove(FFMpegProcess.this);
+                ExitCallback cb = exit;
+                if (cb != null)
+                    cb.processDone();
+            }
+        });
+    }
+
+    /** @return all processes that have been started and have not exited yet */
+    public static List<FFMpegProcess> getSessions() {
+        return new ArrayList<>(sSessions);
+    }
+
+    /** @return the resources this process holds right now */
+    public Usage getUsage() {
+        PipeOutbox stdin = mStdin;
+        int pipes = stdin != null ? 1 : 0;
+        long in = stdin != null ? stdin.getWritten() : 0,
+             queued = stdin != null ? stdin.getQueued() : 0;
+
+        for (PipeOutbox c : mPipes.values()) {
+            if (c.isOpen())
+                pipes++;
+            in += c.getWritten();
+            queued += c.getQueued();
+        }
+
+        return new Usage(pipes, in, queued, getBytesOut(),
+                System.currentTimeMillis() - mStartedMS);
+    }
+
+    /** @return the last progress report, or null if there is none (yet) */
+    public FFMpegProgress getProgress() {
+        return mProgress;
+    }
+
+    /** @return the last lines of ffmpeg's stderr, empty unless progress is monitored */
+    public List<String> getRecentLog() {
+        return mLog == null ? new LinkedList<String>() : mLog.getLines();
+    }
+
+    /** wait for the process to exit, after which its log and last progress are complete. If
+     * its stderr is held open beyond the exit, e.g. by a child, the log is left incomplete. */
+    @Override
     public int waitFor() throws InterruptedException {
-        return p.waitFor();
+        int result = p.waitFor();
+        if (!mStderrClosed.await(STDERR_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            System.err.println("ffmpeg exited, but its stderr is still open");
+        return result;
     }
 
+    /** @return the closed stderr of the process, which is read by the supervisor */
     public InputStream getErrorStream() { return p.getErrorStream();  }
 
+    @Override
     public int terminate() throws InterruptedException {
+        /* inputs that are opened concurrently see the flag, see getOutputStream() */
+        synchronized (mStreams) { mTerminated = true; }
+        synchronized (mChannels) { mTerminated = true; }
+
         for (OutputStream s : mStreams.values())
             try { s.close(); }
             catch (IOException e) {  }
 
-        int i = p.waitFor();
-        verboseMonitor.cancel(true);
-        return i;
+        for (PipeOutbox c : mChannels.values())
+            c.close();
+
+        if (mMuxer != null)
+            try { mMuxer.close(); }
+            catch (IOException e) {  }
+
+        return waitFor();
+    }
+
+    @Override
+    public long getBytesOut() {
+        File standby = mStandbyOutput, output = mOutput;
+        if (output != null && output.exists())
+            return output.length();
+        return standby != null ? standby.length() : 0;
+    }
+
+    /** @return the bytes queued in the pipes since ffmpeg did not read them yet */
+    @Override
+    public long getQueuedBytes() {
+        PipeOutbox stdin = mStdin;
+        long n = stdin != null ? stdin.getQueued() : 0;
+        for (PipeOutbox c : mPipes.values())
+            n += c.getQueued();
+        return n;
     }
 
+    /** only supported for Matroska output files, the tags are ignored otherwise. */
+    @Override
+    public void appendTags(Map<String, String> tags) throws IOException {
+        if (mOutput == null || !mMatroskaOutput)
+            return;
+
+        MatroskaWriter.appendTags(mOutput, tags);
+    }
+
+    /** @return the stdout of the process, closed when it is read by the supervisor */
     public InputStream getInputStream() {
         return p.getInputStream();
     }
@@ -97,41 +328,191 @@ public class FFMpegProcess {
         this.exit = cb;
     }
 
-    public OutputStream getOutputStream(int j) throws FileNotFoundException {
+    /** kill the process, e.g. a standby process that is not needed anymore. */
+    public void destroy() {
+        p.destroy();
+
+        if (mStandbyOutput != null)
+            mStandbyOutput.delete();
+    }
+
+    /** @return true if the process has not exited yet */
+    public boolean isRunning() {
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream(int j) throws IOException {
         OutputStream s = mStreams.get(j);
-        if (s == null) {
-            File f = mFiles.get(j);
-            FileOutputStream fos = new FileOutputStream(f);
-            f.delete();
-            mStreams.put(j, new BufferedOutputStream(fos));
+        if (s != null)
+            return s;
+
+        /* inputs are opened lazily from the threads of the streams, but only once */
+        synchronized (mStreams) {
+            s = mStreams.get(j);
+            if (s != null)
+                return s;
+            if (mTerminated)
+                throw new ClosedChannelException();
+
+            /* a muxed track takes each write as a block of whole frames, so it stays
+             * unbuffered, while a named pipe is a plain byte stream */
+            s = mMuxer != null ?
+                    Channels.newOutputStream(mMuxer.getTrackChannel(j)) :
+                    new BufferedOutputStream(Channels.newOutputStream(openPipe(j)));
+            mStreams.put(j, s);
+            return s;
+        }
+    }
+
+    /** get an unbuffered channel to the j-th piped input. Do not mix this with
+     * getOutputStream() for the same input.
+     *
+     * @param j index of the piped input
+     */
+    @Override
+    public GatheringByteChannel getChannel(int j) throws IOException {
+        if (mMuxer != null)
+            return mMuxer.getTrackChannel(j);
+
+        PipeOutbox c = mChannels.get(j);
+        if (c != null)
+            return c;
+
+        synchronized (mChannels) {
+            c = mChannels.get(j);
+            if (c == null) {
+                if (mTerminated)
+                    throw new ClosedChannelException();
+                c = openPipe(j);
+                mChannels.put(j, c);
+            }
+            return c;
+        }
+    }
+
+    /** open the j-th named pipe for writing. This never blocks: the pipe is opened by the
+     * supervisor once ffmpeg opens the reading end, and data is queued until then. If a pipe
+     * timeout is set and ffmpeg did not open the pipe in that time, writes fail with an
+     * IOException.
+     */
+    protected PipeOutbox openPipe(int j) {
+        PipeOutbox c = new PipeOutbox(mLoop, mFiles.get(j), mPipeTimeoutMs);
+        mPipes.put(j, c);
+        return c;
+    }
+
+    /** feed the multiplexed inputs through a Matroska stream on stdin of the process. */
+    protected void multiplex(LinkedList<Builder.MuxedInput> inputs, Map<String, String> tags)
+            throws IOException {
+        final OutputStream stdin = p.getOutputStream();
+        FileDescriptor fd = IoSupervisor.getFD(stdin);
+        if (fd == null)
+            throw new IOException("unable to get the descriptor of " + stdin);
+
+        mStdin = new PipeOutbox(mLoop, "stdin", fd, stdin);
+        mMuxer = new MatroskaWriter(mStdin, "FFMpegProcess");
+
+        for (Map.Entry<String, String> e : tags.entrySet())
+            mMuxer.setTag(e.getKey(), e.getValue());
+
+        for (Builder.MuxedInput in : inputs) {
+            int t = mMuxer.addAudioTrack(in.format, in.rate, in.channels);
+            for (Map.Entry<String, String> e : in.tags.entrySet())
+                mMuxer.setTrackTag(t, e.getKey(), e.getValue());
         }
-        return mStreams.get(j);
+    }
+
+    protected void setOutput(String path, String format) {
+        mOutput = path == null ? null : new File(path);
+        mMatroskaOutput = "matroska".equals(format);
+    }
+
+    /** take over a standby process for a recording. The header of the multiplexed stream is
+     * written right away, which makes ffmpeg create its output file. That file is then renamed
+     * to the actual output path.
+     */
+    protected void adopt(LinkedList<Builder.MuxedInput> inputs, Map<String, String> tags,
+                         final File output) throws IOException {
+        multiplex(inputs, tags);
+        mMuxer.start();
+
+        final File standby = mStandbyOutput;
+        final long deadline = System.currentTimeMillis() + RENAME_TIMEOUT_MS;
+        mStandbyOutput = null;
+
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!standby.exists() && isRunning() && System.currentTimeMillis() < deadline) {
+                    mLoop.schedule(this, 20);
+                    return;
+                }
+
+                if (!standby.renameTo(output))
+                    System.err.println("unable to rename " + standby + " to " + output);
+            }
+        });
     }
 
     /** This is a helper class to build what my common usages for the FFMpeg tool will be, feel
      * free to add additional stuff here. You can always add your own command line switches with
      * the addSwitch() function.
      */
-    public static class Builder {
+    public static class Builder implements RecorderBackend.Builder {
         LinkedList<String> inputopts = new LinkedList<String>(),
                           outputopts = new LinkedList<String>();
         LinkedList<File> mInputPipes = new LinkedList<>();
+        LinkedList<MuxedInput> mMuxedInputs = new LinkedList<>();
+
+        LinkedHashMap<String, String> mMuxedTags = new LinkedHashMap<>();
 
         int numinputs  = 0;
+        int numstreams = 0;
+        private boolean mMultiplexed = false;
+        private long mPipeTimeoutMs = 0;
+        private FFMpegProcess mStandby = null;
+        private ProgressListener mProgressListener = null;
+        private int mLogLines = 0;
         private String output_fmt;
         private String output;
+        private String mOutputPath;
         private Context mContext;
 
         public Builder(Context c) {
             mContext = c;
         }
 
+        /** multiplex all following audio inputs into a single Matroska stream, which is written
+         * to the stdin of ffmpeg. Only audio inputs can be multiplexed, and they should be the
+         * only inputs of this process. The tags are then also stored in that stream, so this
+         * must be called before setting any tags.
+         *
+         * @param multiplexed true to enable multiplexing
+         */
+        public Builder setMultiplexed(boolean multiplexed) {
+            mMultiplexed = multiplexed;
+            return this;
+        }
+
         /** add an audio stream to the ffmpeg input
          * @param format sample format, list them with ffmpeg -formats or documentation
          * @param rate   sample rate in Hz
          * @param channels number of channels
          */
+        @Override
         public Builder addAudio(String format, double rate, int channels) throws IOException, InterruptedException {
+            if (mMultiplexed) {
+                mMuxedInputs.add(new MuxedInput(format, rate, channels));
+                numstreams++;
+                return this;
+            }
+
             return
              addInputArgument("-f", format)
             .addInputArgument("-ar", new Double(rate).toString())
@@ -164,11 +545,17 @@ public class FFMpegProcess {
          * @param key name of tag to set
          * @param value value of the specified tag
          */
+        @Override
         public Builder setStreamTag(String key, String value) throws Exception {
-            if (numinputs == 0)
+            if (numstreams == 0)
                 throw new Exception("no stream to apply tags to, please add one first");
 
-            outputopts.add(String.format("-metadata:s:%d", numinputs-1));
+            if (mMultiplexed) {
+                mMuxedInputs.getLast().tags.put(key, value);
+                return this;
+            }
+
+            outputopts.add(String.format("-metadata:s:%d", numstreams-1));
             outputopts.add(String.format("%s=%s", key, value));
 
             return this;
@@ -179,7 +566,13 @@ public class FFMpegProcess {
          * @param key name of the tag
          * @param value value of the tag
          */
+        @Override
         public Builder setTag(String key, String value) {
+            if (mMultiplexed) {
+                mMuxedTags.put(key, value);
+                return this;
+            }
+
             outputopts.add("-metadata");
             outputopts.add(String.format("%s=%s", key, value));
 
@@ -192,10 +585,10 @@ public class FFMpegProcess {
          * @param codec set the codec to encode the output with
          */
         public Builder setStreamCodec(String codec) throws Exception {
-            if (numinputs == 0)
+            if (numstreams == 0)
                 throw new Exception("no stream to apply tags to, please add one first");
 
-            outputopts.add(String.format("-c:%d", numinputs-1));
+            outputopts.add(String.format("-c:%d", numstreams-1));
             outputopts.add(codec);
 
             return this;
@@ -249,8 +642,10 @@ public class FFMpegProcess {
             inputopts.add(option);
             inputopts.add(value);
 
-            if ("-i".equals(option))
+            if ("-i".equals(option)) {
                 numinputs++;
+                numstreams++;
+            }
 
             return this;
         }
@@ -264,19 +659,20 @@ public class FFMpegProcess {
             inputopts.add("-i");
             inputopts.add("async:file:"+f.getAbsolutePath());
 
-            /** create named pipe */
+            /** create named pipe, in-process instead of spawning mknod */
             f.delete();
-            Process p = new ProcessBuilder().command("mknod", f.getAbsolutePath(), "p").start();
-            int result = p.waitFor();
-
-            if (result != 0)
-                throw new IOException("mknod failed");
+            try {
+                Os.mkfifo(f.getAbsolutePath(), OsConstants.S_IRUSR | OsConstants.S_IWUSR);
+            } catch (ErrnoException e) {
+                throw new IOException("mkfifo failed", e);
+            }
 
             /** open and store for later use */
             f = new File(f.getAbsolutePath());
             f.deleteOnExit();
             mInputPipes.add( f );
             numinputs ++;
+            numstreams ++;
 
             return this;
         }
@@ -295,56 +691,179 @@ public class FFMpegProcess {
             this.output = new File(output).exists() && !output.startsWith("file:") ?
                           "file:"+output : output;
             this.output_fmt = format;
+            this.mOutputPath = output;
 
             Log.e("OUT", output + output_fmt);
             return this;
         }
 
+        /** abort opening a named pipe if ffmpeg did not open it within the given time.
+         *
+         * @param ms timeout in milliseconds, 0 to wait forever
+         */
+        public Builder setPipeTimeout(long ms) {
+            mPipeTimeoutMs = ms;
+            return this;
+        }
+
+        /** take over the given standby process in build() instead of starting a new one, if it
+         * is still running and was started with the same command line. Otherwise the standby
+         * process is destroyed.
+         *
+         * @param standby a process created with buildStandby(), may be null
+         */
+        public Builder useStandby(FFMpegProcess standby) {
+            mStandby = standby;
+            return this;
+        }
+
+        /** run ffmpeg with -progress on its stdout and report the parsed progress, instead of
+         * copying its stderr to System.err. Only the last lines of stderr are kept, see
+         * getRecentLog().
+         *
+         * @param l        receives the progress reports, may be null to only poll getProgress()
+         * @param logLines number of stderr lines to keep
+         */
+        public Builder setProgressListener(ProgressListener l, int logLines) {
+            mProgressListener = l;
+            mLogLines = Math.max(1, logLines);
+            return this;
+        }
+
         public Builder setLoglevel(String level) {
             outputopts.add("-loglevel");
             outputopts.add(level);
             return this;
         }
 
-        public FFMpegProcess build() throws IOException {
-            LinkedList<String> cmdline = new LinkedList<String>();
+        /** assemble the full command line with the given output. */
+        private LinkedList<String> commandLine(String out) {
+            LinkedList<String> cmdline = new LinkedList<String>(),
+                               outopts = new LinkedList<String>(outputopts);
             File dir = mContext.getFilesDir().getParentFile();
             File path = new File(new File(dir, "lib"), "libffmpeg.so");
+            int inputs = numinputs;
 
+            cmdline.add(path.toString());
+
+            if (mLogLines > 0) {
+                cmdline.add("-progress");
+                cmdline.add("pipe:1");
+                cmdline.add("-nostats");
+            }
+
+            cmdline.addAll(inputopts);
+
+            if (mMultiplexed) {
+                cmdline.add("-f");
+                cmdline.add("matroska");
+                cmdline.add("-i");
+                cmdline.add("pipe:0");
+                inputs++;
+            }
 
             boolean hasmap = false;
             for (String opt : inputopts)
                 hasmap |= opt.equals("-map");
 
             if (!hasmap)
-                for (int i=0; i<numinputs; i++) {
-                    outputopts.add("-map");
-                    outputopts.add(String.format("%d", i));
+                for (int i=0; i<inputs; i++) {
+                    outopts.add("-map");
+                    outopts.add(String.format("%d", i));
                 }
 
             if (output_fmt != null) {
-                outputopts.add("-f");
-                outputopts.add(output_fmt);
-                outputopts.add("-y");
-                outputopts.add(output);
+                outopts.add("-f");
+                outopts.add(output_fmt);
+                outopts.add("-y");
+                outopts.add(out);
             }
 
-            cmdline.add(path.toString());
-            cmdline.addAll(inputopts);
             cmdline.add("-nostdin");
-            cmdline.addAll(outputopts);
+            cmdline.addAll(outopts);
 
-            ProcessBuilder pb = new ProcessBuilder(cmdline);
+            return cmdline;
+        }
 
+        private ProcessBuilder processBuilder(LinkedList<String> cmdline) {
+            ProcessBuilder pb = new ProcessBuilder(cmdline);
             pb.directory(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
+            return pb;
+        }
+
+        @Override
+        public FFMpegProcess build() throws IOException {
+            String signature = commandLine(null).toString();
+
+            if (mStandby != null) {
+                FFMpegProcess standby = mStandby;
+                mStandby = null;
+
+                if (mMultiplexed && signature.equals(standby.mSignature) && standby.isRunning()) {
+                    standby.mPipeTimeoutMs = mPipeTimeoutMs;
+                    standby.adopt(mMuxedInputs, mMuxedTags, new File(mOutputPath));
+                    standby.setOutput(mOutputPath, output_fmt);
+                    standby.mProgressListener = mProgressListener;
+                    return standby;
+                }
+
+                standby.destroy();
+            }
 
-            FFMpegProcess p = new FFMpegProcess(pb, mInputPipes);
+            FFMpegProcess p = new FFMpegProcess(processBuilder(commandLine(output)), mInputPipes,
+                    mLogLines);
+            p.mProgressListener = mProgressListener;
+            p.mPipeTimeoutMs = mPipeTimeoutMs;
+            p.setOutput(mOutputPath, output_fmt);
+
+            if (mMultiplexed)
+                p.multiplex(mMuxedInputs, mMuxedTags);
 
             return p;
         }
+
+        /** start a process that waits for a multiplexed recording to be taken over with
+         * useStandby(). Its output is written to a temporary file next to the configured output,
+         * tags and inputs of this builder are ignored.
+         */
+        public FFMpegProcess buildStandby() throws IOException {
+            if (!mMultiplexed || mOutputPath == null)
+                throw new IOException("standby processes need a multiplexed input and an output");
+
+            File dir = new File(mOutputPath).getAbsoluteFile().getParentFile(),
+                 tmp = File.createTempFile(".standby", ".mkv", dir);
+            tmp.delete();
+
+            FFMpegProcess p = new FFMpegProcess(
+                    processBuilder(commandLine(tmp.getAbsolutePath())), new LinkedList<File>(),
+                    mLogLines);
+            p.mSignature = commandLine(null).toString();
+            p.mStandbyOutput = tmp;
+
+            return p;
+        }
+
+        static class MuxedInput {
+            final String format;
+            final double rate;
+            final int channels;
+            final LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+
+            MuxedInput(String format, double rate, int channels) {
+                this.format = format;
+                this.rate = rate;
+                this.channels = channels;
+            }
+        }
     }
 
     public interface ExitCallback {
         public void processDone();
     }
+
+    public interface ProgressListener {
+        /** called on the IoSupervisor thread for every progress report of ffmpeg, must not
+         * block. */
+        void onProgress(FFMpegProcess p, FFMpegProgress progress);
+    }
 }
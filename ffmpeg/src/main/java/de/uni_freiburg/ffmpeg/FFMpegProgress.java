@@ -0,0 +1,101 @@
+package de.uni_freiburg.ffmpeg;
+
+/**
+ * One progress report of an ffmpeg process, as written with the -progress option. ffmpeg
+ * writes a block of key=value lines about twice per second, each block ends with a progress=
+ * line. Values that ffmpeg reports as N/A are -1.
+ */
+public class FFMpegProgress {
+    /** timestamp of the output in microseconds */
+    public final long outTimeUS;
+    /** bytes written to the output so far */
+    public final long totalSize;
+    /** average output bitrate in kbit/s */
+    public final double bitrateKbps;
+    /** processing speed relative to the input timestamps, below 1 the encoder falls behind */
+    public final double speed;
+    public final long dupFrames;
+    public final long dropFrames;
+    /** true for the last report of the process */
+    public final boolean end;
+
+    FFMpegProgress(long outTimeUS, long totalSize, double bitrateKbps, double speed,
+                   long dupFrames, long dropFrames, boolean end) {
+        this.outTimeUS = outTimeUS;
+        this.totalSize = totalSize;
+        this.bitrateKbps = bitrateKbps;
+        this.speed = speed;
+        this.dupFrames = dupFrames;
+        this.dropFrames = dropFrames;
+        this.end = end;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("time %.1fs, size %d, bitrate %.1fkbit/s, speed %.2fx, dup %d, drop %d%s",
+                outTimeUS / 1e6, totalSize, bitrateKbps, speed, dupFrames, dropFrames,
+                end ? " (end)" : "");
+    }
+
+    /** collects the lines of one progress block. */
+    static class Parser {
+        private long mOutTimeUS = -1, mTotalSize = -1, mDup = -1, mDrop = -1;
+        private double mBitrate = -1, mSpeed = -1;
+
+        /** @return the completed report if this line ended a block, null otherwise */
+        FFMpegProgress parse(String line) {
+            int eq = line.indexOf('=');
+            if (eq < 0)
+                return null;
+
+            String key = line.substring(0, eq).trim(),
+                   value = line.substring(eq + 1).trim();
+
+            switch (key) {
+                case "out_time_us":
+                case "out_time_ms":     // also in microseconds, despite its name
+                    mOutTimeUS = parseLong(value);
+                    break;
+                case "total_size":
+                    mTotalSize = parseLong(value);
+                    break;
+                case "bitrate":
+                    mBitrate = parseDouble(value, "kbits/s");
+                    break;
+                case "speed":
+                    mSpeed = parseDouble(value, "x");
+                    break;
+                case "dup_frames":
+                    mDup = parseLong(value);
+                    break;
+                case "drop_frames":
+                    mDrop = parseLong(value);
+                    break;
+                case "progress":
+                    return new FFMpegProgress(mOutTimeUS, mTotalSize, mBitrate, mSpeed,
+                            mDup, mDrop, value.equals("end"));
+            }
+
+            return null;
+        }
+
+        private static long parseLong(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static double parseDouble(String value, String unit) {
+            if (value.endsWith(unit))
+                value = value.substring(0, value.length() - unit.length());
+
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
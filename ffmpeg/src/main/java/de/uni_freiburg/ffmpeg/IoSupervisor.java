@@ -0,0 +1,273 @@
+package de.uni_freiburg.ffmpeg;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+/**
+ * A single-threaded event loop that supervises all pipes of the recorder: writes into the
+ * ffmpeg inputs, reads of its stdout and stderr, and the detection of its exit. Each pipe is
+ * registered as a Handler, which tells the loop which poll events it is waiting for. The loop
+ * waits for all of them at once with poll(), and additionally runs posted and timed tasks.
+ *
+ * There is one shared instance per process, so the number of threads does not depend on the
+ * number of streams or processes. Handlers and tasks run on the loop thread and must never
+ * block, i.e. only use non-blocking descriptors or ones that poll() reported as ready.
+ */
+public class IoSupervisor implements Runnable {
+    /** a descriptor watched by the supervisor, all methods are called on the loop thread. */
+    public interface Handler {
+        /** @return the descriptor to poll, or null if there is none (yet) */
+        FileDescriptor getFD();
+
+        /** @return the poll events to wait for right now, e.g. POLLIN, 0 for none */
+        int getEvents();
+
+        /** called once one of the events, or an error or hangup, occurred.
+         * @return false to remove the handler */
+        boolean onReady(int revents) throws IOException;
+
+        /** called after the handler has been removed, with the error if onReady() failed. */
+        void onRemoved(IOException error);
+    }
+
+    private static IoSupervisor sInstance = null;
+
+    private final ArrayList<Handler> mHandlers = new ArrayList<>();
+    private final ArrayList<Handler> mAdded = new ArrayList<>();
+    private final ArrayList<Handler> mRemoved = new ArrayList<>();
+    private final TaskQueue mTasks = new TaskQueue();
+    private final FileDescriptor mWakeupRead, mWakeupWrite;
+    private final byte[] mWakeupBuf = new byte[64];
+    private final Thread mThread;
+
+    /* reused between iterations, only touched on the loop thread */
+    private final ArrayList<Runnable> mRunning = new ArrayList<>();
+    private final ArrayList<StructPollfd> mStructs = new ArrayList<>();
+    private final ArrayList<Handler> mPolled = new ArrayList<>();
+    private StructPollfd[] mPollfds = new StructPollfd[0];
+
+    /** @return the shared supervisor, which is started on first use */
+    public static synchronized IoSupervisor get() throws IOException {
+        if (sInstance == null)
+            sInstance = new IoSupervisor();
+        return sInstance;
+    }
+
+    private IoSupervisor() throws IOException {
+        try {
+            FileDescriptor[] fds = Os.pipe();
+            mWakeupRead = fds[0];
+            mWakeupWrite = fds[1];
+            setNonBlocking(mWakeupRead);
+            setNonBlocking(mWakeupWrite);
+        } catch (ErrnoException e) {
+            throw new IOException("unable to create the wakeup pipe", e);
+        }
+
+        mThread = new Thread(this, "IoSupervisor");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** @return true if called on the loop thread */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /** watch the descriptor of the given handler until its onReady() returns false. */
+    public void register(Handler h) {
+        synchronized (this) { mAdded.add(h); }
+        wakeup();
+    }
+
+    /** stop watching the given handler, its onRemoved() is called on the loop thread. */
+    public void unregister(Handler h) {
+        synchronized (this) { mRemoved.add(h); }
+        wakeup();
+    }
+
+    /** run a task on the loop thread. */
+    public void post(Runnable r) {
+        mTasks.post(r);
+        wakeup();
+    }
+
+    /** run a task on the loop thread after the given delay. */
+    public void schedule(Runnable r, long delayMS) {
+        mTasks.schedule(r, System.nanoTime() + delayMS * 1000 * 1000);
+        wakeup();
+    }
+
+    /** make the loop re-evaluate the events of all handlers, e.g. after data was queued. */
+    public void wakeup() {
+        if (isLoopThread())
+            return;
+
+        try {
+            Os.write(mWakeupWrite, mWakeupBuf, 0, 1);
+        } catch (ErrnoException e) {
+            /* EAGAIN, the pipe is full, so a wakeup is pending anyway */
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int timeout = runTasks();
+
+            mPolled.clear();
+            pollfd(0, mWakeupRead, OsConstants.POLLIN);
+
+            for (Handler h : mHandlers) {
+                FileDescriptor fd = h.getFD();
+                int events = fd == null ? 0 : h.getEvents();
+                if (events == 0)
+                    continue;
+
+                pollfd(mPolled.size() + 1, fd, events);
+                mPolled.add(h);
+            }
+
+            /* poll() takes the whole array, so only reallocate it when the count changes */
+            if (mPollfds.length != mPolled.size() + 1)
+                mPollfds = mStructs.subList(0, mPolled.size() + 1)
+                        .toArray(new StructPollfd[mPolled.size() + 1]);
+
+            try {
+                Os.poll(mPollfds, timeout);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR)
+                    e.printStackTrace();
+                continue;
+            }
+
+            if (mPollfds[0].revents != 0)
+                try {
+                    while (Os.read(mWakeupRead, mWakeupBuf, 0, mWakeupBuf.length) > 0)
+                        ;
+                } catch (ErrnoException | IOException e) {}
+
+            for (int i = 0; i < mPolled.size(); i++) {
+                int revents = mPollfds[i + 1].revents;
+                if (revents != 0)
+                    dispatch(mPolled.get(i), revents);
+            }
+        }
+    }
+
+    /** fill in the i-th poll struct, the structs are kept for the next iterations. */
+    private void pollfd(int i, FileDescriptor fd, int events) {
+        if (mStructs.size() <= i)
+            mStructs.add(new StructPollfd());
+
+        StructPollfd p = mStructs.get(i);
+        p.fd = fd;
+        p.events = (short) events;
+        p.revents = 0;
+    }
+
+    private void dispatch(Handler h, int revents) {
+        IOException error = null;
+
+        try {
+            if (h.onReady(revents))
+                return;
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        }
+
+        mHandlers.remove(h);
+        h.onRemoved(error);
+    }
+
+    /** run due timers and posted tasks, and add new handlers.
+     * @return the poll timeout until the next timer, -1 if there is none */
+    private int runTasks() {
+        long now = System.nanoTime();
+
+        synchronized (this) {
+            mHandlers.addAll(mAdded);
+            mAdded.clear();
+
+            for (Handler h : mRemoved)
+                if (mHandlers.remove(h))
+                    mRunning.add(removed(h));
+            mRemoved.clear();
+        }
+        mTasks.takeDue(now, mRunning);
+
+        for (Runnable r : mRunning)
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        mRunning.clear();
+
+        synchronized (this) {
+            if (!mAdded.isEmpty() || !mRemoved.isEmpty())
+                return 0;
+        }
+        return mTasks.getTimeout(System.nanoTime());
+    }
+
+    private static Runnable removed(final Handler h) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                h.onRemoved(null);
+            }
+        };
+    }
+
+    /** switch a descriptor to non-blocking mode. */
+    public static void setNonBlocking(FileDescriptor fd) throws ErrnoException {
+        int flags = Os.fcntlVoid(fd, OsConstants.F_GETFL);
+        Os.fcntlInt(fd, OsConstants.F_SETFL, flags | OsConstants.O_NONBLOCK);
+    }
+
+    /** @return the descriptor below a possibly buffered stream, e.g. of a Process, or null */
+    public static FileDescriptor getFD(InputStream s) {
+        try {
+            while (s instanceof FilterInputStream)
+                s = (InputStream) field(FilterInputStream.class, "in").get(s);
+            return s instanceof FileInputStream ? ((FileInputStream) s).getFD() : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    /** @return the descriptor below a possibly buffered stream, e.g. of a Process, or null */
+    public static FileDescriptor getFD(OutputStream s) {
+        try {
+            while (s instanceof FilterOutputStream)
+                s = (OutputStream) field(FilterOutputStream.class, "out").get(s);
+            return s instanceof FileOutputStream ? ((FileOutputStream) s).getFD() : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    private static Field field(Class<?> c, String name) throws NoSuchFieldException {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+}
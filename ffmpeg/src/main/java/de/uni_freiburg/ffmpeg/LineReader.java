@@ -0,0 +1,101 @@
+package de.uni_freiburg.ffmpeg;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a pipe line by line on an IoSupervisor, e.g. the stderr of a process. Each read only
+ * takes what poll() reported as available, so the loop is never blocked. Overlong lines are
+ * split at the size of the line buffer.
+ */
+class LineReader implements IoSupervisor.Handler {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface Sink {
+        /** called on the supervisor thread for every line, without its line terminator. */
+        void onLine(String line);
+
+        /** called on the supervisor thread once the pipe has been closed by the writer. */
+        void onEnd();
+    }
+
+    private final FileDescriptor mFD;
+    private final Closeable mOwner;
+    private final Sink mSink;
+    private final byte[] mBuf = new byte[4096];
+    private int mFill = 0;
+
+    /**
+     * @param fd    the descriptor to read from
+     * @param owner closes the descriptor once the end has been reached
+     */
+    LineReader(FileDescriptor fd, Closeable owner, Sink sink) {
+        mFD = fd;
+        mOwner = owner;
+        mSink = sink;
+    }
+
+    @Override
+    public FileDescriptor getFD() {
+        return mFD;
+    }
+
+    @Override
+    public int getEvents() {
+        return OsConstants.POLLIN;
+    }
+
+    @Override
+    public boolean onReady(int revents) throws IOException {
+        int n;
+        try {
+            n = Os.read(mFD, mBuf, mFill, mBuf.length - mFill);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR)
+                return true;
+            throw new IOException("reading failed", e);
+        }
+
+        if (n <= 0) {
+            if (mFill > 0)
+                mSink.onLine(new String(mBuf, 0, mFill, UTF8));
+            mFill = 0;
+            return false;
+        }
+
+        int start = 0, end = mFill + n;
+        for (int i = mFill; i < end; i++)
+            if (mBuf[i] == '\n') {
+                int len = i > start && mBuf[i - 1] == '\r' ? i - start - 1 : i - start;
+                mSink.onLine(new String(mBuf, start, len, UTF8));
+                start = i + 1;
+            }
+
+        if (start == 0 && end == mBuf.length) {
+            mSink.onLine(new String(mBuf, 0, end, UTF8));
+            start = end;
+        }
+
+        System.arraycopy(mBuf, start, mBuf, 0, end - start);
+        mFill = end - start;
+        return true;
+    }
+
+    @Override
+    public void onRemoved(IOException error) {
+        if (error != null)
+            error.printStackTrace();
+
+        try {
+            mOwner.close();
+        } catch (IOException e) {}
+
+        mSink.onEnd();
+    }
+}
@@ -0,0 +1,35 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last lines of a log in memory, older lines are overwritten.
+ */
+public class LogRing {
+    private final String[] mLines;
+    private long mCount = 0;
+
+    public LogRing(int capacity) {
+        mLines = new String[capacity];
+    }
+
+    public synchronized void add(String line) {
+        mLines[(int) (mCount++ % mLines.length)] = line;
+    }
+
+    /** @return the lines still in the ring, oldest first */
+    public synchronized List<String> getLines() {
+        int n = (int) Math.min(mCount, mLines.length);
+        ArrayList<String> lines = new ArrayList<>(n);
+
+        for (long i = mCount - n; i < mCount; i++)
+            lines.add(mLines[(int) (i % mLines.length)]);
+        return lines;
+    }
+
+    /** @return the total number of lines added so far */
+    public synchronized long getCount() {
+        return mCount;
+    }
+}
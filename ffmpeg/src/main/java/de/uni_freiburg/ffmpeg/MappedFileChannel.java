@@ -0,0 +1,94 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel that appends to a file through a memory mapping. The file is extended in large
+ * steps, and each step is mapped once, so appending is a plain copy into memory that neither
+ * needs a system call nor updates the size of the file for every write. The kernel writes the
+ * dirty pages back in the background.
+ *
+ * Closing the channel truncates the file to the data that was actually written. If the process
+ * dies before that, the file ends in zeros up to the end of the last step, which MatroskaIndex
+ * recognizes as the end of the valid data, see MatroskaIndex.repair().
+ */
+public class MappedFileChannel implements WritableByteChannel {
+    private final RandomAccessFile mRaf;
+    private final long mStep;
+    private MappedByteBuffer mMap = null;
+    /* file position of the current mapping, and of the end of the written data */
+    private long mMapStart = 0, mPosition = 0;
+    private boolean mOpen = true;
+
+    /**
+     * @param file      the file to write, will be overwritten
+     * @param stepBytes the file is extended and mapped in steps of this size
+     */
+    public MappedFileChannel(File file, long stepBytes) throws IOException {
+        if (stepBytes <= 0 || stepBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid step of " + stepBytes + " bytes");
+
+        mRaf = new RandomAccessFile(file, "rw");
+        mRaf.setLength(0);
+        mStep = stepBytes;
+    }
+
+    /** @return the number of bytes written so far */
+    public synchronized long position() {
+        return mPosition;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!mOpen)
+            throw new IOException("channel is closed");
+
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            if (mMap == null || !mMap.hasRemaining())
+                extend();
+
+            int len = Math.min(src.remaining(), mMap.remaining()),
+                limit = src.limit();
+            src.limit(src.position() + len);
+            mMap.put(src);
+            src.limit(limit);
+            mPosition += len;
+        }
+        return n;
+    }
+
+    /** map the next step, which extends the file. */
+    private void extend() throws IOException {
+        mMapStart = mPosition;
+        mRaf.setLength(mMapStart + mStep);
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, mMapStart, mStep);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mOpen)
+            return;
+        mOpen = false;
+
+        try {
+            if (mMap != null)
+                mMap.force();
+            mMap = null;
+            mRaf.setLength(mPosition);
+        } finally {
+            mRaf.close();
+        }
+    }
+}
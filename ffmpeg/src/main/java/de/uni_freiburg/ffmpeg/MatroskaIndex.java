@@ -0,0 +1,396 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A time index of a Matroska recording, with an entry every few seconds of each track that
+ * points to the cluster holding that point in time. Recordings are written as a stream to a
+ * pipe, so neither our muxer nor ffmpeg can write Cues into them, and a file that was cut off
+ * by a killed process has no usable sizes either. The index is therefore built by scanning the
+ * element headers of the file, which skips over all sample data, and is stored next to the
+ * recording as a text sidecar (see write()):
+ * <pre>
+ *   # comment lines
+ *   track   time_ns   cluster_position
+ * </pre>
+ * where the track is the Matroska track number, the time is that of the first block at or
+ * after the indexed point, and the position is the file offset of its Cluster element.
+ *
+ * The scan also finds where a file was cut off, and repair() truncates it to its last complete
+ * block and fixes the sizes of the segment and the last cluster.
+ */
+public class MatroskaIndex {
+    static final int BLOCK_GROUP = 0xA0, BLOCK = 0xA1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_BYTES = 4 + 8;
+
+    /** one point in time of a track. */
+    public static class Entry {
+        public final int track;
+        public final long timeNS;
+        public final long clusterPosition;
+
+        Entry(int track, long timeNS, long clusterPosition) {
+            this.track = track;
+            this.timeNS = timeNS;
+            this.clusterPosition = clusterPosition;
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    /* the extent of the file and of its valid content, filled in by the scan */
+    private long mFileSize;
+    private long mValidEnd;
+    private long mSegmentDataPos = -1, mSegmentSizePos;
+    private int mSegmentSizeLen;
+    private long mSegmentSize, mSegmentEnd;
+    /* the size of a cut off last cluster, up to its last complete block */
+    private long mClusterSizePos = -1, mClusterSize;
+    private int mClusterSizeLen;
+
+    private MatroskaIndex() {}
+
+    /** @return the sidecar file for the index of the given recording */
+    public static File sidecarFor(File recording) {
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(recording.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".idx");
+    }
+
+    /**
+     * build the index of a Matroska file, which may have been cut off.
+     *
+     * @param file       a Matroska file written by MatroskaWriter or ffmpeg
+     * @param intervalNS minimum time between two entries of a track
+     */
+    public static MatroskaIndex scan(File file, long intervalNS) throws IOException {
+        MatroskaIndex index = new MatroskaIndex();
+        try (FileInputStream in = new FileInputStream(file)) {
+            index.scan(in.getChannel(), intervalNS);
+        }
+        return index;
+    }
+
+    /** read an index from its sidecar. */
+    public static MatroskaIndex read(File sidecar) throws IOException {
+        MatroskaIndex index = new MatroskaIndex();
+
+        try (BufferedReader r = new BufferedReader(
+                new InputStreamReader(new FileInputStream(sidecar), UTF8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] f = line.split("\t");
+                if (f.length != 3)
+                    throw new IOException("malformed index line: " + line);
+
+                index.mEntries.add(new Entry(Integer.parseInt(f[0]), Long.parseLong(f[1]),
+                        Long.parseLong(f[2])));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed index " + sidecar, e);
+        }
+
+        return index;
+    }
+
+    /** write the index as a text sidecar, see the class description. */
+    public void write(File sidecar) throws IOException {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+
+        try (PrintWriter w = new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), UTF8))) {
+            w.print("# track\ttime_ns\tcluster_position\n");
+            for (Entry e : mEntries)
+                w.print(e.track + "\t" + e.timeNS + "\t" + e.clusterPosition + "\n");
+
+            if (w.checkError())
+                throw new IOException("unable to write " + tmp);
+        }
+
+        if (!tmp.renameTo(sidecar))
+            throw new IOException("unable to rename " + tmp + " to " + sidecar);
+    }
+
+    /** @return all entries, ordered by their position in the file */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * @return the file offset of the cluster to start reading at for the given track and time,
+     * i.e. that of the last entry at or before the time, -1 if the track has no entries
+     */
+    public long seek(int track, long timeNS) {
+        long position = -1;
+
+        for (Entry e : mEntries)
+            if (e.track == track) {
+                if (position >= 0 && e.timeNS > timeNS)
+                    break;
+                position = e.clusterPosition;
+            }
+
+        return position;
+    }
+
+    /** @return true if the file was cut off, i.e. ends within an element */
+    public boolean isTruncated() {
+        return mValidEnd < mFileSize || mClusterSizePos >= 0 ||
+               mSegmentSize >= 0 && mSegmentDataPos + mSegmentSize > mFileSize;
+    }
+
+    /** @return the size of the file up to the end of its last complete element */
+    public long getValidEnd() {
+        return mValidEnd;
+    }
+
+    /**
+     * truncate a cut off Matroska file to its last complete block, and store the actual sizes
+     * of its segment and last cluster. A segment of unknown size, as written to a pipe, gets
+     * its size as well if its size field is large enough.
+     *
+     * @return true if the file was changed
+     */
+    public static boolean repair(File file) throws IOException {
+        MatroskaIndex index = scan(file, Long.MAX_VALUE);
+        boolean changed = false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+
+            if (index.mValidEnd < index.mFileSize) {
+                ch.truncate(index.mValidEnd);
+                changed = true;
+            }
+
+            if (index.mClusterSizePos >= 0) {
+                writeSize(ch, index.mClusterSizePos, index.mClusterSizeLen, index.mClusterSize);
+                changed = true;
+            }
+
+            long size = index.mSegmentEnd - index.mSegmentDataPos;
+            if (size != index.mSegmentSize && size < (1L << (7 * index.mSegmentSizeLen)) - 1) {
+                writeSize(ch, index.mSegmentSizePos, index.mSegmentSizeLen, size);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private static void writeSize(FileChannel ch, long pos, int len, long size)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        MatroskaWriter.putSize(b, size, len);
+        b.flip();
+        while (b.hasRemaining())
+            pos += ch.write(b, pos);
+    }
+
+    private void scan(FileChannel ch, long intervalNS) throws IOException {
+        mFileSize = ch.size();
+        Header h = Header.read(ch, 0, mFileSize);
+
+        if (h == null || h.id != MatroskaWriter.EBML || h.isUnknown())
+            throw new IOException("not a Matroska file");
+
+        h = Header.read(ch, h.end(), mFileSize);
+        if (h == null || h.id != MatroskaWriter.SEGMENT)
+            throw new IOException("no segment in Matroska file");
+
+        mSegmentDataPos = h.data;
+        mSegmentSizePos = h.pos + h.idLen;
+        mSegmentSizeLen = h.sizeLen;
+        mSegmentSize = h.isUnknown() ? -1 : h.size;
+
+        long end = h.isUnknown() ? mFileSize : Math.min(mFileSize, h.end()),
+             timecodeScale = MatroskaWriter.TIMECODE_SCALE_NS,
+             pos = h.data;
+        HashMap<Integer, Long> last = new HashMap<>();
+
+        /* the segment is cut off at the first element that does not fit into the file */
+        mValidEnd = pos;
+        while (pos < end && (h = Header.read(ch, pos, end)) != null) {
+            if (h.id == MatroskaWriter.CLUSTER) {
+                pos = scanCluster(ch, h, end, timecodeScale, intervalNS, last);
+                if (pos < 0)
+                    break;
+            } else {
+                if (h.isUnknown() || h.end() > end)
+                    break;
+                if (h.id == MatroskaWriter.INFO)
+                    timecodeScale = findUInt(ch, h, MatroskaWriter.TIMECODE_SCALE, timecodeScale);
+                pos = h.end();
+            }
+
+            mValidEnd = pos;
+            if (mClusterSizePos >= 0)
+                break;
+        }
+
+        /* content after a complete segment of known size is not ours to judge */
+        mSegmentEnd = mValidEnd;
+        if (mSegmentSize >= 0 && mValidEnd == end)
+            mValidEnd = mFileSize;
+    }
+
+    /**
+     * index the blocks of a cluster.
+     *
+     * @return the end of the cluster, -1 if it was cut off before its first block
+     */
+    private long scanCluster(FileChannel ch, Header cluster, long end, long timecodeScale,
+                             long intervalNS, Map<Integer, Long> last) throws IOException {
+        long clusterEnd = cluster.isUnknown() ? end : cluster.end(),
+             pos = cluster.data,
+             complete = -1,
+             timecode = 0;
+        ByteBuffer block = ByteBuffer.allocate(8 + 2).order(ByteOrder.BIG_ENDIAN);
+        Header h;
+
+        while (pos < clusterEnd) {
+            h = Header.read(ch, pos, end);
+
+            /* a cluster of unknown size ends at the next top-level element */
+            if (h != null && cluster.isUnknown() && h.idLen == 4)
+                return pos;
+            if (h == null || h.isUnknown() || h.end() > end)
+                break;
+
+            if (h.id == MatroskaWriter.TIMECODE)
+                timecode = readUInt(ch, h);
+
+            else if (h.id == MatroskaWriter.SIMPLE_BLOCK || h.id == BLOCK_GROUP) {
+                Header b = h.id == BLOCK_GROUP ? findChild(ch, h, BLOCK) : h;
+
+                if (b != null) {
+                    block.clear();
+                    block.limit((int) Math.min(block.capacity(), b.size));
+                    ch.read(block, b.data);
+                    block.flip();
+                    if (block.remaining() < 3)
+                        break;
+
+                    int track = (int) MatroskaWriter.readSize(block);
+                    long time = (timecode + block.getShort()) * timecodeScale;
+                    Long previous = last.get(track);
+
+                    if (previous == null || time - previous >= intervalNS) {
+                        last.put(track, time);
+                        mEntries.add(new Entry(track, time, cluster.pos));
+                    }
+                }
+
+                complete = h.end();
+            }
+
+            pos = h.end();
+        }
+
+        if (pos >= clusterEnd && clusterEnd <= mFileSize)
+            return clusterEnd;
+
+        /* cut off, keep the cluster up to its last complete block */
+        if (complete < 0)
+            return -1;
+
+        if (!cluster.isUnknown()) {
+            mClusterSizePos = cluster.pos + cluster.idLen;
+            mClusterSizeLen = cluster.sizeLen;
+            mClusterSize = complete - cluster.data;
+        }
+        return complete;
+    }
+
+    private static Header findChild(FileChannel ch, Header parent, int id) throws IOException {
+        Header h;
+        for (long pos = parent.data; pos < parent.end(); pos = h.end()) {
+            h = Header.read(ch, pos, parent.end());
+            if (h == null)
+                return null;
+            if (h.id == id)
+                return h;
+        }
+        return null;
+    }
+
+    private static long findUInt(FileChannel ch, Header parent, int id, long fallback)
+            throws IOException {
+        Header h = findChild(ch, parent, id);
+        return h == null ? fallback : readUInt(ch, h);
+    }
+
+    private static long readUInt(FileChannel ch, Header h) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(8, h.size));
+        ch.read(b, h.data);
+        b.flip();
+
+        long value = 0;
+        while (b.hasRemaining())
+            value = (value << 8) | (b.get() & 0xFF);
+        return value;
+    }
+
+    /** the id and size of an element. */
+    private static class Header {
+        long pos, data, size;
+        int id, idLen, sizeLen;
+
+        /** @return the header at pos, or null if it is invalid or does not end before limit */
+        static Header read(FileChannel ch, long pos, long limit) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+            b.limit((int) Math.min(HEADER_BYTES, limit - pos));
+            while (b.hasRemaining() && ch.read(b, pos + b.position()) > 0);
+            b.flip();
+
+            if (b.remaining() < 2)
+                return null;
+
+            Header h = new Header();
+            h.pos = pos;
+            h.idLen = Integer.numberOfLeadingZeros(b.get(0) & 0xFF) - 23;
+            if (h.idLen < 1 || h.idLen > 4 || b.remaining() <= h.idLen)
+                return null;
+
+            h.sizeLen = Integer.numberOfLeadingZeros(b.get(h.idLen) & 0xFF) - 23;
+            if (h.sizeLen < 1 || h.sizeLen > 8 || b.remaining() < h.idLen + h.sizeLen)
+                return null;
+
+            h.id = MatroskaWriter.readId(b);
+            h.size = MatroskaWriter.readSize(b);
+            h.data = pos + b.position();
+            return h;
+        }
+
+        boolean isUnknown() {
+            return size == (1L << (7 * sizeLen)) - 1;
+        }
+
+        long end() {
+            return data + size;
+        }
+    }
+}
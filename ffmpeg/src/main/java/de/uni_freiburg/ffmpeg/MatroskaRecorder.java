@@ -0,0 +1,167 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A recorder backend that writes the sample streams as uncompressed PCM tracks straight into
+ * a Matroska file, without spawning an ffmpeg process. The track layout and tags are the same
+ * as with an FFMpegProcess recording, only the codec differs.
+ *
+ * Clusters are written out periodically (see Builder.setClusterDuration()), so at most one
+ * cluster is lost when the recording process is killed.
+ *
+ * With preallocation, the file is written through a MappedFileChannel instead of a write per
+ * cluster, e.g. for raw journals that are transcoded later on, see Builder.setPreallocation().
+ */
+public class MatroskaRecorder implements RecorderBackend {
+    protected final MatroskaWriter mWriter;
+    protected final File mOutput;
+    protected final ConcurrentHashMap<Integer,OutputStream> mStreams = new ConcurrentHashMap<>();
+
+    protected MatroskaRecorder(MatroskaWriter writer, File output) {
+        mWriter = writer;
+        mOutput = output;
+    }
+
+    @Override
+    public GatheringByteChannel getChannel(int j) {
+        return mWriter.getTrackChannel(j);
+    }
+
+    @Override
+    public OutputStream getOutputStream(int j) {
+        OutputStream s = mStreams.get(j);
+        if (s == null) {
+            /* unbuffered, so that each write stays a block of whole frames */
+            OutputStream opened = mStreams.putIfAbsent(j,
+                    s = Channels.newOutputStream(mWriter.getTrackChannel(j)));
+            if (opened != null)
+                s = opened;
+        }
+        return s;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        mWriter.awaitClose();
+        return 0;
+    }
+
+    @Override
+    public int terminate() throws InterruptedException {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+        return waitFor();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return mOutput.length();
+    }
+
+    /** the output file is written synchronously, nothing is ever queued. */
+    @Override
+    public long getQueuedBytes() {
+        return 0;
+    }
+
+    @Override
+    public void appendTags(Map<String, String> tags) throws IOException {
+        MatroskaWriter.appendTags(mOutput, tags);
+    }
+
+    public static class Builder implements RecorderBackend.Builder {
+        private final File mOutput;
+        private final LinkedHashMap<String, String> mTags = new LinkedHashMap<>();
+        private final LinkedList<String> mFormats = new LinkedList<>();
+        private final LinkedList<Double> mRates = new LinkedList<>();
+        private final LinkedList<Integer> mChannels = new LinkedList<>();
+        private final LinkedList<Map<String, String>> mStreamTags = new LinkedList<>();
+        private long mClusterMs = 5000;
+        private long mPreallocate = 0;
+
+        /**
+         * @param output the Matroska file to write, will be overwritten
+         */
+        public Builder(File output) {
+            mOutput = output;
+        }
+
+        @Override
+        public Builder setTag(String key, String value) {
+            mTags.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Builder addAudio(String format, double rate, int channels) {
+            mFormats.add(format);
+            mRates.add(rate);
+            mChannels.add(channels);
+            mStreamTags.add(new LinkedHashMap<String, String>());
+            return this;
+        }
+
+        @Override
+        public Builder setStreamTag(String key, String value) throws Exception {
+            if (mStreamTags.isEmpty())
+                throw new Exception("no stream to apply tags to, please add one first");
+
+            mStreamTags.getLast().put(key, value);
+            return this;
+        }
+
+        /** set the maximum duration of a cluster, i.e. how often data is written to the file.
+         *
+         * @param ms cluster duration in milliseconds
+         */
+        public Builder setClusterDuration(long ms) {
+            mClusterMs = ms;
+            return this;
+        }
+
+        /** write the file through a memory mapping, which is extended in steps of the given size.
+         *
+         * @param bytes size of each step, 0 to write the file with plain writes
+         */
+        public Builder setPreallocation(long bytes) {
+            mPreallocate = bytes;
+            return this;
+        }
+
+        @Override
+        public MatroskaRecorder build() throws IOException {
+            WritableByteChannel out = mPreallocate > 0 ?
+                    new MappedFileChannel(mOutput, mPreallocate) :
+                    new FileOutputStream(mOutput).getChannel();
+            MatroskaWriter w = new MatroskaWriter(out, "MatroskaRecorder");
+            w.setClusterDuration(mClusterMs);
+
+            for (Map.Entry<String, String> e : mTags.entrySet())
+                w.setTag(e.getKey(), e.getValue());
+
+            for (int i = 0; i < mFormats.size(); i++) {
+                int t = w.addAudioTrack(mFormats.get(i), mRates.get(i), mChannels.get(i));
+                for (Map.Entry<String, String> e : mStreamTags.get(i).entrySet())
+                    w.setTrackTag(t, e.getKey(), e.getValue());
+            }
+
+            w.start();
+            return new MatroskaRecorder(w, mOutput);
+        }
+    }
+}
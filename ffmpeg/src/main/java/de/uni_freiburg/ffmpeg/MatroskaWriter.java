@@ -0,0 +1,545 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A minimal streaming Matroska muxer for PCM tracks. All tracks are interleaved into a single
+ * stream of clusters, which can be written to a pipe since nothing needs to be seeked back to:
+ * the segment has an unknown size and clusters are assembled in a preallocated buffer before
+ * they are written out.
+ *
+ * Each track is fed through its own GatheringByteChannel, every write becomes one SimpleBlock
+ * whose timecode is derived from the number of samples written to this track so far. Hence
+ * writes need to contain whole sample frames. Once all track channels are closed, the pending
+ * cluster is written and the output is closed.
+ */
+public class MatroskaWriter {
+    /* element ids, see https://www.matroska.org/technical/specs/index.html */
+    static final int EBML = 0x1A45DFA3, EBML_VERSION = 0x4286, EBML_READ_VERSION = 0x42F7,
+            EBML_MAX_ID_LENGTH = 0x42F2, EBML_MAX_SIZE_LENGTH = 0x42F3, DOCTYPE = 0x4282,
+            DOCTYPE_VERSION = 0x4287, DOCTYPE_READ_VERSION = 0x4285,
+            SEGMENT = 0x18538067, INFO = 0x1549A966, TIMECODE_SCALE = 0x2AD7B1,
+            MUXING_APP = 0x4D80, WRITING_APP = 0x5741,
+            TRACKS = 0x1654AE6B, TRACK_ENTRY = 0xAE, TRACK_NUMBER = 0xD7, TRACK_UID = 0x73C5,
+            TRACK_TYPE = 0x83, FLAG_LACING = 0x9C, CODEC_ID = 0x86,
+            AUDIO = 0xE1, SAMPLING_FREQUENCY = 0xB5, CHANNELS = 0x9F, BIT_DEPTH = 0x6264,
+            TAGS = 0x1254C367, TAG = 0x7373, TARGETS = 0x63C0, TARGET_TYPE_VALUE = 0x68CA,
+            TAG_TRACK_UID = 0x63C5, SIMPLE_TAG = 0x67C8, TAG_NAME = 0x45A3, TAG_STRING = 0x4487,
+            CLUSTER = 0x1F43B675, TIMECODE = 0xE7, SIMPLE_BLOCK = 0xA3;
+
+    static final int TRACK_TYPE_AUDIO = 2;
+    static final long TIMECODE_SCALE_NS = 1000000;
+    static final long UNKNOWN_SIZE = 0x00FFFFFFFFFFFFFFL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CLUSTER_BYTES = 256 * 1024;
+    private static final int BLOCK_HEADER = 4 + 8 + 1 + 2 + 1;
+
+    private final WritableByteChannel mOut;
+    private final ByteBuffer mCluster;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private final LinkedHashMap<String, String> mTags = new LinkedHashMap<>();
+    private final String mApp;
+
+    private boolean mStarted = false;
+    private boolean mClosed = false;
+    private long mClusterTimecode = -1;
+    private int mClusterSizePos;
+    private int mOpenTracks = 0;
+    private long mClusterMs = 5000;
+
+    /**
+     * @param out the channel to write the Matroska stream to, closed when all tracks are closed
+     * @param app name of the writing application, stored in the segment info
+     */
+    public MatroskaWriter(WritableByteChannel out, String app) {
+        mOut = out;
+        mApp = app;
+        mCluster = ByteBuffer.allocateDirect(CLUSTER_BYTES + 64).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** add a PCM audio track, must be called before start(). Matroska only defines
+     * little-endian floats, so big-endian float samples are byte-swapped while writing.
+     *
+     * @param format   ffmpeg sample format of the data, e.g. f32le or s16le
+     * @param rate     sample rate in Hz
+     * @param channels number of channels
+     * @return the index of the new track
+     */
+    public int addAudioTrack(String format, double rate, int channels) throws IOException {
+        if (mStarted)
+            throw new IOException("tracks must be added before starting the stream");
+
+        String codec;
+        int depth, swap = 0;
+
+        if ("f32le".equals(format))      { codec = "A_PCM/FLOAT/IEEE"; depth = 32; }
+        else if ("f64le".equals(format)) { codec = "A_PCM/FLOAT/IEEE"; depth = 64; }
+        else if ("f32be".equals(format)) { codec = "A_PCM/FLOAT/IEEE"; depth = 32; swap = 4; }
+        else if ("f64be".equals(format)) { codec = "A_PCM/FLOAT/IEEE"; depth = 64; swap = 8; }
+        else if ("s16le".equals(format)) { codec = "A_PCM/INT/LIT";    depth = 16; }
+        else if ("s32le".equals(format)) { codec = "A_PCM/INT/LIT";    depth = 32; }
+        else if ("s16be".equals(format)) { codec = "A_PCM/INT/BIG";    depth = 16; }
+        else if ("s32be".equals(format)) { codec = "A_PCM/INT/BIG";    depth = 32; }
+        else throw new IOException("unsupported sample format for matroska: " + format);
+
+        Track t = new Track(mTracks.size(), codec, rate, channels, depth, swap);
+        mTracks.add(t);
+        mOpenTracks++;
+        return t.index;
+    }
+
+    /** set a tag for the whole segment, must be called before start(). */
+    public MatroskaWriter setTag(String key, String value) {
+        mTags.put(key, value);
+        return this;
+    }
+
+    /** set a tag for a single track, must be called before start(). */
+    public MatroskaWriter setTrackTag(int track, String key, String value) {
+        mTracks.get(track).tags.put(key, value);
+        return this;
+    }
+
+    /** set the maximum duration of a cluster in ms, a cluster is also written when its
+     * buffer is full. */
+    public MatroskaWriter setClusterDuration(long ms) {
+        mClusterMs = ms;
+        return this;
+    }
+
+    public int getNumTracks() {
+        return mTracks.size();
+    }
+
+    /** @return the channel that accepts sample frames for the given track */
+    public GatheringByteChannel getTrackChannel(int track) {
+        return mTracks.get(track);
+    }
+
+    /** write the EBML header, segment info, track layout and tags. */
+    public synchronized void start() throws IOException {
+        if (mStarted)
+            return;
+
+        int size = 1024 + 128 * mTracks.size() + tagSize(mTags);
+        for (Track t : mTracks)
+            size += tagSize(t.tags);
+
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        int m;
+
+        m = startMaster(b, EBML);
+        putUInt(b, EBML_VERSION, 1);
+        putUInt(b, EBML_READ_VERSION, 1);
+        putUInt(b, EBML_MAX_ID_LENGTH, 4);
+        putUInt(b, EBML_MAX_SIZE_LENGTH, 8);
+        putString(b, DOCTYPE, "matroska");
+        putUInt(b, DOCTYPE_VERSION, 4);
+        putUInt(b, DOCTYPE_READ_VERSION, 2);
+        endMaster(b, m);
+
+        putId(b, SEGMENT);
+        putSize(b, UNKNOWN_SIZE, 8);
+
+        m = startMaster(b, INFO);
+        putUInt(b, TIMECODE_SCALE, TIMECODE_SCALE_NS);
+        putString(b, MUXING_APP, "de.uni_freiburg.ffmpeg.MatroskaWriter");
+        putString(b, WRITING_APP, mApp);
+        endMaster(b, m);
+
+        m = startMaster(b, TRACKS);
+        for (Track t : mTracks) {
+            int e = startMaster(b, TRACK_ENTRY);
+            putUInt(b, TRACK_NUMBER, t.index + 1);
+            putUInt(b, TRACK_UID, t.index + 1);
+            putUInt(b, TRACK_TYPE, TRACK_TYPE_AUDIO);
+            putUInt(b, FLAG_LACING, 0);
+            putString(b, CODEC_ID, t.codec);
+            int a = startMaster(b, AUDIO);
+            putFloat(b, SAMPLING_FREQUENCY, t.rate);
+            putUInt(b, CHANNELS, t.channels);
+            putUInt(b, BIT_DEPTH, t.depth);
+            endMaster(b, a);
+            endMaster(b, e);
+        }
+        endMaster(b, m);
+
+        m = startMaster(b, TAGS);
+        putTag(b, 0, mTags);
+        for (Track t : mTracks)
+            putTag(b, t.index + 1, t.tags);
+        endMaster(b, m);
+
+        b.flip();
+        writeFully(b);
+        mStarted = true;
+    }
+
+    /** write out the currently pending cluster. */
+    public synchronized void flush() throws IOException {
+        if (mClusterTimecode < 0)
+            return;
+
+        endMaster(mCluster, mClusterSizePos);
+        mCluster.flip();
+        writeFully(mCluster);
+        mCluster.clear();
+        mClusterTimecode = -1;
+    }
+
+    /** flush and close the output, this is done automatically once all tracks are closed. */
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+
+        try {
+            start();
+            flush();
+        } finally {
+            mClosed = true;
+            notifyAll();
+            mOut.close();
+        }
+    }
+
+    /** block until the output has been closed. */
+    public synchronized void awaitClose() throws InterruptedException {
+        while (!mClosed)
+            wait();
+    }
+
+    /** append a Tags element for the whole segment to a finished Matroska file, e.g. to store
+     * statistics that are only known at the end of a recording. The segment must be the last
+     * element in the file, its size is updated unless it is unknown.
+     *
+     * @param file the Matroska file, written by this class or by ffmpeg
+     * @param tags the tags to append
+     */
+    public static void appendTags(File file, Map<String, String> tags) throws IOException {
+        if (tags.isEmpty())
+            return;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+            ch.read(head, 0);
+            head.flip();
+
+            if (readId(head) != EBML)
+                throw new IOException(file + " is not a Matroska file");
+            long size = readSize(head);
+            head.position((int) (head.position() + size));
+
+            if (readId(head) != SEGMENT)
+                throw new IOException("no segment in " + file);
+
+            int sizePos = head.position(),
+                sizeLen = Integer.numberOfLeadingZeros(head.get(sizePos) & 0xFF) - 23;
+            size = readSize(head);
+
+            ByteBuffer b = ByteBuffer.allocate(tagSize(tags) + 16).order(ByteOrder.BIG_ENDIAN);
+            int m = startMaster(b, TAGS);
+            putTag(b, 0, tags);
+            endMaster(b, m);
+            b.flip();
+
+            long end = ch.size();
+            if (size != (1L << (7 * sizeLen)) - 1) {
+                if (head.position() + size != end)
+                    throw new IOException("the segment is not the last element of " + file);
+
+                long newSize = size + b.remaining();
+                if (newSize >= (1L << (7 * sizeLen)) - 1)
+                    throw new IOException("the segment size of " + file + " can not be updated");
+
+                ByteBuffer s = ByteBuffer.allocate(sizeLen);
+                putSize(s, newSize, sizeLen);
+                s.flip();
+                ch.write(s, sizePos);
+            }
+
+            while (b.hasRemaining())
+                end += ch.write(b, end);
+        }
+    }
+
+    /** read an element id, including its length marker. */
+    static int readId(ByteBuffer b) {
+        int first = b.get() & 0xFF,
+            len = Integer.numberOfLeadingZeros(first) - 23,
+            id = first;
+
+        for (int i = 1; i < len; i++)
+            id = (id << 8) | (b.get() & 0xFF);
+        return id;
+    }
+
+    /** read a size, without its length marker. */
+    static long readSize(ByteBuffer b) {
+        int first = b.get() & 0xFF,
+            len = Integer.numberOfLeadingZeros(first) - 23;
+        long size = first & (0xFF >> len);
+
+        for (int i = 1; i < len; i++)
+            size = (size << 8) | (b.get() & 0xFF);
+        return size;
+    }
+
+    private synchronized void writeBlock(Track t, ByteBuffer[] srcs, int offset, int length, int bytes)
+            throws IOException {
+        if (mClosed)
+            throw new ClosedChannelException();
+
+        start();
+
+        long timecode = Math.round(t.samples * 1000. / t.rate);
+
+        if (mClusterTimecode >= 0 && (
+            mCluster.remaining() < bytes + BLOCK_HEADER ||
+            timecode - mClusterTimecode > mClusterMs ||
+            timecode - mClusterTimecode < Short.MIN_VALUE))
+            flush();
+
+        if (mClusterTimecode < 0) {
+            mClusterTimecode = timecode;
+            mClusterSizePos = startMaster(mCluster, CLUSTER);
+            putUInt(mCluster, TIMECODE, timecode);
+        }
+
+        putId(mCluster, SIMPLE_BLOCK);
+        putSize(mCluster, bytes + 4, 8);
+        mCluster.put((byte) (0x80 | (t.index + 1)));   // track number as 1-byte vint
+        mCluster.putShort((short) (timecode - mClusterTimecode));
+        mCluster.put((byte) 0x80);                       // keyframe, no lacing
+
+        for (int i = offset; i < offset + length; i++)
+            mCluster.put(srcs[i]);
+
+        if (t.swap > 0)
+            swapBytes(mCluster, mCluster.position() - bytes, mCluster.position(), t.swap);
+
+        t.samples += bytes / t.frameSize;
+    }
+
+    /** reverse the byte order of each sample of the given width in b[from, to). */
+    private static void swapBytes(ByteBuffer b, int from, int to, int width) {
+        for (int p = from; p < to; p += width)
+            for (int i = 0, j = width - 1; i < j; i++, j--) {
+                byte t = b.get(p + i);
+                b.put(p + i, b.get(p + j));
+                b.put(p + j, t);
+            }
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            mOut.write(b);
+    }
+
+    private void trackClosed() throws IOException {
+        boolean last;
+
+        synchronized (this) {
+            last = --mOpenTracks == 0;
+        }
+
+        if (last)
+            close();
+    }
+
+    private static int tagSize(Map<String, String> tags) {
+        int size = 64;
+        for (Map.Entry<String, String> e : tags.entrySet())
+            size += 32 + 4 * (e.getKey().length() + e.getValue().length());
+        return size;
+    }
+
+    private static void putTag(ByteBuffer b, long trackuid, Map<String, String> tags) {
+        if (tags.isEmpty())
+            return;
+
+        int tag = startMaster(b, TAG);
+        int targets = startMaster(b, TARGETS);
+        putUInt(b, TARGET_TYPE_VALUE, 50);
+        if (trackuid != 0)
+            putUInt(b, TAG_TRACK_UID, trackuid);
+        endMaster(b, targets);
+
+        for (Map.Entry<String, String> e : tags.entrySet()) {
+            int simple = startMaster(b, SIMPLE_TAG);
+            putString(b, TAG_NAME, e.getKey());
+            putString(b, TAG_STRING, e.getValue());
+            endMaster(b, simple);
+        }
+        endMaster(b, tag);
+    }
+
+    /*
+     * EBML encoding helpers. Master elements reserve an 8-byte size field that is patched
+     * once all children have been written.
+     */
+    static void putId(ByteBuffer b, int id) {
+        if ((id & 0xFF000000) != 0) b.put((byte) (id >>> 24));
+        if ((id & 0xFFFF0000) != 0) b.put((byte) (id >>> 16));
+        if ((id & 0xFFFFFF00) != 0) b.put((byte) (id >>> 8));
+        b.put((byte) id);
+    }
+
+    static void putSize(ByteBuffer b, long size, int len) {
+        long v = size | (1L << (7 * len));
+        for (int i = len - 1; i >= 0; i--)
+            b.put((byte) (v >>> (8 * i)));
+    }
+
+    static int sizeLength(long size) {
+        int len = 1;
+        while (len < 8 && size >= (1L << (7 * len)) - 1)
+            len++;
+        return len;
+    }
+
+    static int startMaster(ByteBuffer b, int id) {
+        putId(b, id);
+        int pos = b.position();
+        putSize(b, 0, 8);
+        return pos;
+    }
+
+    static void endMaster(ByteBuffer b, int pos) {
+        int end = b.position();
+        b.position(pos);
+        putSize(b, end - pos - 8, 8);
+        b.position(end);
+    }
+
+    static void putUInt(ByteBuffer b, int id, long value) {
+        int len = 1;
+        while (len < 8 && (value >>> (8 * len)) != 0)
+            len++;
+
+        putId(b, id);
+        putSize(b, len, 1);
+        for (int i = len - 1; i >= 0; i--)
+            b.put((byte) (value >>> (8 * i)));
+    }
+
+    static void putFloat(ByteBuffer b, int id, double value) {
+        putId(b, id);
+        putSize(b, 8, 1);
+        b.putDouble(value);
+    }
+
+    static void putString(ByteBuffer b, int id, String value) {
+        byte[] data = value.getBytes(UTF8);
+        putId(b, id);
+        putSize(b, data.length, sizeLength(data.length));
+        b.put(data);
+    }
+
+    private class Track implements GatheringByteChannel {
+        final int index;
+        final String codec;
+        final double rate;
+        final int channels;
+        final int depth;
+        final int frameSize;
+        /* width of the samples to byte-swap, 0 for none */
+        final int swap;
+        final LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+        final ByteBuffer[] single = new ByteBuffer[1];
+        long samples = 0;
+        boolean open = true;
+
+        Track(int index, String codec, double rate, int channels, int depth, int swap) {
+            this.index = index;
+            this.codec = codec;
+            this.rate = rate;
+            this.channels = channels;
+            this.depth = depth;
+            this.swap = swap;
+            this.frameSize = channels * depth / 8;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++)
+                bytes += srcs[i].remaining();
+
+            if (bytes == 0)
+                return 0;
+
+            if (bytes % frameSize != 0)
+                throw new IOException("writes must contain whole sample frames");
+
+            /* blocks that are larger than a cluster are split up */
+            if (bytes > CLUSTER_BYTES / 2) {
+                long written = 0;
+                for (int i = offset; i < offset + length; i++)
+                    written += writeSplit(srcs[i]);
+                return written;
+            }
+
+            writeBlock(this, srcs, offset, length, (int) bytes);
+            return bytes;
+        }
+
+        private long writeSplit(ByteBuffer src) throws IOException {
+            long written = 0;
+            int chunk = CLUSTER_BYTES / 2 / frameSize * frameSize,
+                limit = src.limit();
+
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk, src.remaining());
+                src.limit(src.position() + n);
+                single[0] = src;
+                writeBlock(this, single, 0, 1, n);
+                src.limit(limit);
+                written += n;
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            single[0] = src;
+            return (int) write(single, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open)
+                return;
+
+            open = false;
+            trackClosed();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package de.uni_freiburg.ffmpeg;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A channel that writes into a pipe without ever blocking the writer. Data is first written
+ * straight into the non-blocking pipe, and whatever the pipe does not take right away is queued
+ * in memory. An IoSupervisor then flushes the queue whenever the pipe becomes writable. As long
+ * as the reader keeps up the queue stays empty, and no data is copied.
+ *
+ * The pipe is either an already open descriptor, like stdin of a process, or a named pipe. A
+ * named pipe is opened by the supervisor as soon as its reader has opened it, until then all
+ * data is queued. If the reader does not open the pipe in time, or the queue exceeds its limit
+ * since the reader is stalled, the next write fails with an IOException.
+ *
+ * Closing the channel closes the pipe once the queue has been flushed.
+ */
+public class PipeOutbox implements GatheringByteChannel, IoSupervisor.Handler {
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_CAPACITY = 16 * 1024 * 1024;
+    private static final long OPEN_RETRY_MS = 10;
+
+    /** the non-blocking end of the pipe. */
+    interface Sink {
+        /** @return the number of bytes written, 0 if the pipe is full */
+        int write(ByteBuffer src) throws IOException;
+    }
+
+    private final IoSupervisor mLoop;
+    private final String mName;
+    private final Closeable mOwner;
+    private final int mMaxQueued;
+    private FileDescriptor mFD;
+    private Sink mSink = null;
+    private ByteBuffer mQueue = ByteBuffer.allocate(0);
+    private final ByteBuffer[] mSingle = new ByteBuffer[1];
+    private boolean mClosing = false;
+    private long mWritten = 0;
+    private IOException mError = null;
+
+    /**
+     * @param loop  the supervisor that flushes the queue
+     * @param fd    the descriptor of the pipe, is switched to non-blocking mode
+     * @param owner closes the descriptor, e.g. the stream it was taken from
+     */
+    public PipeOutbox(IoSupervisor loop, String name, FileDescriptor fd, Closeable owner)
+            throws IOException {
+        mLoop = loop;
+        mName = name;
+        mOwner = owner;
+        mMaxQueued = MAX_CAPACITY;
+
+        try {
+            IoSupervisor.setNonBlocking(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("unable to make " + name + " non-blocking", e);
+        }
+
+        mFD = fd;
+        mSink = sinkOf(name, fd);
+        loop.register(this);
+    }
+
+    /** write into the given sink without a supervisor, the queue is only written by flush().
+     *
+     * @param maxQueued maximum number of bytes to queue
+     */
+    PipeOutbox(String name, Sink sink, int maxQueued) {
+        mLoop = null;
+        mName = name;
+        mOwner = null;
+        mMaxQueued = maxQueued;
+        mSink = sink;
+    }
+
+    /**
+     * @param loop      the supervisor that opens the pipe and flushes the queue
+     * @param fifo      the named pipe, which is deleted once it is open
+     * @param timeoutMS maximum time to wait for the reader to open the pipe, 0 to wait forever
+     */
+    public PipeOutbox(IoSupervisor loop, final File fifo, long timeoutMS) {
+        mLoop = loop;
+        mName = fifo.getName();
+        mMaxQueued = MAX_CAPACITY;
+        mOwner = new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    Os.close(mFD);
+                } catch (ErrnoException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+
+        final long deadline = timeoutMS > 0 ? System.nanoTime() + timeoutMS * 1000 * 1000 : 0;
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (open(fifo, deadline))
+                    mLoop.register(PipeOutbox.this);
+                else if (mError == null)
+                    mLoop.schedule(this, OPEN_RETRY_MS);
+            }
+        });
+    }
+
+    /** try to open the named pipe, which fails with ENXIO as long as it has no reader.
+     * @return true if the pipe is open */
+    private synchronized boolean open(File fifo, long deadline) {
+        try {
+            mFD = Os.open(fifo.getAbsolutePath(), OsConstants.O_WRONLY | OsConstants.O_NONBLOCK, 0);
+            mSink = sinkOf(mName, mFD);
+            fifo.delete();
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENXIO)
+                mError = new IOException("unable to open " + fifo, e);
+            else if (deadline != 0 && System.nanoTime() > deadline)
+                mError = new IOException("timeout while opening " + fifo);
+
+            if (mError != null)
+                fifo.delete();
+            return false;
+        }
+    }
+
+    /** @return number of bytes accepted by this channel so far, including queued ones */
+    public synchronized long getWritten() {
+        return mWritten;
+    }
+
+    /** @return number of bytes waiting for the pipe to become writable */
+    public synchronized int getQueued() {
+        return mQueue.position();
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (mError != null)
+            throw mError;
+        if (mClosing)
+            throw new ClosedChannelException();
+
+        long n = 0;
+        boolean queued = mQueue.position() > 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer src = srcs[i];
+            n += src.remaining();
+
+            /* keep the order, once something is queued everything else is too */
+            if (!queued && mSink != null)
+                writeNow(src);
+
+            if (src.hasRemaining()) {
+                enqueue(src);
+                queued = true;
+            }
+        }
+
+        if (queued)
+            wakeup();
+        mWritten += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        mSingle[0] = src;
+        try {
+            return (int) write(mSingle, 0, 1);
+        } finally {
+            mSingle[0] = null;
+        }
+    }
+
+    /** write as much as the pipe takes without blocking. */
+    private void writeNow(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && mSink.write(src) > 0)
+            ;
+    }
+
+    private static Sink sinkOf(final String name, final FileDescriptor fd) {
+        return new Sink() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    return Os.write(fd, src);
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.EAGAIN)
+                        throw new IOException("writing " + name + " failed", e);
+                    return 0;
+                }
+            }
+        };
+    }
+
+    private void wakeup() {
+        if (mLoop != null)
+            mLoop.wakeup();
+    }
+
+    private void enqueue(ByteBuffer src) throws IOException {
+        int needed = mQueue.position() + src.remaining();
+
+        if (needed > mQueue.capacity()) {
+            if (needed > mMaxQueued)
+                throw mError = new IOException(mName + " is stalled, " + needed + " bytes queued");
+
+            int capacity = Math.max(INITIAL_CAPACITY, mQueue.capacity());
+            while (capacity < needed)
+                capacity *= 2;
+
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, mMaxQueued));
+            mQueue.flip();
+            grown.put(mQueue);
+            mQueue = grown;
+        }
+
+        mQueue.put(src);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !mClosing;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosing)
+                return;
+            mClosing = true;
+        }
+        wakeup();
+    }
+
+    @Override
+    public synchronized FileDescriptor getFD() {
+        return mFD;
+    }
+
+    @Override
+    public synchronized int getEvents() {
+        return mQueue.position() > 0 || mClosing ? OsConstants.POLLOUT : 0;
+    }
+
+    @Override
+    public synchronized boolean onReady(int revents) throws IOException {
+        if ((revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0)
+            throw mError = new IOException(mName + " was closed by its reader");
+
+        return flush();
+    }
+
+    /** write as much of the queue as the pipe takes.
+     * @return false once the channel is closed and the queue has been written */
+    synchronized boolean flush() throws IOException {
+        mQueue.flip();
+        try {
+            writeNow(mQueue);
+        } catch (IOException e) {
+            throw mError = e;
+        } finally {
+            mQueue.compact();
+        }
+
+        return !(mClosing && mQueue.position() == 0);
+    }
+
+    @Override
+    public void onRemoved(IOException error) {
+        if (error != null) {
+            error.printStackTrace();
+            synchronized (this) {
+                mQueue = ByteBuffer.allocate(0);
+            }
+        }
+
+        try {
+            mOwner.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
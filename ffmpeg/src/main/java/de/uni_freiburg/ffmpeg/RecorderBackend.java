@@ -0,0 +1,63 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Map;
+
+/**
+ * Common interface for everything that turns a set of raw sample streams into a recording.
+ * Either an ffmpeg process that transcodes the streams (FFMpegProcess), or a Matroska muxer
+ * that stores them directly from Java (MatroskaRecorder).
+ *
+ * Each stream is fed through its own channel or OutputStream, closing all of them finishes the
+ * recording.
+ */
+public interface RecorderBackend {
+    /** @return an unbuffered channel that accepts whole sample frames of the j-th stream */
+    GatheringByteChannel getChannel(int j) throws IOException;
+
+    /** @return an OutputStream that accepts whole sample frames of the j-th stream */
+    OutputStream getOutputStream(int j) throws IOException;
+
+    /** wait until all streams have been closed and the recording is complete.
+     * @return 0 on success
+     */
+    int waitFor() throws InterruptedException;
+
+    /** close all streams and wait for the recording to complete.
+     * @return 0 on success
+     */
+    int terminate() throws InterruptedException;
+
+    /** @return the number of bytes written to the output so far */
+    long getBytesOut();
+
+    /** @return the number of bytes that have been accepted, but not taken by the encoder yet,
+     * i.e. are queued in memory since it fell behind. 0 if writes go straight to the output.
+     */
+    long getQueuedBytes();
+
+    /** add tags to the finished recording, e.g. statistics that are only known at its end.
+     * Must be called after waitFor() has returned.
+     */
+    void appendTags(Map<String, String> tags) throws IOException;
+
+    /** the part of the backend builders that is shared by all backends. */
+    interface Builder {
+        /** set a metadata tag for the whole recording */
+        Builder setTag(String key, String value);
+
+        /** add a raw sample stream
+         * @param format sample format, named like the ffmpeg formats, e.g. f32le
+         * @param rate   sample rate in Hz
+         * @param channels number of channels
+         */
+        Builder addAudio(String format, double rate, int channels) throws Exception;
+
+        /** set a metadata tag for the last added stream */
+        Builder setStreamTag(String key, String value) throws Exception;
+
+        RecorderBackend build() throws IOException;
+    }
+}
@@ -0,0 +1,475 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A recorder backend that splits a recording into consecutive segments, each one written by its
+ * own backend which is created through a Factory. A segment ends after a fixed duration, or
+ * once a number of bytes of sample data has been written to it.
+ *
+ * Since all streams have a fixed sample rate, the end of a segment can be mapped to an exact
+ * sample count for each stream. Every stream switches to the next segment right at that sample,
+ * so there are neither gaps nor duplicates between segments. A segment is finished once all of
+ * its streams have moved on. The backend of the next segment is always created ahead of time on
+ * the shared Workers, so it is ready when the first stream reaches the end of the current one.
+ *
+ * The per-stream channels of the segments must not block when being opened, i.e. use
+ * multiplexed ffmpeg inputs or the MatroskaRecorder. Switching segments never blocks either: a
+ * stream that reaches the end of a segment before the next backend is ready takes no further
+ * frames, i.e. a write of its channel returns fewer bytes than given, and the frames stay with
+ * the writer until the next write, e.g. in a SampleRing. Only getOutputStream() waits for the
+ * next backend instead, as a stream can not take less than it is given.
+ *
+ * A SegmentListener is notified when a segment starts, with its exact start time, and once its
+ * backend has completed, e.g. to index the finished file while the recording goes on. waitFor()
+ * also waits for the latter notifications.
+ */
+public class SegmentedBackend implements RecorderBackend {
+
+    /** creates the backend of each segment. */
+    public interface Factory {
+        /** create the backend for the given segment, numbered from zero. */
+        RecorderBackend create(int segment) throws Exception;
+
+        /** called for a backend that was created ahead of time but is not needed anymore. */
+        void discard(int segment, RecorderBackend backend);
+    }
+
+    /** notified about completed segments. */
+    public interface SegmentListener {
+        /** called when the first stream enters a segment, on the thread of that stream.
+         *
+         * @param startSeconds the start of the segment relative to the first one
+         */
+        void onSegmentStarted(int segment, double startSeconds);
+
+        /** called on a background thread once all streams have left the segment and its
+         * backend has completed. */
+        void onSegmentFinished(int segment, RecorderBackend backend);
+    }
+
+    private final Factory mFactory;
+    private final double[] mRates;
+    private final int[] mFrameSizes;
+    private final double mSegmentSeconds;
+    private final long mSegmentBytes;
+    private final SegmentChannel[] mStreams;
+
+    /* backends and end times (in seconds) of all segments created so far */
+    private final ArrayList<RecorderBackend> mBackends = new ArrayList<>();
+    private final ArrayList<Double> mEnds = new ArrayList<>();
+    /* number of streams that have left each segment, and the tasks that wait for them */
+    private final ArrayList<Integer> mLeft = new ArrayList<>();
+    private final ArrayList<Future<?>> mFinishers = new ArrayList<>();
+    private SegmentListener mListener = null;
+    private long mBytes = 0;
+    private int mOpenStreams;
+
+    private RecorderBackend mNext = null;
+    private Exception mNextError = null;
+    private boolean mPreparing = false;
+
+    /**
+     * @param factory        creates the backend for each segment
+     * @param rates          sample rate of each stream in Hz
+     * @param frameSizes     size of a sample frame of each stream in bytes
+     * @param segmentSeconds duration of a segment, 0 for no limit
+     * @param segmentBytes   bytes of sample data per segment, 0 for no limit
+     */
+    public SegmentedBackend(Factory factory, double[] rates, int[] frameSizes,
+                            double segmentSeconds, long segmentBytes) throws Exception {
+        mFactory = factory;
+        mRates = rates;
+        mFrameSizes = frameSizes;
+        mSegmentSeconds = segmentSeconds;
+        mSegmentBytes = segmentBytes;
+        mStreams = new SegmentChannel[rates.length];
+        mOpenStreams = rates.length;
+
+        for (int i = 0; i < rates.length; i++)
+            mStreams[i] = new SegmentChannel(i);
+
+        mBackends.add(factory.create(0));
+        mEnds.add(endOf(0));
+        mLeft.add(0);
+        prepareNext();
+    }
+
+    /** notify the listener about completed segments, must be set before writing. */
+    public synchronized SegmentedBackend setSegmentListener(SegmentListener listener) {
+        mListener = listener;
+        if (listener != null)
+            listener.onSegmentStarted(0, 0);
+        return this;
+    }
+
+    /** @return the number of segments that have been started so far */
+    public synchronized int getNumSegments() {
+        return mBackends.size();
+    }
+
+    @Override
+    public GatheringByteChannel getChannel(int j) {
+        return mStreams[j];
+    }
+
+    @Override
+    public OutputStream getOutputStream(int j) {
+        final SegmentChannel c = mStreams[j];
+        return Channels.newOutputStream(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return c.writeFully(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return c.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                c.close();
+            }
+        });
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        /* a segment that was still being prepared at the end is discarded once it is ready */
+        synchronized (this) {
+            while (mOpenStreams > 0 || mPreparing)
+                wait();
+        }
+
+        int result = 0;
+        for (RecorderBackend b : mBackends)
+            result |= b.waitFor();
+
+        ArrayList<Future<?>> finishers;
+        synchronized (this) { finishers = new ArrayList<>(mFinishers); }
+        for (Future<?> f : finishers) try {
+            f.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+
+        return result;
+    }
+
+    @Override
+    public int terminate() throws InterruptedException {
+        for (SegmentChannel c : mStreams)
+            try { c.close(); }
+            catch (IOException e) {}
+
+        return waitFor();
+    }
+
+    @Override
+    public synchronized long getBytesOut() {
+        long n = 0;
+        for (RecorderBackend b : mBackends)
+            n += b.getBytesOut();
+        return n;
+    }
+
+    @Override
+    public synchronized long getQueuedBytes() {
+        long n = 0;
+        for (RecorderBackend b : mBackends)
+            n += b.getQueuedBytes();
+        return n;
+    }
+
+    /** the tags are added to the last segment only. */
+    @Override
+    public void appendTags(Map<String, String> tags) throws IOException {
+        RecorderBackend last;
+        synchronized (this) { last = mBackends.get(mBackends.size() - 1); }
+        last.appendTags(tags);
+    }
+
+    private double endOf(int segment) {
+        return mSegmentSeconds > 0 ? (segment + 1) * mSegmentSeconds : Double.POSITIVE_INFINITY;
+    }
+
+    /** create the backend of the segment after the last one on the shared Workers. */
+    private synchronized void prepareNext() {
+        if (mSegmentSeconds <= 0 && mSegmentBytes <= 0)
+            return;
+
+        final int segment = mBackends.size();
+        mPreparing = true;
+
+        Workers.submit("prepare segment " + segment, new Runnable() {
+            @Override
+            public void run() {
+                RecorderBackend b = null;
+                Exception error = null;
+
+                try {
+                    b = mFactory.create(segment);
+                } catch (Exception e) {
+                    error = e;
+                }
+
+                synchronized (SegmentedBackend.this) {
+                    mNext = b;
+                    mNextError = error;
+                    mPreparing = false;
+
+                    /* all streams were closed in the meantime */
+                    if (mOpenStreams == 0)
+                        discardNext();
+                    SegmentedBackend.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    private synchronized void discardNext() {
+        if (mNext != null)
+            mFactory.discard(mBackends.size(), mNext);
+        mNext = null;
+    }
+
+    /** @return the backend of the given segment, taking over the prepared one if needed, or
+     * null if it is still being prepared and wait is false */
+    private synchronized RecorderBackend backend(int segment, boolean wait) throws IOException {
+        if (segment < mBackends.size())
+            return mBackends.get(segment);
+
+        try {
+            while (wait && mPreparing)
+                wait();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for the next segment", e);
+        }
+
+        if (mPreparing)
+            return null;
+        if (mNext == null)
+            throw new IOException("unable to create segment " + segment, mNextError);
+
+        mBackends.add(mNext);
+        mEnds.add(endOf(segment));
+        mLeft.add(0);
+        mNext = null;
+        mBytes = 0;
+        prepareNext();
+
+        /* the end of the previous segment can not move anymore */
+        if (mListener != null)
+            mListener.onSegmentStarted(segment, mEnds.get(segment - 1));
+
+        /* streams that were closed right at the start of this segment, see close() */
+        RecorderBackend b = mBackends.get(segment);
+        for (SegmentChannel c : mStreams) {
+            if (c.closedBefore != segment)
+                continue;
+            try {
+                b.getChannel(c.index).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            left(segment);
+        }
+
+        return b;
+    }
+
+    /** account written bytes and end the current segment once the size limit is reached. */
+    private synchronized void written(int segment, long bytes) {
+        if (mSegmentBytes <= 0 || segment != mBackends.size() - 1)
+            return;
+
+        mBytes += bytes;
+        if (mBytes < mSegmentBytes)
+            return;
+
+        /*
+         * end the segment at the next full second which no stream has reached yet.
+         */
+        double now = 0;
+        for (int i = 0; i < mStreams.length; i++)
+            now = Math.max(now, mStreams[i].samples / mRates[i]);
+
+        double end = Math.ceil(now);
+        if (end < mEnds.get(segment))
+            mEnds.set(segment, end);
+    }
+
+    private synchronized long boundary(int stream, int segment) {
+        double end = mEnds.get(segment);
+        return Double.isInfinite(end) ? Long.MAX_VALUE : Math.round(end * mRates[stream]);
+    }
+
+    /** count a stream that has left the given segment, and notify the listener once the
+     * backend of a segment that all streams have left has completed. */
+    private synchronized void left(final int segment) {
+        mLeft.set(segment, mLeft.get(segment) + 1);
+        if (mLeft.get(segment) < mStreams.length || mListener == null)
+            return;
+
+        final RecorderBackend b = mBackends.get(segment);
+        final SegmentListener listener = mListener;
+        mFinishers.add(Workers.submit("finish segment " + segment, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    b.waitFor();
+                    listener.onSegmentFinished(segment, b);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }));
+    }
+
+    private synchronized void streamClosed() {
+        if (--mOpenStreams > 0)
+            return;
+
+        /* a segment that is still being prepared is discarded once it is ready */
+        if (!mPreparing)
+            discardNext();
+        notifyAll();
+    }
+
+    /** write exactly n bytes from srcs to the channel. */
+    private static void write(WritableByteChannel ch, ByteBuffer[] srcs, int offset, int length,
+                              long n) throws IOException {
+        for (int i = offset; i < offset + length && n > 0; i++) {
+            ByteBuffer src = srcs[i];
+            int limit = src.limit(),
+                chunk = (int) Math.min(n, src.remaining());
+
+            src.limit(src.position() + chunk);
+            while (src.hasRemaining())
+                ch.write(src);
+            src.limit(limit);
+
+            n -= chunk;
+        }
+    }
+
+    private class SegmentChannel implements GatheringByteChannel {
+        final int index;
+        final ByteBuffer[] single = new ByteBuffer[1];
+        int segment = 0;
+        long samples = 0;
+        boolean open = true;
+        /* closed before this segment was ready, its channel is closed at the takeover */
+        int closedBefore = -1;
+
+        SegmentChannel(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return write(srcs, offset, length, false);
+        }
+
+        /** write the whole frames of srcs, waiting for the next segment if needed. */
+        int writeFully(ByteBuffer src) throws IOException {
+            single[0] = src;
+            return (int) write(single, 0, 1, true);
+        }
+
+        /** write the whole frames of srcs up to the end of the segments that are ready, or
+         * all of them if wait is true.
+         * @return the number of bytes written */
+        private long write(ByteBuffer[] srcs, int offset, int length, boolean wait)
+                throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++)
+                bytes += srcs[i].remaining();
+
+            int frameSize = mFrameSizes[index];
+            long frames = bytes / frameSize,
+                 total = frames * frameSize;
+
+            while (frames > 0) {
+                RecorderBackend b = backend(segment, wait);
+                if (b == null)
+                    return total - frames * frameSize;
+
+                long end = boundary(index, segment),
+                     n = Math.min(frames, end - samples);
+
+                if (n > 0) {
+                    SegmentedBackend.write(b.getChannel(index), srcs, offset, length, n * frameSize);
+                    samples += n;
+                    frames -= n;
+                    written(segment, n * frameSize);
+                }
+
+                /* the boundary may have moved by writing, so look it up again */
+                if (samples >= boundary(index, segment)) {
+                    b.getChannel(index).close();
+                    left(segment);
+                    segment++;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            single[0] = src;
+            return (int) write(single, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (SegmentedBackend.this) {
+                if (!open)
+                    return;
+                open = false;
+            }
+
+            try {
+                synchronized (SegmentedBackend.this) {
+                    RecorderBackend b = backend(segment, false);
+                    if (b == null) {
+                        closedBefore = segment;
+                        return;
+                    }
+                    try {
+                        b.getChannel(index).close();
+                    } finally {
+                        left(segment);
+                    }
+                }
+            } finally {
+                streamClosed();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The posted and timed tasks of an IoSupervisor. Tasks are added from any thread and taken on
+ * the loop thread: the posted ones in the order they were posted, followed by the timers that
+ * are due, ordered by their due time and, for the same time, in the order they were scheduled.
+ */
+class TaskQueue {
+    private final ArrayList<Runnable> mPosted = new ArrayList<>();
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+    private long mSequence = 0;
+
+    synchronized void post(Runnable r) {
+        mPosted.add(r);
+    }
+
+    /** @param dueNS the time to run the task at, on the clock of System.nanoTime() */
+    synchronized void schedule(Runnable r, long dueNS) {
+        mTimers.add(new Timer(dueNS, mSequence++, r));
+    }
+
+    /** move the posted tasks and the timers that are due at the given time into the list. */
+    synchronized void takeDue(long nowNS, List<Runnable> into) {
+        into.addAll(mPosted);
+        mPosted.clear();
+
+        while (!mTimers.isEmpty() && mTimers.peek().due <= nowNS)
+            into.add(mTimers.poll().task);
+    }
+
+    /** @return the poll timeout in ms until the next task is due, 0 if one is due already and
+     * -1 if there is none */
+    synchronized int getTimeout(long nowNS) {
+        if (!mPosted.isEmpty())
+            return 0;
+        if (mTimers.isEmpty())
+            return -1;
+
+        long wait = mTimers.peek().due - nowNS;
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, (wait + 999999) / 1000000));
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long due, sequence;
+        final Runnable task;
+
+        Timer(long due, long sequence, Runnable task) {
+            this.due = due;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            if (due != o.due)
+                return due < o.due ? -1 : 1;
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.uni_freiburg.ffmpeg;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool for the blocking background work of all recording sessions, e.g. creating and
+ * finishing the backends of segments, which must not run on the IoSupervisor. The number of
+ * threads is bounded regardless of the number of concurrent sessions; further tasks wait in a
+ * queue, and idle threads exit after a while.
+ *
+ * Tasks may block on external events like the exit of a process, but must never wait for
+ * another task of the pool, which might be queued behind them.
+ */
+public final class Workers {
+    private static final int MAX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sPool = null;
+
+    private Workers() {
+    }
+
+    private static synchronized ThreadPoolExecutor get() {
+        if (sPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sPool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Workers-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    /**
+     * run a task on the pool.
+     *
+     * @param name the thread is named after the task while it runs
+     */
+    public static Future<?> submit(final String name, final Runnable task) {
+        return get().submit(new Runnable() {
+            @Override
+            public void run() {
+                Thread t = Thread.currentThread();
+                String idle = t.getName();
+                t.setName(name);
+                try {
+                    task.run();
+                } finally {
+                    t.setName(idle);
+                }
+            }
+        });
+    }
+
+    /** @return the number of tasks running right now */
+    public static int getActiveCount() {
+        return get().getActiveCount();
+    }
+
+    /** @return the number of tasks waiting for a thread */
+    public static int getQueuedCount() {
+        return get().getQueue().size();
+    }
+}
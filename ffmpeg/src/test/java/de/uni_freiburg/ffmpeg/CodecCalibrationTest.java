@@ -0,0 +1,62 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CodecCalibrationTest {
+    private static final CodecCalibration.Result
+            PCM = new CodecCalibration.Result(new String[] { "pcm_f32le" }, .01, 1.),
+            FAST = new CodecCalibration.Result(
+                    new String[] { "wavpack", "-compression_level", "0" }, .05, .6),
+            SMALL = new CodecCalibration.Result(new String[] { "wavpack" }, .2, .5);
+    private static final List<CodecCalibration.Result> RESULTS = Arrays.asList(PCM, FAST, SMALL);
+
+    /* 1 MB/s of input, so the CPU load is the cost per MB */
+    private static final double RATE = 1e6;
+
+    @Test
+    public void choosesBestCompressionWithinCpuBudget() {
+        assertSame(SMALL, CodecCalibration.choose(RESULTS, RATE, 0, 0));
+        assertSame(SMALL, CodecCalibration.choose(RESULTS, RATE, .5, 0));
+        assertSame(FAST, CodecCalibration.choose(RESULTS, RATE, .1, 0));
+        assertSame(PCM, CodecCalibration.choose(RESULTS, RATE, .02, 0));
+    }
+
+    @Test
+    public void choosesCheapestWithinStorageBudget() {
+        assertSame(PCM, CodecCalibration.choose(RESULTS, RATE, 0, 1.));
+        assertSame(FAST, CodecCalibration.choose(RESULTS, RATE, 0, .7));
+        assertSame(SMALL, CodecCalibration.choose(RESULTS, RATE, 0, .5));
+    }
+
+    @Test
+    public void fallsBackToCheapest() {
+        assertSame(PCM, CodecCalibration.choose(RESULTS, RATE, .001, 0));
+        assertSame(PCM, CodecCalibration.choose(RESULTS, RATE, .1, .4));
+    }
+
+    @Test
+    public void keepsOnlyCodecsThatStoreFloats() {
+        CodecCalibration.Result
+                s16 = new CodecCalibration.Result(new String[] { "pcm_s16le" }, .01, .5),
+                flac = new CodecCalibration.Result(new String[] { "flac" }, .1, .3);
+
+        assertEquals(Arrays.asList(FAST, SMALL), CodecCalibration.withFloatSupport(
+                Arrays.asList(s16, flac, FAST, SMALL)));
+        assertEquals(RESULTS, CodecCalibration.withFloatSupport(RESULTS));
+    }
+
+    @Test
+    public void resultsSurviveSerialization() {
+        CodecCalibration.Result r = CodecCalibration.Result.parse(FAST.toString());
+        assertArrayEquals(FAST.codec, r.codec);
+        assertEquals("wavpack", r.getCodec());
+        assertArrayEquals(new String[] { "-compression_level", "0" }, r.getOptions());
+        assertEquals(FAST.cpuPerMB, r.cpuPerMB, 1e-4);
+        assertEquals(FAST.ratio, r.ratio, 1e-3);
+    }
+}
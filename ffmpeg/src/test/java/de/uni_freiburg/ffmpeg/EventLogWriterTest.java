@@ -0,0 +1,135 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EventLogWriterTest {
+    @Test
+    public void keepsEveryTimestampAndValue() throws Exception {
+        File f = File.createTempFile("events", ".log");
+        f.deleteOnExit();
+
+        EventLogWriter w = new EventLogWriter(new FileOutputStream(f).getChannel());
+        int acc = w.addStream(3, 200), light = w.addStream(1, 1);
+        w.setTag("android_id", "1234");
+        w.setStreamTag(acc, "name", "accelerometer");
+        w.start();
+
+        /* jittery and out of step, including a timestamp that goes backwards */
+        long[] times = { 1000000000L, 1005000123L, 1009999000L, 1009998000L, 1020000000L };
+        w.getStreamChannel(acc).write(frames(times, 0, 3, 3));
+        w.getStreamChannel(light).write(frames(new long[] { 1007000000L }, 0, 1, 1));
+        w.getStreamChannel(acc).write(frames(times, 3, 2, 3));
+        w.getStreamChannel(acc).close();
+        w.getStreamChannel(light).close();
+        w.awaitClose();
+
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("metrics.events", "6");
+        EventLogWriter.appendTags(f, stats);
+
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[EventLogWriter.MAGIC.length];
+        b.get(magic);
+        assertArrayEquals(EventLogWriter.MAGIC, magic);
+        assertEquals("1234", readTags(b).get("android_id"));
+
+        assertEquals(2, b.get());
+        int[] channels = new int[2];
+        for (int i = 0; i < 2; i++) {
+            channels[i] = b.get();
+            b.getDouble();
+            Map<String, String> tags = readTags(b);
+            if (i == acc)
+                assertEquals("accelerometer", tags.get("name"));
+        }
+        assertEquals(3, channels[acc]);
+
+        ArrayList<Long> accTimes = new ArrayList<>();
+        ArrayList<Float> accValues = new ArrayList<>();
+        Map<String, String> appended = null;
+
+        while (b.hasRemaining()) {
+            int end = b.getInt() + b.position();
+            int stream = b.get() & 0xFF;
+
+            if (stream == EventLogWriter.TAGS_BLOCK) {
+                appended = readTags(b);
+            } else {
+                int events = b.getInt();
+                long t = b.getLong();
+                for (int i = 0; i < events; i++) {
+                    t += unzigzag(readVarint(b));
+                    for (int c = 0; c < channels[stream]; c++) {
+                        float v = b.getFloat();
+                        if (stream == acc)
+                            accValues.add(v);
+                        else
+                            assertEquals(c, v, 0.f);
+                    }
+                    if (stream == acc)
+                        accTimes.add(t);
+                }
+            }
+            assertEquals(end, b.position());
+        }
+
+        assertEquals(times.length, accTimes.size());
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], (long) accTimes.get(i));
+            assertEquals(i, accValues.get(3 * i), 0.f);
+        }
+        assertEquals("6", appended.get("metrics.events"));
+    }
+
+    /** timestamped frames as in a SampleRing, the values are the frame index plus the channel. */
+    private static ByteBuffer frames(long[] times, int first, int n, int channels) {
+        ByteBuffer b = ByteBuffer.allocate(n * (8 + 4 * channels)).order(ByteOrder.nativeOrder());
+        for (int i = first; i < first + n; i++) {
+            b.putLong(times[i]);
+            for (int c = 0; c < channels; c++)
+                b.putFloat(i + c);
+        }
+        b.flip();
+        return b;
+    }
+
+    private static Map<String, String> readTags(ByteBuffer b) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        int n = b.getShort();
+        for (int i = 0; i < n; i++)
+            tags.put(readString(b), readString(b));
+        return tags;
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] data = new byte[b.getShort()];
+        b.get(data);
+        return new String(data, Charset.forName("UTF-8"));
+    }
+
+    private static long readVarint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0)
+                return v;
+        }
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,38 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FFMpegProgressTest {
+    @Test
+    public void parsesProgressBlocks() {
+        FFMpegProgress.Parser parser = new FFMpegProgress.Parser();
+        String[] block = {
+                "bitrate= 123.4kbits/s",
+                "total_size=4096",
+                "out_time_us=2500000",
+                "out_time=00:00:02.500000",
+                "dup_frames=0",
+                "drop_frames=3",
+                "speed=0.85x",
+        };
+
+        for (String line : block)
+            assertNull(parser.parse(line));
+
+        FFMpegProgress p = parser.parse("progress=continue");
+        assertNotNull(p);
+        assertEquals(2500000, p.outTimeUS);
+        assertEquals(4096, p.totalSize);
+        assertEquals(123.4, p.bitrateKbps, 1e-9);
+        assertEquals(.85, p.speed, 1e-9);
+        assertEquals(3, p.dropFrames);
+        assertFalse(p.end);
+
+        assertNull(parser.parse("speed=N/A"));
+        p = parser.parse("progress=end");
+        assertEquals(-1, p.speed, 0);
+        assertTrue(p.end);
+    }
+}
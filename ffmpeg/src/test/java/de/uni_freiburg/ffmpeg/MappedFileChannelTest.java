@@ -0,0 +1,59 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MappedFileChannelTest {
+    @Test
+    public void appendsAcrossStepsAndTruncatesOnClose() throws Exception {
+        File f = File.createTempFile("mapped", ".bin");
+        f.deleteOnExit();
+
+        MappedFileChannel ch = new MappedFileChannel(f, 100);
+        for (int i = 0; i < 30; i++) {
+            ByteBuffer b = ByteBuffer.allocate(7);
+            for (int j = 0; j < 7; j++)
+                b.put((byte) (i * 7 + j));
+            b.flip();
+            assertEquals(7, ch.write(b));
+        }
+
+        /* extended in whole steps while open */
+        assertEquals(210, ch.position());
+        assertEquals(300, f.length());
+
+        ch.close();
+        byte[] data = Files.readAllBytes(f.toPath());
+        assertEquals(210, data.length);
+        for (int i = 0; i < data.length; i++)
+            assertEquals((byte) i, data[i]);
+    }
+
+    @Test
+    public void cutOffJournalEndsAtLastCluster() throws Exception {
+        File f = File.createTempFile("journal", ".mkv");
+        f.deleteOnExit();
+
+        /* the process dies before the channel is closed, which leaves zeros at the end */
+        MatroskaWriter w = new MatroskaWriter(new MappedFileChannel(f, 64 * 1024), "test")
+                .setClusterDuration(1000);
+        GatheringByteChannel t = w.getTrackChannel(w.addAudioTrack("f32le", 10, 1));
+        for (int i = 0; i < 5; i++)
+            t.write(ByteBuffer.allocate(10 * 4).order(ByteOrder.LITTLE_ENDIAN));
+
+        MatroskaIndex index = MatroskaIndex.scan(f, 1000L * 1000 * 1000);
+        assertTrue(index.isTruncated());
+        assertTrue(index.getValidEnd() < f.length());
+
+        assertTrue(MatroskaIndex.repair(f));
+        assertEquals(index.getValidEnd(), f.length());
+        assertFalse(MatroskaIndex.scan(f, 1000L * 1000 * 1000).isTruncated());
+    }
+}
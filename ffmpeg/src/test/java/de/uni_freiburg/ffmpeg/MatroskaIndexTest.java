@@ -0,0 +1,104 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MatroskaIndexTest {
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    /** record 60 s of a 50 Hz and a 1 Hz track, one write per second and track. */
+    private static File record() throws Exception {
+        File f = File.createTempFile("index", ".mkv");
+        f.deleteOnExit();
+
+        FileOutputStream fos = new FileOutputStream(f);
+        MatroskaWriter w = new MatroskaWriter(fos.getChannel(), "test")
+                .setClusterDuration(2000);
+        int acc = w.addAudioTrack("f32le", 50, 3),
+            light = w.addAudioTrack("f32le", 1, 1);
+
+        GatheringByteChannel a = w.getTrackChannel(acc),
+                             l = w.getTrackChannel(light);
+        for (int i = 0; i < 60; i++) {
+            a.write(ByteBuffer.allocate(50 * 3 * 4).order(ByteOrder.LITTLE_ENDIAN));
+            l.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        a.close();
+        l.close();
+        return f;
+    }
+
+    @Test
+    public void indexesEveryIntervalPerTrack() throws Exception {
+        File f = record();
+        MatroskaIndex index = MatroskaIndex.scan(f, 10 * SECOND);
+
+        assertFalse(index.isTruncated());
+        assertEquals(f.length(), index.getValidEnd());
+
+        List<MatroskaIndex.Entry> entries = index.getEntries();
+        assertEquals(12, entries.size());
+        for (MatroskaIndex.Entry e : entries)
+            assertEquals(0, e.timeNS % (10 * SECOND));
+
+        long early = index.seek(1, 15 * SECOND),
+             late = index.seek(1, 45 * SECOND);
+        assertTrue(early > 0 && late > early);
+        assertEquals(index.seek(1, 40 * SECOND), late);
+
+        /* the entry points at a cluster */
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(late);
+            assertEquals(MatroskaWriter.CLUSTER, raf.readInt());
+        }
+
+        File sidecar = MatroskaIndex.sidecarFor(f);
+        sidecar.deleteOnExit();
+        index.write(sidecar);
+        assertEquals(late, MatroskaIndex.read(sidecar).seek(1, 45 * SECOND));
+    }
+
+    @Test
+    public void repairsCutOffRecordings() throws Exception {
+        File f = record();
+        long length = f.length();
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length - 700);
+        }
+
+        MatroskaIndex cut = MatroskaIndex.scan(f, SECOND);
+        assertTrue(cut.isTruncated());
+        assertTrue(cut.getValidEnd() < f.length());
+
+        assertTrue(MatroskaIndex.repair(f));
+        assertEquals(cut.getValidEnd(), f.length());
+
+        MatroskaIndex repaired = MatroskaIndex.scan(f, SECOND);
+        assertFalse(repaired.isTruncated());
+        assertEquals(cut.getEntries().size(), repaired.getEntries().size());
+        assertFalse(MatroskaIndex.repair(f));
+
+        /* the segment now has its actual size */
+        ByteBuffer b = ByteBuffer.allocate(1024);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.getChannel().read(b, 0);
+        }
+        b.flip();
+        MatroskaWriter.readId(b);
+        int header = (int) MatroskaWriter.readSize(b);
+        b.position(b.position() + header);
+        assertEquals(MatroskaWriter.SEGMENT, MatroskaWriter.readId(b));
+        long size = MatroskaWriter.readSize(b);
+        assertEquals(f.length() - b.position(), size);
+    }
+}
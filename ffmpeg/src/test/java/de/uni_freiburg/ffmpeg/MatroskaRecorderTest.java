@@ -0,0 +1,86 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MatroskaRecorderTest {
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    /** record 10 s of a 50 Hz and a 1 Hz stream through the backend interface. */
+    private static File record(long preallocate) throws Exception {
+        File f = File.createTempFile("recorder", ".mkv");
+        f.deleteOnExit();
+
+        RecorderBackend b = new MatroskaRecorder.Builder(f)
+                .setClusterDuration(2000)
+                .setPreallocation(preallocate)
+                .setTag("android_id", "1234")
+                .addAudio("f32le", 50, 3)
+                .setStreamTag("name", "accelerometer")
+                .addAudio("s16le", 1, 1)
+                .setStreamTag("name", "light")
+                .build();
+
+        OutputStream acc = b.getOutputStream(0);
+        for (int i = 0; i < 10; i++) {
+            acc.write(new byte[50 * 3 * 4]);
+            b.getChannel(1).write(ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        assertEquals(0, b.getQueuedBytes());
+
+        acc.close();
+        b.getChannel(1).close();
+        assertEquals(0, b.waitFor());
+        assertEquals(f.length(), b.getBytesOut());
+
+        b.appendTags(Collections.singletonMap("frames_written", "510"));
+        return f;
+    }
+
+    private static void assertValid(File f) throws Exception {
+        MatroskaIndex index = MatroskaIndex.scan(f, SECOND);
+        assertFalse(index.isTruncated());
+        assertEquals(f.length(), index.getValidEnd());
+        assertEquals(20, index.getEntries().size());
+
+        String content = new String(Files.readAllBytes(f.toPath()), Charset.forName("ISO-8859-1"));
+        for (String s : new String[] { "1234", "accelerometer", "light", "A_PCM/FLOAT/IEEE",
+                                       "A_PCM/INT/LIT", "frames_written" })
+            assertTrue(s, content.contains(s));
+    }
+
+    @Test
+    public void writesTracksAndTagsWithoutFFMpeg() throws Exception {
+        assertValid(record(0));
+    }
+
+    @Test
+    public void trimsPreallocatedFiles() throws Exception {
+        File f = record(64 * 1024);
+        assertTrue(f.length() < 64 * 1024);
+        assertValid(f);
+    }
+
+    @Test
+    public void terminateClosesOpenTracks() throws Exception {
+        File f = File.createTempFile("recorder", ".mkv");
+        f.deleteOnExit();
+
+        RecorderBackend b = new MatroskaRecorder.Builder(f)
+                .addAudio("f32le", 50, 1)
+                .build();
+        b.getChannel(0).write(ByteBuffer.allocate(50 * 4));
+
+        assertEquals(0, b.terminate());
+        assertFalse(MatroskaIndex.scan(f, SECOND).isTruncated());
+    }
+}
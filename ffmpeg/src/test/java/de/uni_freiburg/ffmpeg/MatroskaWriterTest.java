@@ -0,0 +1,185 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MatroskaWriterTest {
+    @Test
+    public void writesInterleavedBlocksIntoClusters() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MatroskaWriter w = new MatroskaWriter(Channels.newChannel(out), "test");
+
+        int acc = w.addAudioTrack("f32le", 50, 3),
+            light = w.addAudioTrack("f32le", 1, 1);
+        w.setTag("android_id", "1234");
+        w.setTrackTag(acc, "name", "accelerometer");
+
+        GatheringByteChannel a = w.getTrackChannel(acc),
+                             l = w.getTrackChannel(light);
+
+        a.write(frames(50, 3));
+        l.write(frames(1, 1));
+        a.write(frames(50, 3));
+        a.close();
+        assertTrue(out.size() > 0);
+        l.close();
+
+        ByteBuffer b = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(MatroskaWriter.EBML, readId(b));
+        skip(b);
+        assertEquals(MatroskaWriter.SEGMENT, readId(b));
+        assertEquals(MatroskaWriter.UNKNOWN_SIZE, readSize(b));
+
+        int blocks = 0, clusters = 0;
+        while (b.hasRemaining()) {
+            int id = readId(b);
+            long size = readSize(b);
+
+            if (id == MatroskaWriter.CLUSTER) {
+                clusters++;
+                int end = b.position() + (int) size;
+                assertEquals(MatroskaWriter.TIMECODE, readId(b));
+                skip(b);
+
+                while (b.position() < end) {
+                    assertEquals(MatroskaWriter.SIMPLE_BLOCK, readId(b));
+                    int len = (int) readSize(b);
+                    int track = b.get() & 0x7F;
+                    short timecode = b.getShort();
+                    b.get();
+                    blocks++;
+
+                    if (track == acc + 1 && blocks == 3)
+                        assertEquals(1000, timecode);
+                    b.position(b.position() + len - 4);
+                }
+            } else
+                b.position(b.position() + (int) size);
+        }
+
+        assertEquals(1, clusters);
+        assertEquals(3, blocks);
+    }
+
+    @Test
+    public void storesBigEndianFloatsAsLittleEndian() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MatroskaWriter w = new MatroskaWriter(Channels.newChannel(out), "test");
+        GatheringByteChannel t = w.getTrackChannel(w.addAudioTrack("f32be", 50, 2));
+
+        ByteBuffer frame = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        frame.putFloat(9.81f).putFloat(-1.5f).flip();
+        t.write(frame);
+        t.close();
+
+        byte[] le = new byte[8];
+        ByteBuffer.wrap(le).order(ByteOrder.LITTLE_ENDIAN).putFloat(9.81f).putFloat(-1.5f);
+        byte[] file = out.toByteArray();
+        assertTrue(indexOf(file, le) >= 0);
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++)
+                if (haystack[i + j] != needle[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void rejectsPartialFrames() throws Exception {
+        MatroskaWriter w = new MatroskaWriter(Channels.newChannel(new ByteArrayOutputStream()), "test");
+        int t = w.addAudioTrack("f32le", 50, 3);
+        w.getTrackChannel(t).write(ByteBuffer.allocate(8));
+    }
+
+    @Test
+    public void appendsTagsAndUpdatesTheSegmentSize() throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(256);
+        int m = MatroskaWriter.startMaster(b, MatroskaWriter.EBML);
+        MatroskaWriter.putString(b, MatroskaWriter.DOCTYPE, "matroska");
+        MatroskaWriter.endMaster(b, m);
+        int segment = MatroskaWriter.startMaster(b, MatroskaWriter.SEGMENT);
+        m = MatroskaWriter.startMaster(b, MatroskaWriter.INFO);
+        MatroskaWriter.putString(b, MatroskaWriter.WRITING_APP, "test");
+        MatroskaWriter.endMaster(b, m);
+        MatroskaWriter.endMaster(b, segment);
+        b.flip();
+
+        File f = File.createTempFile("tags", ".mkv");
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            out.getChannel().write(b);
+            out.close();
+
+            Map<String, String> tags = new LinkedHashMap<>();
+            tags.put("accelerometer.events", "42");
+            MatroskaWriter.appendTags(f, tags);
+
+            b = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            assertEquals(MatroskaWriter.EBML, readId(b));
+            skip(b);
+            assertEquals(MatroskaWriter.SEGMENT, readId(b));
+            assertEquals(b.capacity() - 8 - b.position(), readSize(b));
+            assertEquals(MatroskaWriter.INFO, readId(b));
+            skip(b);
+            assertEquals(MatroskaWriter.TAGS, readId(b));
+            readSize(b);
+            assertEquals(MatroskaWriter.TAG, readId(b));
+            readSize(b);
+            assertEquals(MatroskaWriter.TARGETS, readId(b));
+            skip(b);
+            assertEquals(MatroskaWriter.SIMPLE_TAG, readId(b));
+            readSize(b);
+            assertEquals(MatroskaWriter.TAG_NAME, readId(b));
+            byte[] name = new byte[(int) readSize(b)];
+            b.get(name);
+            assertEquals("accelerometer.events", new String(name, "UTF-8"));
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static ByteBuffer frames(int n, int channels) {
+        ByteBuffer b = ByteBuffer.allocate(4 * n * channels).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < n * channels; i++)
+            b.putFloat(i);
+        b.flip();
+        return b;
+    }
+
+    private static void skip(ByteBuffer b) {
+        int size = (int) readSize(b);
+        b.position(b.position() + size);
+    }
+
+    private static int readId(ByteBuffer b) {
+        int first = b.get() & 0xFF, len = Integer.numberOfLeadingZeros(first) - 23, id = first;
+        for (int i = 1; i < len; i++)
+            id = (id << 8) | (b.get() & 0xFF);
+        return id;
+    }
+
+    private static long readSize(ByteBuffer b) {
+        int first = b.get() & 0xFF, len = Integer.numberOfLeadingZeros(first) - 23;
+        long size = first & (0xFF >> len);
+        for (int i = 1; i < len; i++)
+            size = (size << 8) | (b.get() & 0xFF);
+        return size;
+    }
+}
@@ -0,0 +1,123 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import static org.junit.Assert.*;
+
+public class PipeOutboxTest {
+    /** a non-blocking pipe whose reader is driven by hand */
+    private static class TestPipe implements PipeOutbox.Sink {
+        final Pipe pipe;
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+
+        TestPipe() throws IOException {
+            pipe = Pipe.open();
+            pipe.sink().configureBlocking(false);
+            pipe.source().configureBlocking(false);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return pipe.sink().write(src);
+        }
+
+        /** read up to n bytes that are in the pipe */
+        int read(int n) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(n);
+            int total = 0, r;
+            while (b.hasRemaining() && (r = pipe.source().read(b)) > 0)
+                total += r;
+            read.write(b.array(), 0, total);
+            return total;
+        }
+    }
+
+    private static ByteBuffer counter(int first, int n) {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        for (int i = 0; i < n; i++)
+            b.put((byte) (first + i));
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void keepsTheOrderOfWrittenAndQueuedData() throws Exception {
+        TestPipe p = new TestPipe();
+        PipeOutbox o = new PipeOutbox("test", p, 4 * 1024 * 1024);
+
+        /* more than the pipe takes, the rest and everything after it is queued */
+        int total = 0;
+        for (int n : new int[] { 1024 * 1024, 3, 4096 }) {
+            ByteBuffer[] parts = { counter(total, n / 2), counter(total + n / 2, n - n / 2) };
+            assertEquals(n, o.write(parts));
+            assertFalse(parts[0].hasRemaining() || parts[1].hasRemaining());
+            total += n;
+        }
+        assertEquals(total, o.getWritten());
+        assertTrue(o.getQueued() > 0);
+
+        /* the queue is written as the reader makes room */
+        o.close();
+        assertFalse(o.isOpen());
+        boolean open = true;
+        for (int i = 0; open && i < 10000; i++) {
+            p.read(16 * 1024);
+            open = o.flush();
+        }
+        assertFalse(open);
+        while (p.read(16 * 1024) > 0)
+            ;
+
+        assertEquals(0, o.getQueued());
+        byte[] data = p.read.toByteArray();
+        assertEquals(total, data.length);
+        for (int i = 0; i < total; i++)
+            assertEquals((byte) i, data[i]);
+    }
+
+    @Test
+    public void writesStraightIntoThePipeWhileTheReaderKeepsUp() throws Exception {
+        TestPipe p = new TestPipe();
+        PipeOutbox o = new PipeOutbox("test", p, 1024);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(100, o.write(counter(i * 100, 100)));
+            assertEquals(0, o.getQueued());
+            assertEquals(100, p.read(1000));
+        }
+        assertEquals(100 * 100, o.getWritten());
+    }
+
+    @Test
+    public void failsOnceTheQueueOfAStalledReaderIsFull() throws Exception {
+        TestPipe p = new TestPipe();
+        PipeOutbox o = new PipeOutbox("test", p, 1024);
+
+        /* fill the pipe, nobody reads */
+        while (o.getQueued() == 0)
+            o.write(counter(0, 512));
+        assertTrue(o.getQueued() <= 512);
+        o.write(counter(0, 512));
+
+        try {
+            o.write(counter(0, 512));
+            fail("the queue exceeds its limit");
+        } catch (IOException e) {
+            /* expected */
+        }
+
+        /* the channel stays failed, even after the reader caught up */
+        p.read(1024 * 1024);
+        try {
+            o.write(counter(0, 1));
+            fail("the channel has failed");
+        } catch (IOException e) {
+            /* expected */
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SegmentedBackendTest {
+    @Test
+    public void splitsStreamsAtExactSampleBoundaries() throws Exception {
+        final ArrayList<MemoryBackend> segments = new ArrayList<>();
+        final int[] discarded = {0};
+
+        SegmentedBackend b = new SegmentedBackend(new SegmentedBackend.Factory() {
+            @Override
+            public RecorderBackend create(int segment) {
+                MemoryBackend m = new MemoryBackend();
+                synchronized (segments) { segments.add(m); }
+                return m;
+            }
+
+            @Override
+            public void discard(int segment, RecorderBackend backend) {
+                discarded[0]++;
+            }
+        }, new double[] {10, 1}, new int[] {4, 8}, 2, 0);
+
+        final boolean[] finished = new boolean[3];
+        final double[] starts = new double[3];
+        b.setSegmentListener(new SegmentedBackend.SegmentListener() {
+            @Override
+            public void onSegmentStarted(int segment, double startSeconds) {
+                synchronized (starts) { starts[segment] = startSeconds; }
+            }
+
+            @Override
+            public void onSegmentFinished(int segment, RecorderBackend backend) {
+                synchronized (finished) { finished[segment] = true; }
+            }
+        });
+
+        GatheringByteChannel fast = b.getChannel(0),
+                             slow = b.getChannel(1);
+
+        /* 5 seconds of samples, written in uneven chunks and with the streams out of step */
+        int written = 0;
+        for (int n : new int[] {7, 16, 3, 24}) {
+            writeAll(fast, counter(written, n));
+            written += n;
+        }
+        writeAll(slow, counter(0, 4), counter(4, 6));
+
+        fast.close();
+        slow.close();
+        assertEquals(0, b.waitFor());
+
+        assertEquals(3, b.getNumSegments());
+        assertEquals(1, discarded[0]);
+        synchronized (finished) {
+            for (boolean f : finished)
+                assertTrue(f);
+        }
+        synchronized (starts) {
+            for (int i = 0; i < 3; i++)
+                assertEquals(2. * i, starts[i], 0);
+        }
+
+        int expected = 0;
+        for (int i = 0; i < 3; i++) {
+            MemoryBackend m = segments.get(i);
+            ByteBuffer data = ByteBuffer.wrap(m.out[0].toByteArray());
+
+            assertEquals(i < 2 ? 20 : 10, data.remaining() / 4);
+            while (data.hasRemaining())
+                assertEquals(expected++, data.getInt());
+
+            assertEquals(i < 2 ? 16 : 8, m.out[1].size());
+        }
+    }
+
+    @Test
+    public void leavesFramesWithTheWriterUntilTheNextSegmentIsReady() throws Exception {
+        final ArrayList<MemoryBackend> segments = new ArrayList<>();
+        final CountDownLatch ready = new CountDownLatch(1);
+
+        SegmentedBackend b = new SegmentedBackend(new SegmentedBackend.Factory() {
+            @Override
+            public RecorderBackend create(int segment) throws Exception {
+                if (segment > 0)
+                    ready.await();
+
+                MemoryBackend m = new MemoryBackend();
+                synchronized (segments) { segments.add(m); }
+                return m;
+            }
+
+            @Override
+            public void discard(int segment, RecorderBackend backend) {
+            }
+        }, new double[] {10, 1}, new int[] {4, 8}, 2, 0);
+
+        GatheringByteChannel fast = b.getChannel(0),
+                             slow = b.getChannel(1);
+
+        /* the first segment takes 2 s, the rest waits for the next one */
+        ByteBuffer data = counter(0, 30);
+        assertEquals(20 * 4, fast.write(data));
+        assertEquals(10 * 4, data.remaining());
+        assertEquals(0, fast.write(data));
+
+        /* a stream that ends right at the boundary is closed once the segment is ready */
+        assertEquals(2 * 8, slow.write(ByteBuffer.allocate(2 * 8)));
+        slow.close();
+        assertEquals(1, b.getNumSegments());
+
+        ready.countDown();
+        writeAll(fast, data);
+        fast.close();
+        assertEquals(0, b.waitFor());
+
+        assertEquals(2, b.getNumSegments());
+        assertEquals(20 * 4, segments.get(0).out[0].size());
+        assertEquals(10 * 4, segments.get(1).out[0].size());
+        assertEquals(0, segments.get(1).out[1].size());
+        assertFalse(segments.get(1).channels[1].isOpen());
+    }
+
+    /** write all frames like a SampleRing does, until the next segment takes the rest */
+    private static void writeAll(GatheringByteChannel ch, ByteBuffer... srcs) throws IOException {
+        while (srcs[srcs.length - 1].hasRemaining())
+            if (ch.write(srcs) == 0)
+                Thread.yield();
+    }
+
+    private static ByteBuffer counter(int first, int n) {
+        ByteBuffer b = ByteBuffer.allocate(4 * n);
+        for (int i = 0; i < n; i++)
+            b.putInt(first + i);
+        b.flip();
+        return b;
+    }
+
+    private static class MemoryBackend implements RecorderBackend {
+        final ByteArrayOutputStream[] out = {
+                new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+        final GatheringByteChannel[] channels = new GatheringByteChannel[2];
+
+        MemoryBackend() {
+            for (int i = 0; i < 2; i++) {
+                final WritableByteChannel c = Channels.newChannel(out[i]);
+                channels[i] = new GatheringByteChannel() {
+                    @Override
+                    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                        long n = 0;
+                        for (int j = offset; j < offset + length; j++)
+                            n += c.write(srcs[j]);
+                        return n;
+                    }
+
+                    @Override
+                    public long write(ByteBuffer[] srcs) throws IOException {
+                        return write(srcs, 0, srcs.length);
+                    }
+
+                    @Override
+                    public int write(ByteBuffer src) throws IOException {
+                        return c.write(src);
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return c.isOpen();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        c.close();
+                    }
+                };
+            }
+        }
+
+        @Override
+        public GatheringByteChannel getChannel(int j) {
+            return channels[j];
+        }
+
+        @Override
+        public OutputStream getOutputStream(int j) {
+            return Channels.newOutputStream(channels[j]);
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int terminate() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesOut() {
+            return out[0].size() + out[1].size();
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void appendTags(Map<String, String> tags) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class TaskQueueTest {
+    private static final long MS = 1000 * 1000;
+
+    /** a task that logs its name when it runs */
+    private static Runnable task(final ArrayList<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static void runDue(TaskQueue q, long now) {
+        ArrayList<Runnable> due = new ArrayList<>();
+        q.takeDue(now, due);
+        for (Runnable r : due)
+            r.run();
+    }
+
+    @Test
+    public void runsPostedTasksFirstAndTimersByDueTime() {
+        ArrayList<String> log = new ArrayList<>();
+        TaskQueue q = new TaskQueue();
+
+        q.schedule(task(log, "c"), 10 * MS);
+        q.post(task(log, "a"));
+        q.schedule(task(log, "d"), 10 * MS);
+        q.schedule(task(log, "e"), 30 * MS);
+        q.schedule(task(log, "b"), 5 * MS);
+        q.post(task(log, "a2"));
+
+        runDue(q, 0);
+        assertEquals("[a, a2]", log.toString());
+
+        /* timers of the same due time run in the order they were scheduled */
+        runDue(q, 20 * MS);
+        assertEquals("[a, a2, b, c, d]", log.toString());
+
+        runDue(q, 30 * MS);
+        assertEquals("[a, a2, b, c, d, e]", log.toString());
+    }
+
+    @Test
+    public void pollsUntilTheNextTask() {
+        ArrayList<String> log = new ArrayList<>();
+        TaskQueue q = new TaskQueue();
+        assertEquals(-1, q.getTimeout(0));
+
+        /* rounded up, so the timer is due once the poll returns */
+        q.schedule(task(log, "a"), 5 * MS + 1);
+        assertEquals(6, q.getTimeout(0));
+        assertEquals(0, q.getTimeout(10 * MS));
+
+        q.post(task(log, "b"));
+        assertEquals(0, q.getTimeout(0));
+
+        runDue(q, 0);
+        assertEquals(6, q.getTimeout(0));
+        runDue(q, 5 * MS + 1);
+        assertEquals(-1, q.getTimeout(0));
+        assertEquals("[b, a]", log.toString());
+    }
+}
@@ -0,0 +1,49 @@
+package de.uni_freiburg.ffmpeg;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WorkersTest {
+    @Test
+    public void boundsThreadsOfManySessions() throws Exception {
+        int limit = Math.max(2, Runtime.getRuntime().availableProcessors()),
+            tasks = 3 * limit;
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger(), peak = new AtomicInteger();
+
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < tasks; i++)
+            futures.add(Workers.submit("task " + i, new Runnable() {
+                @Override
+                public void run() {
+                    int n = running.incrementAndGet();
+                    synchronized (peak) {
+                        peak.set(Math.max(peak.get(), n));
+                    }
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    running.decrementAndGet();
+                }
+            }));
+
+        /* the blocked tasks occupy all threads, the rest waits in the queue */
+        while (running.get() < limit)
+            Thread.sleep(1);
+        assertEquals(limit, Workers.getActiveCount());
+        assertEquals(tasks - limit, Workers.getQueuedCount());
+
+        release.countDown();
+        for (Future<?> f : futures)
+            f.get();
+        assertEquals(limit, peak.get());
+    }
+}
@@ -0,0 +1,72 @@
+package de.uni_freiburg.mkvtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import de.uni_freiburg.ffmpeg.MatroskaIndex;
+
+/**
+ * Repairs recordings that were cut off by a killed recorder, and rebuilds their time index
+ * sidecar. A cut off file is truncated to its last complete block, and the sizes of its segment
+ * and last cluster are fixed, so that players and analysis tools can read it up to that point.
+ *
+ *   ./gradlew :mkvtools:run --args='-interval 10 2019-*.mkv'
+ *
+ * options: -n          only report what would be repaired, write nothing
+ *          -interval S seconds between two index entries of a stream (default 10)
+ */
+public class Recover {
+    public static void main(String[] args) {
+        boolean dryRun = false;
+        double interval = 10;
+        ArrayList<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n"))
+                dryRun = true;
+            else if (args[i].equals("-interval"))
+                interval = Double.parseDouble(args[++i]);
+            else
+                files.add(new File(args[i]));
+        }
+
+        if (files.isEmpty() || interval <= 0) {
+            System.err.println("usage: Recover [-n] [-interval S] FILE.mkv...");
+            System.exit(1);
+        }
+
+        int failed = 0;
+        for (File f : files)
+            try {
+                recover(f, (long) (interval * 1e9), dryRun);
+            } catch (IOException e) {
+                System.err.println(f + ": " + e.getMessage());
+                failed++;
+            }
+
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static void recover(File file, long intervalNS, boolean dryRun) throws IOException {
+        MatroskaIndex index = MatroskaIndex.scan(file, intervalNS);
+        long length = file.length();
+
+        if (index.isTruncated())
+            System.out.println(String.format("%s: cut off, %d of %d bytes are complete",
+                    file, index.getValidEnd(), length));
+
+        if (dryRun)
+            return;
+
+        if (MatroskaIndex.repair(file)) {
+            System.out.println(String.format("%s: repaired, %d bytes", file, file.length()));
+            index = MatroskaIndex.scan(file, intervalNS);
+        }
+
+        File sidecar = MatroskaIndex.sidecarFor(file);
+        index.write(sidecar);
+        System.out.println(String.format("%s: %d index entries in %s",
+                file, index.getEntries().size(), sidecar));
+    }
+}
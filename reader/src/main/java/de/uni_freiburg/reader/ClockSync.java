@@ -0,0 +1,179 @@
+package de.uni_freiburg.reader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The clock sync markers of a recording, as written by the ClockLog of the recorder into a
+ * .clock sidecar. They map the time of a sample, i.e. seconds since the beginning of the
+ * recording or one of its segments, onto UTC. Between two markers the offset of the sensor
+ * clock to UTC is interpolated linearly, before the first and after the last marker it is
+ * held constant.
+ *
+ * The sidecar also lists the rate changes of adaptive sampling. A stream always has its nominal
+ * rate, but while its sensor was stepped down each event is repeated until the next one.
+ */
+public final class ClockSync {
+    /** the sensor of a stream was switched to another sampling rate. */
+    public static final class RateChange {
+        /** index of the stream in the recording, see Stream.getIndex() */
+        public final int stream;
+        /** time of the change in seconds since the beginning of the recording */
+        public final double time;
+        /** the rate of the sensor from then on in Hz */
+        public final double rate;
+
+        RateChange(int stream, double time, double rate) {
+            this.stream = stream;
+            this.time = time;
+            this.rate = rate;
+        }
+    }
+
+    private long mStartNS = Long.MIN_VALUE;
+    private final TreeMap<Integer, Double> mSegments = new TreeMap<>();
+
+    /* sensor clock time of each marker, and its offset to UTC, both in ns */
+    private long[] mElapsed = new long[16], mOffset = new long[16];
+    private int mMarkers = 0;
+    private final ArrayList<RateChange> mRateChanges = new ArrayList<>();
+
+    private ClockSync() {
+    }
+
+    /** read the markers of a sidecar.
+     *
+     * @throws IOException if it is malformed, or the recording never started
+     */
+    public static ClockSync read(File file) throws IOException {
+        ClockSync c = new ClockSync();
+        ArrayList<String[]> rates = new ArrayList<>();
+
+        try (BufferedReader r = new BufferedReader(new FileReader(file))) {
+            String line;
+            int n = 0;
+            while ((line = r.readLine()) != null) {
+                n++;
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] f = line.split("\t");
+                try {
+                    if (f[0].equals("start") && f.length == 2)
+                        c.mStartNS = Long.parseLong(f[1]);
+                    else if (f[0].equals("segment") && f.length == 3)
+                        c.mSegments.put(Integer.parseInt(f[1]), Double.parseDouble(f[2]));
+                    else if (f[0].equals("clock") && f.length == 3)
+                        c.add(Long.parseLong(f[1]), Long.parseLong(f[2]));
+                    else if (f[0].equals("rate") && f.length == 4)
+                        rates.add(f);
+                    else
+                        throw new IOException(file + ":" + n + ": unknown entry " + line);
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + n + ": invalid number in " + line);
+                }
+            }
+        }
+
+        if (c.mStartNS == Long.MIN_VALUE)
+            throw new IOException(file + " has no start, the recording never started");
+        if (c.mMarkers == 0)
+            throw new IOException(file + " has no clock markers");
+
+        /* relative to the start, which may be logged after the first changes */
+        for (String[] f : rates) try {
+            c.mRateChanges.add(new RateChange(Integer.parseInt(f[1]),
+                    (Long.parseLong(f[2]) - c.mStartNS) / 1e9, Double.parseDouble(f[3])));
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": invalid rate change " + Arrays.toString(f));
+        }
+        return c;
+    }
+
+    /**
+     * @return the sidecar of a recording or segment, i.e. its name without the .mkv suffix and
+     * segment number, with .clock appended
+     */
+    public static File sidecarFor(File recording) {
+        String name = recording.getName();
+        if (name.endsWith(".mkv"))
+            name = name.substring(0, name.length() - ".mkv".length());
+        if (name.matches(".*_\\d{4}"))
+            name = name.substring(0, name.length() - "_0000".length());
+        return new File(recording.getParentFile(), name + ".clock");
+    }
+
+    /** markers are written in order, but keep them sorted in case the clock was read late */
+    private void add(long elapsedNS, long utcMS) {
+        if (mMarkers == mElapsed.length) {
+            mElapsed = Arrays.copyOf(mElapsed, mMarkers * 2);
+            mOffset = Arrays.copyOf(mOffset, mMarkers * 2);
+        }
+
+        int i = mMarkers++;
+        for (; i > 0 && mElapsed[i - 1] > elapsedNS; i--) {
+            mElapsed[i] = mElapsed[i - 1];
+            mOffset[i] = mOffset[i - 1];
+        }
+        mElapsed[i] = elapsedNS;
+        mOffset[i] = utcMS * 1000000 - elapsedNS;
+    }
+
+    /** @return the sensor clock time of the first frame of the recording */
+    public long getStartNS() {
+        return mStartNS;
+    }
+
+    /** @return the start of a segment in seconds since the first one, 0 if unknown */
+    public double getSegmentStart(int segment) {
+        Double start = mSegments.get(segment);
+        return start == null ? 0 : start;
+    }
+
+    public int getNumMarkers() {
+        return mMarkers;
+    }
+
+    /** @return the rate changes of all streams, in the order they happened */
+    public List<RateChange> getRateChanges() {
+        return Collections.unmodifiableList(mRateChanges);
+    }
+
+    /** @return UTC in ns since the epoch at a time of the sensor clock */
+    public long toUtcNS(long elapsedNS) {
+        int i = Arrays.binarySearch(mElapsed, 0, mMarkers, elapsedNS);
+        if (i < 0)
+            i = -i - 1;
+
+        long offset;
+        if (i == 0)
+            offset = mOffset[0];
+        else if (i >= mMarkers)
+            offset = mOffset[mMarkers - 1];
+        else if (mElapsed[i] == elapsedNS)
+            offset = mOffset[i];
+        else {
+            double f = (double) (elapsedNS - mElapsed[i - 1]) / (mElapsed[i] - mElapsed[i - 1]);
+            offset = mOffset[i - 1] + Math.round(f * (mOffset[i] - mOffset[i - 1]));
+        }
+
+        return elapsedNS + offset;
+    }
+
+    /**
+     * @param segment the "segment" tag of the recording, -1 if it is not segmented
+     * @param seconds time since the beginning of the recording or segment
+     * @return UTC in seconds since the epoch
+     */
+    public double toUtc(int segment, double seconds) {
+        double since = (segment > 0 ? getSegmentStart(segment) : 0) + seconds;
+        return toUtcNS(mStartNS + Math.round(since * 1e9)) / 1e9;
+    }
+}
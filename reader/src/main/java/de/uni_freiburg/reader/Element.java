@@ -0,0 +1,110 @@
+package de.uni_freiburg.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The header of an EBML element, i.e. its id and size, and the helpers to read the values of
+ * the elements that a session consists of.
+ */
+class Element {
+    /* element ids, see https://www.matroska.org/technical/specs/index.html */
+    static final int EBML = 0x1A45DFA3, DOCTYPE = 0x4282,
+            SEGMENT = 0x18538067, INFO = 0x1549A966, TIMECODE_SCALE = 0x2AD7B1,
+            TRACKS = 0x1654AE6B, TRACK_ENTRY = 0xAE, TRACK_NUMBER = 0xD7, TRACK_UID = 0x73C5,
+            TRACK_TYPE = 0x83, CODEC_ID = 0x86,
+            AUDIO = 0xE1, SAMPLING_FREQUENCY = 0xB5, CHANNELS = 0x9F, BIT_DEPTH = 0x6264,
+            TAGS = 0x1254C367, TAG = 0x7373, TARGETS = 0x63C0, TAG_TRACK_UID = 0x63C5,
+            SIMPLE_TAG = 0x67C8, TAG_NAME = 0x45A3, TAG_STRING = 0x4487,
+            CLUSTER = 0x1F43B675, TIMECODE = 0xE7, SIMPLE_BLOCK = 0xA3, BLOCK_GROUP = 0xA0,
+            BLOCK = 0xA1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** position of the element, and of its data */
+    final long pos, data;
+    final long size;
+    final int id, sizeLen;
+
+    private Element(long pos, long data, long size, int id, int sizeLen) {
+        this.pos = pos;
+        this.data = data;
+        this.size = size;
+        this.id = id;
+        this.sizeLen = sizeLen;
+    }
+
+    /** @return the element at pos, or null if its header is invalid or does not end before
+     * limit, e.g. when the file was cut off */
+    static Element read(Mapping m, long pos, long limit) throws IOException {
+        if (pos >= limit)
+            return null;
+
+        ByteBuffer b = m.slice(pos, Math.min(4 + 8, limit - pos));
+        int idLen = length(b.get(0));
+        if (idLen > 4 || b.remaining() <= idLen)
+            return null;
+
+        int sizeLen = length(b.get(idLen));
+        if (sizeLen > 8 || b.remaining() < idLen + sizeLen)
+            return null;
+
+        int id = 0;
+        for (int i = 0; i < idLen; i++)
+            id = (id << 8) | (b.get() & 0xFF);
+
+        long size = b.get() & (0xFF >> sizeLen);
+        for (int i = 1; i < sizeLen; i++)
+            size = (size << 8) | (b.get() & 0xFF);
+
+        return new Element(pos, pos + idLen + sizeLen, size, id, sizeLen);
+    }
+
+    /** @return the length of a variable size integer from its first byte, 9 if invalid */
+    static int length(byte first) {
+        return Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+    }
+
+    boolean isUnknownSize() {
+        return size == (1L << (7 * sizeLen)) - 1;
+    }
+
+    /** @return whether this is a top-level element of a segment, these have 4-byte ids */
+    boolean isTopLevel() {
+        return (id & 0xFF000000) != 0;
+    }
+
+    long end() {
+        return data + size;
+    }
+
+    long readUInt(Mapping m) throws IOException {
+        ByteBuffer b = m.slice(data, Math.min(8, size));
+        long value = 0;
+        while (b.hasRemaining())
+            value = (value << 8) | (b.get() & 0xFF);
+        return value;
+    }
+
+    double readFloat(Mapping m) throws IOException {
+        ByteBuffer b = m.slice(data, size);
+        if (size == 4)
+            return b.getFloat();
+        if (size == 8)
+            return b.getDouble();
+        throw new IOException("invalid float of " + size + " bytes at " + pos);
+    }
+
+    String readString(Mapping m) throws IOException {
+        ByteBuffer b = m.slice(data, size);
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+
+        /* strings may be zero-padded */
+        int len = bytes.length;
+        while (len > 0 && bytes[len - 1] == 0)
+            len--;
+        return new String(bytes, 0, len, UTF8);
+    }
+}
@@ -0,0 +1,63 @@
+package de.uni_freiburg.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a whole file, of any size. The file is mapped in windows of
+ * WINDOW bytes, each one when it is first accessed, so opening a file only reserves address
+ * space and all data is paged in by the OS on demand. Ranges that cross the border of two
+ * windows get a mapping of their own.
+ */
+class Mapping implements Closeable {
+    static final long WINDOW = 1L << 30;
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final MappedByteBuffer[] mWindows;
+
+    Mapping(FileChannel channel) throws IOException {
+        mChannel = channel;
+        mSize = channel.size();
+        mWindows = new MappedByteBuffer[(int) ((mSize + WINDOW - 1) / WINDOW)];
+    }
+
+    long size() {
+        return mSize;
+    }
+
+    /** @return a big-endian view of len bytes at pos, clipped to the end of the file */
+    synchronized ByteBuffer slice(long pos, long len) throws IOException {
+        if (pos < 0 || pos > mSize)
+            throw new IOException("position " + pos + " is outside of the file");
+
+        len = Math.min(len, mSize - pos);
+        int w = (int) (pos / WINDOW);
+        ByteBuffer b;
+
+        if (pos + len <= (w + 1) * WINDOW) {
+            if (mWindows[w] == null)
+                mWindows[w] = mChannel.map(FileChannel.MapMode.READ_ONLY, w * WINDOW,
+                        Math.min(WINDOW, mSize - w * WINDOW));
+
+            b = mWindows[w].duplicate();
+            b.position((int) (pos - w * WINDOW)).limit((int) (pos - w * WINDOW + len));
+            b = b.slice();
+        } else {
+            if (len > Integer.MAX_VALUE)
+                throw new IOException("element of " + len + " bytes is too large to map");
+            b = mChannel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        }
+
+        return b.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,212 @@
+package de.uni_freiburg.reader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the streams of several sessions, e.g. of a phone and a watch worn at the same time,
+ * onto one timeline in UTC, using the clock sync markers of each session. This is a streaming
+ * k-way merge: there is one cursor per stream, which holds the block that is currently read,
+ * and a priority queue of cursors ordered by the time of their next frame. Memory therefore
+ * only grows with the number of streams, not with the length of the sessions.
+ *
+ * Frames are visited with next(), the current frame is then described by the getters:
+ *
+ *   while (merge.next())
+ *       use(merge.getTime(), merge.getStream(), merge.get(0));
+ *
+ * Segments of a recording may be added as sessions of their own. Frames with the same time are
+ * visited in the order their sessions and streams were added.
+ */
+public final class Merge {
+    private final PriorityQueue<Cursor> mQueue = new PriorityQueue<>();
+    private final List<Session> mSessions = new ArrayList<>();
+    private Cursor mCurrent = null;
+    private int mCursors = 0;
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final Session session;
+        final ClockSync clock;
+        final int segment, order;
+        final Iterator<SampleBlock> blocks;
+        SampleBlock block;
+        int frame;
+        double time;
+
+        Cursor(Session session, ClockSync clock, int segment, int order, Stream stream) {
+            this.session = session;
+            this.clock = clock;
+            this.segment = segment;
+            this.order = order;
+            this.blocks = stream.blocks().iterator();
+        }
+
+        /** @return false if the stream has no more frames */
+        boolean advance() {
+            if (block != null && ++frame < block.getFrames()) {
+                time = clock.toUtc(segment, block.getTime(frame));
+                return true;
+            }
+
+            do {
+                if (!blocks.hasNext())
+                    return false;
+                block = blocks.next();
+            } while (block.getFrames() == 0);
+
+            frame = 0;
+            time = clock.toUtc(segment, block.getTime(0));
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            int c = Double.compare(time, o.time);
+            return c != 0 ? c : Integer.compare(order, o.order);
+        }
+    }
+
+    /**
+     * add all decodable streams of a session. Streams that are not PCM are skipped, see
+     * PcmDecoder.
+     *
+     * @param clock the clock sync markers of the session, see ClockSync.sidecarFor()
+     */
+    public Merge add(Session session, ClockSync clock) {
+        if (mCurrent != null)
+            throw new IllegalStateException("unable to add sessions while merging");
+
+        int segment = -1;
+        String tag = session.getTag("segment");
+        if (tag != null) try {
+            segment = Integer.parseInt(tag);
+        } catch (NumberFormatException e) {
+            System.err.println("ignoring invalid segment " + tag);
+        }
+
+        mSessions.add(session);
+        for (Stream s : session.getStreams()) {
+            if (!s.isPcm()) {
+                System.err.println("skipping " + s + ", decode it with PcmDecoder first");
+                continue;
+            }
+
+            Cursor c = new Cursor(session, clock, segment, mCursors++, s);
+            if (c.advance())
+                mQueue.add(c);
+        }
+        return this;
+    }
+
+    /** @return the number of streams that have been added, without the skipped ones */
+    public int getNumStreams() {
+        return mCursors;
+    }
+
+    /** move to the next frame of all streams.
+     *
+     * @return false if all frames have been visited
+     */
+    public boolean next() {
+        if (mCurrent != null && mCurrent.advance())
+            mQueue.add(mCurrent);
+
+        mCurrent = mQueue.poll();
+        return mCurrent != null;
+    }
+
+    /** @return the time of the current frame, in seconds since the epoch in UTC */
+    public double getTime() {
+        return mCurrent.time;
+    }
+
+    public Session getSession() {
+        return mCurrent.session;
+    }
+
+    public Stream getStream() {
+        return mCurrent.block.getStream();
+    }
+
+    /** @return the value of a channel in the current frame */
+    public float get(int channel) {
+        return mCurrent.block.get(mCurrent.frame, channel);
+    }
+
+    /**
+     * write all frames as CSV, with one line per frame of the form
+     *
+     *   utc_seconds,source,stream,value...
+     *
+     * where source is the android id of the session, or its index if it has none.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("utc_seconds,source,stream,values\n");
+
+        StringBuilder line = new StringBuilder();
+        while (next()) {
+            String source = getSession().getAndroidId();
+            if (source == null)
+                source = Integer.toString(mSessions.indexOf(getSession()));
+
+            line.setLength(0);
+            line.append(String.format(Locale.US, "%.6f", getTime()))
+                .append(',').append(source)
+                .append(',').append(getStream().getName());
+            for (int c = 0; c < getStream().getChannels(); c++)
+                line.append(',').append(get(c));
+            out.write(line.append('\n').toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * merge the given recordings into CSV on stdout. Each one needs its .clock sidecar, and
+     * recordings that are not PCM are decoded with the ffmpeg on the PATH, see PcmDecoder. Exits
+     * with a non-zero status if none of the streams can be read.
+     *
+     *   java -cp reader.jar de.uni_freiburg.reader.Merge FILE.mkv... > merged.csv
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: Merge FILE.mkv...");
+            System.exit(1);
+        }
+
+        Merge merge = new Merge();
+        try {
+            for (String arg : args) {
+                File file = new File(arg);
+                ClockSync clock = ClockSync.read(ClockSync.sidecarFor(file));
+
+                Session session;
+                try {
+                    session = PcmDecoder.open(file);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage() + ", merging its PCM streams only");
+                    session = Session.open(file);
+                }
+                merge.add(session, clock);
+            }
+
+            if (merge.getNumStreams() > 0)
+                merge.writeCsv(new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8")));
+        } finally {
+            for (Session s : merge.mSessions)
+                s.close();
+        }
+
+        if (merge.getNumStreams() == 0) {
+            System.err.println("none of the streams can be read");
+            System.exit(2);
+        }
+    }
+}
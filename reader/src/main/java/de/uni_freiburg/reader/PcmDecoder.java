@@ -0,0 +1,92 @@
+package de.uni_freiburg.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes sessions with streams that are not PCM, e.g. recordings with the default wavpack
+ * codec. The whole file is transcoded by the ffmpeg on the PATH into a PCM copy, which keeps
+ * the tags of the session and of each stream. Streams with a "scale" tag were recorded as
+ * 16-bit integers and stay so, so that their scale still applies, all other ones are decoded
+ * to 32-bit floats. PCM streams are copied as they are.
+ */
+public final class PcmDecoder {
+    private static final String FFMPEG = "ffmpeg";
+
+    private PcmDecoder() {
+    }
+
+    /** @return true if some stream of the session is not PCM */
+    public static boolean needsDecoding(Session session) {
+        for (Stream s : session.getStreams())
+            if (!s.isPcm())
+                return true;
+        return false;
+    }
+
+    /**
+     * open a session, and decode it into a temporary PCM copy if needed, which is deleted when
+     * the JVM exits.
+     *
+     * @throws IOException if the session needs decoding and ffmpeg is not available or fails
+     */
+    public static Session open(File file) throws IOException {
+        Session session = Session.open(file);
+        if (!needsDecoding(session))
+            return session;
+
+        File pcm = File.createTempFile(file.getName().replaceAll("\\.mkv$", ""), ".pcm.mkv");
+        pcm.deleteOnExit();
+        try {
+            decode(file, session, pcm);
+        } finally {
+            session.close();
+        }
+        return Session.open(pcm);
+    }
+
+    /** transcode a session into a PCM copy, which is overwritten. */
+    public static void decode(File in, Session session, File out) throws IOException {
+        Process p;
+        try {
+            p = new ProcessBuilder(command(in, session, out)).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            throw new IOException("unable to run " + FFMPEG + " to decode " + in, e);
+        }
+
+        /* ffmpeg only logs errors, which are passed on to stderr */
+        byte[] buf = new byte[4096];
+        try (InputStream log = p.getInputStream()) {
+            for (int n; (n = log.read(buf)) > 0; )
+                System.err.write(buf, 0, n);
+        }
+
+        try {
+            int status = p.waitFor();
+            if (status != 0)
+                throw new IOException(FFMPEG + " failed with " + status + " to decode " + in);
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw new IOException("interrupted while decoding " + in, e);
+        }
+    }
+
+    /** @return the ffmpeg command line that decodes the given session */
+    static List<String> command(File in, Session session, File out) {
+        List<String> cmd = new ArrayList<>(Arrays.asList(FFMPEG, "-nostdin", "-v", "error",
+                "-y", "-i", in.getPath(), "-map", "0"));
+
+        for (Stream s : session.getStreams()) {
+            String codec = s.isPcm() ? "copy" :
+                    s.getTag("scale") != null ? "pcm_s16le" : "pcm_f32le";
+            cmd.addAll(Arrays.asList("-c:a:" + s.getIndex(), codec));
+        }
+
+        cmd.addAll(Arrays.asList("-f", "matroska", out.getPath()));
+        return cmd;
+    }
+}
@@ -0,0 +1,69 @@
+package de.uni_freiburg.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The sample frames of one block of a stream, decoded on access from the memory mapped file.
+ * Integer samples are multiplied with the scale of their stream, so all values are the
+ * original sensor values.
+ */
+public final class SampleBlock {
+    private final Stream mStream;
+    private final ByteBuffer mData;
+    private final double mTime;
+    private final int mFrames;
+
+    SampleBlock(Stream stream, ByteBuffer data, double time) {
+        mStream = stream;
+        mData = data.order(stream.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        mTime = time;
+        mFrames = data.remaining() / stream.getFrameSize();
+    }
+
+    public Stream getStream() {
+        return mStream;
+    }
+
+    /** @return the time of the first frame in seconds since the beginning of the session */
+    public double getTime() {
+        return mTime;
+    }
+
+    /** @return the time of the given frame in seconds since the beginning of the session */
+    public double getTime(int frame) {
+        return mTime + frame / mStream.getRate();
+    }
+
+    public int getFrames() {
+        return mFrames;
+    }
+
+    /** @return the value of a channel in a frame */
+    public float get(int frame, int channel) {
+        if (frame < 0 || frame >= mFrames || channel < 0 || channel >= mStream.getChannels())
+            throw new IndexOutOfBoundsException("no value " + channel + " in frame " + frame);
+
+        int i = frame * mStream.getChannels() + channel,
+            bytes = mStream.getBitDepth() / 8;
+        int pos = mData.position() + i * bytes;
+
+        if (mStream.isFloat())
+            return bytes == 4 ? mData.getFloat(pos) : (float) mData.getDouble(pos);
+
+        long v = bytes == 2 ? mData.getShort(pos) : mData.getInt(pos);
+        return (float) (v * mStream.getScale());
+    }
+
+    /** copy all values, frame by frame, into dst starting at offset.
+     *
+     * @return the number of values copied
+     */
+    public int get(float[] dst, int offset) {
+        int channels = mStream.getChannels();
+        for (int f = 0; f < mFrames; f++)
+            for (int c = 0; c < channels; c++)
+                dst[offset + f * channels + c] = get(f, c);
+        return mFrames * channels;
+    }
+}
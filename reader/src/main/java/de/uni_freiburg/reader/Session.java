@@ -0,0 +1,401 @@
+package de.uni_freiburg.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * A recorded session, i.e. a Matroska file as written by the RecorderService, either through
+ * ffmpeg or its own muxer. The file is memory mapped, and opening it only parses the element
+ * headers: the track layout, the tags of the session and its streams, and the position and
+ * time of every cluster. Sample data is only touched when the blocks of a stream are read,
+ * so sessions of any length can be opened without loading them onto the heap.
+ *
+ * Sessions that were cut off are read up to their last complete element. A Session is safe to
+ * use from several threads, but each iterator of blocks only from one.
+ */
+public final class Session implements Closeable {
+    private static final int TRACK_TYPE_AUDIO = 2;
+
+    private final Mapping mMapping;
+    private final TreeMap<String, String> mTags = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    private long mTimecodeScaleNS = 1000000;
+
+    /* the data position, end and time in timecode ticks of each cluster, in file order */
+    private long[] mClusterData = new long[64], mClusterEnd = new long[64],
+                   mClusterTime = new long[64];
+    private int mClusters = 0;
+
+    private Session(Mapping mapping) {
+        mMapping = mapping;
+    }
+
+    /** open and map a session file. */
+    public static Session open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Session s;
+
+        try {
+            s = new Session(new Mapping(raf.getChannel()));
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+
+        try {
+            s.parse();
+        } catch (IOException | RuntimeException e) {
+            s.close();
+            throw e;
+        }
+
+        return s;
+    }
+
+    /** @return all tags of the session, their names are case-insensitive */
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(mTags);
+    }
+
+    public String getTag(String key) {
+        return mTags.get(key);
+    }
+
+    /** @return the start of the recording from the "beginning" tag, or null */
+    public Date getBeginning() {
+        String beginning = mTags.get("beginning");
+        if (beginning == null)
+            return null;
+
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return df.parse(beginning);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /** @return the id of the recording device from the "android_id" tag, or null */
+    public String getAndroidId() {
+        return mTags.get("android_id");
+    }
+
+    public List<Stream> getStreams() {
+        return Collections.unmodifiableList(mStreams);
+    }
+
+    /** @return the first stream with the given name, or null */
+    public Stream getStream(String name) {
+        for (Stream s : mStreams)
+            if (name.equals(s.getName()))
+                return s;
+        return null;
+    }
+
+    /** @return the time of the last cluster in seconds, a lower bound of the duration */
+    public double getLastClusterTime() {
+        return mClusters == 0 ? 0 : seconds(mClusterTime[mClusters - 1]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMapping.close();
+    }
+
+    private double seconds(long ticks) {
+        return ticks * mTimecodeScaleNS / 1e9;
+    }
+
+    private void parse() throws IOException {
+        long size = mMapping.size();
+        Element e = Element.read(mMapping, 0, size);
+
+        if (e == null || e.id != Element.EBML)
+            throw new IOException("not a Matroska file");
+
+        Element doctype = child(e, Element.DOCTYPE);
+        String type = doctype == null ? "matroska" : doctype.readString(mMapping);
+        if (!type.equals("matroska") && !type.equals("webm"))
+            throw new IOException("unsupported document type " + type);
+
+        Element segment = Element.read(mMapping, e.end(), size);
+        if (segment == null || segment.id != Element.SEGMENT)
+            throw new IOException("no segment in Matroska file");
+
+        long end = segment.isUnknownSize() ? size : Math.min(size, segment.end()),
+             pos = segment.data;
+        ArrayList<Element> tags = new ArrayList<>();
+        TreeMap<Long, Stream> byUid = new TreeMap<>();
+
+        while ((e = Element.read(mMapping, pos, end)) != null) {
+            if (e.id == Element.CLUSTER) {
+                pos = addCluster(e, end);
+                continue;
+            }
+
+            /* any other element of unknown size ends the readable part */
+            if (e.isUnknownSize())
+                break;
+
+            if (e.id == Element.INFO) {
+                Element scale = child(e, Element.TIMECODE_SCALE);
+                if (scale != null)
+                    mTimecodeScaleNS = scale.readUInt(mMapping);
+            } else if (e.id == Element.TRACKS)
+                parseTracks(e, byUid);
+            else if (e.id == Element.TAGS)
+                tags.add(e);
+
+            pos = e.end();
+        }
+
+        /* tags may come before the tracks or be appended after the clusters */
+        for (Element t : tags)
+            parseTags(t, byUid);
+    }
+
+    /** record the position and time of a cluster. @return the end of the cluster */
+    private long addCluster(Element cluster, long end) throws IOException {
+        long clusterEnd = Math.min(end, cluster.end()),
+             time = 0;
+        Element e;
+
+        for (long pos = cluster.data; (e = Element.read(mMapping, pos, clusterEnd)) != null;
+             pos = e.end()) {
+            /* a cluster of unknown size ends with the next top-level element */
+            if (cluster.isUnknownSize() && e.isTopLevel()) {
+                clusterEnd = pos;
+                break;
+            }
+            if (e.id == Element.TIMECODE) {
+                time = e.readUInt(mMapping);
+                if (!cluster.isUnknownSize())
+                    break;
+            }
+        }
+
+        if (mClusters == mClusterData.length) {
+            mClusterData = Arrays.copyOf(mClusterData, 2 * mClusters);
+            mClusterEnd = Arrays.copyOf(mClusterEnd, 2 * mClusters);
+            mClusterTime = Arrays.copyOf(mClusterTime, 2 * mClusters);
+        }
+
+        mClusterData[mClusters] = cluster.data;
+        mClusterEnd[mClusters] = clusterEnd;
+        mClusterTime[mClusters] = time;
+        mClusters++;
+
+        return clusterEnd;
+    }
+
+    private void parseTracks(Element tracks, Map<Long, Stream> byUid) throws IOException {
+        for (Element entry : children(tracks)) {
+            if (entry.id != Element.TRACK_ENTRY)
+                continue;
+
+            Element number = child(entry, Element.TRACK_NUMBER),
+                    uid = child(entry, Element.TRACK_UID),
+                    type = child(entry, Element.TRACK_TYPE),
+                    codec = child(entry, Element.CODEC_ID),
+                    audio = child(entry, Element.AUDIO);
+
+            if (number == null || type == null || type.readUInt(mMapping) != TRACK_TYPE_AUDIO)
+                continue;
+
+            Stream s = new Stream(this, mStreams.size(), number.readUInt(mMapping),
+                    uid == null ? 0 : uid.readUInt(mMapping));
+            if (codec != null)
+                s.codec = codec.readString(mMapping);
+
+            if (audio != null)
+                for (Element a : children(audio)) {
+                    if (a.id == Element.SAMPLING_FREQUENCY)
+                        s.rate = a.readFloat(mMapping);
+                    else if (a.id == Element.CHANNELS)
+                        s.channels = (int) a.readUInt(mMapping);
+                    else if (a.id == Element.BIT_DEPTH)
+                        s.bitDepth = (int) a.readUInt(mMapping);
+                }
+
+            mStreams.add(s);
+            byUid.put(s.uid, s);
+        }
+    }
+
+    private void parseTags(Element tags, Map<Long, Stream> byUid) throws IOException {
+        for (Element tag : children(tags)) {
+            if (tag.id != Element.TAG)
+                continue;
+
+            ArrayList<Map<String, String>> targets = new ArrayList<>();
+            Element t = child(tag, Element.TARGETS);
+            if (t != null)
+                for (Element uid : children(t))
+                    if (uid.id == Element.TAG_TRACK_UID && uid.readUInt(mMapping) != 0) {
+                        Stream s = byUid.get(uid.readUInt(mMapping));
+                        if (s != null)
+                            targets.add(s.tags);
+                    }
+
+            /* tags without a track target are those of the whole session */
+            if (targets.isEmpty())
+                targets.add(mTags);
+
+            for (Element simple : children(tag)) {
+                if (simple.id != Element.SIMPLE_TAG)
+                    continue;
+
+                Element name = child(simple, Element.TAG_NAME),
+                        value = child(simple, Element.TAG_STRING);
+                if (name != null && value != null)
+                    for (Map<String, String> target : targets)
+                        target.put(name.readString(mMapping), value.readString(mMapping));
+            }
+        }
+    }
+
+    private List<Element> children(Element parent) throws IOException {
+        ArrayList<Element> children = new ArrayList<>();
+        Element e;
+        for (long pos = parent.data; (e = Element.read(mMapping, pos, parent.end())) != null &&
+             e.end() <= parent.end(); pos = e.end())
+            children.add(e);
+        return children;
+    }
+
+    private Element child(Element parent, int id) throws IOException {
+        for (Element e : children(parent))
+            if (e.id == id)
+                return e;
+        return null;
+    }
+
+    /** @return the index of the last cluster that starts at or before the given time */
+    private int findCluster(double time) {
+        int lo = 0, hi = mClusters - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (seconds(mClusterTime[mid]) <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    Iterable<SampleBlock> blocks(final Stream stream, final double from, final double to) {
+        return new Iterable<SampleBlock>() {
+            @Override
+            public Iterator<SampleBlock> iterator() {
+                return new BlockIterator(stream, from, to);
+            }
+        };
+    }
+
+    /** walks the blocks of the clusters that overlap the range, one element at a time. */
+    private class BlockIterator implements Iterator<SampleBlock> {
+        private final Stream mStream;
+        private final double mFrom, mTo;
+        private int mCluster;
+        private long mPos;
+        private SampleBlock mNext = null;
+        private boolean mDone = false;
+
+        BlockIterator(Stream stream, double from, double to) {
+            mStream = stream;
+            mFrom = from;
+            mTo = to;
+            mCluster = findCluster(from);
+            mPos = mClusters > 0 ? mClusterData[mCluster] : 0;
+            mDone = mClusters == 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (mNext == null && !mDone)
+                    mNext = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public SampleBlock next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            SampleBlock b = mNext;
+            mNext = null;
+            return b;
+        }
+
+        /** @return the block at the current position if it is one of the range, or null */
+        private SampleBlock advance() throws IOException {
+            Element e = Element.read(mMapping, mPos, mClusterEnd[mCluster]);
+
+            if (e == null || e.end() > mClusterEnd[mCluster]) {
+                if (++mCluster == mClusters || seconds(mClusterTime[mCluster]) >= mTo)
+                    mDone = true;
+                else
+                    mPos = mClusterData[mCluster];
+                return null;
+            }
+
+            mPos = e.end();
+            Element block = e.id == Element.BLOCK_GROUP ? child(e, Element.BLOCK) :
+                            e.id == Element.SIMPLE_BLOCK ? e : null;
+            if (block == null)
+                return null;
+
+            ByteBuffer b = mMapping.slice(block.data, block.size);
+            int len = Element.length(b.get(0));
+            if (len > 8 || b.remaining() < len + 3)
+                throw new IOException("malformed block at " + block.pos);
+
+            long track = b.get() & (0xFF >> len);
+            for (int i = 1; i < len; i++)
+                track = (track << 8) | (b.get() & 0xFF);
+            if (track != mStream.number)
+                return null;
+
+            double time = seconds(mClusterTime[mCluster] + b.getShort());
+            if ((b.get() & 0x06) != 0)
+                throw new IOException("laced blocks are not supported, at " + block.pos);
+
+            double end = time + b.remaining() / mStream.getFrameSize() / mStream.getRate();
+            if (time >= mTo) {
+                mDone = true;
+                return null;
+            }
+            if (end <= mFrom)
+                return null;
+
+            return new SampleBlock(mStream, b.slice(), time);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
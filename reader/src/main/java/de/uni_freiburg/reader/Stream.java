@@ -0,0 +1,122 @@
+package de.uni_freiburg.reader;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One sensor stream of a session, i.e. an audio track of the Matroska file. Its samples are
+ * read in blocks with blocks(). Only PCM tracks can be read, sessions that were encoded with
+ * another codec, like the default wavpack, need to be opened through a PcmDecoder.
+ */
+public final class Stream {
+    private final Session mSession;
+    private final int mIndex;
+    final long number, uid;
+    final TreeMap<String, String> tags = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    String codec = "";
+    double rate = 0;
+    int channels = 1;
+    int bitDepth = 0;
+
+    Stream(Session session, int index, long number, long uid) {
+        mSession = session;
+        mIndex = index;
+        this.number = number;
+        this.uid = uid;
+    }
+
+    /** @return the position of this stream in the session, counting from zero */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /** @return the sensor name from the "name" tag, or null */
+    public String getName() {
+        return tags.get("name");
+    }
+
+    /** @return all tags of this stream, their names are case-insensitive */
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(tags);
+    }
+
+    public String getTag(String key) {
+        return tags.get(key);
+    }
+
+    /** @return the Matroska codec id, e.g. A_PCM/FLOAT/IEEE */
+    public String getCodec() {
+        return codec;
+    }
+
+    /** @return the sample rate in Hz */
+    public double getRate() {
+        return rate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /** @return the factor of integer samples to the original values, from the "scale" tag */
+    public double getScale() {
+        String scale = tags.get("scale");
+        try {
+            return scale == null ? 1. : Double.parseDouble(scale);
+        } catch (NumberFormatException e) {
+            return 1.;
+        }
+    }
+
+    /** @return true if the samples can be decoded by this reader */
+    public boolean isPcm() {
+        if (isFloat())
+            return bitDepth == 32 || bitDepth == 64;
+        if (codec.equals("A_PCM/INT/LIT") || codec.equals("A_PCM/INT/BIG"))
+            return bitDepth == 16 || bitDepth == 32;
+        return false;
+    }
+
+    boolean isFloat() {
+        return codec.equals("A_PCM/FLOAT/IEEE");
+    }
+
+    boolean isBigEndian() {
+        return codec.equals("A_PCM/INT/BIG");
+    }
+
+    int getFrameSize() {
+        return channels * bitDepth / 8;
+    }
+
+    /**
+     * iterate over the blocks of this stream that overlap the given time range. The first and
+     * last block may extend beyond the range. Blocks are read lazily from the mapped file while
+     * iterating, which throws an UncheckedIOException on malformed data.
+     *
+     * @param from start of the range in seconds since the beginning of the session
+     * @param to   end of the range in seconds, exclusive
+     */
+    public Iterable<SampleBlock> blocks(double from, double to) {
+        if (!isPcm())
+            throw new UnsupportedOperationException(
+                    "unable to decode " + codec + " samples, open the session with PcmDecoder");
+        return mSession.blocks(this, from, to);
+    }
+
+    /** iterate over all blocks of this stream, see blocks(double, double). */
+    public Iterable<SampleBlock> blocks() {
+        return blocks(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s, %d channels at %.2f Hz)", getName(), codec, channels, rate);
+    }
+}
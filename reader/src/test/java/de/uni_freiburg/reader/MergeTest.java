@@ -0,0 +1,129 @@
+package de.uni_freiburg.reader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+import static org.junit.Assert.*;
+
+public class MergeTest {
+    /** 1.5e9 s, some time in 2017 */
+    private static final long EPOCH_MS = 1500000000000L;
+
+    /** record 10 s of a 1-channel stream at the given rate, where each value is the time of its
+     * frame in seconds, and a clock sidecar which puts the start at startMS in UTC. */
+    private static File record(String id, int rate, long startMS) throws Exception {
+        File f = File.createTempFile("merge", ".mkv");
+        f.deleteOnExit();
+
+        MatroskaWriter w = new MatroskaWriter(new FileOutputStream(f).getChannel(), "test")
+                .setClusterDuration(1000);
+        int t = w.addAudioTrack("f32le", rate, 1);
+        w.setTag("android_id", id);
+        w.setTrackTag(t, "name", "acc");
+
+        GatheringByteChannel c = w.getTrackChannel(t);
+        for (int s = 0; s < 10; s++) {
+            ByteBuffer b = ByteBuffer.allocate(rate * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < rate; i++)
+                b.putFloat(s + i / (float) rate);
+            b.flip();
+            c.write(b);
+        }
+        c.close();
+
+        /* the sensor clock of each device has a different origin */
+        long start = 123456789L * id.length();
+        File clock = ClockSync.sidecarFor(f);
+        clock.deleteOnExit();
+        try (FileWriter out = new FileWriter(clock)) {
+            out.write("# test\nstart\t" + start + "\n");
+            out.write("clock\t" + start + "\t" + startMS + "\n");
+            out.write("clock\t" + (start + 10000000000L) + "\t" + (startMS + 10000) + "\n");
+        }
+        return f;
+    }
+
+    @Test
+    public void interpolatesClockOffset() throws Exception {
+        File f = File.createTempFile("drift", ".clock");
+        f.deleteOnExit();
+        try (FileWriter out = new FileWriter(f)) {
+            /* the sensor clock runs 1 ms slow over 100 s, and segment 1 starts at 60 s */
+            out.write("start\t5000000000\nsegment\t0\t0\nsegment\t1\t60\n");
+            out.write("clock\t1000000000\t" + EPOCH_MS + "\n");
+            out.write("clock\t100999000000\t" + (EPOCH_MS + 100000) + "\n");
+            /* stream 2 is stepped down to 1 Hz 60 s after the start */
+            out.write("rate\t2\t65000000000\t1.000000\n");
+        }
+
+        ClockSync c = ClockSync.read(f);
+        assertEquals(2, c.getNumMarkers());
+        assertEquals(EPOCH_MS * 1000000, c.toUtcNS(1000000000));
+        assertEquals(EPOCH_MS * 1000000 + 50000000000L, c.toUtcNS(50999500000L));
+        /* held constant before the first marker */
+        assertEquals(EPOCH_MS * 1000000 - 1000000000, c.toUtcNS(0));
+
+        /* 4 s after the first marker, and 60 s later in segment 1 */
+        assertEquals(EPOCH_MS / 1e3 + 4, c.toUtc(-1, 0), 1e-4);
+        assertEquals(EPOCH_MS / 1e3 + 4 + 70, c.toUtc(1, 10), 1e-3);
+
+        assertEquals(1, c.getRateChanges().size());
+        assertEquals(2, c.getRateChanges().get(0).stream);
+        assertEquals(60, c.getRateChanges().get(0).time, 1e-9);
+        assertEquals(1, c.getRateChanges().get(0).rate, 0);
+        assertEquals(new File("/a/b.clock"), ClockSync.sidecarFor(new File("/a/b_0003.mkv")));
+    }
+
+    @Test
+    public void mergesInTimeOrder() throws Exception {
+        /* the watch starts 2.5 s after the phone */
+        File phone = record("phone", 10, EPOCH_MS),
+             watch = record("watch1", 4, EPOCH_MS + 2500);
+
+        Merge m = new Merge();
+        try (Session p = Session.open(phone); Session w = Session.open(watch)) {
+            m.add(p, ClockSync.read(ClockSync.sidecarFor(phone)))
+             .add(w, ClockSync.read(ClockSync.sidecarFor(watch)));
+
+            int frames = 0, watchFrames = 0;
+            double last = Double.NEGATIVE_INFINITY;
+            while (m.next()) {
+                assertTrue(m.getTime() >= last);
+                last = m.getTime();
+                frames++;
+
+                /* values are the time since the start of their own recording */
+                double start = EPOCH_MS / 1e3;
+                if (m.getSession() == w) {
+                    start += 2.5;
+                    watchFrames++;
+                }
+                assertEquals(last - start, m.get(0), 1e-3);
+            }
+
+            assertEquals(10 * 10 + 10 * 4, frames);
+            assertEquals(10 * 4, watchFrames);
+        }
+    }
+
+    @Test
+    public void skipsStreamsThatAreNotPcm() throws Exception {
+        File phone = record("phone", 10, EPOCH_MS);
+        PcmDecoderTest.replaceCodec(phone, "A_PCM/FLOAT/IEEE", 0, "A_WAVPACK4");
+
+        Merge m = new Merge();
+        try (Session p = Session.open(phone)) {
+            m.add(p, ClockSync.read(ClockSync.sidecarFor(phone)));
+            assertEquals(0, m.getNumStreams());
+            assertFalse(m.next());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package de.uni_freiburg.reader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+import static org.junit.Assert.*;
+
+public class PcmDecoderTest {
+    /** record one second of two float streams and an int16 stream with a scale */
+    private static File record() throws Exception {
+        File f = File.createTempFile("decoder", ".mkv");
+        f.deleteOnExit();
+
+        MatroskaWriter w = new MatroskaWriter(new FileOutputStream(f).getChannel(), "test");
+        int acc = w.addAudioTrack("f32le", 50, 3),
+            gyro = w.addAudioTrack("f32le", 50, 3),
+            light = w.addAudioTrack("s16le", 1, 1);
+        w.setTrackTag(acc, "name", "accelerometer");
+        w.setTrackTag(gyro, "name", "gyroscope");
+        w.setTrackTag(light, "name", "light");
+        w.setTrackTag(light, "scale", ".01");
+
+        for (int t : new int[] { acc, gyro, light }) {
+            w.getTrackChannel(t).write(ByteBuffer.allocate(t == light ? 2 : 50 * 3 * 4));
+            w.getTrackChannel(t).close();
+        }
+        return f;
+    }
+
+    /** replace the n-th occurrence of a codec id by another one of at most the same length,
+     * padded with zeros, e.g. to pretend that a stream was encoded with wavpack. */
+    static void replaceCodec(File f, String codec, int n, String replacement) throws Exception {
+        byte[] data = Files.readAllBytes(f.toPath()),
+               from = codec.getBytes(StandardCharsets.US_ASCII),
+               to = Arrays.copyOf(replacement.getBytes(StandardCharsets.US_ASCII), from.length);
+
+        for (int i = 0; i + from.length <= data.length; i++) {
+            if (!Arrays.equals(from, Arrays.copyOfRange(data, i, i + from.length)))
+                continue;
+            if (n-- == 0) {
+                System.arraycopy(to, 0, data, i, to.length);
+                Files.write(f.toPath(), data);
+                return;
+            }
+        }
+        fail(codec + " not found");
+    }
+
+    @Test
+    public void opensPcmSessionsWithoutDecoding() throws Exception {
+        File f = record();
+        try (Session s = PcmDecoder.open(f)) {
+            assertFalse(PcmDecoder.needsDecoding(s));
+            assertEquals(3, s.getStreams().size());
+        }
+    }
+
+    @Test
+    public void decodesOtherStreamsToTheirRecordedFormat() throws Exception {
+        File f = record();
+        replaceCodec(f, "A_PCM/FLOAT/IEEE", 1, "A_WAVPACK4");
+        replaceCodec(f, "A_PCM/INT/LIT", 0, "A_WAVPACK4");
+
+        try (Session s = Session.open(f)) {
+            assertTrue(PcmDecoder.needsDecoding(s));
+            assertTrue(s.getStream("accelerometer").isPcm());
+            assertEquals("A_WAVPACK4", s.getStream("gyroscope").getCodec());
+
+            File out = new File("out.mkv");
+            assertEquals(Arrays.asList("ffmpeg", "-nostdin", "-v", "error", "-y",
+                    "-i", f.getPath(), "-map", "0",
+                    "-c:a:0", "copy", "-c:a:1", "pcm_f32le", "-c:a:2", "pcm_s16le",
+                    "-f", "matroska", "out.mkv"), PcmDecoder.command(f, s, out));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesToReadOtherStreams() throws Exception {
+        File f = record();
+        replaceCodec(f, "A_PCM/INT/LIT", 0, "A_WAVPACK4");
+
+        try (Session s = Session.open(f)) {
+            s.getStream("light").blocks();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package de.uni_freiburg.reader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Date;
+
+import de.uni_freiburg.ffmpeg.MatroskaWriter;
+
+import static org.junit.Assert.*;
+
+public class SessionTest {
+    private static final float SCALE = .01f;
+
+    /** record 60 s of a 50 Hz float and a 1 Hz int16 stream, where each value is the time of
+     * its frame in seconds, in steps of 1 s per write. */
+    private static File record() throws Exception {
+        File f = File.createTempFile("session", ".mkv");
+        f.deleteOnExit();
+
+        MatroskaWriter w = new MatroskaWriter(new FileOutputStream(f).getChannel(), "test")
+                .setClusterDuration(2000);
+        int acc = w.addAudioTrack("f32le", 50, 3),
+            light = w.addAudioTrack("s16le", 1, 1);
+        w.setTag("android_id", "1234");
+        w.setTag("beginning", "2019-03-01T12:30Z");
+        w.setTrackTag(acc, "name", "accelerometer");
+        w.setTrackTag(light, "name", "light");
+        w.setTrackTag(light, "scale", Float.toString(SCALE));
+
+        GatheringByteChannel a = w.getTrackChannel(acc),
+                             l = w.getTrackChannel(light);
+        for (int s = 0; s < 60; s++) {
+            ByteBuffer b = ByteBuffer.allocate(50 * 3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < 50 * 3; i++)
+                b.putFloat(s + i / 3 / 50.f);
+            b.flip();
+            a.write(b);
+
+            b = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            b.putShort(0, (short) Math.round(s / SCALE));
+            l.write(b);
+        }
+        a.close();
+        l.close();
+        return f;
+    }
+
+    @Test
+    public void parsesLayoutAndTags() throws Exception {
+        try (Session s = Session.open(record())) {
+            assertEquals(2, s.getStreams().size());
+            assertEquals("1234", s.getAndroidId());
+            assertEquals(new Date(1551443400000L), s.getBeginning());
+
+            Stream acc = s.getStream("accelerometer");
+            assertEquals(0, acc.getIndex());
+            assertEquals(50., acc.getRate(), 0);
+            assertEquals(3, acc.getChannels());
+            assertTrue(acc.isPcm());
+
+            Stream light = s.getStream("light");
+            assertEquals("A_PCM/INT/LIT", light.getCodec());
+            assertEquals(SCALE, light.getScale(), 1e-9);
+        }
+    }
+
+    @Test
+    public void readsTimeRanges() throws Exception {
+        try (Session s = Session.open(record())) {
+            int blocks = 0;
+            for (SampleBlock b : s.getStream("accelerometer").blocks(30.5, 33)) {
+                assertEquals(31 + blocks - 1, b.getTime(), 1e-3);
+                assertEquals(50, b.getFrames());
+                assertEquals(b.getTime(10), b.get(10, 2), 1e-3);
+                blocks++;
+            }
+            assertEquals(3, blocks);
+
+            float[] values = new float[60];
+            int n = 0;
+            for (SampleBlock b : s.getStream("light").blocks())
+                n += b.get(values, n);
+
+            assertEquals(60, n);
+            for (int i = 0; i < n; i++)
+                assertEquals(i, values[i], SCALE / 2);
+        }
+    }
+
+    @Test
+    public void readsCutOffSessions() throws Exception {
+        File f = record();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(f.length() - 1000);
+        }
+
+        try (Session s = Session.open(f)) {
+            double last = -1;
+            for (SampleBlock b : s.getStream("accelerometer").blocks())
+                last = b.getTime();
+            assertTrue(last > 50 && last < 59);
+        }
+    }
+}
@@ -21,6 +21,8 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 
+import java.util.ArrayList;
+
 import de.uni_freiburg.bgrecorder.RecorderService;
 
 /**
@@ -41,9 +43,14 @@ public class MainActivity extends FragmentActivity {
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        /** ask for runtime permission to save file on sdcard */
-        if (!allowed(EXT_STORAGE))
-            reqPerm(EXT_STORAGE);
+        /** ask for runtime permission to save file on sdcard, and whatever else is recorded */
+        ArrayList<String> missing = new ArrayList<>();
+        for (String perm : RecorderService.getPermissions())
+            if (!allowed(perm))
+                missing.add(perm);
+
+        if (!missing.isEmpty())
+            reqPerm(missing.toArray(new String[missing.size()]));
         else {
             startService(new Intent(this, RecorderService.class));
             new Handler().post(new Runnable() {
@@ -95,7 +102,8 @@ public class MainActivity extends FragmentActivity {
         if (requestCode != PERMISSION_REQUEST_ID)
             return;
 
-        if (grantResults[0] != PackageManager.PERMISSION_GRANTED)
+        /* the recording goes on without the optional ones */
+        if (!allowed(EXT_STORAGE))
             return;
 
         startService(new Intent(this, RecorderService.class));
@@ -106,9 +114,9 @@ public class MainActivity extends FragmentActivity {
                 == PackageManager.PERMISSION_GRANTED;
     }
 
-    private void reqPerm(String perm) {
+    private void reqPerm(String[] perms) {
         ActivityCompat.requestPermissions(this,
-                new String[]{perm},
+                perms,
                 PERMISSION_REQUEST_ID);
     }
 }